@@ -22,16 +22,21 @@ package updater.launcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import updater.crypto.AESKey;
+import updater.patch.DigestCache;
 import updater.patch.PatchRecord;
 import updater.patch.Patcher;
 import updater.patch.PatcherListener;
 import updater.patch.ReplacementRecord;
 import updater.script.Patch;
+import updater.util.CommonUtil;
 import updater.util.Pausable;
 
 /**
@@ -40,16 +45,42 @@ import updater.util.Pausable;
  */
 public class BatchPatcher implements Pausable {
 
+  private static final Logger LOG = Logger.getLogger(BatchPatcher.class.getName());
   /**
    * The reference to the current-using patcher, it may change to other patcher 
    * when apply current patch finished and proceed to apply next patch.
    */
   protected Patcher patcher;
+  /**
+   * The file to store the digests of the installed files verified after 
+   * patching, null if not used.
+   */
+  protected File installedStateFile;
 
   /**
    * Constructor.
    */
   public BatchPatcher() {
+    installedStateFile = null;
+  }
+
+  /**
+   * Get the file to store the digests of the installed files verified after 
+   * patching.
+   * @return the file, null if not used
+   */
+  public File getInstalledStateFile() {
+    return installedStateFile;
+  }
+
+  /**
+   * Set the file to store the digests of the installed files verified after 
+   * patching. With it, the files not changed since last verified are not 
+   * read again when validating.
+   * @param installedStateFile the file, null to not use
+   */
+  public void setInstalledStateFile(File installedStateFile) {
+    this.installedStateFile = installedStateFile;
   }
 
   /**
@@ -74,7 +105,36 @@ public class BatchPatcher implements Pausable {
    * @return 
    * @throws IOException 
    */
-  public List<PatchRecord> doPatch(final BatchPatchListener listener, File applyToFolder, File tempDir, String fromVersion, List<Patch> patches) throws IOException {
+  public List<PatchRecord> doPatch(final BatchPatchListener listener, File applyToFolder, final File tempDir, String fromVersion, List<Patch> patches) throws IOException {
+    return doPatch(listener, applyToFolder, tempDir, fromVersion, patches, new PatchFileProvider() {
+
+      @Override
+      public File getPatchFile(Patch patch) {
+        return new File(tempDir.getAbsolutePath() + File.separator + patch.getId() + ".patch");
+      }
+
+      @Override
+      public InputStream getPatchStream(Patch patch) {
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Apply patches to {@code applyToFolder}. The patch file of each patch is 
+   * got from {@code patchFileProvider} right before applying it, so the 
+   * patches after can still be downloading when applying the current patch.
+   * @param listener the listener
+   * @param applyToFolder the root directory of the software
+   * @param tempDir temporary folder to store temporary generated files while 
+   * patching
+   * @param fromVersion the current version of the software
+   * @param patches the patches to apply, must be in sequence
+   * @param patchFileProvider the provider of the patch files
+   * @return 
+   * @throws IOException 
+   */
+  public List<PatchRecord> doPatch(final BatchPatchListener listener, File applyToFolder, File tempDir, String fromVersion, List<Patch> patches, PatchFileProvider patchFileProvider) throws IOException {
     if (listener == null) {
       throw new NullPointerException("argument 'listener' cannot be null");
     }
@@ -90,6 +150,9 @@ public class BatchPatcher implements Pausable {
     if (patches == null) {
       throw new NullPointerException("argument 'patches' cannot be null");
     }
+    if (patchFileProvider == null) {
+      throw new NullPointerException("argument 'patchFileProvider' cannot be null");
+    }
     if (!applyToFolder.isDirectory()) {
       throw new IOException("argument 'applyToFolder' is not a valid folder");
     }
@@ -112,6 +175,7 @@ public class BatchPatcher implements Pausable {
     boolean previousPatchingAllSucceed = true;
     String currentVersion = fromVersion;
     Map<String, String> destinationReplacement = new HashMap<String, String>();
+    DigestCache installedState = installedStateFile != null ? new DigestCache(installedStateFile) : null;
 
     for (Patch _patch : _patches) {
       count++;
@@ -135,18 +199,22 @@ public class BatchPatcher implements Pausable {
         aesKey = new AESKey(Util.hexStringToByteArray(_patch.getDownloadEncryptionKey()), Util.hexStringToByteArray(_patch.getDownloadEncryptionIV()));
       }
 
-      File patchFile = new File(tempDir.getAbsolutePath() + File.separator + _patch.getId() + ".patch");
-      File decryptedPatchFile = new File(tempDir.getAbsolutePath() + File.separator + _patch.getId() + ".patch.decrypted");
-      decryptedPatchFile.deleteOnExit();
-      if (!patchFile.exists()) {
-        listener.patchInvalid(_patch);
-        throw new IOException("Patch file not found: " + patchFile.getAbsolutePath());
+      // read the patch while downloading if supported, otherwise wait for the patch file
+      InputStream patchIn = patchFileProvider.getPatchStream(_patch);
+      File patchFile = null;
+      if (patchIn == null) {
+        patchFile = getPatchFile(patchFileProvider, _patch);
+        if (!patchFile.exists()) {
+          listener.patchInvalid(_patch);
+          throw new IOException("Patch file not found: " + patchFile.getAbsolutePath());
+        }
       }
 
       // initialize patcher
       final int _count = count;
       patcher = new Patcher(new File(tempDirForPatch + File.separator + "action.log"));
-      List<ReplacementRecord> _replacementList = patcher.doPatch(new PatcherListener() {
+      patcher.setInstalledState(installedState);
+      PatcherListener patcherListener = new PatcherListener() {
 
         @Override
         public void patchProgress(int percentage, String message) {
@@ -159,7 +227,19 @@ public class BatchPatcher implements Pausable {
         public void patchEnableCancel(boolean enable) {
           listener.patchEnableCancel(enable);
         }
-      }, patchFile, _patch.getId(), aesKey, applyToFolder, tempDirForPatch, destinationReplacement);
+      };
+      List<ReplacementRecord> _replacementList = null;
+      if (patchIn != null) {
+        try {
+          _replacementList = patcher.doPatch(patcherListener, patchIn, _patch.getId(), aesKey, applyToFolder, tempDirForPatch, destinationReplacement);
+        } finally {
+          CommonUtil.closeQuietly(patchIn);
+        }
+        // the patch has been read to the end, so the patch file is ready
+        patchFile = getPatchFile(patchFileProvider, _patch);
+      } else {
+        _replacementList = patcher.doPatch(patcherListener, patchFile, _patch.getId(), aesKey, applyToFolder, tempDirForPatch, destinationReplacement);
+      }
       for (ReplacementRecord _replacement : _replacementList) {
         String key = findKey(destinationReplacement, _replacement.getDestinationFilePath());
         if (key == null) {
@@ -172,11 +252,16 @@ public class BatchPatcher implements Pausable {
             break;
           case REPLACE:
           case PATCH:
+          case JAR_PATCH:
+          case SUFFIX_ARRAY_PATCH:
+          case VCDIFF_PATCH:
+          case LZMA2_DICT_PATCH:
           case FORCE:
             // for 20, 23, 26
             destinationReplacement.put(key, _replacement.getNewFilePath());
             break;
           case NEW:
+          case COPY:
             // for 15
             if (!_replacement.getNewFilePath().isEmpty() && !_replacement.getDestinationFilePath().isEmpty()) {
               destinationReplacement.put(key, _replacement.getNewFilePath());
@@ -194,6 +279,14 @@ public class BatchPatcher implements Pausable {
         listener.patchFinished(_patch);
         patcher.clearBackup();
         patchFile.delete();
+        if (installedState != null) {
+          try {
+            installedState.save();
+          } catch (IOException ex) {
+            // only the next validation will be slower
+            LOG.log(Level.WARNING, "Failed to save the installed state.", ex);
+          }
+        }
       }
 
       patcher = null;
@@ -206,6 +299,23 @@ public class BatchPatcher implements Pausable {
     return replacementList;
   }
 
+  /**
+   * Get the patch file from {@code patchFileProvider}, block until it is 
+   * available.
+   * @param patchFileProvider the provider of the patch files
+   * @param patch the patch
+   * @return the patch file
+   * @throws IOException failed to get the patch file, or interrupted when 
+   * waiting
+   */
+  protected static File getPatchFile(PatchFileProvider patchFileProvider, Patch patch) throws IOException {
+    try {
+      return patchFileProvider.getPatchFile(patch);
+    } catch (InterruptedException ex) {
+      throw new IOException("Interrupted when waiting for the patch file, id: " + patch.getId(), ex);
+    }
+  }
+
   /**
    * Fine the key in the map with value {@code value}.
    * @param mapToSearch the map
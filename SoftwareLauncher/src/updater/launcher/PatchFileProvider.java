@@ -0,0 +1,52 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import updater.script.Patch;
+
+/**
+ * Provide the patch file for {@link BatchPatcher} to apply.
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public interface PatchFileProvider {
+
+  /**
+   * Get the patch file of {@code patch}, block until it is available.
+   * @param patch the patch
+   * @return the patch file
+   * @throws IOException failed to get the patch file
+   * @throws InterruptedException the thread is interrupted when waiting
+   */
+  File getPatchFile(Patch patch) throws IOException, InterruptedException;
+
+  /**
+   * Get the stream to read the patch from while it is still downloading. 
+   * When the stream is read to the end, the patch file returned by 
+   * {@link #getPatchFile(updater.script.Patch)} should be ready.
+   * @param patch the patch
+   * @return the stream, or null to apply the patch from the patch file
+   * @throws IOException failed to open the stream
+   */
+  InputStream getPatchStream(Patch patch) throws IOException;
+}
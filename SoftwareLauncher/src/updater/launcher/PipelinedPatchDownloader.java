@@ -0,0 +1,297 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.launcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import updater.script.Patch;
+import updater.util.DownloadInputStream;
+import updater.util.DownloadProgressListener;
+import updater.util.DownloadResult;
+import updater.util.HTTPDownloader;
+import updater.util.Pausable;
+
+/**
+ * Download the patches in the background, in sequence, so that 
+ * {@link BatchPatcher} can apply a patch while the patches after it are still 
+ * downloading.
+ * <p>
+ * The downloader records the download URL, length and checksum of the 
+ * patches into the client script. The patch file downloaded already is 
+ * verified against the checksum without connecting, and partially downloaded 
+ * patch file is resumed. The patch file of the patches without a download URL 
+ * are expected to be downloaded already.</p>
+ * <p>
+ * In stream-apply mode, the patches are not downloaded in the background but 
+ * downloaded when the patch is going to be applied, the patch is read 
+ * directly from the connection and saved to the patch file at the same 
+ * time.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class PipelinedPatchDownloader implements PatchFileProvider, Pausable {
+
+  /**
+   * The folder to store the patch files.
+   */
+  protected final File tempDir;
+  /**
+   * Total number of times to retry for each patch.
+   */
+  protected final int retryTimes;
+  /**
+   * The time to delay before each retry.
+   */
+  protected final int retryDelay;
+  /**
+   * Indicate whether to read the patch while downloading instead of 
+   * downloading the patch file first.
+   */
+  protected final boolean streamApply;
+  /**
+   * The downloads in progress or finished, the key is the patch id.
+   */
+  protected final Map<Integer, Future<File>> downloads;
+  /**
+   * The thread that do the downloads.
+   */
+  protected ExecutorService executor;
+  /**
+   * The downloader of the patch currently downloading.
+   */
+  protected volatile HTTPDownloader downloader;
+  /**
+   * Indicate whether it is paused or not.
+   */
+  protected boolean pause;
+
+  /**
+   * Constructor.
+   * @param tempDir the folder to store the patch files
+   * @param retryTimes total number of times to retry for each patch
+   * @param retryDelay the time to delay before each retry
+   */
+  public PipelinedPatchDownloader(File tempDir, int retryTimes, int retryDelay) {
+    this(tempDir, retryTimes, retryDelay, false);
+  }
+
+  /**
+   * Constructor.
+   * @param tempDir the folder to store the patch files
+   * @param retryTimes total number of times to retry for each patch
+   * @param retryDelay the time to delay before each retry
+   * @param streamApply true to read the patch while downloading instead of 
+   * downloading the patch file first
+   */
+  public PipelinedPatchDownloader(File tempDir, int retryTimes, int retryDelay, boolean streamApply) {
+    if (tempDir == null) {
+      throw new NullPointerException("argument 'tempDir' cannot be null");
+    }
+    this.tempDir = tempDir;
+    this.retryTimes = retryTimes;
+    this.retryDelay = retryDelay;
+    this.streamApply = streamApply;
+    downloads = new HashMap<Integer, Future<File>>();
+    pause = false;
+  }
+
+  /**
+   * Pause or resume the download.
+   * @param pause true to pause, false to resume
+   */
+  @Override
+  public void pause(boolean pause) {
+    synchronized (this) {
+      this.pause = pause;
+      HTTPDownloader _downloader = downloader;
+      if (_downloader != null) {
+        _downloader.pause(pause);
+      }
+    }
+  }
+
+  /**
+   * Start downloading {@code patches} in the background, in the order of 
+   * {@code patches}.
+   * @param patches the patches to download
+   */
+  public synchronized void start(List<Patch> patches) {
+    if (patches == null) {
+      throw new NullPointerException("argument 'patches' cannot be null");
+    }
+    if (executor != null) {
+      throw new IllegalStateException("the downloader has been started already");
+    }
+
+    executor = Executors.newSingleThreadExecutor();
+    if (streamApply) {
+      return;
+    }
+    for (final Patch patch : new ArrayList<Patch>(patches)) {
+      if (patch.getDownloadUrl() == null) {
+        continue;
+      }
+      downloads.put(patch.getId(), executor.submit(new Callable<File>() {
+
+        @Override
+        public File call() throws IOException {
+          return download(patch);
+        }
+      }));
+    }
+  }
+
+  /**
+   * Stop all downloads. The downloaded part of the patch files are kept for 
+   * resuming.
+   */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Get the patch file of {@code patch}, block until the download of it 
+   * finished.
+   * @param patch the patch
+   * @return the patch file
+   * @throws IOException failed to download the patch
+   * @throws InterruptedException the thread is interrupted when waiting
+   */
+  @Override
+  public File getPatchFile(Patch patch) throws IOException, InterruptedException {
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+
+    Future<File> download;
+    synchronized (this) {
+      download = downloads.get(patch.getId());
+    }
+    if (download == null) {
+      return getFile(patch);
+    }
+
+    try {
+      return download.get();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Get the stream to read the patch while downloading, only in stream-apply 
+   * mode.
+   * @param patch the patch
+   * @return the stream, or null if not in stream-apply mode or the patch has 
+   * no download URL
+   * @throws IOException the download URL is invalid
+   */
+  @Override
+  public InputStream getPatchStream(Patch patch) throws IOException {
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+    if (!streamApply || patch.getDownloadUrl() == null) {
+      return null;
+    }
+
+    HTTPDownloader _downloader = new HTTPDownloader();
+    DownloadInputStream patchIn = new DownloadInputStream(_downloader, getFile(patch));
+    synchronized (this) {
+      _downloader.pause(pause);
+      downloader = _downloader;
+    }
+    patchIn.start(null, new URL(patch.getDownloadUrl()), patch.getDownloadChecksum(), patch.getDownloadLength(), retryTimes, retryDelay);
+    return patchIn;
+  }
+
+  /**
+   * Get the file to store the patch.
+   * @param patch the patch
+   * @return the file
+   */
+  protected File getFile(Patch patch) {
+    return new File(tempDir.getAbsolutePath() + File.separator + patch.getId() + ".patch");
+  }
+
+  /**
+   * Download the patch, resume if the patch file exist.
+   * @param patch the patch
+   * @return the patch file
+   * @throws IOException failed to download the patch
+   */
+  protected File download(Patch patch) throws IOException {
+    File patchFile = getFile(patch);
+
+    HTTPDownloader _downloader = new HTTPDownloader();
+    _downloader.setResumeFile(patchFile);
+    synchronized (this) {
+      _downloader.pause(pause);
+      downloader = _downloader;
+    }
+
+    DownloadResult result;
+    try {
+      result = _downloader.download(new DownloadProgressListener() {
+
+        @Override
+        public void byteStart(long pos) {
+        }
+
+        @Override
+        public void byteDownloaded(int numberOfBytes) {
+        }
+
+        @Override
+        public void byteTotal(long total) {
+        }
+
+        @Override
+        public void downloadRetry(DownloadResult result) {
+        }
+      }, new URL(patch.getDownloadUrl()), patch.getDownloadChecksum(), patch.getDownloadLength(), retryTimes, retryDelay);
+    } finally {
+      downloader = null;
+    }
+
+    if (result != DownloadResult.SUCCEED) {
+      throw new IOException("Failed to download the patch, id: " + patch.getId() + ", result: " + result);
+    }
+    return patchFile;
+  }
+}
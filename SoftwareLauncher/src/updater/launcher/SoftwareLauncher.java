@@ -64,6 +64,11 @@ import updater.util.StreamRedirect;
 public class SoftwareLauncher {
 
   private static final Logger LOG = Logger.getLogger(SoftwareLauncher.class.getName());
+  /**
+   * Set this system property to true to apply the patches while reading them 
+   * from the connection, instead of downloading the patch file first.
+   */
+  public static final String STREAM_APPLY_PROPERTY = "updater.launcher.streamApply";
 
   protected SoftwareLauncher() {
   }
@@ -143,6 +148,9 @@ public class SoftwareLauncher {
       //</editor-fold>
 
       final BatchPatcher batchPatcher = new BatchPatcher();
+      batchPatcher.setInstalledStateFile(new File(storagePath + File.separator + "installed_state"));
+      // download the patches not downloaded yet while applying the patches before them
+      final PipelinedPatchDownloader patchDownloader = new PipelinedPatchDownloader(new File(storagePath), 10, 1000, Boolean.getBoolean(STREAM_APPLY_PROPERTY));
 
       String softwareName = clientInfo != null && clientInfo.getSoftwareName() != null ? clientInfo.getSoftwareName() : "Software Updater";
       String launcherName = clientInfo != null && clientInfo.getLauncherTitle() != null ? clientInfo.getLauncherTitle() : "Software Updater";
@@ -155,6 +163,7 @@ public class SoftwareLauncher {
         @Override
         public void actionPerformed(ActionEvent e) {
           batchPatcher.pause(true);
+          patchDownloader.pause(true);
 
           Object[] options = {"Yes", "No"};
           int result = JOptionPane.showOptionDialog(null, "Are you sure to cancel update?", "Canel Update", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[1]);
@@ -164,6 +173,7 @@ public class SoftwareLauncher {
           }
 
           batchPatcher.pause(false);
+          patchDownloader.pause(false);
         }
       });
       updaterGUI.setProgress(0);
@@ -177,6 +187,7 @@ public class SoftwareLauncher {
         lock = LockUtil.acquireLock(LockType.UPDATER, new File(storagePath), 1000, 50);
 
         try {
+          patchDownloader.start(client.getPatches());
           replacementFailList = batchPatcher.doPatch(new BatchPatchListener() {
 
             @Override
@@ -214,7 +225,7 @@ public class SoftwareLauncher {
                 throw new IOException(ex);
               }
             }
-          }, new File("." + File.separator), new File(storagePath), client.getVersion(), client.getPatches());
+          }, new File("." + File.separator), new File(storagePath), client.getVersion(), client.getPatches(), patchDownloader);
         } catch (IOException ex) {
           if (!(client.isCatalogFullPackOnly() == Boolean.TRUE)) {
             client.setCatalogFullPackOnly(true);
@@ -262,6 +273,7 @@ public class SoftwareLauncher {
           return;
         }
       } finally {
+        patchDownloader.stop();
         updaterFrame.setVisible(false);
         updaterFrame.dispose();
         lock.release();
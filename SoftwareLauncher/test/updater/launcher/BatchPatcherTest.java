@@ -1,7 +1,13 @@
 package updater.launcher;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -13,7 +19,10 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import updater.TestCommon;
+import updater.script.Client;
 import updater.script.Patch;
+import updater.script.Patch.Operation;
+import updater.script.Patch.ValidationFile;
 import updater.util.CommonUtil;
 
 /**
@@ -50,6 +59,18 @@ public class BatchPatcherTest {
   }
 
   protected void testDoPatch(List<Patch> patches) throws Exception {
+    testDoPatch(patches, false, false, false);
+  }
+
+  /**
+   * @param patches the patches
+   * @param download true to get the patches through 
+   * {@link PipelinedPatchDownloader}
+   * @param partial true to make patch 1 half downloaded and patch 2 not 
+   * downloaded, false to have both downloaded already
+   * @param streamApply see {@link PipelinedPatchDownloader}
+   */
+  protected void testDoPatch(List<Patch> patches, boolean download, boolean partial, boolean streamApply) throws Exception {
     File doPatchTestFolder = new File("testDoPatch");
     doPatchTestFolder.mkdirs();
     assertTrue(doPatchTestFolder.isDirectory());
@@ -62,6 +83,12 @@ public class BatchPatcherTest {
     CommonUtil.copyFile(new File(packagePath + "BatchPatcherTest_doPatch_2.0_3.0.9.patch"), new File(doPatchTestTempFolder.getAbsolutePath() + File.separator + "2.patch"));
     assertTrue(new File(doPatchTestTempFolder.getAbsolutePath() + File.separator + "1.patch").exists());
     assertTrue(new File(doPatchTestTempFolder.getAbsolutePath() + File.separator + "2.patch").exists());
+    if (partial) {
+      RandomAccessFile patchFile = new RandomAccessFile(doPatchTestTempFolder.getAbsolutePath() + File.separator + "1.patch", "rw");
+      patchFile.setLength(patchFile.length() / 2);
+      patchFile.close();
+      assertTrue(new File(doPatchTestTempFolder.getAbsolutePath() + File.separator + "2.patch").delete());
+    }
 
     TestCommon.unzip(new File(packagePath + "BatchPatcherTest_doPatch_phpBB.zip"), doPatchTestFolder);
     File softwareFolder = new File(doPatchTestFolder.getAbsolutePath() + File.separator + "1.4.4");
@@ -71,8 +98,7 @@ public class BatchPatcherTest {
     final AtomicInteger numberOfPatchFinished = new AtomicInteger(0);
     final AtomicBoolean progressIncrementCorrect = new AtomicBoolean(true);
     final AtomicInteger progressRecord = new AtomicInteger(0);
-    BatchPatcher batchPatcher = new BatchPatcher();
-    batchPatcher.doPatch(new BatchPatchListener() {
+    BatchPatchListener listener = new BatchPatchListener() {
 
       @Override
       public void patchInvalid(Patch patch) throws IOException {
@@ -95,7 +121,21 @@ public class BatchPatcherTest {
       @Override
       public void patchEnableCancel(boolean enable) {
       }
-    }, softwareFolder, doPatchTestTempFolder, "1.4.4", patches);
+    };
+    BatchPatcher batchPatcher = new BatchPatcher();
+    if (download) {
+      PipelinedPatchDownloader patchDownloader = new PipelinedPatchDownloader(doPatchTestTempFolder, 0, 0, streamApply);
+      patchDownloader.start(patches);
+      try {
+        batchPatcher.doPatch(listener, softwareFolder, doPatchTestTempFolder, "1.4.4", patches, patchDownloader);
+      } finally {
+        patchDownloader.stop();
+      }
+      assertFalse(new File(doPatchTestTempFolder.getAbsolutePath() + File.separator + "1.patch").exists());
+      assertFalse(new File(doPatchTestTempFolder.getAbsolutePath() + File.separator + "2.patch").exists());
+    } else {
+      batchPatcher.doPatch(listener, softwareFolder, doPatchTestTempFolder, "1.4.4", patches);
+    }
     assertFalse(invalidPatch.get());
     assertEquals(2, numberOfPatchFinished.get());
     assertTrue(progressIncrementCorrect.get());
@@ -167,4 +207,135 @@ public class BatchPatcherTest {
             null, null));
     testDoPatch(patches);
   }
+
+  /**
+   * Start a HTTP server that serve {@code contents} at /1.patch, /2.patch 
+   * and so on, support resuming.
+   * @param contents the content of the patches
+   * @param requestCount the counter of the requests received
+   * @return the started server
+   */
+  protected static HttpServer startServer(byte[][] contents, final AtomicInteger requestCount) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    for (int i = 0; i < contents.length; i++) {
+      final byte[] content = contents[i];
+      server.createContext("/" + (i + 1) + ".patch", new HttpHandler() {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          requestCount.incrementAndGet();
+          int start = 0;
+          String range = exchange.getRequestHeaders().getFirst("Range");
+          if (range != null) {
+            start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (content.length - 1) + "/" + content.length);
+          }
+          exchange.sendResponseHeaders(range != null ? 206 : 200, content.length - start);
+          OutputStream out = exchange.getResponseBody();
+          try {
+            out.write(content, start, content.length - start);
+          } catch (IOException ex) {
+          }
+          exchange.close();
+        }
+      });
+    }
+    server.start();
+    return server;
+  }
+
+  @Test
+  public void testDoPatchDownload() throws Exception {
+    System.out.println("+++++ testDoPatchDownload +++++");
+
+    final byte[][] contents = new byte[][]{
+      CommonUtil.readFile(new File(packagePath + "BatchPatcherTest_doPatch_1.4.4_2.0.patch")),
+      CommonUtil.readFile(new File(packagePath + "BatchPatcherTest_doPatch_2.0_3.0.9.patch"))};
+
+    HttpServer server = startServer(contents, new AtomicInteger(0));
+    try {
+      String urlPrefix = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+      List<Patch> patches = new ArrayList<Patch>();
+      patches.add(new Patch(1,
+              "patch", "1.4.4", null, "2.0",
+              urlPrefix + "1.patch", CommonUtil.getSHA256String(new File(packagePath + "BatchPatcherTest_doPatch_1.4.4_2.0.patch")), contents[0].length,
+              null, null, null,
+              null, null));
+      patches.add(new Patch(2,
+              "patch", "2.0", null, "3.0.9",
+              urlPrefix + "2.patch", CommonUtil.getSHA256String(new File(packagePath + "BatchPatcherTest_doPatch_2.0_3.0.9.patch")), contents[1].length,
+              null, null, null,
+              null, null));
+
+      System.out.println("+ download while patching");
+      testDoPatch(patches, true, true, false);
+
+      System.out.println("+ stream apply");
+      testDoPatch(patches, true, true, true);
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * The patches saved into the client script by the downloader carry the 
+   * download information, the launcher read them from the client script and 
+   * get the patch files through {@link PipelinedPatchDownloader}.
+   */
+  @Test
+  public void testDoPatchClientScript() throws Exception {
+    System.out.println("+++++ testDoPatchClientScript +++++");
+
+    byte[][] contents = new byte[][]{
+      CommonUtil.readFile(new File(packagePath + "BatchPatcherTest_doPatch_1.4.4_2.0.patch")),
+      CommonUtil.readFile(new File(packagePath + "BatchPatcherTest_doPatch_2.0_3.0.9.patch"))};
+
+    AtomicInteger requestCount = new AtomicInteger(0);
+    HttpServer server = startServer(contents, requestCount);
+    File clientScriptFile = new File("BatchPatcherTest_doPatch_client.xml");
+    try {
+      String urlPrefix = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+      // as the downloader saved them after download
+      Client client = Client.read(CommonUtil.readFile(new File(packagePath + "BatchPatcherTest_doPatch_client.xml")));
+      List<Patch> patches = new ArrayList<Patch>();
+      patches.add(new Patch(1,
+              "patch", "1.4.4", null, "2.0",
+              urlPrefix + "1.patch", CommonUtil.getSHA256String(new File(packagePath + "BatchPatcherTest_doPatch_1.4.4_2.0.patch")), contents[0].length,
+              null, null, null,
+              new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
+      patches.add(new Patch(2,
+              "patch", "2.0", null, "3.0.9",
+              urlPrefix + "2.patch", CommonUtil.getSHA256String(new File(packagePath + "BatchPatcherTest_doPatch_2.0_3.0.9.patch")), contents[1].length,
+              null, null, null,
+              new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
+      client.setPatches(patches);
+      CommonUtil.saveClientScript(clientScriptFile, client);
+
+      // as the launcher read them
+      patches = CommonUtil.getClientScript(clientScriptFile.getPath()).getClientScript().getPatches();
+      assertEquals(2, patches.size());
+
+      System.out.println("+ downloaded");
+      testDoPatch(patches, true, false, false);
+      // the patch files are verified without connecting
+      assertEquals(0, requestCount.get());
+
+      System.out.println("+ downloaded, stream apply");
+      testDoPatch(patches, true, false, true);
+      assertEquals(0, requestCount.get());
+
+      System.out.println("+ download while patching");
+      testDoPatch(patches, true, true, false);
+      assertTrue(requestCount.getAndSet(0) > 0);
+
+      System.out.println("+ stream apply");
+      testDoPatch(patches, true, true, true);
+      assertTrue(requestCount.get() > 0);
+    } finally {
+      server.stop(0);
+      clientScriptFile.delete();
+    }
+  }
 }
@@ -27,7 +27,6 @@ package com.nothome.delta;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 
 /**
  * Checksum computation class.
@@ -36,7 +35,38 @@ public class Checksum {
     
     static final boolean debug = false;
     
-    private HashMap<Object, Object> checksums = new HashMap<Object, Object>();
+    /**
+     * Initial capacity of the open-addressing table, must be a power of 2.
+     */
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    
+    /**
+     * Checksum stored in each slot. The checksum only has 32 significant
+     * bits, so it is stored as int.
+     */
+    private int keys[] = new int[INITIAL_CAPACITY];
+    
+    /**
+     * Index + 1 of the most recent chunk having the checksum of the slot,
+     * 0 means the slot is empty.
+     */
+    private int heads[] = new int[INITIAL_CAPACITY];
+    
+    /**
+     * Index + 1 of the previous chunk having the same checksum as the chunk,
+     * 0 means end of chain.
+     */
+    private int next[] = new int[INITIAL_CAPACITY];
+    
+    /**
+     * Number of distinct checksums in the table.
+     */
+    private int size;
+    
+    /**
+     * Number of chunks indexed.
+     */
+    private int count;
     
     private static final char single_hash[] = {
         /* Random numbers generated using SLIB's pseudo-random number generator. */
@@ -80,7 +110,6 @@ public class Checksum {
      */
     public Checksum(SeekableSource source, int chunkSize) throws IOException {
         ByteBuffer bb = ByteBuffer.allocate(chunkSize * 2);
-        int count = 0;
         while (true) {
             source.read(bb);
             bb.flip();
@@ -88,12 +117,64 @@ public class Checksum {
                 break;
             while (bb.remaining() >= chunkSize) {
                 long queryChecksum = queryChecksum0(bb, chunkSize);
-                checksums.put(queryChecksum, count++);
+                add((int) queryChecksum, count++);
             }
             bb.compact();
         }
     }
     
+    /**
+     * Adds chunk <code>index</code> to the chain of <code>checksum</code>.
+     */
+    private void add(int checksum, int index) {
+        if (index >= next.length) {
+            int newNext[] = new int[next.length << 1];
+            System.arraycopy(next, 0, newNext, 0, next.length);
+            next = newNext;
+        }
+        int slot = slot(keys, heads, checksum);
+        if (heads[slot] == 0) {
+            keys[slot] = checksum;
+            size++;
+        }
+        next[index] = heads[slot];
+        heads[slot] = index + 1;
+        // keep the load factor under 0.75
+        if (size > keys.length - (keys.length >> 2))
+            rehash();
+    }
+    
+    /**
+     * Doubles the capacity of the table.
+     */
+    private void rehash() {
+        int newKeys[] = new int[keys.length << 1];
+        int newHeads[] = new int[heads.length << 1];
+        for (int i = 0; i < keys.length; i++) {
+            if (heads[i] == 0)
+                continue;
+            int slot = slot(newKeys, newHeads, keys[i]);
+            newKeys[slot] = keys[i];
+            newHeads[slot] = heads[i];
+        }
+        keys = newKeys;
+        heads = newHeads;
+    }
+    
+    /**
+     * Returns the slot holding <code>checksum</code>, or the empty slot where it
+     * should be inserted, using linear probing.
+     */
+    private static int slot(int keys[], int heads[], int checksum) {
+        int mask = keys.length - 1;
+        // the low bits of the checksum are poorly distributed for short chunks
+        int h = checksum * 0x9e3779b9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (heads[slot] != 0 && keys[slot] != checksum)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+    
     /**
      * Finds the checksum computed from the buffer.
      * Marks, gets, then resets the buffer.
@@ -139,11 +220,19 @@ public class Checksum {
 
     /**
      * Finds the index of a checksum.
+     * If several chunks share the checksum, the last one is returned, the
+     * others can be obtained using {@link #nextChecksumIndex(int)}.
      */
     public int findChecksumIndex(long hashf) {
-        if (!checksums.containsKey(hashf))
-            return -1;
-        return (Integer) checksums.get(hashf);
+        return heads[slot(keys, heads, (int) hashf)] - 1;
+    }
+
+    /**
+     * Finds the index of the previous chunk having the same checksum as the
+     * chunk at <code>index</code>, or -1 if there is no more.
+     */
+    public int nextChecksumIndex(int index) {
+        return next[index] - 1;
     }
 
     /**
@@ -153,7 +242,8 @@ public class Checksum {
     public String toString()
     {
         return super.toString() +
-            " checksums=" + new HashMap<Object, Object>(this.checksums) +
+            " checksums=" + size +
+            " chunks=" + count +
             "";
     }
     
@@ -77,6 +77,12 @@ public class Delta {
      */
     public static final int DEFAULT_CHUNK_SIZE = 1<<4;
     
+    /**
+     * Maximum number of source chunks sharing a checksum that are verified
+     * before giving up on a match.
+     */
+    public static final int MAX_CANDIDATES = 8;
+    
     /**
      * Chunk Size.
      */
@@ -175,6 +181,9 @@ public class Delta {
         while (!target.eof()) {
             debug("!target.eof()");
             int index = target.find(source);
+            if (index != -1) {
+                index = target.verify(source, index);
+            }
             if (index != -1) {
                 if (debug)
                     debug("found hash " + index);
@@ -210,6 +219,7 @@ public class Delta {
 
         private Checksum checksum;
         private SeekableSource source;
+        private ByteBuffer cbuf = ByteBuffer.allocate(S);
         
         public SourceState(SeekableSource source) throws IOException {
             checksum = new Checksum(source, S);
@@ -217,6 +227,25 @@ public class Delta {
             source.seek(0);
         }
 
+        /**
+         * Returns true if the chunk at <code>index</code> equals the next
+         * S bytes of <code>bb</code>.
+         */
+        public boolean matches(int index, ByteBuffer bb) throws IOException {
+            source.seek((long)index * S);
+            cbuf.clear();
+            while (cbuf.hasRemaining()) {
+                if (source.read(cbuf) == -1)
+                    return false;
+            }
+            int pos = bb.position();
+            for (int i = 0; i < S; i++) {
+                if (cbuf.get(i) != bb.get(pos + i))
+                    return false;
+            }
+            return true;
+        }
+
         public void seek(long index) throws IOException {
             source.seek(index);
         }
@@ -280,6 +309,24 @@ public class Delta {
             return source.checksum.findChecksumIndex(hash);
         }
 
+        /**
+         * Returns the first chunk in the checksum chain starting at
+         * <code>index</code> whose content really equals the next S bytes,
+         * or -1 if none of the first {@link #MAX_CANDIDATES} chunks does.
+         */
+        public int verify(SourceState source, int index) throws IOException {
+            if (tbuf.remaining() < S) {
+                // the hash is not updated near the end of the target
+                return index;
+            }
+            for (int i = 0; i < MAX_CANDIDATES && index != -1; i++) {
+                if (source.matches(index, tbuf))
+                    return index;
+                index = source.checksum.nextChecksumIndex(index);
+            }
+            return -1;
+        }
+
         public boolean eof() {
             return eof;
         }
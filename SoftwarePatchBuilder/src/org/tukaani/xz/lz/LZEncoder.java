@@ -159,6 +159,7 @@ public abstract class LZEncoder {
             int copySize = Math.min(presetDict.length, dictSize);
             int offset = presetDict.length - copySize;
             System.arraycopy(presetDict, offset, buf, 0, copySize);
+            writePos += copySize;
             skip(copySize);
         }
     }
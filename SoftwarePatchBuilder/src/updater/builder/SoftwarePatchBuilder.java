@@ -20,6 +20,7 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.builder;
 
+import com.nothome.delta.ByteBufferSeekableSource;
 import com.nothome.delta.Delta;
 import com.nothome.delta.DiffWriter;
 import com.nothome.delta.GDiffPatcher;
@@ -32,7 +33,10 @@ import java.io.FileOutputStream;
 import java.math.BigInteger;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import org.apache.commons.cli.CommandLine;
@@ -43,23 +47,40 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.OptionBuilder;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.tukaani.xz.FinishableOutputStream;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZInputStream;
 import org.tukaani.xz.XZOutputStream;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import updater.crypto.AESCipher;
 import updater.crypto.AESKey;
 import updater.crypto.KeyGenerator;
 import updater.crypto.RSAKey;
+import updater.patch.BufferedGDiffPatcher;
+import updater.patch.Compression;
+import updater.patch.DigestCache;
+import updater.patch.ParallelXZOutputStream;
 import updater.patch.PatchCreator;
 import updater.patch.PatchExtractor;
+import updater.patch.PatchOptions;
 import updater.patch.PatchPacker;
 import updater.patch.Patcher;
 import updater.patch.PatcherListener;
+import updater.patch.LZMA2DictDelta;
+import updater.patch.LZMA2DictPatcher;
+import updater.patch.SuffixArrayDelta;
+import updater.patch.SuffixArrayPatcher;
+import updater.patch.VCDiffPatcher;
+import updater.patch.VCDiffWriter;
 import updater.script.Client;
 import updater.script.Patch;
 import updater.util.CommonUtil;
 import updater.util.XMLUtil;
+import watne.seis720.project.AESForFile;
+import watne.seis720.project.KeySize;
+import watne.seis720.project.Mode;
+import watne.seis720.project.Padding;
 
 /**
  * Tool that contain general functions to build the patch.
@@ -84,6 +105,9 @@ public class SoftwarePatchBuilder {
     options.addOption(OptionBuilder.hasArg().withArgName("file").
             withDescription("renew the IV in the AES key file").
             create("renew"));
+    options.addOption(OptionBuilder.hasArg().withArgName("file").
+            withDescription("compare the encrypt and decrypt time of the 'file' by the AES cipher and the former AES implementation with a random 256-bit key; the former implementation takes about a second per megabyte").
+            create("aesbench"));
     // diff
     options.addOption(OptionBuilder.hasArgs(2).withArgName("old new").withValueSeparator(' ').
             withDescription("generate a binary diff file of 'new' from 'old'").
@@ -91,6 +115,9 @@ public class SoftwarePatchBuilder {
     options.addOption(OptionBuilder.hasArgs(2).withArgName("file patch").withValueSeparator(' ').
             withDescription("patch the 'file' with the 'patch'").
             create("diffpatch"));
+    options.addOption(OptionBuilder.hasArgs(2).withArgName("old new").withValueSeparator(' ').
+            withDescription("compare the delta size and the build and apply time of GDIFF, VCDIFF, suffix array matching and LZMA2 with preset dictionary of 'new' from 'old'").
+            create("diffbench"));
     // compression
     options.addOption(OptionBuilder.hasArg().withArgName("file").
             withDescription("compress the 'file' using XZ/LZMA2").
@@ -144,6 +171,28 @@ public class SoftwarePatchBuilder {
     options.addOption(OptionBuilder.hasArg().withArgName("version").
             withDescription("specify the version-to").
             withLongOpt("to").create("t"));
+    options.addOption(OptionBuilder.hasArg().withArgName("number").
+            withDescription("specify the number of worker threads used when creating and compressing the patch, default is the number of processors when creating and 1 when compressing").
+            withLongOpt("threads").create("th"));
+    options.addOption(OptionBuilder.hasArg().withArgName("size").
+            withDescription("specify the uncompressed size of a block when compressing with multiple threads, accept suffix K and M, default is 24M, or 1M with --blocks").
+            withLongOpt("block-size").create("bs"));
+    options.addOption(OptionBuilder.hasArg().withArgName("size").
+            withDescription("compute the deltas of the old files longer than the size by a sliding window of the size when creating patch, accept suffix K and M; bounds the memory used to about the size, but content moved farther than half of the window is stored as is; default is to index the whole old files").
+            withLongOpt("window-size").create("ws"));
+    options.addOption(OptionBuilder.hasArg().withArgName("file").
+            withDescription("specify the file to cache the SHA-256 digests of files, the files not changed since the last run will not be digested again").
+            withLongOpt("digest-cache").create("dc"));
+    options.addOption(OptionBuilder.hasArg().withArgName("extensions").
+            withDescription("specify the comma-separated file extensions of the files to compute delta by suffix array matching when creating patch, e.g. exe,dll,so; gives smaller delta for native executables but uses memory of 9 times the file size; the patch can only be applied by updater of this version or later").
+            withLongOpt("suffix-array").create("sa"));
+    options.addOption(new Option("vc", "vcdiff", false, "write the deltas in VCDIFF (RFC 3284) format instead of GDIFF when creating patch, which is usually smaller; the patch can only be applied by updater of this version or later"));
+    options.addOption(new Option("ld", "lzma-dict", false, "also compress the new files by LZMA2 with the old files as the preset dictionary when creating patch, and use it instead of the delta if it is smaller, only for files not longer than " + LZMA2DictDelta.MAX_LENGTH + " bytes; the patch can only be applied by updater of this version or later"));
+    options.addOption(new Option("jp", "jar-patch", false, "compute the deltas of jar (zip) files on their inflated content when creating patch, which is much smaller for jars; the clients should deflate identically to the JRE running the builder; the patch can only be applied by updater of this version or later"));
+    options.addOption(new Option("bl", "blocks", false, "compress the patch in blocks, so that the patch can be applied from any operation without decompressing the content before it; the patch can only be applied by updater of this version or later"));
+    options.addOption(new Option("po", "per-operation", false, "compress the content of each operation separately, and select stored, GZIP or LZMA2 for each by probing its compressibility; the patch can only be applied by updater of this version or later"));
+    options.addOption(new Option("dm", "detect-moves", false, "create the moved, renamed and copied files from the old files when creating patch, instead of storing their whole content; the patch can only be applied by updater of this version or later"));
+    options.addOption(new Option("dd", "dedup", false, "store the content of identical files only once when creating full patch or patch; the patch can only be applied by updater of this version or later"));
 
     options.addOption(new Option("h", "help", false, "print this message"));
     options.addOption(new Option("v", "version", false, "show the version of this software"));
@@ -159,10 +208,14 @@ public class SoftwarePatchBuilder {
         genkey(line, options);
       } else if (line.hasOption("renew")) {
         renew(line, options);
+      } else if (line.hasOption("aesbench")) {
+        aesbench(line, options);
       } else if (line.hasOption("diff")) {
         diff(line, options);
       } else if (line.hasOption("diffpatch")) {
         diffpatch(line, options);
+      } else if (line.hasOption("diffbench")) {
+        diffbench(line, options);
       } else if (line.hasOption("compress")) {
         compress(line, options);
       } else if (line.hasOption("decompress")) {
@@ -212,7 +265,11 @@ public class SoftwarePatchBuilder {
     }
     System.out.println();
 
-    String sha256 = Util.getSHA256String(new File(sha256Arg));
+    DigestCache digestCache = getDigestCache(line);
+    String sha256 = DigestCache.getSHA256String(digestCache, new File(sha256Arg));
+    if (digestCache != null) {
+      digestCache.save();
+    }
     if (outputArg != null) {
       Util.writeFile(new File(outputArg), sha256);
     }
@@ -274,6 +331,73 @@ public class SoftwarePatchBuilder {
     System.out.println("AES IV renewal succeed.");
   }
 
+  public static void aesbench(CommandLine line, Options options) throws ParseException, Exception {
+    String aesbenchArg = line.getOptionValue("aesbench");
+
+    System.out.println("File: " + aesbenchArg);
+    System.out.println();
+
+    File file = new File(aesbenchArg);
+    File tempDir = new File("tmp/" + System.currentTimeMillis());
+    tempDir.mkdirs();
+    File expectedFile = new File(tempDir.getAbsolutePath() + File.separator + "expected");
+    File encryptedFile = new File(tempDir.getAbsolutePath() + File.separator + "encrypted");
+    File decryptedFile = new File(tempDir.getAbsolutePath() + File.separator + "decrypted");
+
+    AESKey aesKey = new AESKey(KeyGenerator.generateRandom(32), KeyGenerator.generateRandom(16));
+
+    long startTime = System.nanoTime();
+    AESForFile aesForFile = new AESForFile();
+    aesForFile.setMode(Mode.CBC);
+    aesForFile.setPadding(Padding.PKCS5PADDING);
+    aesForFile.setKeySize(KeySize.BITS256);
+    aesForFile.setKey(aesKey.getKey());
+    aesForFile.setInitializationVector(aesKey.getIV());
+    aesForFile.encryptFile(file, expectedFile);
+    long aesForFileEncryptTime = System.nanoTime() - startTime;
+
+    startTime = System.nanoTime();
+    aesForFile = new AESForFile();
+    aesForFile.setMode(Mode.CBC);
+    aesForFile.setPadding(Padding.PKCS5PADDING);
+    aesForFile.setKeySize(KeySize.BITS256);
+    aesForFile.setKey(aesKey.getKey());
+    aesForFile.setInitializationVector(aesKey.getIV());
+    aesForFile.decryptFile(expectedFile, decryptedFile);
+    long aesForFileDecryptTime = System.nanoTime() - startTime;
+    if (!CommonUtil.compareFile(file, decryptedFile)) {
+      throw new Exception("The file decrypted by the former AES implementation not match with the file.");
+    }
+
+    startTime = System.nanoTime();
+    new AESCipher(aesKey).encryptFile(file, encryptedFile);
+    long aesCipherEncryptTime = System.nanoTime() - startTime;
+    if (!CommonUtil.compareFile(expectedFile, encryptedFile)) {
+      throw new Exception("The file encrypted by the AES cipher not match with the former AES implementation.");
+    }
+
+    startTime = System.nanoTime();
+    new AESCipher(aesKey).decryptFile(encryptedFile, decryptedFile);
+    long aesCipherDecryptTime = System.nanoTime() - startTime;
+    if (!CommonUtil.compareFile(file, decryptedFile)) {
+      throw new Exception("The file decrypted by the AES cipher not match with the file.");
+    }
+
+    Util.truncateFolder(tempDir);
+    tempDir.delete();
+
+    System.out.println(String.format("%1$-13s %2$12s %3$12s %4$12s %5$12s", "", "encrypt ms", "encrypt MB/s", "decrypt ms", "decrypt MB/s"));
+    System.out.println(String.format("%1$-13s %2$12d %3$12.2f %4$12d %5$12.2f", "AESCipher", aesCipherEncryptTime / 1000000, getMBPerSecond(file.length(), aesCipherEncryptTime), aesCipherDecryptTime / 1000000, getMBPerSecond(file.length(), aesCipherDecryptTime)));
+    System.out.println(String.format("%1$-13s %2$12d %3$12.2f %4$12d %5$12.2f", "AESForFile", aesForFileEncryptTime / 1000000, getMBPerSecond(file.length(), aesForFileEncryptTime), aesForFileDecryptTime / 1000000, getMBPerSecond(file.length(), aesForFileDecryptTime)));
+  }
+
+  /**
+   * Get the throughput in MB per second.
+   */
+  protected static double getMBPerSecond(long length, long nanoTime) {
+    return nanoTime == 0 ? 0 : (double) length / 1048576 / ((double) nanoTime / 1000000000);
+  }
+
   public static void diff(CommandLine line, Options options) throws ParseException, Exception {
     if (!line.hasOption("output")) {
       throw new Exception("Please specify the path to output the diff file using --output or -o");
@@ -327,6 +451,113 @@ public class SoftwarePatchBuilder {
     System.out.println("Patching completed.");
   }
 
+  public static void diffbench(CommandLine line, Options options) throws ParseException, Exception {
+    String[] diffbenchArgs = line.getOptionValues("diffbench");
+
+    if (diffbenchArgs.length != 2) {
+      throw new ParseException("Wrong arguments for 'diffbench', expecting 2 arguments");
+    }
+
+    File oldFile = new File(diffbenchArgs[0]);
+    File newFile = new File(diffbenchArgs[1]);
+    if (oldFile.length() > SuffixArrayDelta.MAX_LENGTH || newFile.length() > SuffixArrayDelta.MAX_LENGTH) {
+      throw new Exception("Files longer than " + SuffixArrayDelta.MAX_LENGTH + " bytes are not supported by suffix array matching.");
+    }
+
+    System.out.println("Old file: " + diffbenchArgs[0]);
+    System.out.println("New file: " + diffbenchArgs[1]);
+    System.out.println();
+
+    byte[] oldContent = Util.readFile(oldFile);
+    byte[] newContent = Util.readFile(newFile);
+
+    long startTime = System.nanoTime();
+    ByteArrayOutputStream gdiffOut = new ByteArrayOutputStream();
+    new Delta().compute(oldContent, newContent, gdiffOut);
+    long gdiffBuildTime = System.nanoTime() - startTime;
+    byte[] gdiff = gdiffOut.toByteArray();
+
+    startTime = System.nanoTime();
+    ByteArrayOutputStream vcdiffOut = new ByteArrayOutputStream();
+    new Delta().compute(new ByteBufferSeekableSource(oldContent), new ByteArrayInputStream(newContent), new VCDiffWriter(vcdiffOut));
+    long vcdiffBuildTime = System.nanoTime() - startTime;
+    byte[] vcdiff = vcdiffOut.toByteArray();
+
+    startTime = System.nanoTime();
+    ByteArrayOutputStream suffixArrayOut = new ByteArrayOutputStream();
+    new SuffixArrayDelta().compute(oldContent, newContent, suffixArrayOut);
+    long suffixArrayBuildTime = System.nanoTime() - startTime;
+    byte[] suffixArray = suffixArrayOut.toByteArray();
+
+    // the LZMA2 with preset dictionary keep both files in the dictionary
+    boolean lzmaDict = oldFile.length() <= LZMA2DictDelta.MAX_LENGTH && newFile.length() <= LZMA2DictDelta.MAX_LENGTH;
+    byte[] lzmaDictDelta = null;
+    long lzmaDictBuildTime = 0;
+    if (lzmaDict) {
+      startTime = System.nanoTime();
+      ByteArrayOutputStream lzmaDictOut = new ByteArrayOutputStream();
+      new LZMA2DictDelta().compute(oldFile, newFile, lzmaDictOut);
+      lzmaDictBuildTime = System.nanoTime() - startTime;
+      lzmaDictDelta = lzmaDictOut.toByteArray();
+    }
+
+    startTime = System.nanoTime();
+    ByteArrayOutputStream patchedOut = new ByteArrayOutputStream(newContent.length);
+    new BufferedGDiffPatcher().patch(new ByteBufferSeekableSource(oldContent), new ByteArrayInputStream(gdiff), patchedOut);
+    long gdiffApplyTime = System.nanoTime() - startTime;
+    if (!Arrays.equals(newContent, patchedOut.toByteArray())) {
+      throw new Exception("The file patched by GDIFF not match with the new file.");
+    }
+
+    startTime = System.nanoTime();
+    patchedOut = new ByteArrayOutputStream(newContent.length);
+    new VCDiffPatcher().patch(new ByteBufferSeekableSource(oldContent), new ByteArrayInputStream(vcdiff), patchedOut);
+    long vcdiffApplyTime = System.nanoTime() - startTime;
+    if (!Arrays.equals(newContent, patchedOut.toByteArray())) {
+      throw new Exception("The file patched by VCDIFF not match with the new file.");
+    }
+
+    startTime = System.nanoTime();
+    patchedOut = new ByteArrayOutputStream(newContent.length);
+    new SuffixArrayPatcher().patch(new ByteBufferSeekableSource(oldContent), new ByteArrayInputStream(suffixArray), patchedOut);
+    long suffixArrayApplyTime = System.nanoTime() - startTime;
+    if (!Arrays.equals(newContent, patchedOut.toByteArray())) {
+      throw new Exception("The file patched by suffix array not match with the new file.");
+    }
+
+    long lzmaDictApplyTime = 0;
+    if (lzmaDict) {
+      startTime = System.nanoTime();
+      patchedOut = new ByteArrayOutputStream(newContent.length);
+      new LZMA2DictPatcher().patch(new ByteBufferSeekableSource(oldContent), new ByteArrayInputStream(lzmaDictDelta), patchedOut);
+      lzmaDictApplyTime = System.nanoTime() - startTime;
+      if (!Arrays.equals(newContent, patchedOut.toByteArray())) {
+        throw new Exception("The file patched by LZMA2 with preset dictionary not match with the new file.");
+      }
+    }
+
+    System.out.println(String.format("%1$-13s %2$12s %3$12s %4$10s %5$10s", "", "delta", "delta (xz)", "build ms", "apply ms"));
+    System.out.println(String.format("%1$-13s %2$12d %3$12d %4$10d %5$10d", "GDIFF", gdiff.length, getXZCompressedLength(gdiff), gdiffBuildTime / 1000000, gdiffApplyTime / 1000000));
+    System.out.println(String.format("%1$-13s %2$12d %3$12d %4$10d %5$10d", "VCDIFF", vcdiff.length, getXZCompressedLength(vcdiff), vcdiffBuildTime / 1000000, vcdiffApplyTime / 1000000));
+    System.out.println(String.format("%1$-13s %2$12d %3$12d %4$10d %5$10d", "suffix array", suffixArray.length, getXZCompressedLength(suffixArray), suffixArrayBuildTime / 1000000, suffixArrayApplyTime / 1000000));
+    if (lzmaDict) {
+      // already compressed, no need to compress by XZ again
+      System.out.println(String.format("%1$-13s %2$12d %3$12s %4$10d %5$10d", "LZMA2 dict", lzmaDictDelta.length, "-", lzmaDictBuildTime / 1000000, lzmaDictApplyTime / 1000000));
+    }
+    System.out.println(String.format("%1$-13s %2$12d", "new file", newContent.length));
+  }
+
+  /**
+   * Get the length of the content after compressed by XZ/LZMA2.
+   */
+  protected static long getXZCompressedLength(byte[] content) throws Exception {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    XZOutputStream xzOut = new XZOutputStream(bout, new LZMA2Options());
+    xzOut.write(content);
+    xzOut.finish();
+    return bout.size();
+  }
+
   public static void compress(CommandLine line, Options options) throws ParseException, Exception {
     // file patch
     if (!line.hasOption("output")) {
@@ -336,6 +567,9 @@ public class SoftwarePatchBuilder {
     String compressArg = line.getOptionValue("compress");
     String outputArg = line.getOptionValue("output");
 
+    int threadCount = getCompressionThreadCount(line);
+    int blockSize = getBlockSize(line);
+
     System.out.println("File to compress: " + compressArg);
     System.out.println("Output file: " + outputArg);
     System.out.println();
@@ -348,7 +582,9 @@ public class SoftwarePatchBuilder {
 
       fin = new FileInputStream(inFile);
       fout = new FileOutputStream(new File(outputArg));
-      XZOutputStream xzOut = new XZOutputStream(fout, new LZMA2Options());
+      FinishableOutputStream xzOut = threadCount > 1
+              ? new ParallelXZOutputStream(fout, new LZMA2Options(), threadCount, blockSize == -1 ? ParallelXZOutputStream.DEFAULT_BLOCK_SIZE : blockSize)
+              : new XZOutputStream(fout, new LZMA2Options());
 
       int byteRead, cumulateByteRead = 0;
       byte[] b = new byte[32768];
@@ -516,7 +752,17 @@ public class SoftwarePatchBuilder {
     encryptedPatchFile.delete();
     encryptedPatchFile.deleteOnExit();
 
-    PatchCreator.createFullPatch(new File(fullArg), new File(outputArg), -1, fromArg, fromSubsequentArg, toArg, aesKey, encryptedPatchFile);
+    DigestCache digestCache = getDigestCache(line);
+    PatchOptions patchOptions = new PatchOptions();
+    patchOptions.setCompression(getCompression(line));
+    patchOptions.setCompressionThreadCount(getCompressionThreadCount(line));
+    patchOptions.setBlockSize(getBlockSize(line));
+    patchOptions.setDeduplicate(line.hasOption("dedup"));
+    patchOptions.setDigestCache(digestCache);
+    PatchCreator.createFullPatch(new File(fullArg), new File(outputArg), -1, fromArg, fromSubsequentArg, toArg, aesKey, encryptedPatchFile, patchOptions);
+    if (digestCache != null) {
+      digestCache.save();
+    }
 
     Util.truncateFolder(tempDir);
     tempDir.delete();
@@ -544,6 +790,8 @@ public class SoftwarePatchBuilder {
       throw new ParseException("Wrong arguments for 'patch', expecting 2 arguments");
     }
 
+    int threadCount = getThreadCount(line);
+
     System.out.println("Old software version: " + fromArg);
     System.out.println("Old software directory: " + patchArgs[0]);
     System.out.println("New software version: " + toArg);
@@ -552,6 +800,7 @@ public class SoftwarePatchBuilder {
     if (line.hasOption("key")) {
       System.out.println("AES key file: " + line.getOptionValue("key"));
     }
+    System.out.println("Number of threads: " + threadCount);
     System.out.println();
 
     File tempDir = new File("tmp/" + System.currentTimeMillis());
@@ -569,7 +818,24 @@ public class SoftwarePatchBuilder {
     encryptedPatchFile.delete();
     encryptedPatchFile.deleteOnExit();
 
-    PatchCreator.createPatch(new File(patchArgs[0]), new File(patchArgs[1]), tempDir, patchFile, -1, fromArg, toArg, aesKey, encryptedPatchFile);
+    DigestCache digestCache = getDigestCache(line);
+    PatchOptions patchOptions = new PatchOptions();
+    patchOptions.setThreadCount(threadCount);
+    patchOptions.setCompression(getCompression(line));
+    patchOptions.setCompressionThreadCount(getCompressionThreadCount(line));
+    patchOptions.setBlockSize(getBlockSize(line));
+    patchOptions.setDeduplicate(line.hasOption("dedup"));
+    patchOptions.setDetectMoves(line.hasOption("detect-moves"));
+    patchOptions.setDigestCache(digestCache);
+    patchOptions.setSuffixArrayFileTypes(getSuffixArrayFileTypes(line));
+    patchOptions.setVCDiff(line.hasOption("vcdiff"));
+    patchOptions.setLZMADict(line.hasOption("lzma-dict"));
+    patchOptions.setJarPatch(line.hasOption("jar-patch"));
+    patchOptions.setWindowSize(getWindowSize(line));
+    PatchCreator.createPatch(new File(patchArgs[0]), new File(patchArgs[1]), tempDir, patchFile, -1, fromArg, toArg, aesKey, encryptedPatchFile, patchOptions);
+    if (digestCache != null) {
+      digestCache.save();
+    }
 
     Util.truncateFolder(tempDir);
     tempDir.delete();
@@ -577,6 +843,157 @@ public class SoftwarePatchBuilder {
     System.out.println("Patch created.");
   }
 
+  /**
+   * Get the digest cache specified by --digest-cache.
+   * @param line the command line
+   * @return the digest cache, null if not specified
+   */
+  protected static DigestCache getDigestCache(CommandLine line) {
+    if (!line.hasOption("digest-cache")) {
+      return null;
+    }
+    return new DigestCache(new File(line.getOptionValue("digest-cache")));
+  }
+
+  /**
+   * Get the file extensions specified by --suffix-array.
+   * @param line the command line
+   * @return the file extensions in lower case, null if not specified
+   */
+  protected static Set<String> getSuffixArrayFileTypes(CommandLine line) {
+    if (!line.hasOption("suffix-array")) {
+      return null;
+    }
+
+    Set<String> fileTypes = new HashSet<String>();
+    for (String extension : line.getOptionValue("suffix-array").split(",")) {
+      extension = extension.trim().toLowerCase();
+      if (extension.startsWith(".")) {
+        extension = extension.substring(1);
+      }
+      if (!extension.isEmpty()) {
+        fileTypes.add(extension);
+      }
+    }
+    return fileTypes;
+  }
+
+  /**
+   * Get the number of worker threads specified by --threads.
+   * @param line the command line
+   * @return the number of threads, the number of processors if not specified
+   * @throws ParseException the specified number is not a positive integer
+   */
+  protected static int getThreadCount(CommandLine line) throws ParseException {
+    if (!line.hasOption("threads")) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+
+    String threadsArg = line.getOptionValue("threads");
+    int threadCount;
+    try {
+      threadCount = Integer.parseInt(threadsArg);
+    } catch (NumberFormatException ex) {
+      throw new ParseException("Number of threads should be a valid integer, your input: " + threadsArg);
+    }
+    if (threadCount < 1) {
+      throw new ParseException("Number of threads should at least be 1.");
+    }
+    return threadCount;
+  }
+
+  /**
+   * Get the number of worker threads to compress with, specified by 
+   * --threads. Compressing in multiple threads splits the stream into 
+   * independent blocks, which makes the patch larger and takes a few times 
+   * of the dictionary size of memory for each thread, so it is not used 
+   * unless specified.
+   * @param line the command line
+   * @return the number of threads, 1 if not specified
+   * @throws ParseException the specified number is not a positive integer
+   */
+  protected static int getCompressionThreadCount(CommandLine line) throws ParseException {
+    if (!line.hasOption("threads")) {
+      return 1;
+    }
+    return getThreadCount(line);
+  }
+
+  /**
+   * Get the compression block size specified by --block-size.
+   * @param line the command line
+   * @return the block size in bytes, -1 if not specified
+   * @throws ParseException the specified size is not a positive integer with 
+   * optional suffix K or M
+   */
+  protected static int getBlockSize(CommandLine line) throws ParseException {
+    if (!line.hasOption("block-size")) {
+      return -1;
+    }
+
+    return parseSize(line.getOptionValue("block-size"), "Block size", 1);
+  }
+
+  /**
+   * Get the window size of the delta specified by --window-size.
+   * @param line the command line
+   * @return the window size in bytes, -1 if not specified
+   * @throws ParseException the specified size is not an integer greater 
+   * than 1 with optional suffix K or M
+   */
+  protected static int getWindowSize(CommandLine line) throws ParseException {
+    if (!line.hasOption("window-size")) {
+      return -1;
+    }
+    return parseSize(line.getOptionValue("window-size"), "Window size", 2);
+  }
+
+  /**
+   * Parse the size with optional suffix K or M.
+   * @param sizeArg the size argument
+   * @param name the name of the size used in the error message
+   * @param minSize the minimum size in bytes
+   * @return the size in bytes
+   * @throws ParseException the size is not an integer between 
+   * {@code minSize} and {@link Integer#MAX_VALUE} bytes with optional suffix 
+   * K or M
+   */
+  protected static int parseSize(String sizeArg, String name, int minSize) throws ParseException {
+    sizeArg = sizeArg.trim();
+    int multiplier = 1;
+    if (sizeArg.endsWith("K") || sizeArg.endsWith("k")) {
+      multiplier = 1024;
+    } else if (sizeArg.endsWith("M") || sizeArg.endsWith("m")) {
+      multiplier = 1048576;
+    }
+    long size;
+    try {
+      size = Long.parseLong(multiplier == 1 ? sizeArg : sizeArg.substring(0, sizeArg.length() - 1)) * multiplier;
+    } catch (NumberFormatException ex) {
+      throw new ParseException(name + " should be a valid integer with optional suffix K or M, your input: " + sizeArg);
+    }
+    if (size < minSize || size > Integer.MAX_VALUE) {
+      throw new ParseException(name + " should be between " + minSize + " and " + Integer.MAX_VALUE + " bytes, your input: " + sizeArg);
+    }
+    return (int) size;
+  }
+
+  /**
+   * Get the compression method specified by --blocks or --per-operation.
+   * @param line the command line
+   * @return the compression method
+   * @throws ParseException both --blocks and --per-operation are specified
+   */
+  protected static Compression getCompression(CommandLine line) throws ParseException {
+    if (line.hasOption("per-operation")) {
+      if (line.hasOption("blocks")) {
+        throw new ParseException("--blocks and --per-operation cannot be specified together.");
+      }
+      return Compression.PER_OPERATION;
+    }
+    return line.hasOption("blocks") ? Compression.LZMA2_BLOCKS : Compression.LZMA2;
+  }
+
   public static void extract(CommandLine line, Options options) throws ParseException, Exception {
     // file folder
     String[] extractArgs = line.getOptionValues("extract");
@@ -637,7 +1054,7 @@ public class SoftwarePatchBuilder {
     encryptedPatchFile.delete();
     encryptedPatchFile.deleteOnExit();
 
-    PatchPacker.pack(sourceFolder, new File(outputArg), aesKey, encryptedPatchFile);
+    PatchPacker.pack(sourceFolder, new File(outputArg), aesKey, encryptedPatchFile, getCompressionThreadCount(line), getBlockSize(line));
 
     System.out.println("Packing completed.");
   }
@@ -32,6 +32,11 @@ import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
@@ -43,6 +48,7 @@ import updater.script.InvalidFormatException;
 import updater.script.Patch;
 import updater.script.Patch.Operation;
 import updater.script.Patch.ValidationFile;
+import updater.util.BandwidthLimiter;
 import updater.util.DownloadProgressListener;
 import updater.util.DownloadProgressUtil;
 import updater.util.DownloadResult;
@@ -54,6 +60,14 @@ import updater.util.HTTPDownloader;
  */
 public class PatchDownloader {
   private static final Logger LOG = Logger.getLogger(PatchDownloader.class.getName());
+  /**
+   * The number of connections used to download a patch.
+   */
+  protected static final int PATCH_DOWNLOAD_CONNECTIONS = 4;
+  /**
+   * The number of patches to download at the same time.
+   */
+  protected static final int PATCH_DOWNLOAD_CONCURRENCY = 2;
 
   protected PatchDownloader() {
   }
@@ -104,6 +118,27 @@ public class PatchDownloader {
    * @throws MalformedURLException any one URL of patches is invalid
    */
   public static DownloadPatchesResult downloadPatches(final DownloadPatchesListener listener, List<Patch> patches, String storagePath, int retryTimes, int retryDelay) throws MalformedURLException {
+    return downloadPatches(listener, patches, storagePath, retryTimes, retryDelay, PATCH_DOWNLOAD_CONCURRENCY, 0);
+  }
+
+  /**
+   * Download specified patches and update the client script.
+   * Several patches are downloaded at the same time, but 
+   * {@link DownloadPatchesListener#downloadPatchesPatchDownloaded(updater.script.Patch)} 
+   * is always notified in the order of {@code patches}.
+   * @param listener the download patch listener listen to progress and result
+   * @param storagePath the path for storage temporary files
+   * @param patches the patches to download
+   * @param retryTimes total number of times to retry
+   * @param retryDelay the time to delay before each retry
+   * @param maxConcurrentDownloads the maximum number of patches to download 
+   * at the same time
+   * @param maxBytesPerSecond the maximum total download speed in bytes per 
+   * second, 0 means no limit
+   * @return the download result
+   * @throws MalformedURLException any one URL of patches is invalid
+   */
+  public static DownloadPatchesResult downloadPatches(final DownloadPatchesListener listener, List<Patch> patches, final String storagePath, int retryTimes, final int retryDelay, int maxConcurrentDownloads, long maxBytesPerSecond) throws MalformedURLException {
     if (listener == null) {
       throw new NullPointerException("argument 'listener' cannot be null");
     }
@@ -113,6 +148,12 @@ public class PatchDownloader {
     if (patches == null) {
       throw new NullPointerException("argument 'patches' cannot be null");
     }
+    if (maxConcurrentDownloads < 1) {
+      throw new IllegalArgumentException("argument 'maxConcurrentDownloads' should be greater than 0");
+    }
+    if (maxBytesPerSecond < 0) {
+      throw new IllegalArgumentException("argument 'maxBytesPerSecond' should not be negative");
+    }
 
     if (patches.isEmpty()) {
       return DownloadPatchesResult.COMPLETED;
@@ -125,91 +166,121 @@ public class PatchDownloader {
 
     // use to restrict/lower the 'download size' refresh time interval
     final AtomicLong lastRefreshTime = new AtomicLong(0L);
-    final AtomicInteger downloadedSizeSinceLastRefresh = new AtomicInteger(0);
+    final AtomicLong downloadedSizeSinceLastRefresh = new AtomicLong(0L);
 
-    // global download(ed) size record
+    // global download(ed) size record, sum of the downloaded size of all patches
     final long totalDownloadSize = calculateTotalLength(patches);
-    final AtomicInteger downloadedSize = new AtomicInteger(0);
+    final AtomicLong downloadedSize = new AtomicLong(0L);
 
     final DownloadProgressUtil downloadProgress = new DownloadProgressUtil();
     downloadProgress.setTotalSize(totalDownloadSize);
 
+    // shared by all downloads to limit the total bandwidth
+    final BandwidthLimiter bandwidthLimiter = maxBytesPerSecond > 0 ? new BandwidthLimiter(maxBytesPerSecond) : null;
+
     // download
-    for (Patch patch : patches) {
-      // downloaded size of this patch
-      final AtomicInteger patchDownloadedSize = new AtomicInteger(0);
-      DownloadProgressListener getPatchListener = new DownloadProgressListener() {
-
-        private String totalDownloadSizeString = Util.humanReadableByteCount(totalDownloadSize, false);
-        private float totalDownloadSizeFloat = (float) totalDownloadSize;
-
-        @Override
-        public void byteStart(long pos) {
-          patchDownloadedSize.set((int) pos);
-          downloadProgress.setDownloadedSize(downloadedSize.get() + patchDownloadedSize.get());
-          listener.downloadPatchesProgress((int) ((float) (downloadedSize.get() + patchDownloadedSize.get()) * 100F / (float) totalDownloadSize));
-        }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrentDownloads, patches.size()));
+    try {
+      List<Future<DownloadResult>> futures = new ArrayList<Future<DownloadResult>>();
+      for (final Patch patch : patches) {
+        // downloaded size of this patch
+        final AtomicLong patchDownloadedSize = new AtomicLong(0L);
+        final DownloadProgressListener getPatchListener = new DownloadProgressListener() {
+
+          private String totalDownloadSizeString = Util.humanReadableByteCount(totalDownloadSize, false);
+          private float totalDownloadSizeFloat = (float) totalDownloadSize;
+
+          @Override
+          public void byteStart(long pos) {
+            downloadedSize.addAndGet(pos - patchDownloadedSize.getAndSet(pos));
+            downloadProgress.setDownloadedSize(downloadedSize.get());
+            listener.downloadPatchesProgress((int) ((float) downloadedSize.get() * 100F / totalDownloadSizeFloat));
+          }
 
-        @Override
-        public void byteDownloaded(int numberOfBytes) {
-          downloadedSizeSinceLastRefresh.set(downloadedSizeSinceLastRefresh.get() + numberOfBytes);
+          @Override
+          public void byteDownloaded(int numberOfBytes) {
+            patchDownloadedSize.addAndGet(numberOfBytes);
+            downloadedSize.addAndGet(numberOfBytes);
+            downloadedSizeSinceLastRefresh.addAndGet(numberOfBytes);
+
+            // only the thread succeeded to update the refresh time do the refresh
+            long currentTime = System.currentTimeMillis();
+            long refreshTime = lastRefreshTime.get();
+            if (currentTime - refreshTime > 200 && lastRefreshTime.compareAndSet(refreshTime, currentTime)) {
+              downloadProgress.feed(downloadedSizeSinceLastRefresh.getAndSet(0));
+
+              long _downloadedSize = downloadedSize.get();
+              listener.downloadPatchesProgress((int) ((float) _downloadedSize * 100F / totalDownloadSizeFloat));
+              // Downloading: 1.6 MiB / 240 MiB, 2.6 MiB/s, 1m 32s remaining
+              listener.downloadPatchesMessage("Downloading: "
+                      + Util.humanReadableByteCount(_downloadedSize, false) + " / " + totalDownloadSizeString + ", "
+                      + Util.humanReadableByteCount(downloadProgress.getSpeed(), false) + "/s" + ", "
+                      + Util.humanReadableTimeCount(downloadProgress.getTimeRemaining(), 3) + " remaining");
+            }
+          }
 
-          long currentTime = System.currentTimeMillis();
-          if (currentTime - lastRefreshTime.get() > 200) {
-            lastRefreshTime.set(currentTime);
+          @Override
+          public void byteTotal(long total) {
+          }
 
-            patchDownloadedSize.set(patchDownloadedSize.get() + downloadedSizeSinceLastRefresh.get());
+          @Override
+          public void downloadRetry(DownloadResult result) {
+            retryTimesRemaining.decrementAndGet();
 
-            downloadProgress.feed(downloadedSizeSinceLastRefresh.get());
-            downloadedSizeSinceLastRefresh.set(0);
+            downloadProgress.feed(downloadedSizeSinceLastRefresh.getAndSet(0));
 
-            listener.downloadPatchesProgress((int) ((float) (downloadedSize.get() + patchDownloadedSize.get()) * 100F / totalDownloadSizeFloat));
-            // Downloading: 1.6 MiB / 240 MiB, 2.6 MiB/s, 1m 32s remaining
-            listener.downloadPatchesMessage("Downloading: "
-                    + Util.humanReadableByteCount((downloadedSize.get() + patchDownloadedSize.get()), false) + " / " + totalDownloadSizeString + ", "
-                    + Util.humanReadableByteCount(downloadProgress.getSpeed(), false) + "/s" + ", "
-                    + Util.humanReadableTimeCount(downloadProgress.getTimeRemaining(), 3) + " remaining");
+            byteStart(0);
           }
-        }
+        };
 
-        @Override
-        public void byteTotal(long total) {
-        }
-
-        @Override
-        public void downloadRetry(DownloadResult result) {
-          retryTimesRemaining.decrementAndGet();
+        futures.add(executor.submit(new Callable<DownloadResult>() {
 
-          lastRefreshTime.set(System.currentTimeMillis());
-          downloadProgress.feed(downloadedSizeSinceLastRefresh.get());
-          downloadedSizeSinceLastRefresh.set(0);
+          @Override
+          public DownloadResult call() throws MalformedURLException {
+            File saveToFile = new File(storagePath + File.separator + patch.getId() + ".patch");
+            return getPatch(getPatchListener, patch.getDownloadUrl(), saveToFile, patch.getDownloadChecksum(), patch.getDownloadLength(), Math.max(0, retryTimesRemaining.get()), retryDelay, bandwidthLimiter);
+          }
+        }));
+      }
 
-          byteStart(0);
+      // update the client script in the order of the patches
+      for (int i = 0, iEnd = patches.size(); i < iEnd; i++) {
+        Patch patch = patches.get(i);
+
+        DownloadResult updateResult = null;
+        try {
+          updateResult = futures.get(i).get();
+        } catch (InterruptedException ex) {
+          return DownloadPatchesResult.DOWNLOAD_INTERRUPTED;
+        } catch (ExecutionException ex) {
+          if (ex.getCause() instanceof MalformedURLException) {
+            throw (MalformedURLException) ex.getCause();
+          }
+          LOG.log(Level.SEVERE, null, ex.getCause());
+          return DownloadPatchesResult.ERROR;
+        }
+        if (updateResult == DownloadResult.INTERRUPTED) {
+          return DownloadPatchesResult.DOWNLOAD_INTERRUPTED;
+        }
+        if (updateResult != DownloadResult.SUCCEED) {
+          return DownloadPatchesResult.ERROR;
         }
-      };
-
-      File saveToFile = new File(storagePath + File.separator + patch.getId() + ".patch");
-
-      DownloadResult updateResult = getPatch(getPatchListener, patch.getDownloadUrl(), saveToFile, patch.getDownloadChecksum(), patch.getDownloadLength(), retryTimesRemaining.get(), retryDelay);
-      if (updateResult == DownloadResult.INTERRUPTED) {
-        return DownloadPatchesResult.DOWNLOAD_INTERRUPTED;
-      }
-      if (updateResult != DownloadResult.SUCCEED) {
-        return DownloadPatchesResult.ERROR;
-      }
 
-      downloadedSize.set(downloadedSize.get() + patch.getDownloadLength());
-      try {
-        // update client script
-        listener.downloadPatchesPatchDownloaded(new Patch(patch.getId(),
-                patch.getType(), patch.getVersionFrom(), patch.getVersionFromSubsequent(), patch.getVersionTo(),
-                null, null, -1,
-                patch.getDownloadEncryptionType(), patch.getDownloadEncryptionKey(), patch.getDownloadEncryptionIV(),
-                new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
-      } catch (IOException ex) {
-        LOG.log(Level.WARNING, null, ex);
-        return DownloadPatchesResult.SAVE_TO_CLIENT_SCRIPT_FAIL;
+        try {
+          // update client script, keep the download information so the launcher can verify or resume the patch file
+          listener.downloadPatchesPatchDownloaded(new Patch(patch.getId(),
+                  patch.getType(), patch.getVersionFrom(), patch.getVersionFromSubsequent(), patch.getVersionTo(),
+                  patch.getDownloadUrl(), patch.getDownloadChecksum(), patch.getDownloadLength(),
+                  patch.getDownloadEncryptionType(), patch.getDownloadEncryptionKey(), patch.getDownloadEncryptionIV(),
+                  new ArrayList<Operation>(), new ArrayList<ValidationFile>()));
+        } catch (IOException ex) {
+          LOG.log(Level.WARNING, null, ex);
+          return DownloadPatchesResult.SAVE_TO_CLIENT_SCRIPT_FAIL;
+        }
       }
+    } finally {
+      // interrupt the downloads still in progress, if any
+      executor.shutdownNow();
     }
 
     listener.downloadPatchesProgress(100);
@@ -233,6 +304,25 @@ public class PatchDownloader {
    * @throws MalformedURLException {@code url} is not a valid HTTP URL
    */
   public static DownloadResult getPatch(final DownloadProgressListener listener, String url, File saveToFile, String fileSHA256, int expectedLength, int retryTimes, int retryDelay) throws MalformedURLException {
+    return getPatch(listener, url, saveToFile, fileSHA256, expectedLength, retryTimes, retryDelay, null);
+  }
+
+  /**
+   * Get the patch from the Internet.
+   * This will check the exist file in the path of {@code saveToFile} and 
+   * determine resume download.
+   * @param listener the progress listener
+   * @param url the URL to download the patch from
+   * @param saveToFile the place to save the downloaded patch
+   * @param fileSHA256 the SHA-256 digest of the patch
+   * @param expectedLength the expected file length of the patch
+   * @param retryTimes total number of times to retry
+   * @param retryDelay the time to delay before each retry
+   * @param bandwidthLimiter the bandwidth limiter, null means no limit
+   * @return the get patch result
+   * @throws MalformedURLException {@code url} is not a valid HTTP URL
+   */
+  public static DownloadResult getPatch(final DownloadProgressListener listener, String url, File saveToFile, String fileSHA256, int expectedLength, int retryTimes, int retryDelay, BandwidthLimiter bandwidthLimiter) throws MalformedURLException {
     if (listener == null) {
       throw new NullPointerException("argument 'listener' cannot be null");
     }
@@ -253,6 +343,8 @@ public class PatchDownloader {
     try {
       HTTPDownloader downloader = new HTTPDownloader();
       downloader.setResumeFile(saveToFile);
+      downloader.setSegmentCount(PATCH_DOWNLOAD_CONNECTIONS);
+      downloader.setBandwidthLimiter(bandwidthLimiter);
       return downloader.download(listener, new URL(url), fileSHA256, expectedLength, retryTimes, retryDelay);
     } finally {
       Util.closeQuietly(fout);
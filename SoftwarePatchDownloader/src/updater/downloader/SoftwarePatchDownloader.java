@@ -71,6 +71,25 @@ public class SoftwarePatchDownloader {
     }
   }
 
+  /**
+   * Add the downloaded patch to the client script and save the client script, 
+   * the launcher will apply the patches in the client script.
+   * @param clientScriptFile the client script file
+   * @param clientScript the client script
+   * @param patch the downloaded patch
+   * @throws IOException error occurred when saving the client script
+   */
+  protected static void savePatch(File clientScriptFile, Client clientScript, Patch patch) throws IOException {
+    List<Patch> existingPatches = clientScript.getPatches();
+    existingPatches.add(patch);
+    clientScript.setPatches(existingPatches);
+    try {
+      Util.saveClientScript(clientScriptFile, clientScript);
+    } catch (Exception ex) {
+      throw new IOException(ex);
+    }
+  }
+
   /**
    * Main function of main class.
    * @param args the first argument (if any) indicate the location of the 
@@ -184,14 +203,7 @@ public class SoftwarePatchDownloader {
 
       @Override
       public void downloadPatchesPatchDownloaded(Patch patch) throws IOException {
-        List<Patch> existingPatches = clientScript.getPatches();
-        existingPatches.add(patch);
-        clientScript.setPatches(existingPatches);
-        try {
-          Util.saveClientScript(clientScriptFile, clientScript);
-        } catch (Exception ex) {
-          throw new IOException(ex);
-        }
+        savePatch(clientScriptFile, clientScript, patch);
       }
 
       @Override
@@ -1,14 +1,20 @@
 package updater.downloader;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.io.File;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -21,6 +27,7 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import updater.TestCommon;
 import updater.script.Catalog;
+import updater.script.Client;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
 import updater.util.CommonUtil;
@@ -292,4 +299,103 @@ public class PatchDownloaderTest {
 
     clientScriptTemp.delete();
   }
+
+  /**
+   * Test of downloadPatches method, of class PatchDownloader, the downloaded 
+   * patches are saved into the client script as the downloader does, so 
+   * the launcher can verify or resume the patch files.
+   */
+  @Test
+  public void testDownloadPatchesClientScript() throws Exception {
+    System.out.println("+++++ testDownloadPatchesClientScript +++++");
+
+    File downloadPatchesTestFolder = new File("testDownloadPatchesClientScript");
+    downloadPatchesTestFolder.mkdirs();
+    assertTrue(downloadPatchesTestFolder.isDirectory());
+    assertTrue(CommonUtil.truncateFolder(downloadPatchesTestFolder));
+
+    final byte[][] contents = new byte[][]{
+      CommonUtil.readFile(new File(TestCommon.pathToTestPackage + "web/PatchDownloaderTest_getPatch_1.4.4_2.0.patch")),
+      CommonUtil.readFile(new File(TestCommon.pathToTestPackage + "web/PatchDownloaderTest_getPatch_2.0_3.0.9.patch"))};
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    for (int i = 0; i < contents.length; i++) {
+      final byte[] content = contents[i];
+      server.createContext("/" + (i + 1) + ".patch", new HttpHandler() {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+          exchange.sendResponseHeaders(200, content.length);
+          OutputStream out = exchange.getResponseBody();
+          try {
+            out.write(content);
+          } catch (IOException ex) {
+          }
+          exchange.close();
+        }
+      });
+    }
+    server.start();
+    try {
+      String urlPrefix = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+      List<Patch> patches = new ArrayList<Patch>();
+      patches.add(new Patch(1,
+              "patch", "1.4.4", null, "2.0",
+              urlPrefix + "1.patch", CommonUtil.getSHA256String(new File(TestCommon.pathToTestPackage + "web/PatchDownloaderTest_getPatch_1.4.4_2.0.patch")), contents[0].length,
+              "AES-256", "key", "IV",
+              null, null));
+      patches.add(new Patch(2,
+              "patch", "2.0", null, "3.0.9",
+              urlPrefix + "2.patch", CommonUtil.getSHA256String(new File(TestCommon.pathToTestPackage + "web/PatchDownloaderTest_getPatch_2.0_3.0.9.patch")), contents[1].length,
+              null, null, null,
+              null, null));
+
+      final File clientScriptFile = new File(downloadPatchesTestFolder.getAbsolutePath() + File.separator + "client.xml");
+      CommonUtil.copyFile(new File(packagePath + "PatchDownloaderTest_getPatch_client.xml"), clientScriptFile);
+      final Client clientScript = Client.read(CommonUtil.readFile(clientScriptFile));
+
+      DownloadPatchesResult result = PatchDownloader.downloadPatches(new DownloadPatchesListener() {
+
+        @Override
+        public void downloadPatchesPatchDownloaded(Patch patch) throws IOException {
+          SoftwarePatchDownloader.savePatch(clientScriptFile, clientScript, patch);
+        }
+
+        @Override
+        public void downloadPatchesProgress(int progress) {
+        }
+
+        @Override
+        public void downloadPatchesMessage(String message) {
+        }
+      }, patches, downloadPatchesTestFolder.getAbsolutePath(), 0, 0);
+      assertEquals(DownloadPatchesResult.COMPLETED, result);
+
+      // the launcher reads the client script from the file
+      List<Patch> savedPatches = Client.read(CommonUtil.readFile(clientScriptFile)).getPatches();
+      assertEquals(patches.size(), savedPatches.size());
+      for (int i = 0, iEnd = patches.size(); i < iEnd; i++) {
+        Patch patch = patches.get(i);
+        Patch savedPatch = savedPatches.get(i);
+        assertEquals(patch.getId(), savedPatch.getId());
+        assertEquals(patch.getVersionFrom(), savedPatch.getVersionFrom());
+        assertEquals(patch.getVersionTo(), savedPatch.getVersionTo());
+        assertEquals(patch.getDownloadUrl(), savedPatch.getDownloadUrl());
+        assertEquals(patch.getDownloadChecksum(), savedPatch.getDownloadChecksum());
+        assertEquals(patch.getDownloadLength(), savedPatch.getDownloadLength());
+        assertEquals(patch.getDownloadEncryptionType(), savedPatch.getDownloadEncryptionType());
+        assertEquals(patch.getDownloadEncryptionKey(), savedPatch.getDownloadEncryptionKey());
+        assertEquals(patch.getDownloadEncryptionIV(), savedPatch.getDownloadEncryptionIV());
+
+        File patchFile = new File(downloadPatchesTestFolder.getAbsolutePath() + File.separator + patch.getId() + ".patch");
+        assertEquals(patch.getDownloadChecksum(), CommonUtil.getSHA256String(patchFile));
+      }
+    } finally {
+      server.stop(0);
+    }
+
+    assertTrue(CommonUtil.truncateFolder(downloadPatchesTestFolder));
+    downloadPatchesTestFolder.delete();
+  }
 }
@@ -0,0 +1,510 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.crypto;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import updater.util.CommonUtil;
+import updater.util.Interruptible;
+import updater.util.Pausable;
+import watne.seis720.project.AESForFileListener;
+
+/**
+ * AES cipher with PKCS #5 padding, used to encrypt and decrypt the patches.
+ * <p>
+ * The output is identical to {@link watne.seis720.project.AESForFile}, which 
+ * all existing patches are encrypted with. Note that:
+ * <ul>
+ * <li>its file routines switch to ECB internally, every block is encrypted 
+ * independently and the initialization vector is not used;</li>
+ * <li>its key schedule is not the standard one, the round keys are always 
+ * expanded from the first 128 bits of the key using the AES-128 schedule 
+ * while the number of rounds follows the key length (14 for 256-bit keys).</li>
+ * </ul>
+ * So the JCE 'AES' provider cannot reproduce it. This implementation uses the 
+ * usual lookup tables and works on large buffers instead of allocating for 
+ * every block.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class AESCipher implements Pausable, Interruptible {
+
+  /**
+   * The block size in bytes.
+   */
+  public static final int BLOCK_SIZE = 16;
+  /**
+   * The size of the buffer used when encrypting/decrypting file, must be a 
+   * multiple of {@link #BLOCK_SIZE}.
+   */
+  protected static final int BUFFER_SIZE = 65536;
+  //<editor-fold defaultstate="collapsed" desc="lookup tables">
+  protected static final int[] SBOX = new int[256];
+  protected static final int[] INV_SBOX = new int[256];
+  protected static final int[] TE0 = new int[256], TE1 = new int[256], TE2 = new int[256], TE3 = new int[256];
+  protected static final int[] TD0 = new int[256], TD1 = new int[256], TD2 = new int[256], TD3 = new int[256];
+  protected static final int[] RCON = new int[14];
+
+  static {
+    // generate the S-box from the multiplicative inverse in GF(2^8)
+    int[] exp = new int[256];
+    int[] log = new int[256];
+    for (int i = 0, x = 1; i < 256; i++) {
+      exp[i] = x;
+      log[x] = i;
+      x ^= xtime(x);
+    }
+    for (int i = 0; i < 256; i++) {
+      int inverse = i == 0 ? 0 : exp[(255 - log[i]) % 255];
+      int s = inverse;
+      for (int j = 1; j <= 4; j++) {
+        s ^= ((inverse << j) | (inverse >>> (8 - j))) & 0xff;
+      }
+      s ^= 0x63;
+      SBOX[i] = s;
+      INV_SBOX[s] = i;
+    }
+
+    for (int i = 0; i < 256; i++) {
+      int s = SBOX[i];
+      int te = (mul(s, 2) << 24) | (s << 16) | (s << 8) | mul(s, 3);
+      TE0[i] = te;
+      TE1[i] = Integer.rotateRight(te, 8);
+      TE2[i] = Integer.rotateRight(te, 16);
+      TE3[i] = Integer.rotateRight(te, 24);
+
+      int is = INV_SBOX[i];
+      int td = (mul(is, 0x0e) << 24) | (mul(is, 0x09) << 16) | (mul(is, 0x0d) << 8) | mul(is, 0x0b);
+      TD0[i] = td;
+      TD1[i] = Integer.rotateRight(td, 8);
+      TD2[i] = Integer.rotateRight(td, 16);
+      TD3[i] = Integer.rotateRight(td, 24);
+    }
+
+    for (int i = 0, rc = 1; i < RCON.length; i++) {
+      RCON[i] = rc << 24;
+      rc = xtime(rc);
+    }
+  }
+
+  private static int xtime(int x) {
+    x <<= 1;
+    return (x & 0x100) != 0 ? (x ^ 0x11b) : x;
+  }
+
+  private static int mul(int x, int y) {
+    int result = 0;
+    while (y != 0) {
+      if ((y & 1) != 0) {
+        result ^= x;
+      }
+      x = xtime(x);
+      y >>>= 1;
+    }
+    return result;
+  }
+  //</editor-fold>
+  /**
+   * Number of rounds.
+   */
+  protected final int rounds;
+  /**
+   * The round keys for encryption.
+   */
+  protected final int[] encryptKey;
+  /**
+   * The round keys for decryption (equivalent inverse cipher).
+   */
+  protected final int[] decryptKey;
+  /**
+   * The progress listener.
+   */
+  protected AESForFileListener listener;
+  /**
+   * List of tasks to be executed after interrupted.
+   */
+  protected final List<Runnable> interruptedTasks;
+  /**
+   * Indicate currently is paused or not.
+   */
+  protected boolean pause;
+
+  /**
+   * Constructor.
+   * @param aesKey the cipher key, the key should be 128, 192 or 256 bits
+   */
+  public AESCipher(AESKey aesKey) {
+    if (aesKey == null) {
+      throw new NullPointerException("argument 'aesKey' cannot be null");
+    }
+
+    byte[] key = aesKey.getKey();
+    switch (key.length) {
+      case 16:
+        rounds = 10;
+        break;
+      case 24:
+        rounds = 12;
+        break;
+      case 32:
+        rounds = 14;
+        break;
+      default:
+        throw new IllegalArgumentException("length of key should be 128, 192 or 256 bits");
+    }
+
+    // key expansion, always use the 128-bit schedule, see the class description
+    int wordCount = 4 * (rounds + 1);
+    encryptKey = new int[wordCount];
+    for (int i = 0; i < 4; i++) {
+      encryptKey[i] = ((key[4 * i] & 0xff) << 24) | ((key[4 * i + 1] & 0xff) << 16) | ((key[4 * i + 2] & 0xff) << 8) | (key[4 * i + 3] & 0xff);
+    }
+    for (int i = 4; i < wordCount; i++) {
+      int temp = encryptKey[i - 1];
+      if (i % 4 == 0) {
+        temp = subWord(Integer.rotateLeft(temp, 8)) ^ RCON[i / 4 - 1];
+      }
+      encryptKey[i] = encryptKey[i - 4] ^ temp;
+    }
+
+    decryptKey = new int[wordCount];
+    for (int round = 0; round <= rounds; round++) {
+      for (int i = 0; i < 4; i++) {
+        int word = encryptKey[4 * (rounds - round) + i];
+        if (round != 0 && round != rounds) {
+          // InvMixColumns
+          word = TD0[SBOX[word >>> 24]] ^ TD1[SBOX[(word >>> 16) & 0xff]] ^ TD2[SBOX[(word >>> 8) & 0xff]] ^ TD3[SBOX[word & 0xff]];
+        }
+        decryptKey[4 * round + i] = word;
+      }
+    }
+
+    interruptedTasks = Collections.synchronizedList(new ArrayList<Runnable>());
+    pause = false;
+  }
+
+  private static int subWord(int word) {
+    return (SBOX[word >>> 24] << 24) | (SBOX[(word >>> 16) & 0xff] << 16) | (SBOX[(word >>> 8) & 0xff] << 8) | SBOX[word & 0xff];
+  }
+
+  /**
+   * Set the progress listener.
+   * @param listener the listener, null to remove
+   */
+  public void setListener(AESForFileListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Encrypt blocks in place.
+   * @param b the buffer
+   * @param off the start offset
+   * @param len the length, must be a multiple of {@link #BLOCK_SIZE}
+   */
+  public void encryptBlocks(byte[] b, int off, int len) {
+    if (len % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("argument 'len' should be a multiple of the block size");
+    }
+
+    int[] k = encryptKey;
+    for (int end = off + len; off < end; off += BLOCK_SIZE) {
+      int s0 = getInt(b, off) ^ k[0];
+      int s1 = getInt(b, off + 4) ^ k[1];
+      int s2 = getInt(b, off + 8) ^ k[2];
+      int s3 = getInt(b, off + 12) ^ k[3];
+
+      int ki = 4;
+      for (int round = 1; round < rounds; round++) {
+        int t0 = TE0[s0 >>> 24] ^ TE1[(s1 >>> 16) & 0xff] ^ TE2[(s2 >>> 8) & 0xff] ^ TE3[s3 & 0xff] ^ k[ki];
+        int t1 = TE0[s1 >>> 24] ^ TE1[(s2 >>> 16) & 0xff] ^ TE2[(s3 >>> 8) & 0xff] ^ TE3[s0 & 0xff] ^ k[ki + 1];
+        int t2 = TE0[s2 >>> 24] ^ TE1[(s3 >>> 16) & 0xff] ^ TE2[(s0 >>> 8) & 0xff] ^ TE3[s1 & 0xff] ^ k[ki + 2];
+        int t3 = TE0[s3 >>> 24] ^ TE1[(s0 >>> 16) & 0xff] ^ TE2[(s1 >>> 8) & 0xff] ^ TE3[s2 & 0xff] ^ k[ki + 3];
+        s0 = t0;
+        s1 = t1;
+        s2 = t2;
+        s3 = t3;
+        ki += 4;
+      }
+
+      putInt(b, off, ((SBOX[s0 >>> 24] << 24) | (SBOX[(s1 >>> 16) & 0xff] << 16) | (SBOX[(s2 >>> 8) & 0xff] << 8) | SBOX[s3 & 0xff]) ^ k[ki]);
+      putInt(b, off + 4, ((SBOX[s1 >>> 24] << 24) | (SBOX[(s2 >>> 16) & 0xff] << 16) | (SBOX[(s3 >>> 8) & 0xff] << 8) | SBOX[s0 & 0xff]) ^ k[ki + 1]);
+      putInt(b, off + 8, ((SBOX[s2 >>> 24] << 24) | (SBOX[(s3 >>> 16) & 0xff] << 16) | (SBOX[(s0 >>> 8) & 0xff] << 8) | SBOX[s1 & 0xff]) ^ k[ki + 2]);
+      putInt(b, off + 12, ((SBOX[s3 >>> 24] << 24) | (SBOX[(s0 >>> 16) & 0xff] << 16) | (SBOX[(s1 >>> 8) & 0xff] << 8) | SBOX[s2 & 0xff]) ^ k[ki + 3]);
+    }
+  }
+
+  /**
+   * Decrypt blocks in place.
+   * @param b the buffer
+   * @param off the start offset
+   * @param len the length, must be a multiple of {@link #BLOCK_SIZE}
+   */
+  public void decryptBlocks(byte[] b, int off, int len) {
+    if (len % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException("argument 'len' should be a multiple of the block size");
+    }
+
+    int[] k = decryptKey;
+    for (int end = off + len; off < end; off += BLOCK_SIZE) {
+      int s0 = getInt(b, off) ^ k[0];
+      int s1 = getInt(b, off + 4) ^ k[1];
+      int s2 = getInt(b, off + 8) ^ k[2];
+      int s3 = getInt(b, off + 12) ^ k[3];
+
+      int ki = 4;
+      for (int round = 1; round < rounds; round++) {
+        int t0 = TD0[s0 >>> 24] ^ TD1[(s3 >>> 16) & 0xff] ^ TD2[(s2 >>> 8) & 0xff] ^ TD3[s1 & 0xff] ^ k[ki];
+        int t1 = TD0[s1 >>> 24] ^ TD1[(s0 >>> 16) & 0xff] ^ TD2[(s3 >>> 8) & 0xff] ^ TD3[s2 & 0xff] ^ k[ki + 1];
+        int t2 = TD0[s2 >>> 24] ^ TD1[(s1 >>> 16) & 0xff] ^ TD2[(s0 >>> 8) & 0xff] ^ TD3[s3 & 0xff] ^ k[ki + 2];
+        int t3 = TD0[s3 >>> 24] ^ TD1[(s2 >>> 16) & 0xff] ^ TD2[(s1 >>> 8) & 0xff] ^ TD3[s0 & 0xff] ^ k[ki + 3];
+        s0 = t0;
+        s1 = t1;
+        s2 = t2;
+        s3 = t3;
+        ki += 4;
+      }
+
+      putInt(b, off, ((INV_SBOX[s0 >>> 24] << 24) | (INV_SBOX[(s3 >>> 16) & 0xff] << 16) | (INV_SBOX[(s2 >>> 8) & 0xff] << 8) | INV_SBOX[s1 & 0xff]) ^ k[ki]);
+      putInt(b, off + 4, ((INV_SBOX[s1 >>> 24] << 24) | (INV_SBOX[(s0 >>> 16) & 0xff] << 16) | (INV_SBOX[(s3 >>> 8) & 0xff] << 8) | INV_SBOX[s2 & 0xff]) ^ k[ki + 1]);
+      putInt(b, off + 8, ((INV_SBOX[s2 >>> 24] << 24) | (INV_SBOX[(s1 >>> 16) & 0xff] << 16) | (INV_SBOX[(s0 >>> 8) & 0xff] << 8) | INV_SBOX[s3 & 0xff]) ^ k[ki + 2]);
+      putInt(b, off + 12, ((INV_SBOX[s3 >>> 24] << 24) | (INV_SBOX[(s2 >>> 16) & 0xff] << 16) | (INV_SBOX[(s1 >>> 8) & 0xff] << 8) | INV_SBOX[s0 & 0xff]) ^ k[ki + 3]);
+    }
+  }
+
+  private static int getInt(byte[] b, int off) {
+    return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+  }
+
+  private static void putInt(byte[] b, int off, int value) {
+    b[off] = (byte) (value >>> 24);
+    b[off + 1] = (byte) (value >>> 16);
+    b[off + 2] = (byte) (value >>> 8);
+    b[off + 3] = (byte) value;
+  }
+
+  /**
+   * Encrypt the {@code inputFile} and save to {@code outputFile}.
+   * @param inputFile the file to encrypt
+   * @param outputFile the file to save the encrypted content
+   * @throws IOException error occurred when reading or writing
+   */
+  public void encryptFile(File inputFile, File outputFile) throws IOException {
+    if (inputFile == null) {
+      throw new NullPointerException("argument 'inputFile' cannot be null");
+    }
+    if (outputFile == null) {
+      throw new NullPointerException("argument 'outputFile' cannot be null");
+    }
+
+    FileInputStream fin = null;
+    FileOutputStream fout = null;
+    try {
+      fin = new FileInputStream(inputFile);
+      fout = new FileOutputStream(outputFile);
+
+      // leave space for the padding block
+      byte[] b = new byte[BUFFER_SIZE + BLOCK_SIZE];
+      long fileLength = inputFile.length(), cumulateByteRead = 0;
+      int percentage = 0;
+      while (true) {
+        check();
+
+        int byteRead = readFully(fin, b, 0, BUFFER_SIZE);
+        cumulateByteRead += byteRead;
+        if (byteRead == BUFFER_SIZE) {
+          encryptBlocks(b, 0, byteRead);
+          fout.write(b, 0, byteRead);
+        } else {
+          if (cumulateByteRead == 0) {
+            // empty file results in empty output, same as AESForFile
+            break;
+          }
+          // last chunk, PKCS #5 padding
+          int padding = BLOCK_SIZE - (byteRead % BLOCK_SIZE);
+          for (int i = 0; i < padding; i++) {
+            b[byteRead + i] = (byte) padding;
+          }
+          encryptBlocks(b, 0, byteRead + padding);
+          fout.write(b, 0, byteRead + padding);
+          break;
+        }
+
+        percentage = notifyProgress(percentage, cumulateByteRead, fileLength);
+      }
+    } finally {
+      CommonUtil.closeQuietly(fin);
+      CommonUtil.closeQuietly(fout);
+    }
+  }
+
+  /**
+   * Decrypt the {@code inputFile} and save to {@code outputFile}.
+   * @param inputFile the file to decrypt
+   * @param outputFile the file to save the decrypted content
+   * @throws IOException error occurred when reading or writing, or the 
+   * content is not valid
+   */
+  public void decryptFile(File inputFile, File outputFile) throws IOException {
+    if (inputFile == null) {
+      throw new NullPointerException("argument 'inputFile' cannot be null");
+    }
+    if (outputFile == null) {
+      throw new NullPointerException("argument 'outputFile' cannot be null");
+    }
+
+    InputStream in = null;
+    FileOutputStream fout = null;
+    try {
+      in = new AESCipherInputStream(new FileInputStream(inputFile), this);
+      fout = new FileOutputStream(outputFile);
+
+      byte[] b = new byte[BUFFER_SIZE];
+      long fileLength = inputFile.length(), cumulateByteRead = 0;
+      int percentage = 0;
+      int byteRead;
+      while ((byteRead = in.read(b)) != -1) {
+        fout.write(b, 0, byteRead);
+        cumulateByteRead += byteRead;
+        percentage = notifyProgress(percentage, cumulateByteRead, fileLength);
+      }
+    } finally {
+      CommonUtil.closeQuietly(in);
+      CommonUtil.closeQuietly(fout);
+    }
+  }
+
+  /**
+   * Get the length of the PKCS #5 padding in the last block.
+   * @param b the buffer
+   * @param off the offset of the decrypted last block in {@code b}
+   * @return the length of the padding
+   * @throws IOException the padding is invalid
+   */
+  protected static int getPaddingLength(byte[] b, int off) throws IOException {
+    int padding = b[off + BLOCK_SIZE - 1] & 0xff;
+    if (padding < 1 || padding > BLOCK_SIZE) {
+      throw new IOException("Invalid padding, the key may be incorrect.");
+    }
+    for (int i = BLOCK_SIZE - padding; i < BLOCK_SIZE; i++) {
+      if ((b[off + i] & 0xff) != padding) {
+        throw new IOException("Invalid padding, the key may be incorrect.");
+      }
+    }
+    return padding;
+  }
+
+  /**
+   * Read from {@code in} until {@code b} has {@code len} bytes or the end of 
+   * stream is reached.
+   * @param in the stream to read
+   * @param b the buffer
+   * @param off the start offset in {@code b}
+   * @param len the number of bytes to read
+   * @return the number of bytes read
+   * @throws IOException error occurred when reading
+   */
+  protected static int readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+    int cumulateByteRead = 0;
+    while (cumulateByteRead < len) {
+      int byteRead = in.read(b, off + cumulateByteRead, len - cumulateByteRead);
+      if (byteRead == -1) {
+        break;
+      }
+      cumulateByteRead += byteRead;
+    }
+    return cumulateByteRead;
+  }
+
+  private int notifyProgress(int percentage, long cumulateByteRead, long fileLength) {
+    if (listener == null || fileLength == 0) {
+      return percentage;
+    }
+    int newPercentage = (int) (cumulateByteRead * 100 / fileLength);
+    if (newPercentage != percentage) {
+      listener.cryptProgress(newPercentage);
+    }
+    return newPercentage;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void addInterruptedTask(Runnable task) {
+    if (task == null) {
+      return;
+    }
+    interruptedTasks.add(task);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void removeInterruptedTask(Runnable task) {
+    if (task == null) {
+      return;
+    }
+    interruptedTasks.remove(task);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void pause(boolean pause) {
+    synchronized (this) {
+      this.pause = pause;
+      if (!pause) {
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Check if paused or interrupted.
+   */
+  protected void check() {
+    synchronized (this) {
+      if (pause) {
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    if (Thread.interrupted()) {
+      synchronized (interruptedTasks) {
+        for (Runnable task : interruptedTasks) {
+          task.run();
+        }
+      }
+      throw new RuntimeException(new InterruptedException());
+    }
+  }
+}
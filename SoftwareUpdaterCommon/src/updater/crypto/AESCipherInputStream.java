@@ -0,0 +1,166 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that decrypts the content read from the underlying stream 
+ * with {@link AESCipher} on the fly, so the decrypted content need not be 
+ * saved to a file first.
+ * <p>
+ * The content is decrypted in chunks of {@link AESCipher#BUFFER_SIZE}, 
+ * pausing and interrupting the {@link AESCipher} take effect when the next 
+ * chunk is decrypted.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class AESCipherInputStream extends InputStream {
+
+  /**
+   * The underlying input stream.
+   */
+  protected InputStream in;
+  /**
+   * The cipher.
+   */
+  protected AESCipher cipher;
+  /**
+   * The buffer, the last decrypted block is held back at the end until the 
+   * end of stream is reached to remove the padding.
+   */
+  protected byte[] buf;
+  /**
+   * The position of the next byte to read in {@link #buf}.
+   */
+  protected int pos;
+  /**
+   * The end of the decrypted bytes available in {@link #buf}.
+   */
+  protected int limit;
+  /**
+   * Indicate there is a decrypted block held back at {@link #limit}.
+   */
+  protected boolean blockHeld;
+  /**
+   * Indicate the end of the underlying stream is reached.
+   */
+  protected boolean eof;
+
+  /**
+   * Constructor.
+   * @param in the input stream to read the encrypted content from
+   * @param cipher the cipher used to decrypt
+   */
+  public AESCipherInputStream(InputStream in, AESCipher cipher) {
+    if (in == null) {
+      throw new NullPointerException("argument 'in' cannot be null");
+    }
+    if (cipher == null) {
+      throw new NullPointerException("argument 'cipher' cannot be null");
+    }
+
+    this.in = in;
+    this.cipher = cipher;
+
+    buf = new byte[AESCipher.BUFFER_SIZE + AESCipher.BLOCK_SIZE];
+    pos = 0;
+    limit = 0;
+    blockHeld = false;
+    eof = false;
+  }
+
+  /**
+   * Read and decrypt the next chunk from the underlying stream.
+   * @throws IOException error occurred when reading, or the content is not 
+   * valid
+   */
+  protected void fill() throws IOException {
+    cipher.check();
+
+    int start = AESCipher.BLOCK_SIZE;
+    if (blockHeld) {
+      start = 0;
+      System.arraycopy(buf, limit, buf, 0, AESCipher.BLOCK_SIZE);
+    }
+
+    int byteRead = AESCipher.readFully(in, buf, AESCipher.BLOCK_SIZE, AESCipher.BUFFER_SIZE);
+    if (byteRead % AESCipher.BLOCK_SIZE != 0) {
+      throw new IOException("Length of the encrypted content is not a multiple of the block size.");
+    }
+    cipher.decryptBlocks(buf, AESCipher.BLOCK_SIZE, byteRead);
+
+    pos = start;
+    if (byteRead == AESCipher.BUFFER_SIZE) {
+      limit = byteRead;
+      blockHeld = true;
+    } else {
+      // end of stream reached, remove the padding in the last block
+      eof = true;
+      if (byteRead == 0 && !blockHeld) {
+        limit = start;
+      } else {
+        // the last block locates at byteRead, whether it is the held one or not
+        limit = byteRead + AESCipher.BLOCK_SIZE - AESCipher.getPaddingLength(buf, byteRead);
+      }
+      blockHeld = false;
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (pos >= limit) {
+      if (eof) {
+        return -1;
+      }
+      fill();
+    }
+    return buf[pos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (pos >= limit) {
+      if (eof) {
+        return -1;
+      }
+      fill();
+    }
+    int byteToCopy = Math.min(len, limit - pos);
+    System.arraycopy(buf, pos, b, off, byteToCopy);
+    pos += byteToCopy;
+    return byteToCopy;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return limit - pos;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
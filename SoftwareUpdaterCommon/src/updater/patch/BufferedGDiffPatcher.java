@@ -0,0 +1,320 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.PatchException;
+import com.nothome.delta.SeekableSource;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Apply GDIFF patch, produce the same output as 
+ * {@link com.nothome.delta.GDiffPatcher} but faster on large patches.
+ * <p>
+ * The commands are decoded from an internal buffer that is filled by bulk 
+ * reads, rather than reading the patch stream byte by byte. The data of 
+ * DATA commands are written from the buffer directly. Consecutive COPY 
+ * commands that copy a continuous range of the source are merged into one 
+ * run, which is read from the source by large reads.</p>
+ * <p>
+ * The patch stream may be read ahead to the end, so it should be limited to 
+ * the length of the patch, e.g. by 
+ * {@link updater.util.InterruptibleInputStream#InterruptibleInputStream(java.io.InputStream, long)}.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class BufferedGDiffPatcher {
+
+  /**
+   * The GDIFF commands.
+   */
+  protected static final int EOF = 0;
+  protected static final int DATA_MAX = 246;
+  protected static final int DATA_USHORT = 247;
+  protected static final int DATA_INT = 248;
+  protected static final int COPY_USHORT_UBYTE = 249;
+  protected static final int COPY_USHORT_USHORT = 250;
+  protected static final int COPY_USHORT_INT = 251;
+  protected static final int COPY_INT_UBYTE = 252;
+  protected static final int COPY_INT_USHORT = 253;
+  protected static final int COPY_INT_INT = 254;
+  protected static final int COPY_LONG_INT = 255;
+  /**
+   * The size of the patch buffer and the copy buffer.
+   */
+  protected static final int BUFFER_SIZE = 65536;
+  /**
+   * The buffer of the patch.
+   */
+  protected final byte[] patchBuffer;
+  /**
+   * The position of the next byte to decode in {@link #patchBuffer}.
+   */
+  protected int patchBufferPosition;
+  /**
+   * The end of the valid data in {@link #patchBuffer}.
+   */
+  protected int patchBufferLimit;
+  /**
+   * The buffer to copy from the source.
+   */
+  protected final ByteBuffer copyBuffer;
+  /**
+   * The offset of the pending copy run.
+   */
+  protected long copyOffset;
+  /**
+   * The length of the pending copy run, 0 if no pending run.
+   */
+  protected long copyLength;
+  /**
+   * Temporary references for {@link #patch(com.nothome.delta.SeekableSource, 
+   * java.io.InputStream, java.io.OutputStream)}.
+   */
+  protected SeekableSource source;
+  protected InputStream patch;
+  protected OutputStream out;
+
+  /**
+   * Constructor.
+   */
+  public BufferedGDiffPatcher() {
+    patchBuffer = new byte[BUFFER_SIZE];
+    copyBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /**
+   * Apply the patch to {@code source} and write the result to {@code out}.
+   * @param source the source to patch
+   * @param patch the patch
+   * @param out the output stream to write the result to
+   * @throws IOException error occurred when reading or writing, or the 
+   * patch is invalid
+   */
+  public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+    if (source == null) {
+      throw new NullPointerException("argument 'source' cannot be null");
+    }
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    this.source = source;
+    this.patch = patch;
+    this.out = out;
+    patchBufferPosition = 0;
+    patchBufferLimit = 0;
+    copyOffset = 0;
+    copyLength = 0;
+
+    try {
+      // the magic string is 'd1 ff d1 ff' + the version number
+      if (readUnsignedByte() != 0xd1 || readUnsignedByte() != 0xff || readUnsignedByte() != 0xd1
+              || readUnsignedByte() != 0xff || readUnsignedByte() != 0x04) {
+        throw new PatchException("magic string not found, aborting!");
+      }
+
+      while (true) {
+        int command = readUnsignedByte();
+        if (command == EOF) {
+          break;
+        }
+
+        if (command <= DATA_MAX) {
+          append(command);
+          continue;
+        }
+
+        switch (command) {
+          case DATA_USHORT:
+            append(readUnsignedShort());
+            break;
+          case DATA_INT:
+            append(readInt());
+            break;
+          case COPY_USHORT_UBYTE:
+            copy(readUnsignedShort(), readUnsignedByte());
+            break;
+          case COPY_USHORT_USHORT:
+            copy(readUnsignedShort(), readUnsignedShort());
+            break;
+          case COPY_USHORT_INT:
+            copy(readUnsignedShort(), readInt());
+            break;
+          case COPY_INT_UBYTE:
+            copy(readInt(), readUnsignedByte());
+            break;
+          case COPY_INT_USHORT:
+            copy(readInt(), readUnsignedShort());
+            break;
+          case COPY_INT_INT:
+            copy(readInt(), readInt());
+            break;
+          case COPY_LONG_INT:
+            copy(readLong(), readInt());
+            break;
+          default:
+            throw new PatchException("command " + command);
+        }
+      }
+
+      flushCopy();
+      out.flush();
+    } finally {
+      this.source = null;
+      this.patch = null;
+      this.out = null;
+    }
+  }
+
+  /**
+   * Make sure at least {@code length} bytes are available in 
+   * {@link #patchBuffer}.
+   * @param length the number of bytes, should not larger than the buffer
+   * @throws IOException error occurred when reading, or reached the end of 
+   * the patch
+   */
+  protected void ensure(int length) throws IOException {
+    if (patchBufferLimit - patchBufferPosition >= length) {
+      return;
+    }
+
+    // move the remaining to the start
+    int remaining = patchBufferLimit - patchBufferPosition;
+    System.arraycopy(patchBuffer, patchBufferPosition, patchBuffer, 0, remaining);
+    patchBufferPosition = 0;
+    patchBufferLimit = remaining;
+
+    while (patchBufferLimit < length) {
+      int byteRead = patch.read(patchBuffer, patchBufferLimit, patchBuffer.length - patchBufferLimit);
+      if (byteRead == -1) {
+        throw new EOFException("Unexpected end of the patch.");
+      }
+      patchBufferLimit += byteRead;
+    }
+  }
+
+  /**
+   * Read an unsigned byte from the patch.
+   */
+  protected int readUnsignedByte() throws IOException {
+    ensure(1);
+    return patchBuffer[patchBufferPosition++] & 0xff;
+  }
+
+  /**
+   * Read an unsigned short from the patch in big-endian.
+   */
+  protected int readUnsignedShort() throws IOException {
+    ensure(2);
+    int result = ((patchBuffer[patchBufferPosition] & 0xff) << 8) | (patchBuffer[patchBufferPosition + 1] & 0xff);
+    patchBufferPosition += 2;
+    return result;
+  }
+
+  /**
+   * Read an int from the patch in big-endian.
+   */
+  protected int readInt() throws IOException {
+    ensure(4);
+    int result = ((patchBuffer[patchBufferPosition] & 0xff) << 24) | ((patchBuffer[patchBufferPosition + 1] & 0xff) << 16)
+            | ((patchBuffer[patchBufferPosition + 2] & 0xff) << 8) | (patchBuffer[patchBufferPosition + 3] & 0xff);
+    patchBufferPosition += 4;
+    return result;
+  }
+
+  /**
+   * Read a long from the patch in big-endian.
+   */
+  protected long readLong() throws IOException {
+    long high = readInt() & 0xffffffffL;
+    long low = readInt() & 0xffffffffL;
+    return (high << 32) | low;
+  }
+
+  /**
+   * Write {@code length} bytes from the patch to the output.
+   * @param length the number of bytes
+   * @throws IOException error occurred when reading or writing
+   */
+  protected void append(int length) throws IOException {
+    flushCopy();
+
+    while (length > 0) {
+      if (patchBufferPosition == patchBufferLimit) {
+        ensure(1);
+      }
+      int byteToWrite = Math.min(patchBufferLimit - patchBufferPosition, length);
+      out.write(patchBuffer, patchBufferPosition, byteToWrite);
+      patchBufferPosition += byteToWrite;
+      length -= byteToWrite;
+    }
+  }
+
+  /**
+   * Copy {@code length} bytes from {@code offset} of the source to the 
+   * output. The copy is delayed to merge with the following copies.
+   * @param offset the offset in the source
+   * @param length the number of bytes
+   * @throws IOException error occurred when reading or writing
+   */
+  protected void copy(long offset, int length) throws IOException {
+    if (length <= 0) {
+      return;
+    }
+    if (copyLength > 0 && copyOffset + copyLength == offset) {
+      copyLength += length;
+      return;
+    }
+    flushCopy();
+    copyOffset = offset;
+    copyLength = length;
+  }
+
+  /**
+   * Do the pending copy run.
+   * @throws IOException error occurred when reading or writing
+   */
+  protected void flushCopy() throws IOException {
+    if (copyLength <= 0) {
+      return;
+    }
+
+    source.seek(copyOffset);
+    long remaining = copyLength;
+    while (remaining > 0) {
+      copyBuffer.clear().limit((int) Math.min(copyBuffer.capacity(), remaining));
+      int byteRead = source.read(copyBuffer);
+      if (byteRead == -1) {
+        throw new EOFException("in copy " + copyOffset + " " + copyLength);
+      }
+      out.write(copyBuffer.array(), 0, byteRead);
+      remaining -= byteRead;
+    }
+    copyLength = 0;
+  }
+}
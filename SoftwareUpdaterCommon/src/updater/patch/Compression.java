@@ -26,7 +26,25 @@ package updater.patch;
  */
 public enum Compression {
 
-  GZIP(0), LZMA2(1);
+  GZIP(0), LZMA2(1),
+  /**
+   * XZ/LZMA2 with the content split into blocks at operation boundaries, 
+   * allow seeking to an operation without decompressing the content before 
+   * it.
+   */
+  LZMA2_BLOCKS(2),
+  /**
+   * No compression, only used for the content of an operation in 
+   * {@link #PER_OPERATION}.
+   */
+  NONE(3),
+  /**
+   * The patch XML and the content of each operation are compressed 
+   * separately, the compression of the content is chosen for each operation 
+   * and recorded in the patch XML, see 
+   * {@link OperationCompressionOutputStream}.
+   */
+  PER_OPERATION(4);
   /**
    * The integer value representation of the compression.
    */
@@ -0,0 +1,290 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import updater.util.CommonUtil;
+
+/**
+ * A persistent cache of the SHA-256 digest of files, keyed by the canonical 
+ * path of the file. A cached digest is used only if the length and the last 
+ * modified time of the file are not changed since it is computed.
+ * <p>This is thread-safe, so the checksum tasks of {@link PatchCreator} can 
+ * share one cache.</p>
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DigestCache {
+
+  private static final Logger LOG = Logger.getLogger(DigestCache.class.getName());
+  /**
+   * The header of the cache file, 'DGC' and the format version 1.
+   */
+  protected static final int MAGIC = 0x44474301;
+  /**
+   * A file modified within this period of time (in ms) before it is digested 
+   * will not be cached, because the file system may not record the time 
+   * precisely enough to detect another modification within the same period.
+   */
+  protected static final long MODIFIED_TIME_RESOLUTION = 2000;
+  /**
+   * The file to store the cache.
+   */
+  protected final File cacheFile;
+  /**
+   * The cached entries, keyed by canonical path.
+   */
+  protected final Map<String, Entry> entries;
+
+  /**
+   * Constructor. Load the cache from {@code cacheFile} if it exists, if the 
+   * file is corrupted, the cache will be started empty.
+   * @param cacheFile the file to load and save the cache
+   */
+  public DigestCache(File cacheFile) {
+    if (cacheFile == null) {
+      throw new NullPointerException("argument 'cacheFile' cannot be null");
+    }
+    this.cacheFile = cacheFile;
+    entries = new HashMap<String, Entry>();
+
+    if (cacheFile.exists()) {
+      try {
+        load();
+      } catch (IOException ex) {
+        LOG.log(Level.WARNING, "Failed to load the digest cache, start with an empty cache.", ex);
+        entries.clear();
+      }
+    }
+  }
+
+  /**
+   * Load the cache from {@link #cacheFile}.
+   * @throws IOException error occurred when reading or the file is corrupted
+   */
+  protected final void load() throws IOException {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Invalid digest cache header.");
+      }
+      while (true) {
+        String path;
+        try {
+          path = in.readUTF();
+        } catch (EOFException ex) {
+          break;
+        }
+        long length = in.readLong();
+        long lastModified = in.readLong();
+        byte[] digest = new byte[32];
+        in.readFully(digest);
+        entries.put(path, new Entry(length, lastModified, digest));
+      }
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Save the cache to the cache file. The entries of those files that no 
+   * longer exist or are changed are dropped.
+   * @throws IOException error occurred when writing
+   */
+  public synchronized void save() throws IOException {
+    Iterator<String> iterator = entries.keySet().iterator();
+    while (iterator.hasNext()) {
+      String path = iterator.next();
+      Entry entry = entries.get(path);
+      File file = new File(path);
+      if (!file.isFile() || file.length() != entry.length || file.lastModified() != entry.lastModified) {
+        iterator.remove();
+      }
+    }
+
+    // write to a temporary file first, so the old cache is kept if failed
+    File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.writeInt(MAGIC);
+      for (String path : entries.keySet()) {
+        Entry entry = entries.get(path);
+        out.writeUTF(path);
+        out.writeLong(entry.length);
+        out.writeLong(entry.lastModified);
+        out.write(entry.digest);
+      }
+    } finally {
+      CommonUtil.closeQuietly(out);
+    }
+
+    if (cacheFile.exists() && !cacheFile.delete()) {
+      throw new IOException(String.format("Failed to delete the old digest cache: %1$s", cacheFile.getAbsolutePath()));
+    }
+    if (!tempFile.renameTo(cacheFile)) {
+      throw new IOException(String.format("Failed to move %1$s to %2$s", tempFile.getAbsolutePath(), cacheFile.getAbsolutePath()));
+    }
+  }
+
+  /**
+   * Get the SHA-256 digest of a file, from the cache if the file is not 
+   * changed, or compute it and put it into the cache.
+   * @param file the file to digest
+   * @return the SHA-256 digest
+   * @throws IOException error occurred when reading the file
+   */
+  public byte[] getSHA256(File file) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+
+    String path = file.getCanonicalPath();
+    long length = file.length();
+    long lastModified = file.lastModified();
+
+    synchronized (this) {
+      Entry entry = entries.get(path);
+      if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+        return entry.digest.clone();
+      }
+    }
+
+    byte[] digest = CommonUtil.getSHA256(file);
+    // not cache if the file is changed when digesting or may be changed again unnoticed
+    if (digest != null && digest.length == 32 && file.length() == length && file.lastModified() == lastModified
+            && System.currentTimeMillis() - lastModified > MODIFIED_TIME_RESOLUTION) {
+      synchronized (this) {
+        entries.put(path, new Entry(length, lastModified, digest.clone()));
+      }
+    }
+    return digest;
+  }
+
+  /**
+   * Get the cached SHA-256 digest of a file without reading the file.
+   * @param file the file
+   * @return the SHA-256 digest in hex string, or null if the file is not 
+   * cached or is changed since cached
+   * @throws IOException error occurred when resolving the canonical path
+   */
+  public synchronized String getCachedSHA256String(File file) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+
+    Entry entry = entries.get(file.getCanonicalPath());
+    if (entry != null && entry.length == file.length() && entry.lastModified == file.lastModified()) {
+      return CommonUtil.byteArrayToHexString(entry.digest);
+    }
+    return null;
+  }
+
+  /**
+   * Put the SHA-256 digest of a file that is known already, e.g. computed 
+   * when writing the file or verified by a checksum from elsewhere. Unlike 
+   * {@link #getSHA256(java.io.File)}, a recently modified file is cached 
+   * too, so the caller should make sure the file is not being modified.
+   * @param file the file
+   * @param checksum the SHA-256 digest of the file in hex string
+   * @throws IOException error occurred when resolving the canonical path
+   */
+  public void put(File file, String checksum) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+    if (checksum == null) {
+      throw new NullPointerException("argument 'checksum' cannot be null");
+    }
+
+    byte[] digest = CommonUtil.hexStringToByteArray(checksum);
+    if (digest.length != 32) {
+      throw new IllegalArgumentException("argument 'checksum' is not a SHA-256 digest");
+    }
+    String path = file.getCanonicalPath();
+    long length = file.length();
+    long lastModified = file.lastModified();
+    synchronized (this) {
+      entries.put(path, new Entry(length, lastModified, digest));
+    }
+  }
+
+  /**
+   * Get the SHA-256 digest of a file in hex string, see 
+   * {@link #getSHA256(java.io.File)}.
+   * @param file the file to digest
+   * @return the SHA-256 digest in hex string
+   * @throws IOException error occurred when reading the file
+   */
+  public String getSHA256String(File file) throws IOException {
+    return CommonUtil.byteArrayToHexString(getSHA256(file));
+  }
+
+  /**
+   * Get the SHA-256 digest of a file in hex string, use {@code digestCache} 
+   * if it is not null.
+   * @param digestCache the cache, can be null
+   * @param file the file to digest
+   * @return the SHA-256 digest in hex string
+   * @throws IOException error occurred when reading the file
+   */
+  public static String getSHA256String(DigestCache digestCache, File file) throws IOException {
+    return digestCache == null ? CommonUtil.getSHA256String(file) : digestCache.getSHA256String(file);
+  }
+
+  /**
+   * A cached digest.
+   */
+  protected static class Entry {
+
+    /**
+     * The length of the file when digested.
+     */
+    protected final long length;
+    /**
+     * The last modified time of the file when digested.
+     */
+    protected final long lastModified;
+    /**
+     * The SHA-256 digest.
+     */
+    protected final byte[] digest;
+
+    protected Entry(long length, long lastModified, byte[] digest) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.digest = digest;
+    }
+  }
+}
@@ -0,0 +1,826 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+import updater.util.CommonUtil;
+
+/**
+ * Expand and recompress jar (zip) files for {@link OperationType#JAR_PATCH}.
+ * <p>
+ * The expanded form of a jar is the jar with the compressed data of its 
+ * deflated entries replaced by the inflated data, all other bytes (headers, 
+ * stored entries, central directory) are kept as is. Delta of the expanded 
+ * forms is much smaller than delta of the jars, because a small change in 
+ * an entry changes all its compressed data after the change.</p>
+ * <p>
+ * When expanding the new jar, only the entries that can be reproduced 
+ * byte-by-byte by {@link Deflater} are inflated, the level that reproduces 
+ * each of them is recorded by {@link ExpandedEntry}, so that 
+ * {@link RecompressOutputStream} can recompress the expanded form back to 
+ * the identical jar.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class JarExpander {
+
+  /**
+   * The signature of the local file header.
+   */
+  protected static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+  /**
+   * The signature of the central directory file header.
+   */
+  protected static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+  /**
+   * The signature of the end of central directory record.
+   */
+  protected static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  /**
+   * The maximum length of the end of central directory record, including 
+   * the comment.
+   */
+  protected static final int END_OF_CENTRAL_DIRECTORY_MAX_LENGTH = 22 + 65535;
+  /**
+   * The compression method deflated.
+   */
+  protected static final int METHOD_DEFLATED = 8;
+  /**
+   * The deflate levels to try when finding the level that reproduces an 
+   * entry, the default level (6) first. Level 0 is not tried because the 
+   * stored blocks it produces depend on how the input is fed.
+   */
+  protected static final int[] LEVELS = new int[]{6, 9, 1, 2, 3, 4, 5, 7, 8};
+  /**
+   * The buffer size used when inflating and deflating.
+   */
+  protected static final int BUFFER_SIZE = 32768;
+
+  protected JarExpander() {
+  }
+
+  /**
+   * Check if the file begins with the local file header signature of zip.
+   * @param file the file to check
+   * @return true if it is a zip file, false if not
+   * @throws IOException error occurred when reading the file
+   */
+  public static boolean isZipFile(File file) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+    if (!file.isFile() || file.length() < 4) {
+      return false;
+    }
+
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      byte[] b = new byte[4];
+      new DataInputStream(in).readFully(b);
+      return getInt(b, 0) == LOCAL_FILE_HEADER_SIGNATURE;
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Expand the zip file and write the expanded form to {@code expandTo}.
+   * All deflated entries are inflated.
+   * @param zipFile the zip file
+   * @param expandTo the file to write the expanded form to
+   * @throws IOException error occurred when reading or writing, or the zip 
+   * file is not supported
+   */
+  public static void expand(File zipFile, File expandTo) throws IOException {
+    if (expandTo == null) {
+      throw new NullPointerException("argument 'expandTo' cannot be null");
+    }
+
+    FileOutputStream fout = null;
+    try {
+      fout = new FileOutputStream(expandTo);
+      OutputStream out = new BufferedOutputStream(fout);
+      if (expand(zipFile, out, false) == null) {
+        throw new ZipException(String.format("Zip file not supported: %1$s", zipFile.getAbsolutePath()));
+      }
+      out.flush();
+    } finally {
+      CommonUtil.closeQuietly(fout);
+    }
+  }
+
+  /**
+   * Expand the zip file and write the expanded form to {@code out}.
+   * @param zipFile the zip file
+   * @param out the stream to write the expanded form to
+   * @param reproducibleOnly true to inflate only the entries that can be 
+   * reproduced by {@link Deflater}, false to inflate all deflated entries
+   * @return the inflated entries, or null if the zip file is not supported, 
+   * e.g. zip64 or the entries are overlapped; the level of the entries is 
+   * meaningful only if {@code reproducibleOnly} is true
+   * @throws IOException error occurred when reading or writing, or the data 
+   * of an entry is corrupted
+   */
+  public static List<ExpandedEntry> expand(File zipFile, OutputStream out, boolean reproducibleOnly) throws IOException {
+    if (zipFile == null) {
+      throw new NullPointerException("argument 'zipFile' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    RandomAccessFile file = null;
+    try {
+      file = new RandomAccessFile(zipFile, "r");
+
+      List<EntryRegion> regions = readEntryRegions(file);
+      if (regions == null) {
+        return null;
+      }
+
+      List<ExpandedEntry> returnList = new ArrayList<ExpandedEntry>();
+      byte[] buf = new byte[BUFFER_SIZE];
+      long position = 0, expandedPosition = 0;
+      for (EntryRegion region : regions) {
+        long rawLength = region.getOffset() - position;
+        copy(file, position, rawLength, out, buf);
+        expandedPosition += rawLength;
+        position = region.getOffset();
+
+        int level = reproducibleOnly ? findLevel(file, region) : 0;
+        if (level == -1) {
+          // keep the compressed data
+          copy(file, position, region.getCompressedLength(), out, buf);
+          expandedPosition += region.getCompressedLength();
+        } else {
+          inflate(file, region, out);
+          returnList.add(new ExpandedEntry(expandedPosition, region.getLength(), level));
+          expandedPosition += region.getLength();
+        }
+        position += region.getCompressedLength();
+      }
+      copy(file, position, file.length() - position, out, buf);
+
+      return returnList;
+    } finally {
+      CommonUtil.closeQuietly(file);
+    }
+  }
+
+  /**
+   * Read the regions of the compressed data of the deflated entries from 
+   * the central directory.
+   * @param file the zip file
+   * @return the regions sorted by offset, or null if the zip file is not 
+   * supported
+   * @throws IOException error occurred when reading the file
+   */
+  protected static List<EntryRegion> readEntryRegions(RandomAccessFile file) throws IOException {
+    long fileLength = file.length();
+
+    // find the end of central directory record from the end of the file
+    int tailLength = (int) Math.min(fileLength, END_OF_CENTRAL_DIRECTORY_MAX_LENGTH);
+    byte[] tail = new byte[tailLength];
+    file.seek(fileLength - tailLength);
+    file.readFully(tail);
+    int endOffset = -1;
+    for (int i = tailLength - 22; i >= 0; i--) {
+      if (getInt(tail, i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE && i + 22 + getShort(tail, i + 20) <= tailLength) {
+        endOffset = i;
+        break;
+      }
+    }
+    if (endOffset == -1) {
+      return null;
+    }
+
+    int entryCount = getShort(tail, endOffset + 10);
+    long directoryLength = getInt(tail, endOffset + 12) & 0xffffffffL;
+    long directoryOffset = getInt(tail, endOffset + 16) & 0xffffffffL;
+    // zip64 is not supported
+    if (entryCount == 0xffff || directoryLength == 0xffffffffL || directoryOffset == 0xffffffffL
+            || directoryOffset + directoryLength > fileLength - tailLength + endOffset) {
+      return null;
+    }
+
+    byte[] directory = new byte[(int) directoryLength];
+    file.seek(directoryOffset);
+    file.readFully(directory);
+
+    List<EntryRegion> regions = new ArrayList<EntryRegion>();
+    byte[] localHeader = new byte[30];
+    for (int i = 0, offset = 0; i < entryCount; i++) {
+      if (offset + 46 > directory.length || getInt(directory, offset) != CENTRAL_DIRECTORY_SIGNATURE) {
+        return null;
+      }
+      int flags = getShort(directory, offset + 8);
+      int method = getShort(directory, offset + 10);
+      long compressedLength = getInt(directory, offset + 20) & 0xffffffffL;
+      long length = getInt(directory, offset + 24) & 0xffffffffL;
+      int nameLength = getShort(directory, offset + 28);
+      int extraLength = getShort(directory, offset + 30);
+      int commentLength = getShort(directory, offset + 32);
+      long localHeaderOffset = getInt(directory, offset + 42) & 0xffffffffL;
+      offset += 46 + nameLength + extraLength + commentLength;
+
+      if (compressedLength == 0xffffffffL || length == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+        return null;
+      }
+      // only expand the deflated entries that are not encrypted
+      if (method != METHOD_DEFLATED || (flags & 1) != 0) {
+        continue;
+      }
+
+      if (localHeaderOffset + localHeader.length > fileLength) {
+        return null;
+      }
+      file.seek(localHeaderOffset);
+      file.readFully(localHeader);
+      if (getInt(localHeader, 0) != LOCAL_FILE_HEADER_SIGNATURE) {
+        return null;
+      }
+      long dataOffset = localHeaderOffset + localHeader.length + getShort(localHeader, 26) + getShort(localHeader, 28);
+      if (dataOffset + compressedLength > fileLength) {
+        return null;
+      }
+      regions.add(new EntryRegion(dataOffset, compressedLength, length));
+    }
+
+    Collections.sort(regions, new Comparator<EntryRegion>() {
+
+      @Override
+      public int compare(EntryRegion o1, EntryRegion o2) {
+        return o1.getOffset() < o2.getOffset() ? -1 : (o1.getOffset() > o2.getOffset() ? 1 : 0);
+      }
+    });
+    long end = 0;
+    for (EntryRegion region : regions) {
+      if (region.getOffset() < end) {
+        return null;
+      }
+      end = region.getOffset() + region.getCompressedLength();
+    }
+
+    return regions;
+  }
+
+  /**
+   * Find the deflate level that reproduces the compressed data of the entry.
+   * @param file the zip file
+   * @param region the region of the entry
+   * @return the level, or -1 if no level can reproduce it
+   * @throws IOException error occurred when reading the file, or the data of 
+   * the entry is corrupted
+   */
+  protected static int findLevel(RandomAccessFile file, EntryRegion region) throws IOException {
+    // deflate with all levels in one pass, drop the level once its output mismatch
+    ReproduceOutputStream[] candidates = new ReproduceOutputStream[LEVELS.length];
+    try {
+      for (int i = 0; i < LEVELS.length; i++) {
+        candidates[i] = new ReproduceOutputStream(file, region, LEVELS[i]);
+      }
+      try {
+        inflate(file, region, new CandidatesOutputStream(candidates));
+      } catch (MismatchedException ex) {
+        return -1;
+      }
+      for (ReproduceOutputStream candidate : candidates) {
+        if (candidate.finish()) {
+          return candidate.getLevel();
+        }
+      }
+      return -1;
+    } finally {
+      for (ReproduceOutputStream candidate : candidates) {
+        if (candidate != null) {
+          candidate.end();
+        }
+      }
+    }
+  }
+
+  /**
+   * Inflate the data of the entry and write to {@code out}.
+   * @param file the zip file
+   * @param region the region of the entry
+   * @param out the stream to write the inflated data to
+   * @throws IOException error occurred when reading or writing, or the data 
+   * of the entry is corrupted
+   */
+  protected static void inflate(RandomAccessFile file, EntryRegion region, OutputStream out) throws IOException {
+    Inflater inflater = new Inflater(true);
+    try {
+      byte[] in = new byte[BUFFER_SIZE], b = new byte[BUFFER_SIZE];
+      long inRemaining = region.getCompressedLength(), outLength = 0;
+      long position = region.getOffset();
+      boolean dummyByteSupplied = false;
+      while (!inflater.finished()) {
+        if (inflater.needsInput()) {
+          if (inRemaining > 0) {
+            int lengthToRead = (int) Math.min(in.length, inRemaining);
+            file.seek(position);
+            file.readFully(in, 0, lengthToRead);
+            position += lengthToRead;
+            inRemaining -= lengthToRead;
+            inflater.setInput(in, 0, lengthToRead);
+          } else if (!dummyByteSupplied) {
+            // inflater in nowrap mode may need an extra dummy byte at the end
+            in[0] = 0;
+            inflater.setInput(in, 0, 1);
+            dummyByteSupplied = true;
+          } else {
+            throw new ZipException("Unexpected end of the entry data.");
+          }
+        }
+
+        int byteInflated;
+        try {
+          byteInflated = inflater.inflate(b);
+        } catch (DataFormatException ex) {
+          throw new ZipException(ex.getMessage());
+        }
+        if (byteInflated == 0 && inflater.needsDictionary()) {
+          throw new ZipException("Entry data needs a preset dictionary.");
+        }
+        out.write(b, 0, byteInflated);
+        outLength += byteInflated;
+      }
+      if (outLength != region.getLength()) {
+        throw new ZipException("The inflated length of the entry not match with the length in the central directory.");
+      }
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Copy {@code length} bytes from {@code position} of the file to 
+   * {@code out}.
+   */
+  protected static void copy(RandomAccessFile file, long position, long length, OutputStream out, byte[] buf) throws IOException {
+    file.seek(position);
+    while (length > 0) {
+      int lengthToRead = (int) Math.min(buf.length, length);
+      file.readFully(buf, 0, lengthToRead);
+      out.write(buf, 0, lengthToRead);
+      length -= lengthToRead;
+    }
+  }
+
+  /**
+   * Write the expanded entries, in the format read by 
+   * {@link #readEntries(java.io.InputStream)}.
+   * @param out the stream to write to
+   * @param entries the entries
+   * @throws IOException error occurred when writing
+   */
+  public static void writeEntries(OutputStream out, List<ExpandedEntry> entries) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (entries == null) {
+      throw new NullPointerException("argument 'entries' cannot be null");
+    }
+
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(entries.size());
+    for (ExpandedEntry entry : entries) {
+      dataOut.writeLong(entry.getOffset());
+      dataOut.writeLong(entry.getLength());
+      dataOut.writeByte(entry.getLevel());
+    }
+    dataOut.flush();
+  }
+
+  /**
+   * Read the expanded entries written by 
+   * {@link #writeEntries(java.io.OutputStream, java.util.List)}.
+   * @param in the stream to read from
+   * @return the entries
+   * @throws IOException error occurred when reading, or the entries are 
+   * invalid
+   */
+  public static List<ExpandedEntry> readEntries(InputStream in) throws IOException {
+    if (in == null) {
+      throw new NullPointerException("argument 'in' cannot be null");
+    }
+
+    DataInputStream dataIn = new DataInputStream(in);
+    int count = dataIn.readInt();
+    if (count < 0) {
+      throw new IOException("Number of expanded entries is negative.");
+    }
+    List<ExpandedEntry> returnList = new ArrayList<ExpandedEntry>(Math.min(count, 1024));
+    long end = 0;
+    for (int i = 0; i < count; i++) {
+      ExpandedEntry entry = new ExpandedEntry(dataIn.readLong(), dataIn.readLong(), dataIn.readByte());
+      if (entry.getOffset() < end || entry.getLength() < 0 || entry.getLevel() < 0 || entry.getLevel() > 9) {
+        throw new IOException("Expanded entry is invalid.");
+      }
+      end = entry.getOffset() + entry.getLength();
+      returnList.add(entry);
+    }
+    return returnList;
+  }
+
+  /**
+   * Read 2 bytes in little-endian.
+   */
+  protected static int getShort(byte[] b, int offset) {
+    return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8);
+  }
+
+  /**
+   * Read 4 bytes in little-endian.
+   */
+  protected static int getInt(byte[] b, int offset) {
+    return getShort(b, offset) | (getShort(b, offset + 2) << 16);
+  }
+
+  /**
+   * The region of the compressed data of a deflated entry in the zip file.
+   */
+  protected static class EntryRegion {
+
+    /**
+     * The offset of the compressed data in the zip file.
+     */
+    protected final long offset;
+    /**
+     * The length of the compressed data.
+     */
+    protected final long compressedLength;
+    /**
+     * The length of the inflated data.
+     */
+    protected final long length;
+
+    protected EntryRegion(long offset, long compressedLength, long length) {
+      this.offset = offset;
+      this.compressedLength = compressedLength;
+      this.length = length;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getCompressedLength() {
+      return compressedLength;
+    }
+
+    public long getLength() {
+      return length;
+    }
+  }
+
+  /**
+   * An inflated entry in the expanded form.
+   */
+  public static class ExpandedEntry {
+
+    /**
+     * The offset of the inflated data in the expanded form.
+     */
+    protected final long offset;
+    /**
+     * The length of the inflated data.
+     */
+    protected final long length;
+    /**
+     * The deflate level that reproduces the compressed data.
+     */
+    protected final int level;
+
+    public ExpandedEntry(long offset, long length, int level) {
+      this.offset = offset;
+      this.length = length;
+      this.level = level;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public int getLevel() {
+      return level;
+    }
+  }
+
+  /**
+   * Output stream that deflates the written data with a level and compares 
+   * the output with the compressed data of an entry.
+   */
+  protected static class ReproduceOutputStream extends OutputStream {
+
+    protected final RandomAccessFile file;
+    protected final EntryRegion region;
+    protected final int level;
+    protected final Deflater deflater;
+    protected final byte[] buf;
+    protected final byte[] compareBuf;
+    /**
+     * The number of bytes of the output matched with the compressed data.
+     */
+    protected long matched;
+    /**
+     * Indicate the output mismatched already.
+     */
+    protected boolean mismatched;
+
+    protected ReproduceOutputStream(RandomAccessFile file, EntryRegion region, int level) {
+      this.file = file;
+      this.region = region;
+      this.level = level;
+      deflater = new Deflater(level, true);
+      buf = new byte[BUFFER_SIZE];
+      compareBuf = new byte[BUFFER_SIZE];
+      matched = 0;
+      mismatched = false;
+    }
+
+    public int getLevel() {
+      return level;
+    }
+
+    public boolean isMismatched() {
+      return mismatched;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (mismatched) {
+        return;
+      }
+      deflater.setInput(b, off, len);
+      while (!mismatched && !deflater.needsInput()) {
+        compare(deflater.deflate(buf));
+      }
+    }
+
+    /**
+     * Finish the deflation.
+     * @return true if the output is identical to the compressed data
+     * @throws IOException error occurred when reading the zip file
+     */
+    public boolean finish() throws IOException {
+      if (mismatched) {
+        return false;
+      }
+      deflater.finish();
+      while (!mismatched && !deflater.finished()) {
+        compare(deflater.deflate(buf));
+      }
+      return !mismatched && matched == region.getCompressedLength();
+    }
+
+    /**
+     * Release the deflater.
+     */
+    public void end() {
+      deflater.end();
+    }
+
+    protected void compare(int length) throws IOException {
+      if (length <= 0) {
+        return;
+      }
+      if (matched + length > region.getCompressedLength()) {
+        mismatched = true;
+        return;
+      }
+      file.seek(region.getOffset() + matched);
+      file.readFully(compareBuf, 0, length);
+      for (int i = 0; i < length; i++) {
+        if (compareBuf[i] != buf[i]) {
+          mismatched = true;
+          return;
+        }
+      }
+      matched += length;
+    }
+  }
+
+  /**
+   * Output stream that writes to all candidates that not mismatched yet.
+   */
+  protected static class CandidatesOutputStream extends OutputStream {
+
+    protected final ReproduceOutputStream[] candidates;
+
+    protected CandidatesOutputStream(ReproduceOutputStream[] candidates) {
+      this.candidates = candidates;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      boolean allMismatched = true;
+      for (ReproduceOutputStream candidate : candidates) {
+        candidate.write(b, off, len);
+        allMismatched &= candidate.isMismatched();
+      }
+      if (allMismatched) {
+        throw new MismatchedException();
+      }
+    }
+  }
+
+  /**
+   * Thrown by {@link CandidatesOutputStream} to stop inflating when all 
+   * candidates mismatched.
+   */
+  protected static class MismatchedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * Output stream that recompresses the expanded form written to it back to 
+   * the zip file, see {@link JarExpander}.
+   */
+  public static class RecompressOutputStream extends OutputStream {
+
+    /**
+     * The stream to write the zip file to.
+     */
+    protected final OutputStream out;
+    /**
+     * The entries to deflate, sorted by offset.
+     */
+    protected final List<ExpandedEntry> entries;
+    /**
+     * The index of the next entry in {@link #entries}.
+     */
+    protected int entryIndex;
+    /**
+     * The number of bytes of the expanded form written.
+     */
+    protected long position;
+    /**
+     * The deflater of the current entry, null if not inside an entry.
+     */
+    protected Deflater deflater;
+    protected final byte[] buf;
+
+    /**
+     * Constructor.
+     * @param out the stream to write the zip file to
+     * @param entries the entries to deflate, sorted by offset
+     */
+    public RecompressOutputStream(OutputStream out, List<ExpandedEntry> entries) {
+      if (out == null) {
+        throw new NullPointerException("argument 'out' cannot be null");
+      }
+      if (entries == null) {
+        throw new NullPointerException("argument 'entries' cannot be null");
+      }
+      this.out = out;
+      this.entries = entries;
+      entryIndex = 0;
+      position = 0;
+      deflater = null;
+      buf = new byte[BUFFER_SIZE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        ExpandedEntry entry = startEntry();
+        if (len <= 0) {
+          break;
+        }
+        if (entry == null) {
+          out.write(b, off, len);
+          position += len;
+          break;
+        }
+
+        int lengthToWrite;
+        if (deflater == null) {
+          lengthToWrite = (int) Math.min(len, entry.getOffset() - position);
+          out.write(b, off, lengthToWrite);
+        } else {
+          lengthToWrite = (int) Math.min(len, entry.getOffset() + entry.getLength() - position);
+          deflater.setInput(b, off, lengthToWrite);
+          while (!deflater.needsInput()) {
+            out.write(buf, 0, deflater.deflate(buf));
+          }
+        }
+        off += lengthToWrite;
+        len -= lengthToWrite;
+        position += lengthToWrite;
+      }
+    }
+
+    /**
+     * Start the entry at the current position and end the entry that ends 
+     * at the current position.
+     * @return the current or next entry, or null if no more entry
+     */
+    protected ExpandedEntry startEntry() throws IOException {
+      while (entryIndex < entries.size()) {
+        ExpandedEntry entry = entries.get(entryIndex);
+        if (deflater == null) {
+          if (position < entry.getOffset()) {
+            return entry;
+          }
+          deflater = new Deflater(entry.getLevel(), true);
+        }
+        if (position < entry.getOffset() + entry.getLength()) {
+          return entry;
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+          out.write(buf, 0, deflater.deflate(buf));
+        }
+        deflater.end();
+        deflater = null;
+        entryIndex++;
+      }
+      return null;
+    }
+
+    /**
+     * Finish the remaining entries.
+     * @throws IOException error occurred when writing, or the expanded form 
+     * written is shorter than the entries
+     */
+    public void finish() throws IOException {
+      startEntry();
+      if (entryIndex < entries.size()) {
+        throw new IOException("Expanded form is truncated.");
+      }
+      out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+      }
+      out.close();
+    }
+  }
+}
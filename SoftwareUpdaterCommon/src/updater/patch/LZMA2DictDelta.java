@@ -0,0 +1,157 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.tukaani.xz.FinishableOutputStream;
+import org.tukaani.xz.FinishableWrapperOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+import updater.util.CommonUtil;
+
+/**
+ * Compute delta by compressing the new file with LZMA2 using the old file 
+ * as the preset dictionary, so the content of the new file that also 
+ * appears anywhere in the old file is encoded as matches into the old file. 
+ * The patch is applied by {@link LZMA2DictPatcher}.
+ * <p>
+ * The delta is the dictionary size (4-byte) followed by the raw LZMA2 
+ * stream. The dictionary covers both files, so the encoder uses about 10 
+ * times and the decoder about 2 times of the total length of the files, 
+ * files longer than {@link #MAX_LENGTH} are not supported.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class LZMA2DictDelta {
+
+  /**
+   * The maximum length of the old file and the new file.
+   */
+  public static final int MAX_LENGTH = 8 * 1024 * 1024;
+
+  /**
+   * Constructor.
+   */
+  public LZMA2DictDelta() {
+  }
+
+  /**
+   * Compute the delta from the old file to the new file.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param out the stream to write the delta to, will not be closed
+   * @throws IOException error occurred when reading or writing, or the 
+   * files are longer than {@link #MAX_LENGTH}
+   */
+  public void compute(File oldFile, File newFile, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (newFile == null) {
+      throw new NullPointerException("argument 'newFile' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (oldFile.length() > MAX_LENGTH || newFile.length() > MAX_LENGTH) {
+      throw new IOException(String.format("File is longer than %1$d bytes.", MAX_LENGTH));
+    }
+
+    byte[] oldContent = CommonUtil.readFile(oldFile);
+    int dictSize = Math.max(LZMA2Options.DICT_SIZE_MIN, (int) (oldContent.length + newFile.length()));
+
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(dictSize);
+    dataOut.flush();
+
+    LZMA2Options options = new LZMA2Options();
+    options.setDictSize(dictSize);
+    options.setPresetDict(oldContent);
+    FinishableOutputStream lzmaOut = options.getOutputStream(new FinishableWrapperOutputStream(out));
+
+    InputStream newFileIn = null;
+    try {
+      newFileIn = new FileInputStream(newFile);
+      int byteRead;
+      byte[] b = new byte[32768];
+      while ((byteRead = newFileIn.read(b)) != -1) {
+        lzmaOut.write(b, 0, byteRead);
+      }
+    } finally {
+      CommonUtil.closeQuietly(newFileIn);
+    }
+    lzmaOut.finish();
+  }
+
+  /**
+   * Get the length of the file after compressed by XZ/LZMA2 with the 
+   * default options, which is how the content of an operation is usually 
+   * stored in the patch.
+   * @param file the file
+   * @return the compressed length
+   * @throws IOException error occurred when reading the file
+   */
+  public static long getXZCompressedLength(File file) throws IOException {
+    LengthOutputStream lengthOut = new LengthOutputStream();
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(file));
+      XZOutputStream xzOut = new XZOutputStream(lengthOut, new LZMA2Options());
+      int byteRead;
+      byte[] b = new byte[32768];
+      while ((byteRead = in.read(b)) != -1) {
+        xzOut.write(b, 0, byteRead);
+      }
+      xzOut.finish();
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+    return lengthOut.length;
+  }
+
+  /**
+   * Count the bytes written and discard them.
+   */
+  protected static class LengthOutputStream extends OutputStream {
+
+    protected long length;
+
+    protected LengthOutputStream() {
+      length = 0;
+    }
+
+    @Override
+    public void write(int b) {
+      length++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      length += len;
+    }
+  }
+}
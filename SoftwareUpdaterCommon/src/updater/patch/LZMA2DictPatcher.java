@@ -0,0 +1,105 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.PatchException;
+import com.nothome.delta.SeekableSource;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import org.tukaani.xz.LZMA2InputStream;
+
+/**
+ * Apply the delta computed by {@link LZMA2DictDelta}, decompress the LZMA2 
+ * stream with the source as the preset dictionary.
+ * <p>
+ * The source is read into memory. The patch is read up to the end marker 
+ * of the LZMA2 stream, nothing after the delta is read.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class LZMA2DictPatcher {
+
+  /**
+   * The minimum dictionary size of LZMA2.
+   */
+  protected static final int MIN_DICT_SIZE = 4096;
+  /**
+   * The maximum dictionary size accepted, to limit the memory used by 
+   * invalid patch, the dictionary of {@link LZMA2DictDelta} covers both 
+   * files. The launcher only has the decoder, so not to reference 
+   * {@link LZMA2DictDelta#MAX_LENGTH} directly.
+   */
+  protected static final int MAX_DICT_SIZE = 2 * 8 * 1024 * 1024;
+
+  /**
+   * Constructor.
+   */
+  public LZMA2DictPatcher() {
+  }
+
+  /**
+   * Apply the patch to {@code source} and write the result to {@code out}.
+   * @param source the source to patch
+   * @param patch the patch
+   * @param out the output stream to write the result to
+   * @throws IOException error occurred when reading or writing, or the 
+   * patch is invalid
+   */
+  public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+    if (source == null) {
+      throw new NullPointerException("argument 'source' cannot be null");
+    }
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    int dictSize = new DataInputStream(patch).readInt();
+    if (dictSize < MIN_DICT_SIZE || dictSize > MAX_DICT_SIZE) {
+      throw new PatchException("invalid dictionary size: " + dictSize);
+    }
+
+    // the dictionary covers the source
+    ByteArrayOutputStream sourceOut = new ByteArrayOutputStream();
+    ByteBuffer buffer = ByteBuffer.allocate(32768);
+    source.seek(0);
+    int byteRead;
+    while ((byteRead = source.read(buffer)) != -1) {
+      sourceOut.write(buffer.array(), 0, byteRead);
+      buffer.clear();
+      if (sourceOut.size() > dictSize) {
+        throw new PatchException("source is longer than the dictionary");
+      }
+    }
+
+    InputStream lzmaIn = new LZMA2InputStream(patch, dictSize, sourceOut.toByteArray());
+    byte[] b = new byte[32768];
+    while ((byteRead = lzmaIn.read(b)) != -1) {
+      out.write(b, 0, byteRead);
+    }
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import org.tukaani.xz.XZInputStream;
+
+/**
+ * Input stream of {@link Compression#PER_OPERATION}, see 
+ * {@link OperationCompressionOutputStream} for the format.
+ * <p>
+ * Reading this stream reads the patch XML. The content of each operation is 
+ * read from the stream returned by 
+ * {@link #openOperation(updater.patch.Compression)}, see 
+ * {@link PatchReadUtil#readOperationContent(java.io.InputStream, updater.script.Patch.Operation)}.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class OperationCompressionInputStream extends InputStream {
+
+  /**
+   * The stream to read from.
+   */
+  protected final InputStream in;
+  /**
+   * The decompress stream of the current section, null if no section opened.
+   */
+  protected InputStream sectionIn;
+
+  /**
+   * Constructor. The section of the patch XML is opened.
+   * @param in the stream to read from
+   * @throws IOException error occurred when reading the section header
+   */
+  public OperationCompressionInputStream(InputStream in) throws IOException {
+    if (in == null) {
+      throw new NullPointerException("argument 'in' cannot be null");
+    }
+    this.in = in;
+    sectionIn = null;
+    openOperation(Compression.LZMA2);
+  }
+
+  /**
+   * Open the next section. The remaining of the current section is skipped.
+   * @param compression the compression of the section
+   * @return the decompress stream of the section, closing it will skip the 
+   * remaining of the section but not close this stream
+   * @throws IOException error occurred when skipping the current section or 
+   * reading the header of the next section
+   */
+  public InputStream openOperation(Compression compression) throws IOException {
+    if (compression == null) {
+      throw new NullPointerException("argument 'compression' cannot be null");
+    }
+
+    if (sectionIn != null) {
+      sectionIn.close();
+      sectionIn = null;
+    }
+
+    ChunkedInputStream chunkedIn = new ChunkedInputStream(in);
+    switch (compression) {
+      case NONE:
+        sectionIn = chunkedIn;
+        break;
+      case GZIP:
+        sectionIn = new GZIPInputStream(chunkedIn);
+        break;
+      case LZMA2:
+        sectionIn = new XZInputStream(chunkedIn);
+        break;
+      default:
+        throw new IOException("Compression method not supported/not exist");
+    }
+    return sectionIn;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return sectionIn != null ? sectionIn.read() : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    return sectionIn != null ? sectionIn.read(b, off, len) : -1;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    return sectionIn != null ? sectionIn.skip(n) : 0;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return sectionIn != null ? sectionIn.available() : 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Input stream that read the data of a section from the chunks, the end 
+   * of the section is the end of this stream.
+   */
+  protected static class ChunkedInputStream extends InputStream {
+
+    /**
+     * The stream to read from.
+     */
+    protected final InputStream in;
+    /**
+     * The remaining length of the current chunk.
+     */
+    protected int chunkRemaining;
+    /**
+     * True if the end of the section reached.
+     */
+    protected boolean ended;
+
+    /**
+     * Constructor.
+     * @param in the stream to read from
+     */
+    protected ChunkedInputStream(InputStream in) {
+      this.in = in;
+      chunkRemaining = 0;
+      ended = false;
+    }
+
+    /**
+     * Read the next chunk header if the current chunk is fully read.
+     * @return false if the end of the section reached
+     * @throws IOException error occurred when reading
+     */
+    protected boolean nextChunk() throws IOException {
+      while (!ended && chunkRemaining == 0) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+          int b = in.read();
+          if (b == -1) {
+            throw new EOFException("Unexpected end of the patch.");
+          }
+          length = (length << 8) | b;
+        }
+        if (length < 0) {
+          throw new IOException("Invalid chunk length: " + length);
+        }
+        if (length == 0) {
+          ended = true;
+        }
+        chunkRemaining = length;
+      }
+      return !ended;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!nextChunk()) {
+        return -1;
+      }
+      int result = in.read();
+      if (result == -1) {
+        throw new EOFException("Unexpected end of the patch.");
+      }
+      chunkRemaining--;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!nextChunk()) {
+        return -1;
+      }
+      int result = in.read(b, off, Math.min(len, chunkRemaining));
+      if (result == -1) {
+        throw new EOFException("Unexpected end of the patch.");
+      }
+      chunkRemaining -= result;
+      return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = 0;
+      while (skipped < n && nextChunk()) {
+        long result = in.skip(Math.min(n - skipped, chunkRemaining));
+        if (result <= 0) {
+          // skip may not be supported, read instead
+          if (read() == -1) {
+            break;
+          }
+          result = 1;
+        } else {
+          chunkRemaining -= (int) result;
+        }
+        skipped += result;
+      }
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return ended ? 0 : Math.min(chunkRemaining, in.available());
+    }
+
+    /**
+     * Skip to the end of the section, {@link #in} is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+      while (nextChunk()) {
+        skip(chunkRemaining);
+      }
+    }
+  }
+}
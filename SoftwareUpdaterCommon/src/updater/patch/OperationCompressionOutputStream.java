@@ -0,0 +1,273 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.tukaani.xz.FinishableOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Output stream of {@link Compression#PER_OPERATION}, compress the patch XML 
+ * and the content of each operation separately.
+ * <p>
+ * Each section (the patch XML or the content of an operation) is compressed 
+ * with its own compression and framed into chunks, every chunk is a 4-byte 
+ * length followed by the data, and a chunk of length 0 ends the section. So 
+ * the reader can find the end of a section without decompressing it, see 
+ * {@link OperationCompressionInputStream}. The patch XML is compressed with 
+ * {@link Compression#LZMA2}, the compression of the content of the next 
+ * operation is set by {@link #setCompression(updater.patch.Compression)}. A 
+ * section with nothing written is not output.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class OperationCompressionOutputStream extends FinishableOutputStream {
+
+  /**
+   * The maximum length of a chunk.
+   */
+  protected static final int CHUNK_SIZE = 65536;
+  /**
+   * The stream to output to.
+   */
+  protected final OutputStream out;
+  /**
+   * The compression of the next section.
+   */
+  protected Compression compression;
+  /**
+   * The chunked stream of the current section, null if no section started.
+   */
+  protected ChunkedOutputStream chunkedOut;
+  /**
+   * The compress stream of the current section, null if no section started.
+   */
+  protected OutputStream sectionOut;
+
+  /**
+   * Constructor.
+   * @param out the stream to output to
+   */
+  public OperationCompressionOutputStream(OutputStream out) {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    this.out = out;
+    compression = Compression.LZMA2;
+    chunkedOut = null;
+    sectionOut = null;
+  }
+
+  /**
+   * Set the compression of the next section, it is reset to 
+   * {@link Compression#LZMA2} after the section ended.
+   * @param compression the compression, either {@link Compression#NONE}, 
+   * {@link Compression#GZIP} or {@link Compression#LZMA2}
+   * @throws IOException a section is started and not ended yet
+   */
+  public void setCompression(Compression compression) throws IOException {
+    if (compression == null) {
+      throw new NullPointerException("argument 'compression' cannot be null");
+    }
+    if (compression != Compression.NONE && compression != Compression.GZIP && compression != Compression.LZMA2) {
+      throw new IllegalArgumentException("argument 'compression' should be either NONE, GZIP or LZMA2");
+    }
+    if (sectionOut != null) {
+      throw new IOException("Cannot change the compression of a started section.");
+    }
+    this.compression = compression;
+  }
+
+  /**
+   * Start a new section with {@link #compression}.
+   * @throws IOException error occurred when creating the compress stream
+   */
+  protected void startSection() throws IOException {
+    chunkedOut = new ChunkedOutputStream(out);
+    switch (compression) {
+      case GZIP:
+        sectionOut = new GZIPOutputStream(chunkedOut);
+        break;
+      case LZMA2:
+        sectionOut = new XZOutputStream(chunkedOut, new LZMA2Options());
+        break;
+      default:
+        sectionOut = chunkedOut;
+    }
+  }
+
+  /**
+   * End the current section if any, the following writes will start a new 
+   * section.
+   * @throws IOException error occurred when finishing the compression
+   */
+  public void endOperation() throws IOException {
+    if (sectionOut != null) {
+      if (sectionOut instanceof GZIPOutputStream) {
+        ((GZIPOutputStream) sectionOut).finish();
+      } else if (sectionOut instanceof XZOutputStream) {
+        ((XZOutputStream) sectionOut).finish();
+      }
+      chunkedOut.finish();
+    }
+    chunkedOut = null;
+    sectionOut = null;
+    compression = Compression.LZMA2;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (sectionOut == null) {
+      startSection();
+    }
+    sectionOut.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return;
+    }
+    if (sectionOut == null) {
+      startSection();
+    }
+    sectionOut.write(b, off, len);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    if (sectionOut != null) {
+      sectionOut.flush();
+    }
+    out.flush();
+  }
+
+  @Override
+  public void finish() throws IOException {
+    endOperation();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Output stream that frame the data into chunks.
+   */
+  protected static class ChunkedOutputStream extends OutputStream {
+
+    /**
+     * The stream to output to.
+     */
+    protected final OutputStream out;
+    /**
+     * The data of the current chunk.
+     */
+    protected final byte[] buffer;
+    /**
+     * The length of the data in {@link #buffer}.
+     */
+    protected int bufferLength;
+
+    /**
+     * Constructor.
+     * @param out the stream to output to
+     */
+    protected ChunkedOutputStream(OutputStream out) {
+      this.out = out;
+      buffer = new byte[CHUNK_SIZE];
+      bufferLength = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (bufferLength == buffer.length) {
+        writeChunk();
+      }
+      buffer[bufferLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (bufferLength == buffer.length) {
+          writeChunk();
+        }
+        int byteToCopy = Math.min(buffer.length - bufferLength, len);
+        System.arraycopy(b, off, buffer, bufferLength, byteToCopy);
+        bufferLength += byteToCopy;
+        off += byteToCopy;
+        len -= byteToCopy;
+      }
+    }
+
+    /**
+     * Output the data in {@link #buffer} as a chunk.
+     * @throws IOException error occurred when outputing
+     */
+    protected void writeChunk() throws IOException {
+      writeChunkLength(bufferLength);
+      out.write(buffer, 0, bufferLength);
+      bufferLength = 0;
+    }
+
+    /**
+     * Output the length of a chunk.
+     * @param length the length
+     * @throws IOException error occurred when outputing
+     */
+    protected void writeChunkLength(int length) throws IOException {
+      out.write((length >> 24) & 0xff);
+      out.write((length >> 16) & 0xff);
+      out.write((length >> 8) & 0xff);
+      out.write(length & 0xff);
+    }
+
+    /**
+     * Output the remaining data and the end of the section, the stream 
+     * {@link #out} is not closed.
+     * @throws IOException error occurred when outputing
+     */
+    protected void finish() throws IOException {
+      if (bufferLength > 0) {
+        writeChunk();
+      }
+      writeChunkLength(0);
+    }
+
+    /**
+     * Not close {@link #out}, closing the compress stream of a section should 
+     * not close the whole patch.
+     */
+    @Override
+    public void close() throws IOException {
+    }
+  }
+}
@@ -26,7 +26,33 @@ package updater.patch;
  */
 public enum OperationType {
 
-  NEW("new"), FORCE("force"), REPLACE("replace"), PATCH("patch"), REMOVE("remove");
+  NEW("new"), FORCE("force"), REPLACE("replace"), PATCH("patch"), REMOVE("remove"), COPY("copy"),
+  /**
+   * Patch a jar (zip) file with the delta computed on the inflated content 
+   * of its entries, see {@link JarExpander}.
+   * <p>
+   * The updater recompresses the entries by {@link java.util.zip.Deflater} 
+   * and expects the same bytes as the builder produced, so the client JRE 
+   * should deflate identically to the JRE of the builder. A JRE linked 
+   * against a different zlib (e.g. zlib-ng) may produce different bytes and 
+   * fail the validation of the patched file. Older updaters do not skip the 
+   * content of unknown operation types, so the patch can only be applied by 
+   * updater of this version or later.</p>
+   */
+  JAR_PATCH("jar-patch"),
+  /**
+   * Patch a file with the delta computed by {@link SuffixArrayDelta}.
+   */
+  SUFFIX_ARRAY_PATCH("suffix-array-patch"),
+  /**
+   * Patch a file with the VCDIFF delta written by {@link VCDiffWriter}.
+   */
+  VCDIFF_PATCH("vcdiff-patch"),
+  /**
+   * Patch a file with the delta computed by {@link LZMA2DictDelta}, i.e. 
+   * the new file compressed with the old file as the preset dictionary.
+   */
+  LZMA2_DICT_PATCH("lzma2-dict-patch");
   /**
    * The string value representation of the operation type.
    */
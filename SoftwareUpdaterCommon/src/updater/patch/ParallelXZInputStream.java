@@ -0,0 +1,444 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.common.DecoderUtil;
+import org.tukaani.xz.common.StreamFlags;
+import org.tukaani.xz.index.BlockInfo;
+import org.tukaani.xz.index.IndexDecoder;
+import updater.patch.PatchReadUtil.SeekableFileRegionInputStream;
+import updater.util.CommonUtil;
+
+/**
+ * Input stream that decompress a multi-block XZ file with a pool of worker 
+ * threads. The blocks after the current reading position are decoded ahead 
+ * by the workers and are returned in order.
+ * <p>
+ * The block boundaries are taken from the XZ index at the end of the file, 
+ * so only a file containing a single XZ stream is supported, see 
+ * {@link #open(java.io.File, long, int, long)}. The decoded blocks waiting to 
+ * be read, including the one being read, take at most {@code memoryBudget} 
+ * bytes, or one block if the largest block is larger than that.</p>
+ * <p>
+ * {@link #skip(long)} seeks to the position, the blocks before it will not 
+ * be decompressed.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class ParallelXZInputStream extends InputStream {
+
+  /**
+   * The default memory budget for the decoded blocks.
+   */
+  public static final long DEFAULT_MEMORY_BUDGET = 67108864;
+  /**
+   * The file to read.
+   */
+  protected final File file;
+  /**
+   * The position in the file where the XZ stream start.
+   */
+  protected final long offset;
+  /**
+   * The uncompressed offset of every blocks, with the uncompressed size of 
+   * the stream appended as the last element.
+   */
+  protected final long[] blockOffsets;
+  protected final int maxPendingBlocks;
+  protected final ThreadPoolExecutor executor;
+  /**
+   * The idle decoders of {@link #file}, each worker take one when decoding a 
+   * block and return it after finished.
+   */
+  protected final ConcurrentLinkedQueue<SeekableXZInputStream> decoders;
+  /**
+   * The blocks submitted to the {@link #executor}, in order, the first one 
+   * is {@link #firstPendingBlock}.
+   */
+  protected final LinkedList<Future<byte[]>> pendingBlocks;
+  protected int firstPendingBlock;
+  protected int nextBlockToSubmit;
+  /**
+   * The content of block {@link #bufferBlock}, null if no block is loaded.
+   */
+  protected byte[] buffer;
+  protected int bufferBlock;
+  protected int bufferPosition;
+  /**
+   * The uncompressed position of the next byte to read.
+   */
+  protected long position;
+  protected IOException exception;
+  protected volatile boolean closed;
+
+  /**
+   * Constructor.
+   * @param file the file to read
+   * @param offset the position in the file where the XZ stream start
+   * @param blockOffsets the uncompressed offset of every blocks, with the 
+   * uncompressed size of the stream appended as the last element
+   * @param threadCount the maximum number of worker threads
+   * @param maxPendingBlocks the maximum number of blocks to decode ahead
+   */
+  protected ParallelXZInputStream(File file, long offset, long[] blockOffsets, int threadCount, int maxPendingBlocks) {
+    this.file = file;
+    this.offset = offset;
+    this.blockOffsets = blockOffsets;
+    this.maxPendingBlocks = maxPendingBlocks;
+
+    // idle workers time out, so the threads will not leak if the stream is 
+    // not closed
+    executor = new ThreadPoolExecutor(threadCount, threadCount, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ParallelXZInputStream");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    decoders = new ConcurrentLinkedQueue<SeekableXZInputStream>();
+    pendingBlocks = new LinkedList<Future<byte[]>>();
+    firstPendingBlock = 0;
+    nextBlockToSubmit = 0;
+    buffer = null;
+    bufferBlock = -1;
+    bufferPosition = 0;
+    position = 0;
+    exception = null;
+    closed = false;
+  }
+
+  /**
+   * Open a parallel decompress stream on the XZ stream in {@code file}.
+   * @param file the file to read
+   * @param offset the position in the file where the XZ stream start
+   * @param threadCount the maximum number of worker threads
+   * @param memoryBudget the maximum total size of decoded blocks to keep in 
+   * memory
+   * @return the stream, or null if the XZ stream contains only one block, 
+   * the file is not a single XZ stream or the XZ index cannot be read, the 
+   * caller should decompress the file sequentially in these cases
+   * @throws IOException error occurred when opening the file
+   */
+  public static ParallelXZInputStream open(File file, long offset, int threadCount, long memoryBudget) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("argument 'file' cannot be null");
+    }
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("argument 'threadCount' should be greater than 0");
+    }
+
+    SeekableInputStream in = new SeekableFileRegionInputStream(file, offset);
+    try {
+      long length = in.length();
+      if (length < 2 * DecoderUtil.STREAM_HEADER_SIZE || (length & 3) != 0) {
+        return null;
+      }
+
+      byte[] buf = new byte[DecoderUtil.STREAM_HEADER_SIZE];
+      in.seek(length - DecoderUtil.STREAM_HEADER_SIZE);
+      new DataInputStream(in).readFully(buf);
+
+      IndexDecoder index;
+      try {
+        StreamFlags streamFooter = DecoderUtil.decodeStreamFooter(buf);
+        if (streamFooter.backwardSize > length - 2 * DecoderUtil.STREAM_HEADER_SIZE) {
+          return null;
+        }
+        in.seek(length - DecoderUtil.STREAM_HEADER_SIZE - streamFooter.backwardSize);
+        index = new IndexDecoder(in, streamFooter, 0, -1);
+      } catch (IOException ex) {
+        // not a valid XZ stream, let the sequential decoder report the error
+        return null;
+      }
+      if (index.getStreamSize() != length || index.getLargestBlockSize() > Integer.MAX_VALUE - 8) {
+        return null;
+      }
+
+      LinkedList<Long> offsets = new LinkedList<Long>();
+      while (index.hasNext()) {
+        BlockInfo blockInfo = index.getNext();
+        offsets.add(blockInfo.uncompressedOffset);
+      }
+      if (offsets.size() <= 1) {
+        return null;
+      }
+
+      long[] blockOffsets = new long[offsets.size() + 1];
+      int i = 0;
+      for (Long _offset : offsets) {
+        blockOffsets[i++] = _offset;
+      }
+      blockOffsets[i] = index.getUncompressedSize();
+
+      int maxPendingBlocks = (int) Math.max(1, Math.min(threadCount * 2, memoryBudget / Math.max(1, index.getLargestBlockSize()) - 1));
+
+      return new ParallelXZInputStream(file, offset, blockOffsets, Math.min(threadCount, maxPendingBlocks), maxPendingBlocks);
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Get the number of blocks in the XZ stream.
+   * @return the number of blocks
+   */
+  public int getBlockCount() {
+    return blockOffsets.length - 1;
+  }
+
+  /**
+   * Get the uncompressed size of the XZ stream.
+   * @return the size in bytes
+   */
+  public long length() {
+    return blockOffsets[blockOffsets.length - 1];
+  }
+
+  protected void checkState() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  /**
+   * Submit blocks to the workers until there are {@link #maxPendingBlocks} 
+   * pending blocks or all blocks are submitted.
+   */
+  protected void submitBlocks() {
+    while (pendingBlocks.size() < maxPendingBlocks && nextBlockToSubmit < getBlockCount()) {
+      pendingBlocks.add(executor.submit(new DecodeTask(nextBlockToSubmit)));
+      nextBlockToSubmit++;
+    }
+  }
+
+  /**
+   * Cancel all pending blocks.
+   */
+  protected void cancelPendingBlocks() {
+    for (Future<byte[]> future : pendingBlocks) {
+      future.cancel(false);
+    }
+    pendingBlocks.clear();
+  }
+
+  /**
+   * Load the block containing {@link #position} into {@link #buffer}.
+   * @throws IOException error occurred when decoding the block or the 
+   * thread is interrupted
+   */
+  protected void loadBlock() throws IOException {
+    submitBlocks();
+
+    byte[] block;
+    try {
+      block = pendingBlocks.removeFirst().get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      exception = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+      cancelPendingBlocks();
+      throw exception;
+    }
+    buffer = block;
+    bufferBlock = firstPendingBlock;
+    bufferPosition = (int) (position - blockOffsets[bufferBlock]);
+    firstPendingBlock++;
+
+    submitBlocks();
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int byteRead = read(b, 0, 1);
+    return byteRead == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off + len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    checkState();
+    if (len == 0) {
+      return 0;
+    }
+    if (position >= length()) {
+      return -1;
+    }
+
+    if (buffer == null || bufferPosition >= buffer.length) {
+      loadBlock();
+    }
+
+    int byteToCopy = Math.min(len, buffer.length - bufferPosition);
+    System.arraycopy(buffer, bufferPosition, b, off, byteToCopy);
+    bufferPosition += byteToCopy;
+    position += byteToCopy;
+
+    return byteToCopy;
+  }
+
+  /**
+   * Seek forward to the position, the blocks before the position will not be 
+   * decoded.
+   * @param n the number of bytes to skip
+   * @return the number of bytes skipped
+   * @throws IOException the stream is closed or failed
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    checkState();
+    if (n <= 0) {
+      return 0;
+    }
+
+    long target = Math.min(position + n, length());
+    long byteSkipped = target - position;
+    position = target;
+
+    if (buffer != null && target >= blockOffsets[bufferBlock] && target < blockOffsets[bufferBlock + 1]) {
+      bufferPosition = (int) (target - blockOffsets[bufferBlock]);
+      return byteSkipped;
+    }
+    buffer = null;
+
+    // the block containing the target
+    int block = bufferBlock + 1;
+    while (block < getBlockCount() && blockOffsets[block + 1] <= target) {
+      block++;
+    }
+
+    while (!pendingBlocks.isEmpty() && firstPendingBlock < block) {
+      pendingBlocks.removeFirst().cancel(false);
+      firstPendingBlock++;
+    }
+    if (pendingBlocks.isEmpty()) {
+      firstPendingBlock = block;
+      nextBlockToSubmit = block;
+    }
+
+    return byteSkipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    checkState();
+    return buffer == null ? 0 : buffer.length - bufferPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+
+    cancelPendingBlocks();
+    executor.shutdownNow();
+    closeDecoders();
+    buffer = null;
+  }
+
+  /**
+   * Close all idle decoders.
+   */
+  protected void closeDecoders() {
+    SeekableXZInputStream decoder;
+    while ((decoder = decoders.poll()) != null) {
+      CommonUtil.closeQuietly(decoder);
+    }
+  }
+
+  /**
+   * Task to decode a block.
+   */
+  protected class DecodeTask implements Callable<byte[]> {
+
+    protected final int block;
+
+    /**
+     * Constructor.
+     * @param block the index of the block to decode
+     */
+    protected DecodeTask(int block) {
+      this.block = block;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      SeekableXZInputStream decoder = decoders.poll();
+      if (decoder == null) {
+        SeekableInputStream fileIn = new SeekableFileRegionInputStream(file, offset);
+        try {
+          decoder = new SeekableXZInputStream(fileIn);
+        } catch (IOException ex) {
+          CommonUtil.closeQuietly(fileIn);
+          throw ex;
+        }
+      }
+
+      boolean succeed = false;
+      try {
+        // reading the whole block also verify the check of the block
+        byte[] b = new byte[(int) (blockOffsets[block + 1] - blockOffsets[block])];
+        decoder.seek(blockOffsets[block]);
+        new DataInputStream(decoder).readFully(b);
+        succeed = true;
+        return b;
+      } finally {
+        if (succeed) {
+          decoders.add(decoder);
+          if (closed) {
+            closeDecoders();
+          }
+        } else {
+          // the decoder keep the exception, discard it
+          CommonUtil.closeQuietly(decoder);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,486 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.tukaani.xz.FinishableOutputStream;
+import org.tukaani.xz.FinishableWrapperOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZIOException;
+import org.tukaani.xz.check.Check;
+import org.tukaani.xz.common.EncoderUtil;
+import org.tukaani.xz.index.IndexEncoder;
+import org.tukaani.xz.lzma.LZMAEncoder;
+
+/**
+ * XZ output stream that split the content into blocks of fixed size and 
+ * compress the blocks on a pool of worker threads. The output is a single 
+ * standard multi-block XZ stream with CRC64 check, which can be read by 
+ * {@link org.tukaani.xz.XZInputStream} and 
+ * {@link org.tukaani.xz.SeekableXZInputStream}.
+ * <p>
+ * The blocks are compressed independently, so the dictionary size is 
+ * limited to the block size. At most {@code threadCount} blocks are queued 
+ * in addition to the ones being compressed, so the memory usage is about 
+ * {@code 2 * threadCount} times the block size plus the encoder memory of 
+ * each worker.</p>
+ * <p>
+ * If it is constructed to split at operations, for 
+ * {@link Compression#LZMA2_BLOCKS}, a block is ended at the first operation 
+ * boundary (see {@link #endOperation()}) after reaching the block size like 
+ * {@link XZBlockOutputStream}, the block is only split inside an operation 
+ * when it reach twice the block size, so the memory usage is doubled.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class ParallelXZOutputStream extends FinishableOutputStream {
+
+  /**
+   * The default uncompressed size of a block, 3 times the default dictionary 
+   * size, same as xz.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 3 * LZMA2Options.DICT_SIZE_DEFAULT;
+  /**
+   * The LZMA2 filter id.
+   */
+  protected static final long LZMA2_FILTER_ID = 0x21;
+  protected OutputStream out;
+  protected final LZMA2Options options;
+  protected final byte[] blockHeader;
+  protected final int threadCount;
+  protected final int blockSize;
+  /**
+   * Indicate whether to end the blocks at operation boundaries.
+   */
+  protected final boolean splitAtOperations;
+  protected final ThreadPoolExecutor executor;
+  /**
+   * The blocks submitted to the {@link #executor} and not yet written to 
+   * {@link #out}, in order.
+   */
+  protected final LinkedList<Future<CompressedBlock>> pendingBlocks;
+  protected final IndexEncoder index;
+  /**
+   * The buffer of the current block.
+   */
+  protected byte[] buffer;
+  protected int bufferLength;
+  protected IOException exception;
+  protected boolean finished;
+
+  /**
+   * Constructor.
+   * @param out the stream to output to
+   * @param options the LZMA2 options, the dictionary size will be reduced to 
+   * the block size if it is larger than the block size
+   * @param threadCount the number of worker threads
+   * @param blockSize the uncompressed size of a block
+   * @throws IOException error occurred when writing the stream header
+   */
+  public ParallelXZOutputStream(OutputStream out, LZMA2Options options, int threadCount, int blockSize) throws IOException {
+    this(out, options, threadCount, blockSize, false);
+  }
+
+  /**
+   * Constructor.
+   * @param out the stream to output to
+   * @param options the LZMA2 options, the dictionary size will be reduced to 
+   * the block size if it is larger than the block size
+   * @param threadCount the number of worker threads
+   * @param blockSize the uncompressed size of a block, or the minimum 
+   * uncompressed size of a block if {@code splitAtOperations} is true
+   * @param splitAtOperations true to end a block at the first operation 
+   * boundary after reaching the block size, false to end a block when it 
+   * reach the block size
+   * @throws IOException error occurred when writing the stream header
+   */
+  public ParallelXZOutputStream(OutputStream out, LZMA2Options options, int threadCount, int blockSize, boolean splitAtOperations) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (options == null) {
+      throw new NullPointerException("argument 'options' cannot be null");
+    }
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("argument 'threadCount' should be greater than 0");
+    }
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("argument 'blockSize' should be greater than 0");
+    }
+    if (options.getPresetDict() != null) {
+      throw new UnsupportedOptionsException("XZ doesn't support a preset dictionary");
+    }
+
+    this.out = out;
+    this.options = (LZMA2Options) options.clone();
+    if (this.options.getDictSize() > blockSize) {
+      this.options.setDictSize(Math.max(blockSize, LZMA2Options.DICT_SIZE_MIN));
+    }
+    blockHeader = encodeBlockHeader(this.options);
+    this.threadCount = threadCount;
+    this.blockSize = blockSize;
+    this.splitAtOperations = splitAtOperations;
+    // idle workers time out, so the threads will not leak if the stream is 
+    // abandoned without finish() or close() after an error
+    executor = new ThreadPoolExecutor(threadCount, threadCount, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ParallelXZOutputStream");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    pendingBlocks = new LinkedList<Future<CompressedBlock>>();
+    index = new IndexEncoder();
+    buffer = new byte[getBufferSize()];
+    bufferLength = 0;
+    exception = null;
+    finished = false;
+
+    try {
+      encodeStreamHeader();
+    } catch (IOException ex) {
+      executor.shutdownNow();
+      throw ex;
+    }
+  }
+
+  /**
+   * Get the size of the buffer of a block.
+   * @return the size in bytes
+   */
+  protected int getBufferSize() {
+    return splitAtOperations ? (int) Math.min(Integer.MAX_VALUE - 8, 2L * blockSize) : blockSize;
+  }
+
+  /**
+   * Check whether the blocks are ended at operation boundaries.
+   * @return true if at operation boundaries, false if at fixed size
+   */
+  public boolean isSplitAtOperations() {
+    return splitAtOperations;
+  }
+
+  /**
+   * Encode the block header, which is the same for all blocks.
+   * @param options the LZMA2 options
+   * @return the block header including the CRC32
+   * @throws IOException error occurred when encoding
+   */
+  protected static byte[] encodeBlockHeader(LZMA2Options options) throws IOException {
+    ByteArrayOutputStream bufStream = new ByteArrayOutputStream();
+
+    // Block Header Size, filled in below
+    bufStream.write(0x00);
+    // Block Flags: one filter, no Compressed Size and Uncompressed Size
+    bufStream.write(0x00);
+    // Filter Flags
+    EncoderUtil.encodeVLI(bufStream, LZMA2_FILTER_ID);
+    EncoderUtil.encodeVLI(bufStream, 1);
+    if (options.getMode() == LZMA2Options.MODE_UNCOMPRESSED) {
+      bufStream.write(0x00);
+    } else {
+      bufStream.write(LZMAEncoder.getDistSlot(options.getDictSize() - 1) - 23);
+    }
+    // Header Padding
+    while ((bufStream.size() & 3) != 0) {
+      bufStream.write(0x00);
+    }
+
+    byte[] buf = bufStream.toByteArray();
+    buf[0] = (byte) (buf.length / 4);
+
+    ByteArrayOutputStream headerStream = new ByteArrayOutputStream(buf.length + 4);
+    headerStream.write(buf);
+    EncoderUtil.writeCRC32(headerStream, buf);
+    return headerStream.toByteArray();
+  }
+
+  protected void encodeStreamHeader() throws IOException {
+    out.write(XZ.HEADER_MAGIC);
+
+    byte[] buf = new byte[]{0x00, (byte) XZ.CHECK_CRC64};
+    out.write(buf);
+
+    EncoderUtil.writeCRC32(out, buf);
+  }
+
+  protected void encodeStreamFooter() throws IOException {
+    byte[] buf = new byte[6];
+    long backwardSize = index.getIndexSize() / 4 - 1;
+    for (int i = 0; i < 4; ++i) {
+      buf[i] = (byte) (backwardSize >>> (i * 8));
+    }
+    buf[4] = 0x00;
+    buf[5] = (byte) XZ.CHECK_CRC64;
+
+    EncoderUtil.writeCRC32(out, buf);
+    out.write(buf);
+    out.write(XZ.FOOTER_MAGIC);
+  }
+
+  protected void checkState() throws IOException {
+    if (exception != null) {
+      throw exception;
+    }
+    if (finished) {
+      throw new XZIOException("Stream finished or closed");
+    }
+  }
+
+  /**
+   * Record the {@code ex} and stop the workers. All subsequent operations 
+   * will throw {@code ex}.
+   * @param ex the exception
+   * @return {@code ex}
+   */
+  protected IOException fail(IOException ex) {
+    exception = ex;
+    executor.shutdownNow();
+    return ex;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] buf, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || off + len < 0 || off + len > buf.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    checkState();
+
+    while (len > 0) {
+      int byteToCopy = Math.min(len, buffer.length - bufferLength);
+      System.arraycopy(buf, off, buffer, bufferLength, byteToCopy);
+      bufferLength += byteToCopy;
+      off += byteToCopy;
+      len -= byteToCopy;
+
+      if (bufferLength == buffer.length) {
+        endBlock();
+      }
+    }
+  }
+
+  /**
+   * End the current block and submit it to the workers, do nothing if the 
+   * current block is empty. Wait for the earliest pending block to be 
+   * written if there are too many pending blocks.
+   * @throws IOException error occurred when compressing or writing the 
+   * blocks
+   */
+  public void endBlock() throws IOException {
+    checkState();
+    if (bufferLength == 0) {
+      return;
+    }
+
+    pendingBlocks.add(executor.submit(new CompressTask(buffer, bufferLength)));
+    buffer = new byte[buffer.length];
+    bufferLength = 0;
+
+    while (pendingBlocks.size() > threadCount * 2) {
+      writePendingBlock();
+    }
+  }
+
+  /**
+   * Notify that the content of an operation ended. End the current block if 
+   * it reach the block size and the stream is constructed to split at 
+   * operations, otherwise do nothing.
+   * @throws IOException error occurred when compressing or writing the 
+   * blocks
+   */
+  public void endOperation() throws IOException {
+    if (splitAtOperations && bufferLength >= blockSize) {
+      endBlock();
+    }
+  }
+
+  /**
+   * Wait for the earliest pending block and write it to {@link #out}.
+   * @throws IOException error occurred when compressing or writing the block
+   */
+  protected void writePendingBlock() throws IOException {
+    CompressedBlock block;
+    try {
+      block = pendingBlocks.removeFirst().get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw fail(new IOException(ex));
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      throw fail(cause instanceof IOException ? (IOException) cause : new IOException(cause));
+    }
+
+    try {
+      out.write(block.data);
+      index.add(block.unpaddedSize, block.uncompressedSize);
+    } catch (IOException ex) {
+      throw fail(ex);
+    }
+  }
+
+  /**
+   * End the current block, wait for all pending blocks to be written and 
+   * flush {@link #out}.
+   * @throws IOException error occurred when compressing or writing the 
+   * blocks
+   */
+  @Override
+  public void flush() throws IOException {
+    endBlock();
+    while (!pendingBlocks.isEmpty()) {
+      writePendingBlock();
+    }
+    try {
+      out.flush();
+    } catch (IOException ex) {
+      throw fail(ex);
+    }
+  }
+
+  /**
+   * Write all pending blocks, the index and the stream footer without 
+   * closing {@link #out}.
+   * @throws IOException error occurred when compressing or writing
+   */
+  @Override
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+
+    endBlock();
+    while (!pendingBlocks.isEmpty()) {
+      writePendingBlock();
+    }
+    try {
+      index.encode(out);
+      encodeStreamFooter();
+    } catch (IOException ex) {
+      throw fail(ex);
+    }
+
+    finished = true;
+    executor.shutdown();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out == null) {
+      return;
+    }
+
+    try {
+      if (exception == null) {
+        finish();
+      }
+    } finally {
+      executor.shutdownNow();
+      try {
+        out.close();
+      } finally {
+        out = null;
+      }
+    }
+  }
+
+  /**
+   * The compressed block.
+   */
+  protected static class CompressedBlock {
+
+    /**
+     * The block, from the block header to the check.
+     */
+    protected final byte[] data;
+    protected final long unpaddedSize;
+    protected final long uncompressedSize;
+
+    protected CompressedBlock(byte[] data, long unpaddedSize, long uncompressedSize) {
+      this.data = data;
+      this.unpaddedSize = unpaddedSize;
+      this.uncompressedSize = uncompressedSize;
+    }
+  }
+
+  /**
+   * Task to compress a block.
+   */
+  protected class CompressTask implements Callable<CompressedBlock> {
+
+    protected final byte[] buf;
+    protected final int length;
+
+    /**
+     * Constructor.
+     * @param buf the buffer containing the content of the block
+     * @param length the length of the content
+     */
+    protected CompressTask(byte[] buf, int length) {
+      this.buf = buf;
+      this.length = length;
+    }
+
+    @Override
+    public CompressedBlock call() throws IOException {
+      ByteArrayOutputStream blockOut = new ByteArrayOutputStream(length / 2 + blockHeader.length + 64);
+
+      blockOut.write(blockHeader);
+
+      FinishableOutputStream lzma2Out = options.getOutputStream(new FinishableWrapperOutputStream(blockOut));
+      lzma2Out.write(buf, 0, length);
+      lzma2Out.finish();
+
+      long unpaddedSize = blockOut.size();
+
+      // Block Padding
+      while ((blockOut.size() & 3) != 0) {
+        blockOut.write(0x00);
+      }
+
+      Check check = Check.getInstance(XZ.CHECK_CRC64);
+      check.update(buf, 0, length);
+      blockOut.write(check.finish());
+      unpaddedSize += check.getSize();
+
+      return new CompressedBlock(blockOut.toByteArray(), unpaddedSize, length);
+    }
+  }
+}
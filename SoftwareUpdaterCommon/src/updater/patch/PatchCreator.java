@@ -24,9 +24,12 @@ import javax.xml.transform.TransformerException;
 import com.nothome.delta.Delta;
 import com.nothome.delta.DiffWriter;
 import com.nothome.delta.GDiffWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -34,9 +37,17 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.tukaani.xz.XZOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+import org.tukaani.xz.FinishableOutputStream;
 import updater.crypto.AESKey;
 import updater.script.Patch;
 import updater.script.Patch.Operation;
@@ -50,6 +61,26 @@ import updater.util.CommonUtil;
 public class PatchCreator {
 
   private static final Logger LOG = Logger.getLogger(PatchCreator.class.getName());
+  /**
+   * The size of each of the 3 samples used by 
+   * {@link #probeCompression(java.io.File)}.
+   */
+  protected static final int PROBE_SAMPLE_SIZE = 32768;
+  /**
+   * Store the content if the samples cannot be deflated to smaller than 
+   * this ratio.
+   */
+  protected static final double PROBE_STORE_RATIO = 0.97;
+  /**
+   * Use GZIP rather than LZMA2 if the samples cannot be deflated to smaller 
+   * than this ratio, LZMA2 will not gain much more.
+   */
+  protected static final double PROBE_GZIP_RATIO = 0.9;
+  /**
+   * Use GZIP rather than LZMA2 for a file smaller than this, the overhead of 
+   * the XZ format is larger.
+   */
+  protected static final int PROBE_SMALL_FILE_SIZE = 4096;
 
   protected PatchCreator() {
   }
@@ -69,6 +100,26 @@ public class PatchCreator {
    */
   public static void createFullPatch(File softwareDirectory, File patch, int patchId, String fromVersion, String fromSubsequentVersion, String toVersion,
           AESKey aesKey, File tempFileForEncryption) throws IOException {
+    createFullPatch(softwareDirectory, patch, patchId, fromVersion, fromSubsequentVersion, toVersion, aesKey, tempFileForEncryption, new PatchOptions());
+  }
+
+  /**
+   * Create full patch.
+   * @param softwareDirectory
+   * @param patch the place to save the created patch
+   * @param patchId the patch id of the patch
+   * @param fromVersion the version-from, can be null
+   * @param fromSubsequentVersion the version-from-subsequent, can be null
+   * @param toVersion the version-to, can be null
+   * @param aesKey the cipher key, null means don't use encryption
+   * @param tempFileForEncryption if {@code aesKey} is specified, this should 
+   * be provided to store the temporary encrypted file
+   * @param options the options, the compression, compression thread count, 
+   * block size, deduplicate and digest cache are used
+   * @throws IOException error occurred when creating the full patch
+   */
+  public static void createFullPatch(File softwareDirectory, File patch, int patchId, String fromVersion, String fromSubsequentVersion, String toVersion,
+          AESKey aesKey, File tempFileForEncryption, PatchOptions options) throws IOException {
     if (softwareDirectory == null) {
       throw new NullPointerException("argument 'softwareDirectory' cannot be null");
     }
@@ -78,6 +129,12 @@ public class PatchCreator {
     if (aesKey != null && tempFileForEncryption == null) {
       throw new NullPointerException("argument 'tempFileForEncryption' cannot be null while argument 'aesKey' is not null");
     }
+    if (options == null) {
+      throw new NullPointerException("argument 'options' cannot be null");
+    }
+    Compression compression = options.getCompression();
+    boolean deduplicate = options.isDeduplicate();
+    DigestCache digestCache = options.getDigestCache();
 
     if (!softwareDirectory.exists() || !softwareDirectory.isDirectory()) {
       throw new IOException("'softwareDirectory' not exist or not a directory.");
@@ -102,7 +159,7 @@ public class PatchCreator {
     Map<String, File> softwareFiles = CommonUtil.getAllFiles(softwareDirectory, softwarePath);
     softwareFiles.remove(softwareDirectory.getAbsolutePath().replace(File.separator, "/"));
 
-    // to prevent generate checksum repeatedly
+    // to prevent generate checksum repeatedly, keyed by absolute path
     Map<String, String> softwareFilesChecksumMap = new HashMap<String, String>();
 
     //<editor-fold defaultstate="collapsed" desc="validations - add validations list first">
@@ -112,9 +169,9 @@ public class PatchCreator {
       if (_newFile.isDirectory()) {
         validationFile = new ValidationFile(_filePath, "", -1);
       } else {
-        String sha256 = CommonUtil.getSHA256String(_newFile);
-        softwareFilesChecksumMap.put(_filePath, sha256);
-        validationFile = new ValidationFile(_filePath, sha256, (int) _newFile.length());
+        String sha256 = DigestCache.getSHA256String(digestCache, _newFile);
+        softwareFilesChecksumMap.put(_newFile.getAbsolutePath(), sha256);
+        validationFile = new ValidationFile(_filePath, sha256, _newFile.length());
       }
       validations.add(validationFile);
     }
@@ -135,34 +192,47 @@ public class PatchCreator {
 
     // record those file with their content needed to put into the patch
     List<File> patchForceFileList = new ArrayList<File>();
-    int pos = 0, operationIdCounter = 1;
+    // the operations that store the content, keyed by checksum and length
+    Map<String, Operation> contentOperations = new HashMap<String, Operation>();
+    long pos = 0;
+    int operationIdCounter = 1;
     //<editor-fold defaultstate="collapsed" desc="operations - prepare patchForceFileList using forceFileList">
     for (OperationRecord record : forceFileList) {
       File _forceFile = record.getNewFile();
 
-      int fileLength = 0;
+      long fileLength = 0;
       String fileType = "folder";
       String fileSHA256 = "";
       if (!_forceFile.isDirectory()) {
-        fileLength = (int) _forceFile.length();
+        fileLength = _forceFile.length();
         fileType = "file";
         fileSHA256 = softwareFilesChecksumMap.get(_forceFile.getAbsolutePath());
         if (fileSHA256 == null) {
-          fileSHA256 = CommonUtil.getSHA256String(_forceFile);
+          fileSHA256 = DigestCache.getSHA256String(digestCache, _forceFile);
         }
-
-        patchForceFileList.add(_forceFile);
       }
 
       Operation _operation = new Operation(operationIdCounter, OperationType.FORCE.getValue(), pos, fileLength, fileType, _forceFile.getAbsolutePath().replace(softwarePath, "").replace(File.separator, "/"), null, -1, fileSHA256, fileLength);
       operationIdCounter++;
       operations.add(_operation);
 
+      if (!_forceFile.isDirectory()) {
+        if (deduplicate && setDuplicate(contentOperations, _operation)) {
+          continue;
+        }
+        patchForceFileList.add(_forceFile);
+      }
+
       pos += fileLength;
     }
     //</editor-fold>
     patchScript.setOperations(operations);
 
+    Map<File, Compression> contentCompressions = null;
+    if (compression == Compression.PER_OPERATION) {
+      contentCompressions = selectCompressions(operations, patchForceFileList);
+    }
+
 
     // prepare patch script
     byte[] patchScriptOutput = null;
@@ -182,12 +252,13 @@ public class PatchCreator {
       fout = new FileOutputStream(patch);
 
       PatchWriteUtil.writeHeader(fout);
-      XZOutputStream xzOut = (XZOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2);
+      FinishableOutputStream xzOut = (FinishableOutputStream) PatchWriteUtil.writeCompressionMethod(fout, compression, options.getCompressionThreadCount(), options.getBlockSize());
       PatchWriteUtil.writeXML(xzOut, patchScriptOutput);
+      PatchWriteUtil.writeOperationEnd(xzOut);
 
       // patch content
       for (File _file : patchForceFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        writeContent(_file, xzOut, contentCompressions);
       }
 
       xzOut.finish();
@@ -220,6 +291,25 @@ public class PatchCreator {
    * @throws IOException error occurred when creating the patch
    */
   public static void createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption) throws IOException {
+    createPatch(oldVersion, newVersion, tempDir, patch, patchId, fromVersion, toVersion, aesKey, tempFileForEncryption, new PatchOptions());
+  }
+
+  /**
+   * Create patch.
+   * @param oldVersion the folder that contain the old version of software
+   * @param newVersion the folder that contain the new version of software
+   * @param tempDir the temporary folder to store the temporary generated files
+   * @param patch the place to save the created patch
+   * @param patchId the patch id of the patch
+   * @param fromVersion the version-from, can be null
+   * @param toVersion the version-to, can be null
+   * @param aesKey the cipher key, null means don't use encryption
+   * @param tempFileForEncryption if {@code aesKey} is specified, this should 
+   * be provided to store the temporary encrypted file
+   * @param options the options
+   * @throws IOException error occurred when creating the patch
+   */
+  public static void createPatch(File oldVersion, File newVersion, File tempDir, File patch, int patchId, String fromVersion, String toVersion, AESKey aesKey, File tempFileForEncryption, PatchOptions options) throws IOException {
     if (oldVersion == null) {
       throw new NullPointerException("argument 'oldVersion' cannot be null");
     }
@@ -235,6 +325,19 @@ public class PatchCreator {
     if (aesKey != null && tempFileForEncryption == null) {
       throw new NullPointerException("argument 'tempFileForEncryption' cannot be null while argument 'aesKey' is not null");
     }
+    if (options == null) {
+      throw new NullPointerException("argument 'options' cannot be null");
+    }
+    int threadCount = options.getThreadCount();
+    Compression compression = options.getCompression();
+    boolean deduplicate = options.isDeduplicate();
+    boolean detectMoves = options.isDetectMoves();
+    DigestCache digestCache = options.getDigestCache();
+    Set<String> suffixArrayFileTypes = options.getSuffixArrayFileTypes();
+    boolean vcdiff = options.isVCDiff();
+    boolean lzmaDict = options.isLZMADict();
+    boolean jarPatch = options.isJarPatch();
+    int windowSize = options.getWindowSize();
 
     if (!oldVersion.exists() || !oldVersion.isDirectory()) {
       throw new IOException("Directory of old verison not exist or not a directory.");
@@ -269,194 +372,355 @@ public class PatchCreator {
     oldVersionFiles.remove(oldVersion.getAbsolutePath().replace(File.separator, "/"));
     newVersionFiles.remove(newVersion.getAbsolutePath().replace(File.separator, "/"));
 
-    // to prevent generate checksum repeatedly
+    // to prevent generate checksum repeatedly, keyed by absolute path
     Map<String, String> newVersionFilesChecksumMap = new HashMap<String, String>();
+    Map<String, String> oldVersionFilesChecksumMap = new HashMap<String, String>();
 
-    //<editor-fold defaultstate="collapsed" desc="validations - add validations list first">
-    for (String _filePath : newVersionFiles.keySet()) {
-      File _newFile = newVersionFiles.get(_filePath);
-      ValidationFile validationFile;
-      if (_newFile.isDirectory()) {
-        validationFile = new ValidationFile(_filePath, "", -1);
-      } else {
-        String sha256 = CommonUtil.getSHA256String(_newFile);
-        newVersionFilesChecksumMap.put(_filePath, sha256);
-        validationFile = new ValidationFile(_filePath, sha256, (int) _newFile.length());
+    // four list that record those file with their content needed to put into the patch
+    List<File> patchNewFileList = new ArrayList<File>();
+    List<File> patchCopyFileList = new ArrayList<File>();
+    List<File> patchPatchFileList = new ArrayList<File>();
+    List<File> patchReplaceFileList = new ArrayList<File>();
+    // the operations that store the content of the new file, keyed by 
+    // checksum and length
+    Map<String, Operation> contentOperations = new HashMap<String, Operation>();
+
+    // deltas and checksums are computed by the workers, the results are 
+    // collected in the submission order, so the operation ids and 'pos' are 
+    // the same no matter how many threads are used
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      //<editor-fold defaultstate="collapsed" desc="validations - add validations list first">
+      Map<String, Future<String>> newVersionFilesChecksumResults = new HashMap<String, Future<String>>();
+      for (String _filePath : newVersionFiles.keySet()) {
+        File _newFile = newVersionFiles.get(_filePath);
+        if (!_newFile.isDirectory()) {
+          newVersionFilesChecksumResults.put(_filePath, executor.submit(new ChecksumTask(_newFile, digestCache)));
+        }
       }
-      validations.add(validationFile);
-    }
-    patchScript.setValidations(validations);
-    //</editor-fold>
-
-    List<OperationRecord> newFileList = new ArrayList<OperationRecord>();
-    List<OperationRecord> removeFileList = new ArrayList<OperationRecord>();
-    List<OperationRecord> patchFileList = new ArrayList<OperationRecord>();
-    List<OperationRecord> replaceFileList = new ArrayList<OperationRecord>();
-    // process operations list
-    //<editor-fold defaultstate="collapsed" desc="prepare newFileList, removeFileList and patchFileList">
-    Iterator<String> iterator = newVersionFiles.keySet().iterator();
-    while (iterator.hasNext()) {
-      String _filePath = iterator.next();
-      File _newFile = newVersionFiles.get(_filePath);
-      File _oldFile = oldVersionFiles.get(_filePath);
-
-      // if no old file found, then it is new file
-      if (_oldFile == null) {
-        newFileList.add(new OperationRecord(null, _newFile));
-      } else {
-        boolean oldFileIsDirectory = _oldFile.isDirectory();
-        boolean newFileIsDirectory = _newFile.isDirectory();
-        if (oldFileIsDirectory == newFileIsDirectory) {
-          // only patch if it is not a directory
-          if (!_newFile.isDirectory()) {
-            patchFileList.add(new OperationRecord(_oldFile, _newFile));
-          }
+      for (String _filePath : newVersionFiles.keySet()) {
+        File _newFile = newVersionFiles.get(_filePath);
+        ValidationFile validationFile;
+        if (_newFile.isDirectory()) {
+          validationFile = new ValidationFile(_filePath, "", -1);
         } else {
-          // one is file and one is directory, remove the old and add back the new
-          removeFileList.add(new OperationRecord(_oldFile, null));
-          newFileList.add(new OperationRecord(null, _newFile));
+          String sha256 = getResult(newVersionFilesChecksumResults.get(_filePath));
+          newVersionFilesChecksumMap.put(_newFile.getAbsolutePath(), sha256);
+          validationFile = new ValidationFile(_filePath, sha256, _newFile.length());
         }
-        oldVersionFiles.remove(_filePath);
+        validations.add(validationFile);
       }
+      patchScript.setValidations(validations);
+      //</editor-fold>
+
+      List<OperationRecord> newFileList = new ArrayList<OperationRecord>();
+      List<OperationRecord> removeFileList = new ArrayList<OperationRecord>();
+      List<OperationRecord> patchFileList = new ArrayList<OperationRecord>();
+      List<OperationRecord> replaceFileList = new ArrayList<OperationRecord>();
+      // process operations list
+      //<editor-fold defaultstate="collapsed" desc="prepare newFileList, removeFileList and patchFileList">
+      Iterator<String> iterator = newVersionFiles.keySet().iterator();
+      while (iterator.hasNext()) {
+        String _filePath = iterator.next();
+        File _newFile = newVersionFiles.get(_filePath);
+        File _oldFile = oldVersionFiles.get(_filePath);
+
+        // if no old file found, then it is new file
+        if (_oldFile == null) {
+          newFileList.add(new OperationRecord(null, _newFile));
+        } else {
+          boolean oldFileIsDirectory = _oldFile.isDirectory();
+          boolean newFileIsDirectory = _newFile.isDirectory();
+          if (oldFileIsDirectory == newFileIsDirectory) {
+            // only patch if it is not a directory
+            if (!_newFile.isDirectory()) {
+              patchFileList.add(new OperationRecord(_oldFile, _newFile));
+            }
+          } else {
+            // one is file and one is directory, remove the old and add back the new
+            removeFileList.add(new OperationRecord(_oldFile, null));
+            newFileList.add(new OperationRecord(null, _newFile));
+          }
+          oldVersionFiles.remove(_filePath);
+        }
 
-      iterator.remove();
-    }
-
-    // at this stage, newVersionFiles should be empty, left files in oldVersionFiles waiting for remove
-    iterator = oldVersionFiles.keySet().iterator();
-    while (iterator.hasNext()) {
-      String _filePath = iterator.next();
-      File _oldFile = oldVersionFiles.get(_filePath);
-
-      removeFileList.add(new OperationRecord(_oldFile, null));
+        iterator.remove();
+      }
 
-      iterator.remove();
-    }
+      // at this stage, newVersionFiles should be empty, left files in oldVersionFiles waiting for remove
+      iterator = oldVersionFiles.keySet().iterator();
+      while (iterator.hasNext()) {
+        String _filePath = iterator.next();
+        File _oldFile = oldVersionFiles.get(_filePath);
 
-    // make sure create folder first then file
-    sortFileListAsc(newFileList);
-    // make sure remove file first then folder
-    sortFileListDesc(removeFileList);
-    //</editor-fold>
+        removeFileList.add(new OperationRecord(_oldFile, null));
 
-    // three list that record those file with their content needed to put into the patch
-    List<File> patchNewFileList = new ArrayList<File>();
-    List<File> patchPatchFileList = new ArrayList<File>();
-    List<File> patchReplaceFileList = new ArrayList<File>();
-    int pos = 0, operationIdCounter = 1;
-    //<editor-fold defaultstate="collapsed" desc="remove file list">
-    for (OperationRecord record : removeFileList) {
-      File _oldFile = record.getOldFile();
-
-      int fileLength = 0;
-      String fileType = "folder";
-      String fileSHA256 = "";
-      if (!_oldFile.isDirectory()) {
-        fileLength = (int) _oldFile.length();
-        fileType = "file";
-        fileSHA256 = CommonUtil.getSHA256String(_oldFile);
+        iterator.remove();
       }
 
-      Operation _operation = new Operation(operationIdCounter, OperationType.REMOVE.getValue(), 0, 0, fileType, _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), fileSHA256, fileLength, null, -1);
-      operationIdCounter++;
-      operations.add(_operation);
-    }
-    //</editor-fold>
-    //<editor-fold defaultstate="collapsed" desc="new file list">
-    for (OperationRecord record : newFileList) {
-      File _newFile = record.getNewFile();
+      // make sure create folder first then file
+      sortFileListAsc(newFileList);
+      // make sure remove file first then folder
+      sortFileListDesc(removeFileList);
+      //</editor-fold>
+
+      List<Future<DiffResult>> diffResults = new ArrayList<Future<DiffResult>>(patchFileList.size());
+      for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+        OperationRecord record = patchFileList.get(i);
+        boolean suffixArray = suffixArrayFileTypes != null && suffixArrayFileTypes.contains(getFileExtension(record.getNewFile()))
+                && record.getOldFile().length() <= SuffixArrayDelta.MAX_LENGTH && record.getNewFile().length() <= SuffixArrayDelta.MAX_LENGTH;
+        diffResults.add(executor.submit(new DiffTask(record, new File(tempDir + File.separator + Integer.toString(i)), digestCache, jarPatch, suffixArray, vcdiff, lzmaDict, windowSize)));
+      }
 
-      int fileLength = 0;
-      String fileType = "folder";
-      String fileSHA256 = "";
-      if (!_newFile.isDirectory()) {
-        fileLength = (int) _newFile.length();
-        fileType = "file";
-        fileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
-        if (fileSHA256 == null) {
-          fileSHA256 = CommonUtil.getSHA256String(_newFile);
+      long pos = 0;
+      int operationIdCounter = 1;
+      //<editor-fold defaultstate="collapsed" desc="remove file list">
+      List<Future<String>> removeFileChecksumResults = new ArrayList<Future<String>>(removeFileList.size());
+      for (OperationRecord record : removeFileList) {
+        File _oldFile = record.getOldFile();
+        removeFileChecksumResults.add(_oldFile.isDirectory() ? null : executor.submit(new ChecksumTask(_oldFile, digestCache)));
+      }
+      for (int i = 0, iEnd = removeFileList.size(); i < iEnd; i++) {
+        File _oldFile = removeFileList.get(i).getOldFile();
+
+        long fileLength = 0;
+        String fileType = "folder";
+        String fileSHA256 = "";
+        if (!_oldFile.isDirectory()) {
+          fileLength = _oldFile.length();
+          fileType = "file";
+          fileSHA256 = getResult(removeFileChecksumResults.get(i));
+          oldVersionFilesChecksumMap.put(_oldFile.getAbsolutePath(), fileSHA256);
         }
 
-        patchNewFileList.add(_newFile);
+        Operation _operation = new Operation(operationIdCounter, OperationType.REMOVE.getValue(), 0, 0, fileType, _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), fileSHA256, fileLength, null, -1);
+        operationIdCounter++;
+        operations.add(_operation);
       }
+      //</editor-fold>
+      //<editor-fold defaultstate="collapsed" desc="copy file list - move those can be copied from old files out from newFileList">
+      List<OperationRecord> copyFileList = new ArrayList<OperationRecord>();
+      // the delta from the old file, keyed by the new file, not exist if the two files are identical
+      Map<File, DiffResult> copyDiffResults = new HashMap<File, DiffResult>();
+      if (detectMoves) {
+        // the old files keyed by checksum and length, the removed files are put first so moving is preferred
+        Map<String, File> oldContentFiles = new HashMap<String, File>();
+        // the removed old files keyed by file name, for finding the files that are renamed and modified
+        Map<String, List<File>> removedFilesByName = new HashMap<String, List<File>>();
+        for (OperationRecord record : removeFileList) {
+          File _oldFile = record.getOldFile();
+          if (_oldFile.isDirectory()) {
+            continue;
+          }
+          String key = oldVersionFilesChecksumMap.get(_oldFile.getAbsolutePath()) + ":" + _oldFile.length();
+          if (!oldContentFiles.containsKey(key)) {
+            oldContentFiles.put(key, _oldFile);
+          }
+          List<File> _files = removedFilesByName.get(_oldFile.getName());
+          if (_files == null) {
+            _files = new ArrayList<File>();
+            removedFilesByName.put(_oldFile.getName(), _files);
+          }
+          _files.add(_oldFile);
+        }
+        for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+          File _oldFile = patchFileList.get(i).getOldFile();
+          DiffResult diffResult = getResult(diffResults.get(i));
+          String oldFileSHA256 = diffResult == null ? newVersionFilesChecksumMap.get(patchFileList.get(i).getNewFile().getAbsolutePath()) : diffResult.getOldFileChecksum();
+          oldVersionFilesChecksumMap.put(_oldFile.getAbsolutePath(), oldFileSHA256);
+          String key = oldFileSHA256 + ":" + _oldFile.length();
+          if (!oldContentFiles.containsKey(key)) {
+            oldContentFiles.put(key, _oldFile);
+          }
+        }
 
-      Operation _operation = new Operation(operationIdCounter, OperationType.NEW.getValue(), pos, fileLength, fileType, _newFile.getAbsolutePath().replace(newVersionPath, "").replace(File.separator, "/"), null, -1, fileSHA256, fileLength);
-      operationIdCounter++;
-      operations.add(_operation);
+        Map<File, OperationRecord> copyRecords = new HashMap<File, OperationRecord>();
+        List<OperationRecord> similarFileList = new ArrayList<OperationRecord>();
+        List<Future<DiffResult>> similarDiffResults = new ArrayList<Future<DiffResult>>();
+        for (OperationRecord record : newFileList) {
+          File _newFile = record.getNewFile();
+          if (_newFile.isDirectory() || _newFile.length() == 0) {
+            continue;
+          }
 
-      pos += fileLength;
-    }
-    //</editor-fold>
-    //<editor-fold defaultstate="collapsed" desc="patch file list">
-    int count = 0;
-    Delta delta = new Delta();
-    for (OperationRecord record : patchFileList) {
-      File _oldFile = record.getOldFile();
-      File _newFile = record.getNewFile();
+          File _oldFile = oldContentFiles.get(newVersionFilesChecksumMap.get(_newFile.getAbsolutePath()) + ":" + _newFile.length());
+          if (_oldFile != null) {
+            copyRecords.put(_newFile, new OperationRecord(_oldFile, _newFile));
+            continue;
+          }
 
-      // two file are identical
-      if (CommonUtil.compareFile(_oldFile, _newFile)) {
-        continue;
-      }
+          _oldFile = getSimilarFile(removedFilesByName.get(_newFile.getName()), _newFile);
+          if (_oldFile != null) {
+            OperationRecord _record = new OperationRecord(_oldFile, _newFile);
+            similarDiffResults.add(executor.submit(new DiffTask(_record, new File(tempDir + File.separator + "copy_" + similarFileList.size()), digestCache, false, false, false, false, windowSize)));
+            similarFileList.add(_record);
+          }
+        }
+        for (int i = 0, iEnd = similarFileList.size(); i < iEnd; i++) {
+          OperationRecord record = similarFileList.get(i);
 
-      // get delta/diff
-      File diffFile = new File(tempDir + File.separator + Integer.toString(count));
-      FileOutputStream fout = null;
-      try {
-        fout = new FileOutputStream(diffFile);
-        DiffWriter diffOut = new GDiffWriter(fout);
-        delta.compute(_oldFile, _newFile, diffOut);
-      } catch (Exception ex) {
-        CommonUtil.closeQuietly(fout);
+          DiffResult diffResult = getResult(similarDiffResults.get(i));
+          if (diffResult == null) {
+            // not possible, identical files are matched by checksum above
+            continue;
+          }
+          if (diffResult.getDiffFile().length() >= record.getNewFile().length()) {
+            // not similar enough, put the whole new file into the patch instead
+            diffResult.getDiffFile().delete();
+            continue;
+          }
+          oldVersionFilesChecksumMap.put(record.getOldFile().getAbsolutePath(), diffResult.getOldFileChecksum());
+          copyRecords.put(record.getNewFile(), record);
+          copyDiffResults.put(record.getNewFile(), diffResult);
+        }
+
+        // keep the ascending order of newFileList
+        Iterator<OperationRecord> recordIterator = newFileList.iterator();
+        while (recordIterator.hasNext()) {
+          OperationRecord _record = copyRecords.get(recordIterator.next().getNewFile());
+          if (_record != null) {
+            copyFileList.add(_record);
+            recordIterator.remove();
+          }
+        }
       }
+      //</editor-fold>
+      //<editor-fold defaultstate="collapsed" desc="new file list">
+      for (OperationRecord record : newFileList) {
+        File _newFile = record.getNewFile();
+
+        long fileLength = 0;
+        String fileType = "folder";
+        String fileSHA256 = "";
+        if (!_newFile.isDirectory()) {
+          fileLength = _newFile.length();
+          fileType = "file";
+          fileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
+          if (fileSHA256 == null) {
+            fileSHA256 = DigestCache.getSHA256String(digestCache, _newFile);
+          }
+        }
 
-      int fileLength = (int) diffFile.length();
-      int newFileLength = (int) _newFile.length();
+        Operation _operation = new Operation(operationIdCounter, OperationType.NEW.getValue(), pos, fileLength, fileType, _newFile.getAbsolutePath().replace(newVersionPath, "").replace(File.separator, "/"), null, -1, fileSHA256, fileLength);
+        operationIdCounter++;
+        operations.add(_operation);
 
-      Operation _operation;
-      if (fileLength > newFileLength) {
-        // if the patched file is larger than the new file (very rare), don't patch it, use replace instead
-        replaceFileList.add(record);
-        diffFile.delete();
-        continue;
-      } else {
+        if (!_newFile.isDirectory()) {
+          if (deduplicate && setDuplicate(contentOperations, _operation)) {
+            continue;
+          }
+          patchNewFileList.add(_newFile);
+        }
+
+        pos += fileLength;
+      }
+      //</editor-fold>
+      //<editor-fold defaultstate="collapsed" desc="copy file list">
+      for (OperationRecord record : copyFileList) {
+        File _oldFile = record.getOldFile();
+        File _newFile = record.getNewFile();
+
+        DiffResult diffResult = copyDiffResults.get(_newFile);
+        long fileLength = diffResult == null ? 0 : diffResult.getDiffFile().length();
+        long newFileLength = _newFile.length();
         String newFileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
         if (newFileSHA256 == null) {
-          newFileSHA256 = CommonUtil.getSHA256String(_newFile);
+          newFileSHA256 = DigestCache.getSHA256String(digestCache, _newFile);
         }
-        patchPatchFileList.add(diffFile);
-        _operation = new Operation(operationIdCounter, OperationType.PATCH.getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), CommonUtil.getSHA256String(_oldFile), (int) _oldFile.length(), newFileSHA256, newFileLength);
+
+        Operation _operation = new Operation(operationIdCounter, OperationType.COPY.getValue(), pos, fileLength, "file", _newFile.getAbsolutePath().replace(newVersionPath, "").replace(File.separator, "/"), oldVersionFilesChecksumMap.get(_oldFile.getAbsolutePath()), _oldFile.length(), newFileSHA256, newFileLength);
+        _operation.setOldFilePath(_oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"));
         operationIdCounter++;
-      }
-      operations.add(_operation);
+        operations.add(_operation);
 
-      pos += fileLength;
-      count++;
-    }
-    //</editor-fold>
-    //<editor-fold defaultstate="collapsed" desc="replace file list">
-    for (OperationRecord record : replaceFileList) {
-      File _oldFile = record.getOldFile();
-      File _newFile = record.getNewFile();
+        if (diffResult != null) {
+          patchCopyFileList.add(diffResult.getDiffFile());
+        }
+
+        pos += fileLength;
+      }
+      //</editor-fold>
+      //<editor-fold defaultstate="collapsed" desc="patch file list">
+      for (int i = 0, iEnd = patchFileList.size(); i < iEnd; i++) {
+        OperationRecord record = patchFileList.get(i);
+        File _oldFile = record.getOldFile();
+        File _newFile = record.getNewFile();
+
+        DiffResult diffResult = getResult(diffResults.get(i));
+        // two file are identical
+        if (diffResult == null) {
+          continue;
+        }
+        oldVersionFilesChecksumMap.put(_oldFile.getAbsolutePath(), diffResult.getOldFileChecksum());
+
+        File diffFile = diffResult.getDiffFile();
+        long fileLength = diffFile.length();
+        long newFileLength = _newFile.length();
+
+        Operation _operation;
+        if (fileLength > newFileLength) {
+          // if the patched file is larger than the new file (very rare), don't patch it, use replace instead
+          replaceFileList.add(record);
+          diffFile.delete();
+          continue;
+        } else {
+          String newFileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
+          if (newFileSHA256 == null) {
+            newFileSHA256 = DigestCache.getSHA256String(digestCache, _newFile);
+          }
+          patchPatchFileList.add(diffFile);
+          _operation = new Operation(operationIdCounter, diffResult.getOperationType().getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), diffResult.getOldFileChecksum(), _oldFile.length(), newFileSHA256, newFileLength);
+          operationIdCounter++;
+        }
+        operations.add(_operation);
 
-      int newFileLength = (int) _newFile.length();
-      int fileLength = newFileLength;
-      String newFileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
-      if (newFileSHA256 == null) {
-        newFileSHA256 = CommonUtil.getSHA256String(_newFile);
+        pos += fileLength;
       }
+      //</editor-fold>
+      //<editor-fold defaultstate="collapsed" desc="replace file list">
+      for (OperationRecord record : replaceFileList) {
+        File _oldFile = record.getOldFile();
+        File _newFile = record.getNewFile();
+
+        long newFileLength = _newFile.length();
+        long fileLength = newFileLength;
+        String newFileSHA256 = newVersionFilesChecksumMap.get(_newFile.getAbsolutePath());
+        if (newFileSHA256 == null) {
+          newFileSHA256 = DigestCache.getSHA256String(digestCache, _newFile);
+        }
 
-      patchReplaceFileList.add(_newFile);
+        String oldFileSHA256 = oldVersionFilesChecksumMap.get(_oldFile.getAbsolutePath());
+        if (oldFileSHA256 == null) {
+          oldFileSHA256 = DigestCache.getSHA256String(digestCache, _oldFile);
+        }
 
-      Operation _operation = new Operation(operationIdCounter, OperationType.REPLACE.getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), CommonUtil.getSHA256String(_oldFile), (int) _oldFile.length(), newFileSHA256, newFileLength);
-      operationIdCounter++;
-      operations.add(_operation);
+        Operation _operation = new Operation(operationIdCounter, OperationType.REPLACE.getValue(), pos, fileLength, "file", _oldFile.getAbsolutePath().replace(oldVersionPath, "").replace(File.separator, "/"), oldFileSHA256, _oldFile.length(), newFileSHA256, newFileLength);
+        operationIdCounter++;
+        operations.add(_operation);
 
-      pos += fileLength;
+        if (deduplicate && setDuplicate(contentOperations, _operation)) {
+          continue;
+        }
+        patchReplaceFileList.add(_newFile);
+
+        pos += fileLength;
+      }
+      //</editor-fold>
+    } finally {
+      executor.shutdownNow();
     }
-    //</editor-fold>
     patchScript.setOperations(operations);
 
+    Map<File, Compression> contentCompressions = null;
+    if (compression == Compression.PER_OPERATION) {
+      List<File> contentFiles = new ArrayList<File>();
+      contentFiles.addAll(patchNewFileList);
+      contentFiles.addAll(patchCopyFileList);
+      contentFiles.addAll(patchPatchFileList);
+      contentFiles.addAll(patchReplaceFileList);
+      contentCompressions = selectCompressions(operations, contentFiles);
+    }
+
 
     // patch script
     byte[] patchScriptOutput = null;
@@ -476,19 +740,24 @@ public class PatchCreator {
       fout = new FileOutputStream(patch);
 
       PatchWriteUtil.writeHeader(fout);
-      XZOutputStream xzOut = (XZOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2);
+      FinishableOutputStream xzOut = (FinishableOutputStream) PatchWriteUtil.writeCompressionMethod(fout, compression, options.getCompressionThreadCount(), options.getBlockSize());
       PatchWriteUtil.writeXML(xzOut, patchScriptOutput);
+      PatchWriteUtil.writeOperationEnd(xzOut);
 
       // patch content
       for (File _file : patchNewFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        writeContent(_file, xzOut, contentCompressions);
+      }
+      for (File _file : patchCopyFileList) {
+        writeContent(_file, xzOut, contentCompressions);
+        _file.delete();
       }
       for (File _file : patchPatchFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        writeContent(_file, xzOut, contentCompressions);
         _file.delete();
       }
       for (File _file : patchReplaceFileList) {
-        PatchWriteUtil.writePatch(_file, xzOut);
+        writeContent(_file, xzOut, contentCompressions);
       }
 
       xzOut.finish();
@@ -544,6 +813,501 @@ public class PatchCreator {
     });
   }
 
+  /**
+   * Get the file in {@code candidates} that is likely to be the old version 
+   * of {@code newFile}. The candidates should have the same file name as the 
+   * new file, the one with the closest length is chosen.
+   * @param candidates the candidate old files, can be null
+   * @param newFile the new file
+   * @return the old file, or null if no candidate has length within half to 
+   * double of the new file
+   */
+  protected static File getSimilarFile(List<File> candidates, File newFile) {
+    if (candidates == null) {
+      return null;
+    }
+
+    long newFileLength = newFile.length();
+    File returnFile = null;
+    long returnFileDifference = Long.MAX_VALUE;
+    for (File candidate : candidates) {
+      long candidateLength = candidate.length();
+      if (candidateLength * 2 < newFileLength || newFileLength * 2 < candidateLength) {
+        continue;
+      }
+      long difference = Math.abs(candidateLength - newFileLength);
+      if (difference < returnFileDifference) {
+        returnFile = candidate;
+        returnFileDifference = difference;
+      }
+    }
+
+    return returnFile;
+  }
+
+  /**
+   * Write the content of an operation to the compress output stream.
+   * @param file the content file
+   * @param out the compress output stream
+   * @param contentCompressions the compression of each content file, null 
+   * if the compression is not selected per operation
+   * @throws IOException error occurred when reading the file or outputing
+   */
+  protected static void writeContent(File file, OutputStream out, Map<File, Compression> contentCompressions) throws IOException {
+    if (contentCompressions != null) {
+      Compression contentCompression = contentCompressions.get(file);
+      if (contentCompression != null) {
+        PatchWriteUtil.writeOperationStart(out, contentCompression);
+      }
+    }
+    PatchWriteUtil.writePatch(file, out);
+    PatchWriteUtil.writeOperationEnd(out);
+  }
+
+  /**
+   * Select the compression of the content of each operation by 
+   * {@link #probeCompression(java.io.File)}, and record it into the 
+   * operation.
+   * @param operations the operations, in the order that their content are 
+   * written
+   * @param contentFiles the content files, in the order that they are 
+   * written
+   * @return the compression of each content file, except the empty files
+   * @throws IOException error occurred when reading the files, or the 
+   * content files do not match with the operations
+   */
+  protected static Map<File, Compression> selectCompressions(List<Operation> operations, List<File> contentFiles) throws IOException {
+    Map<File, Compression> returnMap = new HashMap<File, Compression>();
+
+    // the operations with content stored have the same order as the content files
+    Iterator<Operation> operationIterator = operations.iterator();
+    for (File _file : contentFiles) {
+      if (_file.length() == 0) {
+        continue;
+      }
+
+      Operation _operation = null;
+      while (operationIterator.hasNext()) {
+        Operation _nextOperation = operationIterator.next();
+        if (_nextOperation.getPatchLength() > 0) {
+          _operation = _nextOperation;
+          break;
+        }
+      }
+      if (_operation == null || _operation.getPatchLength() != _file.length()) {
+        throw new IOException(String.format("Content file not match with the operation: %1$s", _file.getAbsolutePath()));
+      }
+
+      Compression contentCompression = probeCompression(_file);
+      _operation.setCompression(contentCompression.getValue());
+      returnMap.put(_file, contentCompression);
+    }
+
+    return returnMap;
+  }
+
+  /**
+   * Select the compression of a file by compressing some samples of it with 
+   * the fastest deflate. {@link Compression#NONE} if it is not compressible 
+   * (e.g. images and archives), {@link Compression#GZIP} if it is small or 
+   * only slightly compressible, otherwise {@link Compression#LZMA2}.
+   * @param file the file
+   * @return the compression
+   * @throws IOException error occurred when reading the file
+   */
+  protected static Compression probeCompression(File file) throws IOException {
+    long fileLength = file.length();
+
+    // sample the start, the middle and the end of the file
+    byte[] sample = new byte[(int) Math.min(fileLength, PROBE_SAMPLE_SIZE * 3)];
+    RandomAccessFile randomAccessFile = null;
+    try {
+      randomAccessFile = new RandomAccessFile(file, "r");
+      if (sample.length == fileLength) {
+        randomAccessFile.readFully(sample);
+      } else {
+        long[] offsets = new long[]{0, (fileLength - PROBE_SAMPLE_SIZE) / 2, fileLength - PROBE_SAMPLE_SIZE};
+        for (int i = 0; i < offsets.length; i++) {
+          randomAccessFile.seek(offsets[i]);
+          randomAccessFile.readFully(sample, i * PROBE_SAMPLE_SIZE, PROBE_SAMPLE_SIZE);
+        }
+      }
+    } finally {
+      CommonUtil.closeQuietly(randomAccessFile);
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    long compressedLength = 0;
+    try {
+      deflater.setInput(sample);
+      deflater.finish();
+      byte[] b = new byte[32768];
+      while (!deflater.finished()) {
+        compressedLength += deflater.deflate(b);
+      }
+    } finally {
+      deflater.end();
+    }
+
+    double ratio = sample.length == 0 ? 1 : (double) compressedLength / (double) sample.length;
+    if (ratio >= PROBE_STORE_RATIO) {
+      return Compression.NONE;
+    }
+    if (ratio >= PROBE_GZIP_RATIO || fileLength < PROBE_SMALL_FILE_SIZE) {
+      return Compression.GZIP;
+    }
+    return Compression.LZMA2;
+  }
+
+  /**
+   * If an earlier operation in {@code contentOperations} has the same new 
+   * file content as {@code operation}, make {@code operation} a duplicate of 
+   * it, otherwise record {@code operation} into {@code contentOperations}.
+   * @param contentOperations the operations that store the content, keyed 
+   * by checksum and length
+   * @param operation the operation that store the whole new file as content
+   * @return true if {@code operation} is set to be a duplicate and its 
+   * content should not be stored
+   */
+  protected static boolean setDuplicate(Map<String, Operation> contentOperations, Operation operation) {
+    if (operation.getNewFileLength() <= 0) {
+      return false;
+    }
+
+    String key = operation.getNewFileChecksum() + ":" + operation.getNewFileLength();
+    Operation contentOperation = contentOperations.get(key);
+    if (contentOperation == null) {
+      contentOperations.put(key, operation);
+      return false;
+    }
+
+    operation.setPatchPos(contentOperation.getPatchPos());
+    operation.setPatchLength(0);
+    operation.setDuplicateOf(contentOperation.getId());
+    return true;
+  }
+
+  /**
+   * Get the extension of the file name in lower case, without the dot.
+   * @param file the file
+   * @return the extension, or empty string if the file name has no extension
+   */
+  protected static String getFileExtension(File file) {
+    String fileName = file.getName();
+    int dotIndex = fileName.lastIndexOf('.');
+    return dotIndex == -1 ? "" : fileName.substring(dotIndex + 1).toLowerCase();
+  }
+
+  /**
+   * Wait for the result of {@code future}.
+   * @param <T> the result type
+   * @param future the future to wait for, null will return null
+   * @return the result
+   * @throws IOException the task failed or the waiting thread is interrupted
+   */
+  protected static <T> T getResult(Future<T> future) throws IOException {
+    if (future == null) {
+      return null;
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Task to get the SHA-256 checksum of a file.
+   */
+  protected static class ChecksumTask implements Callable<String> {
+
+    /**
+     * The file to digest.
+     */
+    protected File file;
+    /**
+     * The cache of digest, can be null.
+     */
+    protected DigestCache digestCache;
+
+    /**
+     * Constructor.
+     * @param file the file to digest
+     * @param digestCache the cache of digest, null means not to use cache
+     */
+    protected ChecksumTask(File file, DigestCache digestCache) {
+      this.file = file;
+      this.digestCache = digestCache;
+    }
+
+    @Override
+    public String call() throws IOException {
+      return DigestCache.getSHA256String(digestCache, file);
+    }
+  }
+
+  /**
+   * Task to compute the delta from the old file to the new file of an 
+   * {@link OperationRecord}. The result of the task is null if the two files 
+   * are identical.
+   */
+  protected static class DiffTask implements Callable<DiffResult> {
+
+    /**
+     * The record containing the old file and the new file.
+     */
+    protected OperationRecord record;
+    /**
+     * The file to store the delta.
+     */
+    protected File diffFile;
+    /**
+     * The cache of digest, can be null.
+     */
+    protected DigestCache digestCache;
+    /**
+     * Indicate whether to compute the delta of jar files on their expanded 
+     * forms, see {@link OperationType#JAR_PATCH}.
+     */
+    protected boolean expandJar;
+    /**
+     * Indicate whether to compute the delta by {@link SuffixArrayDelta}, 
+     * see {@link OperationType#SUFFIX_ARRAY_PATCH}.
+     */
+    protected boolean suffixArray;
+    /**
+     * Indicate whether to write the delta computed by {@link Delta} in 
+     * VCDIFF format, see {@link OperationType#VCDIFF_PATCH}.
+     */
+    protected boolean vcdiff;
+    /**
+     * Indicate whether to also compute the delta by {@link LZMA2DictDelta} 
+     * and use it if smaller, see {@link OperationType#LZMA2_DICT_PATCH}.
+     */
+    protected boolean lzmaDict;
+    /**
+     * The window size of {@link WindowedDelta} for the old files longer than 
+     * it, -1 means always use {@link Delta}.
+     */
+    protected int windowSize;
+
+    /**
+     * Constructor.
+     * @param record the record containing the old file and the new file
+     * @param diffFile the file to store the delta
+     * @param digestCache the cache of digest, null means not to use cache
+     * @param expandJar true to compute the delta of jar files on their 
+     * expanded forms, false to compute on the files as is
+     * @param suffixArray true to compute the delta by 
+     * {@link SuffixArrayDelta}, false by {@link Delta}
+     * @param vcdiff true to write the delta computed by {@link Delta} in 
+     * VCDIFF format, false in GDIFF format
+     * @param lzmaDict true to also compute the delta by 
+     * {@link LZMA2DictDelta} and use it if it is smaller than the delta 
+     * compressed by XZ
+     * @param windowSize the window size of {@link WindowedDelta} for the 
+     * old files longer than it, -1 means always use {@link Delta}
+     */
+    protected DiffTask(OperationRecord record, File diffFile, DigestCache digestCache, boolean expandJar, boolean suffixArray, boolean vcdiff, boolean lzmaDict, int windowSize) {
+      this.record = record;
+      this.diffFile = diffFile;
+      this.digestCache = digestCache;
+      this.expandJar = expandJar;
+      this.suffixArray = suffixArray;
+      this.vcdiff = vcdiff;
+      this.lzmaDict = lzmaDict;
+      this.windowSize = windowSize;
+    }
+
+    @Override
+    public DiffResult call() throws IOException {
+      File _oldFile = record.getOldFile();
+      File _newFile = record.getNewFile();
+
+      String oldFileChecksum = null;
+      if (digestCache != null) {
+        // compare the cached digests instead of reading both files
+        oldFileChecksum = digestCache.getSHA256String(_oldFile);
+        if (_oldFile.length() == _newFile.length() && oldFileChecksum.equals(digestCache.getSHA256String(_newFile))) {
+          return null;
+        }
+      } else if (CommonUtil.compareFile(_oldFile, _newFile)) {
+        return null;
+      }
+
+      if (oldFileChecksum == null) {
+        oldFileChecksum = CommonUtil.getSHA256String(_oldFile);
+      }
+
+      DiffResult diffResult;
+      if (expandJar && JarExpander.isZipFile(_oldFile) && JarExpander.isZipFile(_newFile) && computeJarDelta(_oldFile, _newFile)) {
+        diffResult = new DiffResult(diffFile, oldFileChecksum, OperationType.JAR_PATCH);
+      } else if (suffixArray) {
+        new SuffixArrayDelta().compute(_oldFile, _newFile, diffFile);
+        diffResult = new DiffResult(diffFile, oldFileChecksum, OperationType.SUFFIX_ARRAY_PATCH);
+      } else {
+        FileOutputStream fout = null;
+        try {
+          fout = new FileOutputStream(diffFile);
+          DiffWriter diffOut = vcdiff ? new VCDiffWriter(fout) : new GDiffWriter(fout);
+          if (windowSize != -1 && _oldFile.length() > windowSize) {
+            new WindowedDelta(windowSize).compute(_oldFile, _newFile, diffOut);
+          } else {
+            // Delta is not thread-safe, use one for each task
+            new Delta().compute(_oldFile, _newFile, diffOut);
+          }
+        } finally {
+          CommonUtil.closeQuietly(fout);
+        }
+        diffResult = new DiffResult(diffFile, oldFileChecksum, vcdiff ? OperationType.VCDIFF_PATCH : OperationType.PATCH);
+      }
+
+      if (lzmaDict && _oldFile.length() <= LZMA2DictDelta.MAX_LENGTH && _newFile.length() <= LZMA2DictDelta.MAX_LENGTH) {
+        // the delta will be compressed by XZ in the patch, while the LZMA2 delta is already compressed
+        File dictDiffFile = new File(diffFile.getAbsolutePath() + ".dict");
+        FileOutputStream fout = null;
+        try {
+          fout = new FileOutputStream(dictDiffFile);
+          BufferedOutputStream out = new BufferedOutputStream(fout);
+          new LZMA2DictDelta().compute(_oldFile, _newFile, out);
+          out.flush();
+        } finally {
+          CommonUtil.closeQuietly(fout);
+        }
+        if (dictDiffFile.length() < LZMA2DictDelta.getXZCompressedLength(diffFile)) {
+          diffFile.delete();
+          if (!dictDiffFile.renameTo(diffFile)) {
+            throw new IOException(String.format("Failed to move file from %1$s to %2$s", dictDiffFile.getAbsolutePath(), diffFile.getAbsolutePath()));
+          }
+          diffResult = new DiffResult(diffFile, oldFileChecksum, OperationType.LZMA2_DICT_PATCH);
+        } else {
+          dictDiffFile.delete();
+        }
+      }
+
+      return diffResult;
+    }
+
+    /**
+     * Compute the delta of the expanded forms of the two jar files and 
+     * write it to {@link #diffFile}, preceded by the entries to recompress.
+     * @param oldFile the old jar file
+     * @param newFile the new jar file
+     * @return true if succeed, false if the jar files are not supported or 
+     * no entry of the new jar file can be reproduced
+     * @throws IOException error occurred when reading or writing
+     */
+    protected boolean computeJarDelta(File oldFile, File newFile) throws IOException {
+      File expandedOldFile = new File(diffFile.getAbsolutePath() + ".old");
+      File expandedNewFile = new File(diffFile.getAbsolutePath() + ".new");
+      FileOutputStream fout = null;
+      try {
+        try {
+          JarExpander.expand(oldFile, expandedOldFile);
+        } catch (ZipException ex) {
+          // the patcher cannot expand the old file either
+          return false;
+        }
+
+        List<JarExpander.ExpandedEntry> entries;
+        fout = new FileOutputStream(expandedNewFile);
+        try {
+          BufferedOutputStream out = new BufferedOutputStream(fout);
+          entries = JarExpander.expand(newFile, out, true);
+          out.flush();
+        } catch (ZipException ex) {
+          return false;
+        } finally {
+          CommonUtil.closeQuietly(fout);
+        }
+        if (entries == null || entries.isEmpty()) {
+          return false;
+        }
+
+        fout = new FileOutputStream(diffFile);
+        BufferedOutputStream out = new BufferedOutputStream(fout);
+        JarExpander.writeEntries(out, entries);
+        if (windowSize != -1 && expandedOldFile.length() > windowSize) {
+          new WindowedDelta(windowSize).compute(expandedOldFile, expandedNewFile, new GDiffWriter(out));
+        } else {
+          // Delta is not thread-safe, use one for each task
+          new Delta().compute(expandedOldFile, expandedNewFile, new GDiffWriter(out));
+        }
+        return true;
+      } finally {
+        CommonUtil.closeQuietly(fout);
+        expandedOldFile.delete();
+        expandedNewFile.delete();
+      }
+    }
+  }
+
+  /**
+   * The result of {@link DiffTask}.
+   */
+  protected static class DiffResult {
+
+    /**
+     * The file that stored the delta.
+     */
+    protected File diffFile;
+    /**
+     * The SHA-256 checksum of the old file.
+     */
+    protected String oldFileChecksum;
+    /**
+     * The operation type to apply the delta, either 
+     * {@link OperationType#PATCH}, {@link OperationType#JAR_PATCH}, 
+     * {@link OperationType#SUFFIX_ARRAY_PATCH}, 
+     * {@link OperationType#VCDIFF_PATCH} or 
+     * {@link OperationType#LZMA2_DICT_PATCH}.
+     */
+    protected OperationType operationType;
+
+    /**
+     * Constructor.
+     * @param diffFile the file that stored the delta
+     * @param oldFileChecksum the SHA-256 checksum of the old file
+     * @param operationType the operation type to apply the delta
+     */
+    protected DiffResult(File diffFile, String oldFileChecksum, OperationType operationType) {
+      this.diffFile = diffFile;
+      this.oldFileChecksum = oldFileChecksum;
+      this.operationType = operationType;
+    }
+
+    /**
+     * Get the file that stored the delta.
+     * @return the file
+     */
+    public File getDiffFile() {
+      return diffFile;
+    }
+
+    /**
+     * Get the SHA-256 checksum of the old file.
+     * @return the checksum in hex string
+     */
+    public String getOldFileChecksum() {
+      return oldFileChecksum;
+    }
+
+    /**
+     * Get the operation type to apply the delta.
+     * @return the operation type
+     */
+    public OperationType getOperationType() {
+      return operationType;
+    }
+  }
+
   /**
    * The temporary record used when creating the patch.
    */
@@ -99,7 +99,11 @@ public class PatchExtractor {
       List<Operation> operations = patchXML.getOperations();
       for (Operation operation : operations) {
         if (operation.getPatchLength() > 0) {
-          PatchReadUtil.readToFile(new File(saveToFolder.getAbsolutePath() + File.separator + id), decompressedIn, operation.getPatchLength());
+          InputStream contentIn = PatchReadUtil.readOperationContent(decompressedIn, operation);
+          PatchReadUtil.readToFile(new File(saveToFolder.getAbsolutePath() + File.separator + id), contentIn, operation.getPatchLength());
+          if (contentIn != decompressedIn) {
+            contentIn.close();
+          }
         }
         id++;
       }
@@ -0,0 +1,354 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.Delta;
+import java.util.Set;
+import updater.script.Patch.Operation;
+
+/**
+ * The options of {@link PatchCreator} to create full patch or patch.
+ * <p>
+ * The default options create the same patch as the previous versions of 
+ * the builder, that can be applied by any updater. The options marked 
+ * 'the patch can only be applied by updater of this version or later' 
+ * should be enabled only when all clients are updated.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class PatchOptions {
+
+  /**
+   * The number of worker threads used to compute the deltas and checksums.
+   */
+  protected int threadCount;
+  /**
+   * The compression method.
+   */
+  protected Compression compression;
+  /**
+   * The number of worker threads used to compress the patch.
+   */
+  protected int compressionThreadCount;
+  /**
+   * The uncompressed size of a compression block, -1 means use the default.
+   */
+  protected int blockSize;
+  /**
+   * Indicate whether to store identical content only once.
+   */
+  protected boolean deduplicate;
+  /**
+   * Indicate whether to create the moved and copied files from the old 
+   * files.
+   */
+  protected boolean detectMoves;
+  /**
+   * The cache of SHA-256 digest of files, null means not to use cache.
+   */
+  protected DigestCache digestCache;
+  /**
+   * The file extensions of the files to compute delta by 
+   * {@link SuffixArrayDelta}, null means none.
+   */
+  protected Set<String> suffixArrayFileTypes;
+  /**
+   * Indicate whether to write the deltas in VCDIFF format.
+   */
+  protected boolean vcdiff;
+  /**
+   * Indicate whether to also compute the deltas by {@link LZMA2DictDelta}.
+   */
+  protected boolean lzmaDict;
+  /**
+   * Indicate whether to compute the deltas of jar files on their inflated 
+   * content.
+   */
+  protected boolean jarPatch;
+  /**
+   * The window size of {@link WindowedDelta}, -1 means not to use it.
+   */
+  protected int windowSize;
+
+  /**
+   * Constructor.
+   */
+  public PatchOptions() {
+    threadCount = 1;
+    compression = Compression.LZMA2;
+    compressionThreadCount = 1;
+    blockSize = -1;
+    deduplicate = false;
+    detectMoves = false;
+    digestCache = null;
+    suffixArrayFileTypes = null;
+    vcdiff = false;
+    lzmaDict = false;
+    jarPatch = false;
+    windowSize = -1;
+  }
+
+  /**
+   * Get the number of worker threads used to compute the deltas and 
+   * checksums when creating patch.
+   * @return the number of threads
+   */
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Set the number of worker threads used to compute the deltas and 
+   * checksums when creating patch. Default is 1.
+   * @param threadCount the number of threads, should >= 1
+   */
+  public void setThreadCount(int threadCount) {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("argument 'threadCount' should >= 1");
+    }
+    this.threadCount = threadCount;
+  }
+
+  /**
+   * Get the compression method.
+   * @return the compression method
+   */
+  public Compression getCompression() {
+    return compression;
+  }
+
+  /**
+   * Set the compression method. Default is {@link Compression#LZMA2}.
+   * {@link Compression#LZMA2_BLOCKS} and {@link Compression#PER_OPERATION} 
+   * can only be applied by updater of this version or later.
+   * @param compression the compression method, either 
+   * {@link Compression#LZMA2}, {@link Compression#LZMA2_BLOCKS} or 
+   * {@link Compression#PER_OPERATION}
+   */
+  public void setCompression(Compression compression) {
+    if (compression != Compression.LZMA2 && compression != Compression.LZMA2_BLOCKS && compression != Compression.PER_OPERATION) {
+      throw new IllegalArgumentException("argument 'compression' should be either LZMA2, LZMA2_BLOCKS or PER_OPERATION");
+    }
+    this.compression = compression;
+  }
+
+  /**
+   * Get the number of worker threads used to compress the patch.
+   * @return the number of threads
+   */
+  public int getCompressionThreadCount() {
+    return compressionThreadCount;
+  }
+
+  /**
+   * Set the number of worker threads used to compress the patch. Default is 
+   * 1.
+   * @param compressionThreadCount the number of threads, should >= 1
+   * @see PatchWriteUtil#writeCompressionMethod(java.io.OutputStream, updater.patch.Compression, int, int)
+   */
+  public void setCompressionThreadCount(int compressionThreadCount) {
+    if (compressionThreadCount < 1) {
+      throw new IllegalArgumentException("argument 'compressionThreadCount' should >= 1");
+    }
+    this.compressionThreadCount = compressionThreadCount;
+  }
+
+  /**
+   * Get the uncompressed size of a compression block.
+   * @return the size in bytes, -1 means use the default
+   */
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Set the uncompressed size of a compression block when the compression 
+   * is {@link Compression#LZMA2_BLOCKS} or the compression thread count 
+   * > 1. Default is -1.
+   * @param blockSize the size in bytes, -1 means use the default
+   */
+  public void setBlockSize(int blockSize) {
+    if (blockSize <= 0 && blockSize != -1) {
+      throw new IllegalArgumentException("argument 'blockSize' should be greater than 0 or equals to -1");
+    }
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Check whether to store identical content only once.
+   * @return true if deduplicate, false if not
+   */
+  public boolean isDeduplicate() {
+    return deduplicate;
+  }
+
+  /**
+   * Set whether to store the content of files with the same SHA-256 
+   * checksum and length only once, the later operations will reference the 
+   * earlier one by {@link Operation#getDuplicateOf()}. Default is false. The 
+   * patch can only be applied by updater of this version or later.
+   * @param deduplicate true to deduplicate, false not
+   */
+  public void setDeduplicate(boolean deduplicate) {
+    this.deduplicate = deduplicate;
+  }
+
+  /**
+   * Check whether to create the moved and copied files from the old files.
+   * @return true if detect, false if not
+   */
+  public boolean isDetectMoves() {
+    return detectMoves;
+  }
+
+  /**
+   * Set whether to create the new files that have the same or similar 
+   * content as an old file by copying the old file when creating patch, see 
+   * {@link OperationType#COPY}. Default is false. The patch can only be 
+   * applied by updater of this version or later.
+   * @param detectMoves true to detect, false not
+   */
+  public void setDetectMoves(boolean detectMoves) {
+    this.detectMoves = detectMoves;
+  }
+
+  /**
+   * Get the cache of SHA-256 digest of files.
+   * @return the cache, null means not to use cache
+   */
+  public DigestCache getDigestCache() {
+    return digestCache;
+  }
+
+  /**
+   * Set the cache of SHA-256 digest of files. Default is null.
+   * @param digestCache the cache, null means not to use cache
+   */
+  public void setDigestCache(DigestCache digestCache) {
+    this.digestCache = digestCache;
+  }
+
+  /**
+   * Get the file extensions of the files to compute delta by 
+   * {@link SuffixArrayDelta}.
+   * @return the file extensions, null means none
+   */
+  public Set<String> getSuffixArrayFileTypes() {
+    return suffixArrayFileTypes;
+  }
+
+  /**
+   * Set the file extensions (in lower case, without the dot) of the files 
+   * to compute delta by {@link SuffixArrayDelta} instead of 
+   * {@link com.nothome.delta.Delta} when creating patch, e.g. "exe" and 
+   * "dll". Default is null. The patch can only be applied by updater of this 
+   * version or later.
+   * @param suffixArrayFileTypes the file extensions, null means none
+   */
+  public void setSuffixArrayFileTypes(Set<String> suffixArrayFileTypes) {
+    this.suffixArrayFileTypes = suffixArrayFileTypes;
+  }
+
+  /**
+   * Check whether to write the deltas in VCDIFF format.
+   * @return true if VCDIFF, false if GDIFF
+   */
+  public boolean isVCDiff() {
+    return vcdiff;
+  }
+
+  /**
+   * Set whether to write the deltas computed by 
+   * {@link com.nothome.delta.Delta} in VCDIFF format by {@link VCDiffWriter} 
+   * instead of GDIFF when creating patch, see 
+   * {@link OperationType#VCDIFF_PATCH}. Default is false. The patch can only 
+   * be applied by updater of this version or later.
+   * @param vcdiff true to use VCDIFF, false to use GDIFF
+   */
+  public void setVCDiff(boolean vcdiff) {
+    this.vcdiff = vcdiff;
+  }
+
+  /**
+   * Check whether to also compute the deltas by {@link LZMA2DictDelta}.
+   * @return true if compute, false if not
+   */
+  public boolean isLZMADict() {
+    return lzmaDict;
+  }
+
+  /**
+   * Set whether to also compress each new file by LZMA2 with the old file 
+   * as the preset dictionary by {@link LZMA2DictDelta} when creating patch, 
+   * if both files are not longer than {@link LZMA2DictDelta#MAX_LENGTH}, 
+   * and use it if it is smaller than the delta compressed by XZ, see 
+   * {@link OperationType#LZMA2_DICT_PATCH}. Default is false. The patch can 
+   * only be applied by updater of this version or later.
+   * @param lzmaDict true to compute, false not
+   */
+  public void setLZMADict(boolean lzmaDict) {
+    this.lzmaDict = lzmaDict;
+  }
+
+  /**
+   * Check whether to compute the deltas of jar files on their inflated 
+   * content.
+   * @return true if compute on the inflated content, false if not
+   */
+  public boolean isJarPatch() {
+    return jarPatch;
+  }
+
+  /**
+   * Set whether to compute the deltas of jar (zip) files on their inflated 
+   * content by {@link JarExpander} when creating patch, see 
+   * {@link OperationType#JAR_PATCH}. Default is false. The patch can only be 
+   * applied by updater of this version or later, and the client JRE should 
+   * deflate identically to the JRE of the builder.
+   * @param jarPatch true to compute on the inflated content, false not
+   */
+  public void setJarPatch(boolean jarPatch) {
+    this.jarPatch = jarPatch;
+  }
+
+  /**
+   * Get the window size of {@link WindowedDelta}.
+   * @return the size in bytes, -1 means not to use {@link WindowedDelta}
+   */
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  /**
+   * Set the window size of {@link WindowedDelta}. The deltas of the old 
+   * files longer than the window size will be computed by 
+   * {@link WindowedDelta} instead of {@link Delta}, which bounds the memory 
+   * to about the window size, but the content moved farther than half of 
+   * the window will be stored as is. Default is -1.
+   * @param windowSize the size in bytes, -1 means always use {@link Delta}
+   */
+  public void setWindowSize(int windowSize) {
+    if (windowSize < 2 && windowSize != -1) {
+      throw new IllegalArgumentException("argument 'windowSize' should be greater than 1 or equals to -1");
+    }
+    this.windowSize = windowSize;
+  }
+}
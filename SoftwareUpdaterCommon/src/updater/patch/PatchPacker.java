@@ -25,7 +25,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.List;
 import javax.xml.transform.TransformerException;
-import org.tukaani.xz.XZOutputStream;
+import org.tukaani.xz.FinishableOutputStream;
 import updater.crypto.AESKey;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
@@ -53,6 +53,25 @@ public class PatchPacker {
    * is invalid
    */
   public static void pack(File sourceFolder, File saveToFile, AESKey aesKey, File tempFileForEncryption) throws IOException, InvalidFormatException {
+    pack(sourceFolder, saveToFile, aesKey, tempFileForEncryption, 1, -1);
+  }
+
+  /**
+   * Pack the patch from the folder.
+   * @param sourceFolder the folder that store the patch data to be pack
+   * @param saveToFile the place to store the packed patch
+   * @param aesKey the cipher key, null means don't use encryption
+   * @param tempFileForEncryption if {@code aesKey} is specified, this should 
+   * be provided to store the temporary encrypted file
+   * @param threadCount the number of worker threads used to compress the 
+   * patch, should >= 1
+   * @param blockSize the uncompressed size of a compression block when 
+   * {@code threadCount} > 1, -1 means use the default
+   * @throws IOException error occurred when packing
+   * @throws InvalidFormatException the format of the patch XML in the patch 
+   * is invalid
+   */
+  public static void pack(File sourceFolder, File saveToFile, AESKey aesKey, File tempFileForEncryption, int threadCount, int blockSize) throws IOException, InvalidFormatException {
     if (sourceFolder == null) {
       throw new NullPointerException("argument 'sourceFolder' cannot be null");
     }
@@ -62,6 +81,9 @@ public class PatchPacker {
     if (aesKey != null && tempFileForEncryption == null) {
       throw new NullPointerException("argument 'tempFileForEncryption' cannot be null while argument 'aesKey' is not null");
     }
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("argument 'threadCount' should >= 1");
+    }
 
     if (!sourceFolder.isDirectory()) {
       throw new IOException("sourceFolder is not a directory.");
@@ -77,7 +99,7 @@ public class PatchPacker {
       fout = new FileOutputStream(saveToFile);
 
       PatchWriteUtil.writeHeader(fout);
-      XZOutputStream xzOut = (XZOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2);
+      FinishableOutputStream xzOut = (FinishableOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2, threadCount, blockSize);
       try {
         PatchWriteUtil.writeXML(xzOut, patch.output());
       } catch (TransformerException ex) {
@@ -24,17 +24,18 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.zip.GZIPInputStream;
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
 import org.tukaani.xz.XZInputStream;
+import updater.crypto.AESCipher;
 import updater.crypto.AESKey;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
+import updater.script.Patch.Operation;
 import updater.util.CommonUtil;
-import watne.seis720.project.AESForFile;
 import watne.seis720.project.AESForFileListener;
-import watne.seis720.project.KeySize;
-import watne.seis720.project.Mode;
-import watne.seis720.project.Padding;
 
 /**
  * Functions for reading the patch.
@@ -42,6 +43,11 @@ import watne.seis720.project.Padding;
  */
 public class PatchReadUtil {
 
+  /**
+   * The length of the patch header and the compression method.
+   */
+  protected static final int COMPRESSED_CONTENT_OFFSET = 6;
+
   protected PatchReadUtil() {
   }
 
@@ -72,6 +78,50 @@ public class PatchReadUtil {
    * @throws IOException error occurred when reading from {@code in}
    */
   public static InputStream readCompressionMethod(InputStream in) throws IOException {
+    return readCompressionMethod(in, null);
+  }
+
+  /**
+   * Read the compression method used by the patch. If the patch is 
+   * compressed with {@link Compression#LZMA2_BLOCKS} and {@code patchFile} 
+   * is specified, the returned stream read from {@code patchFile} directly 
+   * and support seeking, that {@link InputStream#skip(long)} on it will seek 
+   * to the position instead of decompressing the skipped content.
+   * <p>
+   * If {@code patchFile} is specified and the XZ stream contains multiple 
+   * blocks, the blocks are decompressed in parallel using one thread per 
+   * processor, see 
+   * {@link #readCompressionMethod(java.io.InputStream, java.io.File, int)}.
+   * </p>
+   * @param in the stream to read
+   * @param patchFile the unencrypted patch file that {@code in} is reading, 
+   * null if not available
+   * @return the decompress stream of {@code in}
+   * @throws IOException error occurred when reading from {@code in} or 
+   * {@code patchFile}
+   */
+  public static InputStream readCompressionMethod(InputStream in, File patchFile) throws IOException {
+    return readCompressionMethod(in, patchFile, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Read the compression method used by the patch. If {@code patchFile} is 
+   * specified and the XZ stream of {@link Compression#LZMA2} or 
+   * {@link Compression#LZMA2_BLOCKS} contains multiple blocks, the returned 
+   * stream read from {@code patchFile} directly and decompress the blocks 
+   * ahead using {@code threadCount} threads, see 
+   * {@link ParallelXZInputStream}. Otherwise it behave the same as 
+   * {@link #readCompressionMethod(java.io.InputStream, java.io.File)}.
+   * @param in the stream to read
+   * @param patchFile the unencrypted patch file that {@code in} is reading, 
+   * null if not available
+   * @param threadCount the maximum number of threads to decompress with, 1 
+   * means not to decompress in parallel
+   * @return the decompress stream of {@code in}
+   * @throws IOException error occurred when reading from {@code in} or 
+   * {@code patchFile}
+   */
+  public static InputStream readCompressionMethod(InputStream in, File patchFile, int threadCount) throws IOException {
     if (in == null) {
       throw new NullPointerException("argument 'in' cannot be null");
     }
@@ -84,11 +134,31 @@ public class PatchReadUtil {
     int compressionMode = buf[0] & 0xff;
     Compression compression = Compression.getCompression(compressionMode);
     if (compression != null) {
+      if ((compression == Compression.LZMA2 || compression == Compression.LZMA2_BLOCKS) && patchFile != null && threadCount > 1) {
+        InputStream parallelIn = ParallelXZInputStream.open(patchFile, COMPRESSED_CONTENT_OFFSET, threadCount, ParallelXZInputStream.DEFAULT_MEMORY_BUDGET);
+        if (parallelIn != null) {
+          return parallelIn;
+        }
+      }
+
       switch (compression) {
         case GZIP:
           return new GZIPInputStream(in);
         case LZMA2: // XZ/LZMA2
           return new XZInputStream(in);
+        case LZMA2_BLOCKS:
+          if (patchFile == null) {
+            return new XZInputStream(in);
+          }
+          SeekableInputStream fileIn = new SeekableFileRegionInputStream(patchFile, COMPRESSED_CONTENT_OFFSET);
+          try {
+            return new SeekableXZInputStream(fileIn);
+          } catch (IOException ex) {
+            CommonUtil.closeQuietly(fileIn);
+            throw ex;
+          }
+        case PER_OPERATION:
+          return new OperationCompressionInputStream(in);
       }
     }
 
@@ -120,6 +190,38 @@ public class PatchReadUtil {
     return Patch.read(xmlData);
   }
 
+  /**
+   * Get the stream to read the content of {@code operation} from. For 
+   * {@link Compression#PER_OPERATION}, it is a new stream decompressing the 
+   * content of the operation, which should be closed after reading to skip 
+   * the remaining of the content; otherwise it is {@code in}.
+   * @param in the decompress stream returned by 
+   * {@link #readCompressionMethod(java.io.InputStream)}, the patch XML should 
+   * be read already
+   * @param operation the operation
+   * @return the stream to read the content from
+   * @throws IOException error occurred when reading from {@code in}, or the 
+   * compression of the operation is not supported
+   */
+  public static InputStream readOperationContent(InputStream in, Operation operation) throws IOException {
+    if (in == null) {
+      throw new NullPointerException("argument 'in' cannot be null");
+    }
+    if (operation == null) {
+      throw new NullPointerException("argument 'operation' cannot be null");
+    }
+
+    // the content of the operation is not stored if its length is 0
+    if (!(in instanceof OperationCompressionInputStream) || operation.getPatchLength() <= 0) {
+      return in;
+    }
+    Compression compression = Compression.getCompression(operation.getCompression());
+    if (compression == null) {
+      throw new IOException(String.format("Compression of operation %1$d not supported/not exist", operation.getId()));
+    }
+    return ((OperationCompressionInputStream) in).openOperation(compression);
+  }
+
   /**
    * Read from the stream with size {@code length} and save to {@code saveTo}.
    * @param saveTo the file to save to
@@ -128,7 +230,7 @@ public class PatchReadUtil {
    * @throws IOException error occurred when reading from {@code in} or 
    * saving to {@code saveTo}
    */
-  public static void readToFile(File saveTo, InputStream in, int length) throws IOException {
+  public static void readToFile(File saveTo, InputStream in, long length) throws IOException {
     if (saveTo == null) {
       throw new NullPointerException("argument 'saveTo' cannot be null");
     }
@@ -144,8 +246,9 @@ public class PatchReadUtil {
       fout = new FileOutputStream(saveTo);
 
       byte[] b = new byte[32768];
-      int byteRead, cumulativeByteRead = 0, byteToRead;
-      byteToRead = length > b.length ? b.length : length;
+      int byteRead, byteToRead;
+      long cumulativeByteRead = 0;
+      byteToRead = length > b.length ? b.length : (int) length;
       while ((byteRead = in.read(b, 0, byteToRead)) != -1) {
         fout.write(b, 0, byteRead);
 
@@ -154,7 +257,7 @@ public class PatchReadUtil {
           break;
         }
 
-        byteToRead = length - cumulativeByteRead > b.length ? b.length : length - cumulativeByteRead;
+        byteToRead = length - cumulativeByteRead > b.length ? b.length : (int) (length - cumulativeByteRead);
       }
     } finally {
       CommonUtil.closeQuietly(fout);
@@ -183,18 +286,68 @@ public class PatchReadUtil {
     decryptTo.delete();
 
     try {
-      AESForFile aesCipher = new AESForFile();
-      if (listener != null) {
-        aesCipher.setListener(listener);
-      }
-      aesCipher.setMode(Mode.CBC);
-      aesCipher.setPadding(Padding.PKCS5PADDING);
-      aesCipher.setKeySize(KeySize.BITS256);
-      aesCipher.setKey(aesKey.getKey());
-      aesCipher.setInitializationVector(aesKey.getIV());
+      AESCipher aesCipher = new AESCipher(aesKey);
+      aesCipher.setListener(listener);
       aesCipher.decryptFile(patchFile, decryptTo);
     } catch (Exception ex) {
       throw new IOException("Error occurred when decrypting the patch: " + ex.getMessage());
     }
   }
+
+  /**
+   * Seekable stream of the part of a file starting from a specified offset.
+   */
+  protected static class SeekableFileRegionInputStream extends SeekableInputStream {
+
+    /**
+     * The file.
+     */
+    protected final RandomAccessFile file;
+    /**
+     * The position in the file where this stream start.
+     */
+    protected final long offset;
+
+    /**
+     * Constructor.
+     * @param file the file to read
+     * @param offset the position in the file where this stream start
+     * @throws IOException error occurred when opening the file
+     */
+    protected SeekableFileRegionInputStream(File file, long offset) throws IOException {
+      this.file = new RandomAccessFile(file, "r");
+      this.offset = offset;
+      this.file.seek(offset);
+    }
+
+    @Override
+    public int read() throws IOException {
+      return file.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return file.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      file.close();
+    }
+
+    @Override
+    public long length() throws IOException {
+      return file.length() - offset;
+    }
+
+    @Override
+    public long position() throws IOException {
+      return file.getFilePointer() - offset;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+      file.seek(offset + pos);
+    }
+  }
 }
@@ -27,13 +27,10 @@ import java.io.OutputStream;
 import java.util.zip.GZIPOutputStream;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.XZOutputStream;
+import updater.crypto.AESCipher;
 import updater.crypto.AESKey;
 import updater.util.CommonUtil;
-import watne.seis720.project.AESForFile;
 import watne.seis720.project.AESForFileListener;
-import watne.seis720.project.KeySize;
-import watne.seis720.project.Mode;
-import watne.seis720.project.Padding;
 
 /**
  * Functions for writing the patch.
@@ -71,19 +68,56 @@ public class PatchWriteUtil {
    * the compress output stream
    */
   public static OutputStream writeCompressionMethod(OutputStream out, Compression compression) throws IOException {
+    return writeCompressionMethod(out, compression, 1, -1);
+  }
+
+  /**
+   * Write the compression method to the patch and return the compress output 
+   * stream. If {@code threadCount} is greater than 1, the LZMA2 compressions 
+   * will compress blocks of {@code blockSize} in parallel using 
+   * {@link ParallelXZOutputStream}, {@link Compression#LZMA2_BLOCKS} still 
+   * ends the blocks at operation boundaries. 
+   * {@link Compression#PER_OPERATION} always compress with one thread.
+   * @param out the stream to output
+   * @param compression the compression method
+   * @param threadCount the number of threads to compress with, only used by 
+   * {@link Compression#LZMA2} and {@link Compression#LZMA2_BLOCKS}
+   * @param blockSize the uncompressed size of a block, -1 means use the 
+   * default of the compression method
+   * @return the compress output stream
+   * @throws IOException error occurred when outputing the header or creating 
+   * the compress output stream
+   */
+  public static OutputStream writeCompressionMethod(OutputStream out, Compression compression, int threadCount, int blockSize) throws IOException {
     if (out == null) {
       throw new NullPointerException("argument 'out' cannot be null");
     }
     if (compression == null) {
       throw new NullPointerException("argument 'compression' cannot be null");
     }
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("argument 'threadCount' should be greater than 0");
+    }
+    if (blockSize <= 0 && blockSize != -1) {
+      throw new IllegalArgumentException("argument 'blockSize' should be greater than 0 or equals to -1");
+    }
 
     out.write(compression.getValue());
     switch (compression) {
       case GZIP:
         return new GZIPOutputStream(out);
       case LZMA2:
+        if (threadCount > 1) {
+          return new ParallelXZOutputStream(out, new LZMA2Options(), threadCount, blockSize == -1 ? ParallelXZOutputStream.DEFAULT_BLOCK_SIZE : blockSize);
+        }
         return new XZOutputStream(out, new LZMA2Options());
+      case LZMA2_BLOCKS:
+        if (threadCount > 1) {
+          return new ParallelXZOutputStream(out, new LZMA2Options(), threadCount, blockSize == -1 ? XZBlockOutputStream.DEFAULT_BLOCK_SIZE : blockSize, true);
+        }
+        return new XZBlockOutputStream(out, new LZMA2Options(), blockSize == -1 ? XZBlockOutputStream.DEFAULT_BLOCK_SIZE : blockSize);
+      case PER_OPERATION:
+        return new OperationCompressionOutputStream(out);
       default:
         throw new IOException("Compression method not supported/not exist");
     }
@@ -111,6 +145,58 @@ public class PatchWriteUtil {
 
     // XML content, max 16MiB
     out.write(content);
+
+    // the operations are read after the XML, so always start them in a new block
+    if (out instanceof XZBlockOutputStream) {
+      ((XZBlockOutputStream) out).endBlock();
+    } else if (out instanceof ParallelXZOutputStream && ((ParallelXZOutputStream) out).isSplitAtOperations()) {
+      ((ParallelXZOutputStream) out).endBlock();
+    }
+  }
+
+  /**
+   * Set the compression of the content of the next operation in the 
+   * compress output stream, used by {@link Compression#PER_OPERATION} only.
+   * @param out the compress output stream returned by 
+   * {@link #writeCompressionMethod(java.io.OutputStream, updater.patch.Compression)}
+   * @param compression the compression, either {@link Compression#NONE}, 
+   * {@link Compression#GZIP} or {@link Compression#LZMA2}
+   * @throws IOException the content of the previous operation is not ended
+   */
+  public static void writeOperationStart(OutputStream out, Compression compression) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    if (compression == null) {
+      throw new NullPointerException("argument 'compression' cannot be null");
+    }
+
+    if (out instanceof OperationCompressionOutputStream) {
+      ((OperationCompressionOutputStream) out).setCompression(compression);
+    }
+  }
+
+  /**
+   * Mark the end of the patch XML or the content of an operation in the 
+   * compress output stream, used by {@link Compression#LZMA2_BLOCKS} to split 
+   * the content into blocks and {@link Compression#PER_OPERATION} to end the 
+   * compression of the content.
+   * @param out the compress output stream returned by 
+   * {@link #writeCompressionMethod(java.io.OutputStream, updater.patch.Compression)}
+   * @throws IOException error occurred when outputing to {@code out}
+   */
+  public static void writeOperationEnd(OutputStream out) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    if (out instanceof XZBlockOutputStream) {
+      ((XZBlockOutputStream) out).endOperation();
+    } else if (out instanceof ParallelXZOutputStream) {
+      ((ParallelXZOutputStream) out).endOperation();
+    } else if (out instanceof OperationCompressionOutputStream) {
+      ((OperationCompressionOutputStream) out).endOperation();
+    }
   }
 
   /**
@@ -176,15 +262,8 @@ public class PatchWriteUtil {
     encryptTo.delete();
 
     try {
-      AESForFile aesCipher = new AESForFile();
-      if (listener != null) {
-        aesCipher.setListener(listener);
-      }
-      aesCipher.setMode(Mode.CBC);
-      aesCipher.setPadding(Padding.PKCS5PADDING);
-      aesCipher.setKeySize(KeySize.BITS256);
-      aesCipher.setKey(aesKey.getKey());
-      aesCipher.setInitializationVector(aesKey.getIV());
+      AESCipher aesCipher = new AESCipher(aesKey);
+      aesCipher.setListener(listener);
       aesCipher.encryptFile(patchFile, encryptTo);
     } catch (Exception ex) {
       throw new IOException("Error occurred when encrypting the patch: " + ex.getMessage());
@@ -20,7 +20,6 @@
 // WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
 package updater.patch;
 
-import com.nothome.delta.GDiffPatcher;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -28,11 +27,26 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import updater.crypto.AESCipher;
+import updater.crypto.AESCipherInputStream;
 import updater.crypto.AESKey;
 import updater.script.InvalidFormatException;
 import updater.script.Patch;
@@ -41,13 +55,9 @@ import updater.script.Patch.ValidationFile;
 import updater.util.CommonUtil;
 import updater.util.InterruptibleInputStream;
 import updater.util.InterruptibleOutputStream;
+import updater.util.MappedSeekableFile;
 import updater.util.Pausable;
 import updater.util.SeekableFile;
-import watne.seis720.project.AESForFile;
-import watne.seis720.project.AESForFileListener;
-import watne.seis720.project.KeySize;
-import watne.seis720.project.Mode;
-import watne.seis720.project.Padding;
 
 /**
  * The patch patcher.
@@ -67,6 +77,14 @@ public class Patcher implements Pausable {
    * The patching progress, from 0 to 100.
    */
   protected float progress;
+  /**
+   * The number of threads used to validate the files after patching.
+   */
+  protected int validationThreadCount;
+  /**
+   * The digests of the installed files verified before, null if not used.
+   */
+  protected DigestCache installedState;
   /**
    * Temporary references for {@link #doPatch(updater.patch.PatcherListener, 
    * java.io.File, int, updater.crypto.AESKey, java.io.File, java.io.File, java.util.Map)}
@@ -87,6 +105,15 @@ public class Patcher implements Pausable {
    * The log writer for logging patching event.
    */
   protected LogWriter log;
+  /**
+   * The operations of the patch, keyed by operation id.
+   */
+  protected Map<Integer, Operation> operationsById;
+  /**
+   * The digests of the files written in this patching, computed when 
+   * writing, keyed by the absolute path of the destination file.
+   */
+  protected Map<String, WrittenFile> writtenFiles;
   /**
    * Pausable.
    */
@@ -105,7 +132,7 @@ public class Patcher implements Pausable {
   /**
    * The AES cryptor.
    */
-  protected AESForFile aesCryptor;
+  protected AESCipher aesCryptor;
 
   /**
    * Constructor.
@@ -122,6 +149,9 @@ public class Patcher implements Pausable {
 
     buf = new byte[32768];
     progress = 0;
+    // the disk rather than the processor is usually the bottleneck with more threads
+    validationThreadCount = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+    installedState = null;
 
     newFileOut = null;
     interruptiblePatchIn = null;
@@ -129,6 +159,44 @@ public class Patcher implements Pausable {
     aesCryptor = null;
   }
 
+  /**
+   * Get the number of threads used to validate the files after patching.
+   * @return the number of threads
+   */
+  public int getValidationThreadCount() {
+    return validationThreadCount;
+  }
+
+  /**
+   * Set the number of threads used to validate the files after patching. 
+   * Default is the number of processors, at most 4.
+   * @param validationThreadCount the number of threads, should >= 1
+   */
+  public void setValidationThreadCount(int validationThreadCount) {
+    if (validationThreadCount < 1) {
+      throw new IllegalArgumentException("argument 'validationThreadCount' should >= 1");
+    }
+    this.validationThreadCount = validationThreadCount;
+  }
+
+  /**
+   * Get the digests of the installed files verified before.
+   * @return the installed state, null if not used
+   */
+  public DigestCache getInstalledState() {
+    return installedState;
+  }
+
+  /**
+   * Set the digests of the installed files verified before. When validating, 
+   * the files not changed since verified are not read again, and the files 
+   * verified are put into it. The caller is responsible to save it.
+   * @param installedState the installed state, null to not use
+   */
+  public void setInstalledState(DigestCache installedState) {
+    this.installedState = installedState;
+  }
+
   /**
    * Pause or resume the patching.
    * @param pause true to pause, false to resume
@@ -183,6 +251,7 @@ public class Patcher implements Pausable {
     // check if the new file is already patched and waiting for do replacement already
     if (newFile.exists()) {
       if (newFile.length() == operation.getNewFileLength() && CommonUtil.getSHA256String(newFile).equals(operation.getNewFileChecksum())) {
+        recordWrittenFile(destFile, newFile, operation.getNewFileChecksum());
         long byteSkipped = interruptiblePatchIn.skip(operation.getPatchLength());
         if (byteSkipped != operation.getPatchLength()) {
           throw new IOException("Failed to skip remaining bytes in 'patchIn'.");
@@ -195,12 +264,22 @@ public class Patcher implements Pausable {
       }
     }
 
+    // the file to apply the delta to or copy from
+    File oldFile = destFile;
+    if (operationType == OperationType.COPY) {
+      oldFile = getCopySourceFile(operation);
+    }
+
+    // digest the new file when writing, so no need to read it again to check
+    MessageDigest messageDigest = getSHA256MessageDigest();
+
     // do operation
     newFileOut = null;
     RandomAccessFile randomAccessOldFile = null;
+    File expandedOldFile = null;
     seekableRandomAccessOldFile = null;
     try {
-      newFileOut = new InterruptibleOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+      newFileOut = new InterruptibleOutputStream(new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(newFile), messageDigest)));
 
       switch (operationType) {
         case FORCE:
@@ -219,14 +298,20 @@ public class Patcher implements Pausable {
           interruptiblePatchIn.addInterruptedTask(_interruptedTask);
           //</editor-fold>
 
+          if (operation.getDuplicateOf() != -1) {
+            // the content is not stored in the patch, copy it locally
+            writeDuplicateContent(operation, newFileOut);
+            break;
+          }
+
           int byteRead;
-          int remaining = operation.getPatchLength();
+          long remaining = operation.getPatchLength();
           while (true) {
             if (remaining <= 0) {
               break;
             }
 
-            int lengthToRead = buf.length > remaining ? remaining : buf.length;
+            int lengthToRead = buf.length > remaining ? (int) remaining : buf.length;
             byteRead = interruptiblePatchIn.read(buf, 0, lengthToRead);
             if (byteRead == -1) {
               break;
@@ -235,10 +320,38 @@ public class Patcher implements Pausable {
             remaining -= byteRead;
           }
           break;
+        case COPY:
+        case JAR_PATCH:
+        case SUFFIX_ARRAY_PATCH:
+        case VCDIFF_PATCH:
+        case LZMA2_DICT_PATCH:
         case PATCH:
-          GDiffPatcher diffPatcher = new GDiffPatcher();
-          randomAccessOldFile = new RandomAccessFile(destFile, "r");
-          seekableRandomAccessOldFile = new SeekableFile(randomAccessOldFile);
+          if (operationType == OperationType.COPY && operation.getPatchLength() == 0) {
+            // identical to the old file, no delta stored in the patch
+            writeFileContent(oldFile, newFileOut);
+            break;
+          }
+
+          // the patcher reads ahead, limit it to the delta of this operation
+          InterruptibleInputStream deltaIn = new InterruptibleInputStream(interruptiblePatchIn, operation.getPatchLength());
+          OutputStream deltaOut = newFileOut;
+          JarExpander.RecompressOutputStream recompressOut = null;
+          if (operationType == OperationType.JAR_PATCH) {
+            // the delta is computed on the expanded old and new jar, recompress the patched entries back
+            recompressOut = new JarExpander.RecompressOutputStream(newFileOut, JarExpander.readEntries(deltaIn));
+            deltaOut = recompressOut;
+            expandedOldFile = new File(newFile.getAbsolutePath() + ".expanded");
+            JarExpander.expand(oldFile, expandedOldFile);
+            oldFile = expandedOldFile;
+          }
+
+          randomAccessOldFile = new RandomAccessFile(oldFile, "r");
+          try {
+            seekableRandomAccessOldFile = new MappedSeekableFile(randomAccessOldFile);
+          } catch (IOException ex) {
+            // e.g. not enough address space, read by seeking the file instead
+            seekableRandomAccessOldFile = new SeekableFile(randomAccessOldFile);
+          }
 
           //<editor-fold defaultstate="collapsed" desc="add interrupted tasks">
           final RandomAccessFile _randomAccessOldFile = randomAccessOldFile;
@@ -256,16 +369,165 @@ public class Patcher implements Pausable {
           seekableRandomAccessOldFile.addInterruptedTask(__interruptedTask);
           //</editor-fold>
 
-          diffPatcher.patch(seekableRandomAccessOldFile, interruptiblePatchIn, newFileOut);
+          if (operationType == OperationType.SUFFIX_ARRAY_PATCH) {
+            new SuffixArrayPatcher().patch(seekableRandomAccessOldFile, deltaIn, deltaOut);
+          } else if (operationType == OperationType.VCDIFF_PATCH) {
+            new VCDiffPatcher().patch(seekableRandomAccessOldFile, deltaIn, deltaOut);
+          } else if (operationType == OperationType.LZMA2_DICT_PATCH) {
+            new LZMA2DictPatcher().patch(seekableRandomAccessOldFile, deltaIn, deltaOut);
+          } else {
+            new BufferedGDiffPatcher().patch(seekableRandomAccessOldFile, deltaIn, deltaOut);
+          }
+          if (recompressOut != null) {
+            recompressOut.finish();
+          }
+          long deltaRemaining = deltaIn.remaining();
+          if (deltaRemaining > 0 && deltaIn.skip(deltaRemaining) != deltaRemaining) {
+            throw new IOException("Failed to skip remaining bytes in 'patchIn'.");
+          }
           break;
       }
     } finally {
+      // release the mappings too, the old file may be replaced after
+      CommonUtil.closeQuietly(seekableRandomAccessOldFile);
       CommonUtil.closeQuietly(randomAccessOldFile);
       CommonUtil.closeQuietly(newFileOut);
+      if (expandedOldFile != null) {
+        expandedOldFile.delete();
+      }
       newFileOut = null;
       interruptiblePatchIn = null;
       seekableRandomAccessOldFile = null;
     }
+
+    String newFileChecksum = CommonUtil.byteArrayToHexString(messageDigest.digest());
+    if (newFile.length() != operation.getNewFileLength() || !newFileChecksum.equals(operation.getNewFileChecksum())) {
+      throw new IOException(String.format("New file %1$s not match with the length & checksum", newFile.getAbsolutePath()));
+    }
+    recordWrittenFile(destFile, newFile, newFileChecksum);
+  }
+
+  /**
+   * Get a SHA-256 message digest.
+   * @return the message digest
+   * @throws IOException SHA-256 algorithm not found
+   */
+  protected static MessageDigest getSHA256MessageDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IOException("SHA-256 algorithm not found.");
+    }
+  }
+
+  /**
+   * Record the digest of the new file that will be moved to 
+   * {@code destFile}.
+   * @param destFile the destination file
+   * @param newFile the new file
+   * @param checksum the SHA-256 checksum of the new file
+   */
+  protected void recordWrittenFile(File destFile, File newFile, String checksum) {
+    if (writtenFiles != null) {
+      writtenFiles.put(destFile.getAbsolutePath(), new WrittenFile(newFile.length(), newFile.lastModified(), checksum));
+    }
+  }
+
+  /**
+   * Check if the length and checksum of {@code file} match. The digest 
+   * recorded when writing the file is used if the file is not changed 
+   * after written.
+   * @param file the file to check
+   * @param length the expected length
+   * @param checksum the expected SHA-256 checksum
+   * @return true if match, false if not
+   * @throws IOException error occurred when reading the file
+   */
+  protected boolean isFileMatch(File file, long length, String checksum) throws IOException {
+    if (!file.isFile() || file.length() != length) {
+      return false;
+    }
+    WrittenFile writtenFile = writtenFiles != null ? writtenFiles.get(file.getAbsolutePath()) : null;
+    if (writtenFile != null && writtenFile.isNotChanged(file)) {
+      return writtenFile.getChecksum().equals(checksum);
+    }
+    return CommonUtil.getSHA256String(file).equals(checksum);
+  }
+
+  /**
+   * Write the new file content of {@code operation} by copying the content 
+   * of the operation that it is a duplicate of. The content is taken from 
+   * the destination file of that operation, or its new file in the temporary 
+   * directory if the replacement has not been done.
+   * @param operation the operation with {@link Operation#getDuplicateOf()} 
+   * not equals to -1
+   * @param out the output stream to write the content to
+   * @throws IOException the content of the duplicated operation not found or 
+   * error occurred when copying
+   */
+  protected void writeDuplicateContent(Operation operation, InterruptibleOutputStream out) throws IOException {
+    Operation sourceOperation = operationsById != null ? operationsById.get(operation.getDuplicateOf()) : null;
+    if (sourceOperation == null) {
+      throw new IOException(String.format("Operation %1$d is a duplicate of operation %2$d which not exist", operation.getId(), operation.getDuplicateOf()));
+    }
+
+    File[] sourceFiles = new File[]{new File(softwareDir + sourceOperation.getDestFilePath()), new File(tempDir + File.separator + sourceOperation.getId())};
+    for (File sourceFile : sourceFiles) {
+      if (isFileMatch(sourceFile, operation.getNewFileLength(), operation.getNewFileChecksum())) {
+        writeFileContent(sourceFile, out);
+        return;
+      }
+    }
+
+    throw new IOException(String.format("Content of operation %1$d not found, it is a duplicate of operation %2$d", operation.getId(), operation.getDuplicateOf()));
+  }
+
+  /**
+   * Get the old file to copy from for the 'copy' {@code operation}. The old 
+   * file is in the software directory, or is the backup file of the 
+   * operation that removed or replaced it earlier.
+   * @param operation the 'copy' operation
+   * @return the old file that match the length & checksum of the old file of 
+   * {@code operation}
+   * @throws IOException old file not found
+   */
+  protected File getCopySourceFile(Operation operation) throws IOException {
+    List<File> sourceFiles = new ArrayList<File>();
+    sourceFiles.add(new File(softwareDir + operation.getOldFilePath()));
+    if (operationsById != null) {
+      for (Operation _operation : operationsById.values()) {
+        if (_operation.getDestFilePath().equals(operation.getOldFilePath())) {
+          sourceFiles.add(new File(tempDir + File.separator + "old_" + _operation.getId()));
+        }
+      }
+    }
+
+    for (File sourceFile : sourceFiles) {
+      if (isFileMatch(sourceFile, operation.getOldFileLength(), operation.getOldFileChecksum())) {
+        return sourceFile;
+      }
+    }
+
+    throw new IOException(String.format("Copy file: old file %1$s not found or not match with the length & checksum", operation.getOldFilePath()));
+  }
+
+  /**
+   * Write the whole content of {@code file} to {@code out}.
+   * @param file the file to read from
+   * @param out the output stream to write to
+   * @throws IOException error occurred when reading or writing
+   */
+  protected void writeFileContent(File file, InterruptibleOutputStream out) throws IOException {
+    InputStream fileIn = null;
+    try {
+      fileIn = new FileInputStream(file);
+      int byteRead;
+      while ((byteRead = fileIn.read(buf)) != -1) {
+        out.write(buf, 0, byteRead);
+      }
+    } finally {
+      CommonUtil.closeQuietly(fileIn);
+    }
   }
   protected int logFileIndex;
   protected boolean logDestFileExist;
@@ -321,7 +583,7 @@ public class Patcher implements Pausable {
 //    dest not exist:
 //      ** backup exist -> {ok};            7
 //         backup not exist -> {error}      8
-//new:
+//new: (copy is the same as new type file, the content is from an old file)
 //  type folder: (dest)
 //    dest exist:
 //      dest is folder:
@@ -456,6 +718,7 @@ public class Patcher implements Pausable {
         }
         break;
       case NEW:
+      case COPY:
         if (operation.getFileType().equals("folder")) {
           prepareLog(operation.getId(), destFileExist, "", "", destFileAbsPath);
           listener.patchProgress((int) progress, String.format("Creating new folder %1$s ...", operation.getDestFilePath()));
@@ -475,7 +738,7 @@ public class Patcher implements Pausable {
           }
         } else {
           prepareLog(operation.getId(), destFileExist, "", newFileAbsPath, destFileAbsPath);
-          listener.patchProgress((int) progress, String.format("Adding new file %1$s ...", operation.getDestFilePath()));
+          listener.patchProgress((int) progress, String.format(operationType == OperationType.COPY ? "Copying file %1$s ..." : "Adding new file %1$s ...", operation.getDestFilePath()));
           if (destFile.exists()) {
             if (destFile.isDirectory()) {
               log(12);
@@ -560,6 +823,10 @@ public class Patcher implements Pausable {
         }
         break;
       case PATCH:
+      case JAR_PATCH:
+      case SUFFIX_ARRAY_PATCH:
+      case VCDIFF_PATCH:
+      case LZMA2_DICT_PATCH:
       case REPLACE:
         prepareLog(operation.getId(), destFileExist, backupFileAbsPath, newFileAbsPath, destFileAbsPath);
         listener.patchProgress((int) progress, String.format("Patching %1$s ...", operation.getDestFilePath()));
@@ -625,11 +892,64 @@ public class Patcher implements Pausable {
    * @throws IOException error occurred when doing patching
    */
   public List<ReplacementRecord> doPatch(final PatcherListener listener, File patchFile, int patchId, AESKey aesKey, File softwareDir, File tempDir, Map<String, String> destinationReplacement) throws IOException {
+    if (patchFile == null) {
+      throw new NullPointerException("argument 'patchFile' cannot be null");
+    }
+    if (!patchFile.exists() || patchFile.isDirectory()) {
+      throw new IOException("patch file not exist or not a file");
+    }
+
+    InputStream patchIn = new FileInputStream(patchFile);
+    try {
+      // the content of the unencrypted patch can be accessed randomly
+      return doPatch(listener, patchIn, aesKey == null ? patchFile : null, patchId, aesKey, softwareDir, tempDir, destinationReplacement);
+    } finally {
+      CommonUtil.closeQuietly(patchIn);
+    }
+  }
+
+  /**
+   * Apply the patch read from {@code patchIn}. The patch is read sequentially 
+   * and to the end of the stream before the patching is considered finished, 
+   * so {@code patchIn} can be a stream still downloading that verify the 
+   * content when reaching the end, e.g. {@link updater.util.DownloadInputStream}.
+   * @param listener the listener to listen to patching event and information
+   * @param patchStream the stream to read the patch from, it will not be closed
+   * @param patchId the patch id
+   * @param aesKey the cipher key, null means no encryption used
+   * @param softwareDir the directory where the patch apply to
+   * @param tempDir the temporary directory to store the patched file
+   * @param destinationReplacement a map that used to replace the destination 
+   * path in {@code Operation}s in the patch
+   * @return a list containing those failed replacement
+   * @throws IOException error occurred when doing patching
+   */
+  public List<ReplacementRecord> doPatch(final PatcherListener listener, InputStream patchStream, int patchId, AESKey aesKey, File softwareDir, File tempDir, Map<String, String> destinationReplacement) throws IOException {
+    return doPatch(listener, patchStream, null, patchId, aesKey, softwareDir, tempDir, destinationReplacement);
+  }
+
+  /**
+   * Apply the patch read from {@code patchIn}.
+   * @param listener the listener to listen to patching event and information
+   * @param patchStream the stream to read the patch from, it will not be closed
+   * @param patchFile the unencrypted patch file that {@code patchStream} is 
+   * reading, used to seek to the operations directly if the patch support, 
+   * null if not available
+   * @param patchId the patch id
+   * @param aesKey the cipher key, null means no encryption used
+   * @param softwareDir the directory where the patch apply to
+   * @param tempDir the temporary directory to store the patched file
+   * @param destinationReplacement a map that used to replace the destination 
+   * path in {@code Operation}s in the patch
+   * @return a list containing those failed replacement
+   * @throws IOException error occurred when doing patching
+   */
+  protected List<ReplacementRecord> doPatch(final PatcherListener listener, InputStream patchStream, File patchFile, int patchId, AESKey aesKey, File softwareDir, File tempDir, Map<String, String> destinationReplacement) throws IOException {
     if (listener == null) {
       throw new NullPointerException("argument 'listener' cannot be null");
     }
-    if (patchFile == null) {
-      throw new NullPointerException("argument 'patchFile' cannot be null");
+    if (patchStream == null) {
+      throw new NullPointerException("argument 'patchStream' cannot be null");
     }
     if (softwareDir == null) {
       throw new NullPointerException("argument 'softwareDir' cannot be null");
@@ -640,10 +960,6 @@ public class Patcher implements Pausable {
 
     this.listener = listener;
 
-    if (!patchFile.exists() || patchFile.isDirectory()) {
-      throw new IOException("patch file not exist or not a file");
-    }
-
     if (!softwareDir.exists() || !softwareDir.isDirectory()) {
       throw new IOException("software directory not exist or not a directory");
     }
@@ -655,7 +971,6 @@ public class Patcher implements Pausable {
     }
 
 
-    File _patchFile = patchFile;
     List<ReplacementRecord> replacementFailedList = new ArrayList<ReplacementRecord>();
     int startFromFileIndex = 0;
     Map<Integer, PatchRecord> extraFileIndexes = new HashMap<Integer, PatchRecord>();
@@ -683,7 +998,6 @@ public class Patcher implements Pausable {
     //</editor-fold>
 
 
-    float decryptProgress = 0;
     float prepareProgress = 5;
     float updateProgress = 65;
     float validateFilesProgress = 30;
@@ -693,59 +1007,25 @@ public class Patcher implements Pausable {
     progress = stageMinimumProgress;
 
 
-    //<editor-fold defaultstate="collapsed" desc="decrypt the patch">
-    if (aesKey != null) {
-      decryptProgress = 25;
-      updateProgress = 50;
-      validateFilesProgress = 20;
-
-      File tempFileForDecryption = new File(tempDir.getAbsolutePath() + File.separator + patchId + ".patch.decrypted");
-
-      final float _decryptProgress = decryptProgress;
-      final float _stageMinimumProgress = stageMinimumProgress;
-      try {
-        AESForFileListener aesForFileListener = new AESForFileListener() {
-
-          @Override
-          public void cryptProgress(int percentage) {
-            listener.patchProgress((int) (_stageMinimumProgress + ((float) percentage / 100F) * _decryptProgress), "Decrypting patch ...");
-          }
-        };
-
-        aesCryptor = new AESForFile();
-        aesCryptor.setListener(aesForFileListener);
-        aesCryptor.setMode(Mode.CBC);
-        aesCryptor.setPadding(Padding.PKCS5PADDING);
-        aesCryptor.setKeySize(KeySize.BITS256);
-        aesCryptor.setKey(aesKey.getKey());
-        aesCryptor.setInitializationVector(aesKey.getIV());
-        aesCryptor.decryptFile(_patchFile, tempFileForDecryption);
-      } catch (Exception ex) {
-        throw new IOException(ex);
-      } finally {
-        aesCryptor = null;
-      }
-
-      _patchFile = tempFileForDecryption;
-    }
-    //</editor-fold>
-
-
-    stageMinimumProgress += decryptProgress;
-    progress = stageMinimumProgress;
-
-
     InputStream patchIn = null;
+    InputStream decompressedPatchIn = null;
     log = new LogWriter(logFile);
     try {
-      patchIn = new BufferedInputStream(new FileInputStream(_patchFile));
+      if (aesKey != null) {
+        // decrypt on the fly, paused and interrupted through aesCryptor
+        aesCryptor = new AESCipher(aesKey);
+        patchIn = new BufferedInputStream(new AESCipherInputStream(patchStream, aesCryptor));
+      } else {
+        patchIn = new BufferedInputStream(patchStream);
+      }
 
 
       listener.patchProgress((int) progress, "Preparing new patch ...");
       listener.patchEnableCancel(false);
       // header
       PatchReadUtil.readHeader(patchIn);
-      InputStream decompressedPatchIn = PatchReadUtil.readCompressionMethod(patchIn);
+      // skip on the decompressed stream will seek directly if it support
+      decompressedPatchIn = PatchReadUtil.readCompressionMethod(patchIn, patchFile);
       Patch patch = null;
       try {
         patch = PatchReadUtil.readXML(decompressedPatchIn);
@@ -755,11 +1035,17 @@ public class Patcher implements Pausable {
 
       List<Operation> operations = patch.getOperations();
       List<ValidationFile> validations = patch.getValidations();
+      operationsById = new HashMap<Integer, Operation>();
+      writtenFiles = new HashMap<String, WrittenFile>();
       for (Operation operation : operations) {
         String destChangeTo = null;
         if ((destChangeTo = destinationReplacement.get(operation.getDestFilePath())) != null) {
           operation.setDestFilePath(destChangeTo);
         }
+        if (operation.getOldFilePath() != null && (destChangeTo = destinationReplacement.get(operation.getOldFilePath())) != null) {
+          operation.setOldFilePath(destChangeTo);
+        }
+        operationsById.put(operation.getId(), operation);
       }
       for (ValidationFile validation : validations) {
         String destChangeTo = null;
@@ -786,8 +1072,15 @@ public class Patcher implements Pausable {
       float progressStep = updateProgress / (float) operations.size();
       for (int i = 0, iEnd = operations.size(); i < iEnd; i++) {
         Operation _operation = operations.get(i);
+        // the content of the operation may be compressed separately
+        InputStream contentIn = PatchReadUtil.readOperationContent(decompressedPatchIn, _operation);
 
         if (!(i + 1 >= startFromFileIndex || extraFileIndexes.get(i + 1) != null)) {
+          if (contentIn != decompressedPatchIn) {
+            // closing the content stream skips to the end of the content
+            contentIn.close();
+            continue;
+          }
           long byteSkipped = decompressedPatchIn.skip(_operation.getPatchLength());
           if (byteSkipped != _operation.getPatchLength()) {
             throw new IOException("Failed to skip remaining bytes in 'interruptiblePatchIn'.");
@@ -795,9 +1088,11 @@ public class Patcher implements Pausable {
           continue;
         }
 
-        InterruptibleInputStream operationIn = new InterruptibleInputStream(decompressedPatchIn, _operation.getPatchLength());
+        InterruptibleInputStream operationIn = new InterruptibleInputStream(contentIn, _operation.getPatchLength());
         ReplacementRecord failedReplacement = doOperation(extraFileIndexes.get(i + 1), _operation, operationIn);
-        if (operationIn.remaining() != 0) {
+        if (contentIn != decompressedPatchIn) {
+          contentIn.close();
+        } else if (operationIn.remaining() != 0) {
           long byteSkipped = decompressedPatchIn.skip(operationIn.remaining());
           if (byteSkipped != operationIn.remaining()) {
             throw new IOException("Failed to skip remaining bytes in 'interruptiblePatchIn'.");
@@ -810,6 +1105,13 @@ public class Patcher implements Pausable {
         progress += progressStep;
       }
 
+      // read to the end, for stream that verify the content at the end
+      if (patchFile == null) {
+        byte[] b = new byte[32768];
+        while (patchIn.read(b) != -1) {
+        }
+      }
+
 
       stageMinimumProgress += updateProgress;
       progress = stageMinimumProgress;
@@ -818,32 +1120,7 @@ public class Patcher implements Pausable {
       if (replacementFailedList.isEmpty()) {
         listener.patchProgress((int) progress, "Validating files ...");
         listener.patchEnableCancel(false);
-        // validate files
-        progressStep = validateFilesProgress / (float) validations.size();
-        for (ValidationFile _validationFile : validations) {
-          listener.patchProgress((int) progress, String.format("Validating file: %1$s", _validationFile.getFilePath()));
-
-          File _file = new File(this.softwareDir + _validationFile.getFilePath());
-
-          if (_validationFile.getFileLength() == -1) {
-            if (!_file.isDirectory()) {
-              throw new IOException(String.format("Folder missed: %1$s", _file.getAbsolutePath()));
-            }
-          } else {
-            if (!_file.exists()) {
-              throw new IOException(String.format("File missed: %1$s", _file.getAbsolutePath()));
-            }
-            if (_file.length() != _validationFile.getFileLength()) {
-              throw new IOException(String.format("File length not matched, file: %1$s, expected: %2$d, found: %3$d",
-                      _file.getAbsolutePath(), _validationFile.getFileLength(), _file.length()));
-            }
-            if (!CommonUtil.getSHA256String(_file).equals(_validationFile.getFileChecksum())) {
-              throw new IOException(String.format("File checksum incorrect: %1$s", _file.getAbsolutePath()));
-            }
-          }
-
-          progress += progressStep;
-        }
+        validateFiles(validations, validateFilesProgress);
       }
 
 
@@ -858,12 +1135,116 @@ public class Patcher implements Pausable {
     } finally {
       CommonUtil.closeQuietly(log);
       log = null;
-      CommonUtil.closeQuietly(patchIn);
+      operationsById = null;
+      writtenFiles = null;
+      if (patchFile != null) {
+        // it may read the patch file separately
+        CommonUtil.closeQuietly(decompressedPatchIn);
+      }
+      aesCryptor = null;
     }
 
     return replacementFailedList;
   }
 
+  /**
+   * Validate the files in the software directory. The existence and length 
+   * of all files are checked first, then the files are digested by 
+   * {@link #validationThreadCount} threads, larger files first.
+   * @param validations the files to validate
+   * @param validateFilesProgress the progress to add when all files 
+   * validated
+   * @throws IOException any file missed or not match, or error occurred 
+   * when reading the files
+   */
+  protected void validateFiles(List<ValidationFile> validations, float validateFilesProgress) throws IOException {
+    if (validations.isEmpty()) {
+      return;
+    }
+    float progressStep = validateFilesProgress / (float) validations.size();
+
+    List<ValidationFile> digestList = new ArrayList<ValidationFile>();
+    for (ValidationFile _validationFile : validations) {
+      File _file = new File(this.softwareDir + _validationFile.getFilePath());
+
+      if (_validationFile.getFileLength() == -1) {
+        if (!_file.isDirectory()) {
+          throw new IOException(String.format("Folder missed: %1$s", _file.getAbsolutePath()));
+        }
+        progress += progressStep;
+      } else {
+        if (!_file.exists()) {
+          throw new IOException(String.format("File missed: %1$s", _file.getAbsolutePath()));
+        }
+        if (_file.length() != _validationFile.getFileLength()) {
+          throw new IOException(String.format("File length not matched, file: %1$s, expected: %2$d, found: %3$d",
+                  _file.getAbsolutePath(), _validationFile.getFileLength(), _file.length()));
+        }
+        // the files written in this patching or verified before are digested already
+        String checksum = null;
+        WrittenFile writtenFile = writtenFiles != null ? writtenFiles.get(_file.getAbsolutePath()) : null;
+        if (writtenFile != null && writtenFile.isNotChanged(_file)) {
+          checksum = writtenFile.getChecksum();
+        } else if (installedState != null) {
+          checksum = installedState.getCachedSHA256String(_file);
+        }
+        if (checksum != null) {
+          if (!checksum.equals(_validationFile.getFileChecksum())) {
+            throw new IOException(String.format("File checksum incorrect: %1$s", _file.getAbsolutePath()));
+          }
+          if (installedState != null) {
+            installedState.put(_file, checksum);
+          }
+          progress += progressStep;
+          continue;
+        }
+        digestList.add(_validationFile);
+      }
+    }
+
+    // larger files first, so the threads finish at similar time
+    Collections.sort(digestList, new Comparator<ValidationFile>() {
+
+      @Override
+      public int compare(ValidationFile o1, ValidationFile o2) {
+        return o1.getFileLength() < o2.getFileLength() ? 1 : (o1.getFileLength() == o2.getFileLength() ? 0 : -1);
+      }
+    });
+
+    ExecutorService executor = Executors.newFixedThreadPool(validationThreadCount);
+    try {
+      CompletionService<ValidationFile> completionService = new ExecutorCompletionService<ValidationFile>(executor);
+      for (ValidationFile _validationFile : digestList) {
+        completionService.submit(new ValidationTask(new File(this.softwareDir + _validationFile.getFilePath()), _validationFile));
+      }
+      for (int i = 0, iEnd = digestList.size(); i < iEnd; i++) {
+        ValidationFile _validationFile;
+        try {
+          _validationFile = completionService.take().get();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted when validating files.");
+        } catch (ExecutionException ex) {
+          // stop at the first failure
+          if (ex.getCause() instanceof IOException) {
+            throw (IOException) ex.getCause();
+          }
+          throw new IOException(ex.getCause());
+        }
+
+        if (installedState != null) {
+          installedState.put(new File(this.softwareDir + _validationFile.getFilePath()), _validationFile.getFileChecksum());
+        }
+
+        progress += progressStep;
+        listener.patchProgress((int) progress, String.format("Validating file: %1$s", _validationFile.getFilePath()));
+      }
+    } finally {
+      // interrupt the tasks that are still digesting
+      executor.shutdownNow();
+    }
+  }
+
   /**
    * Revert the patching and restore to unpatched state.
    * @throws IOException read log failed, or error occurred when doing revert 
@@ -945,6 +1326,104 @@ public class Patcher implements Pausable {
     }
   }
 
+  /**
+   * The digest of a file computed when writing it.
+   */
+  protected static class WrittenFile {
+
+    /**
+     * The length of the file after written.
+     */
+    protected long length;
+    /**
+     * The last modified time of the file after written.
+     */
+    protected long lastModified;
+    /**
+     * The SHA-256 checksum of the file.
+     */
+    protected String checksum;
+
+    /**
+     * Constructor.
+     * @param length the length of the file after written
+     * @param lastModified the last modified time of the file after written
+     * @param checksum the SHA-256 checksum of the file
+     */
+    protected WrittenFile(long length, long lastModified, String checksum) {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.checksum = checksum;
+    }
+
+    /**
+     * Get the SHA-256 checksum of the file.
+     * @return the checksum in hex string
+     */
+    public String getChecksum() {
+      return checksum;
+    }
+
+    /**
+     * Check if {@code file} is not changed after written.
+     * @param file the file, may be moved from the one written
+     * @return true if the length and last modified time are not changed
+     */
+    public boolean isNotChanged(File file) {
+      return file.length() == length && file.lastModified() == lastModified;
+    }
+  }
+
+  /**
+   * The task to check the checksum of a file.
+   */
+  protected static class ValidationTask implements Callable<ValidationFile> {
+
+    /**
+     * The file to check.
+     */
+    protected File file;
+    /**
+     * The validation record of the file.
+     */
+    protected ValidationFile validationFile;
+
+    /**
+     * Constructor.
+     * @param file the file to check
+     * @param validationFile the validation record of the file
+     */
+    protected ValidationTask(File file, ValidationFile validationFile) {
+      this.file = file;
+      this.validationFile = validationFile;
+    }
+
+    @Override
+    public ValidationFile call() throws IOException {
+      MessageDigest messageDigest = getSHA256MessageDigest();
+
+      InputStream fin = null;
+      try {
+        fin = new FileInputStream(file);
+        byte[] b = new byte[32768];
+        int byteRead;
+        while ((byteRead = fin.read(b)) != -1) {
+          if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Validation cancelled.");
+          }
+          messageDigest.update(b, 0, byteRead);
+        }
+      } finally {
+        CommonUtil.closeQuietly(fin);
+      }
+
+      if (!CommonUtil.byteArrayToHexString(messageDigest.digest()).equals(validationFile.getFileChecksum())) {
+        throw new IOException(String.format("File checksum incorrect: %1$s", file.getAbsolutePath()));
+      }
+      return validationFile;
+    }
+  }
+
   protected void revertFile(PatchRecord patchRecord) throws IOException {
     File newFile = new File(patchRecord.getNewFilePath());
     File destFile = new File(patchRecord.getDestinationFilePath());
@@ -0,0 +1,448 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import updater.util.CommonUtil;
+
+/**
+ * Compute delta by suffix array matching, in the manner of bsdiff.
+ * <p>
+ * {@link com.nothome.delta.Delta} only matches the 16-byte blocks of the 
+ * source at block boundaries, native executables give poor deltas with it 
+ * because the code and the addresses in it shift by small offsets between 
+ * versions. This delta finds the longest match of the new file in any 
+ * position of the old file by the suffix array of the old file, then 
+ * extends the match forward and backward approximately, i.e. allow 
+ * mismatched bytes as long as half of the bytes match. The approximate 
+ * regions are stored as the byte differences, which are mostly zero and 
+ * compress well.</p>
+ * <p>
+ * Both files are loaded into memory, and the suffix array takes 8 times 
+ * the length of the old file, so the length of the files are limited to 
+ * {@link #MAX_LENGTH}. The patch is applied by {@link SuffixArrayPatcher}, 
+ * see it for the format.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class SuffixArrayDelta {
+
+  /**
+   * The maximum length of the old file and the new file.
+   */
+  public static final int MAX_LENGTH = 128 * 1024 * 1024;
+  /**
+   * The minimum number of extra matched bytes to start a new record at a 
+   * match, instead of continuing the approximate match of the last record.
+   */
+  protected static final int MIN_MATCH_GAIN = 8;
+
+  /**
+   * Constructor.
+   */
+  public SuffixArrayDelta() {
+  }
+
+  /**
+   * Compute the delta from the old file to the new file.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param out the stream to write the delta to, will not be closed
+   * @throws IOException error occurred when reading or writing, or the 
+   * files are longer than {@link #MAX_LENGTH}
+   */
+  public void compute(File oldFile, File newFile, OutputStream out) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (newFile == null) {
+      throw new NullPointerException("argument 'newFile' cannot be null");
+    }
+    if (oldFile.length() > MAX_LENGTH || newFile.length() > MAX_LENGTH) {
+      throw new IOException(String.format("File is longer than %1$d bytes.", MAX_LENGTH));
+    }
+    compute(CommonUtil.readFile(oldFile), CommonUtil.readFile(newFile), out);
+  }
+
+  /**
+   * Compute the delta from the old file to the new file and write it to 
+   * {@code diffFile}.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param diffFile the file to write the delta to
+   * @throws IOException error occurred when reading or writing, or the 
+   * files are longer than {@link #MAX_LENGTH}
+   */
+  public void compute(File oldFile, File newFile, File diffFile) throws IOException {
+    FileOutputStream fout = null;
+    try {
+      fout = new FileOutputStream(diffFile);
+      OutputStream out = new BufferedOutputStream(fout);
+      compute(oldFile, newFile, out);
+      out.flush();
+    } finally {
+      CommonUtil.closeQuietly(fout);
+    }
+  }
+
+  /**
+   * Compute the delta from {@code source} to {@code target}.
+   * @param source the old content
+   * @param target the new content
+   * @param out the stream to write the delta to, will not be closed
+   * @throws IOException error occurred when writing
+   */
+  public void compute(byte[] source, byte[] target, OutputStream out) throws IOException {
+    if (source == null) {
+      throw new NullPointerException("argument 'source' cannot be null");
+    }
+    if (target == null) {
+      throw new NullPointerException("argument 'target' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    int[] suffixArray = suffixSort(source);
+    int sourceLength = source.length, targetLength = target.length;
+
+    DataOutputStream dataOut = new DataOutputStream(out);
+    dataOut.writeInt(SuffixArrayPatcher.MAGIC);
+    dataOut.writeLong(targetLength);
+
+    int scan = 0, length = 0, position = 0;
+    int lastScan = 0, lastPosition = 0, lastOffset = 0;
+    int[] match = new int[2];
+    while (scan < targetLength) {
+      // find the next match that is better than continuing the last one
+      int oldScore = 0;
+      for (int scoreScan = scan += length; scan < targetLength; scan++) {
+        search(suffixArray, source, target, scan, match);
+        length = match[0];
+        position = match[1];
+
+        for (; scoreScan < scan + length; scoreScan++) {
+          if (scoreScan + lastOffset < sourceLength && source[scoreScan + lastOffset] == target[scoreScan]) {
+            oldScore++;
+          }
+        }
+        if ((length == oldScore && length != 0) || length > oldScore + MIN_MATCH_GAIN) {
+          break;
+        }
+        if (scan + lastOffset < sourceLength && source[scan + lastOffset] == target[scan]) {
+          oldScore--;
+        }
+      }
+
+      if (length == oldScore && scan != targetLength) {
+        continue;
+      }
+
+      // extend the last match forward
+      int forwardLength = 0;
+      for (int i = 0, score = 0, bestScore = 0; lastScan + i < scan && lastPosition + i < sourceLength;) {
+        if (source[lastPosition + i] == target[lastScan + i]) {
+          score++;
+        }
+        i++;
+        if (score * 2 - i > bestScore * 2 - forwardLength) {
+          bestScore = score;
+          forwardLength = i;
+        }
+      }
+
+      // extend the new match backward
+      int backwardLength = 0;
+      if (scan < targetLength) {
+        for (int i = 1, score = 0, bestScore = 0; scan >= lastScan + i && position >= i; i++) {
+          if (source[position - i] == target[scan - i]) {
+            score++;
+          }
+          if (score * 2 - i > bestScore * 2 - backwardLength) {
+            bestScore = score;
+            backwardLength = i;
+          }
+        }
+      }
+
+      // split the overlap of the two extensions at the best position
+      if (lastScan + forwardLength > scan - backwardLength) {
+        int overlap = (lastScan + forwardLength) - (scan - backwardLength);
+        int score = 0, bestScore = 0, splitLength = 0;
+        for (int i = 0; i < overlap; i++) {
+          if (target[lastScan + forwardLength - overlap + i] == source[lastPosition + forwardLength - overlap + i]) {
+            score++;
+          }
+          if (target[scan - backwardLength + i] == source[position - backwardLength + i]) {
+            score--;
+          }
+          if (score > bestScore) {
+            bestScore = score;
+            splitLength = i + 1;
+          }
+        }
+        forwardLength += splitLength - overlap;
+        backwardLength -= splitLength;
+      }
+
+      int extraLength = (scan - backwardLength) - (lastScan + forwardLength);
+      dataOut.writeInt(forwardLength);
+      dataOut.writeInt(extraLength);
+      dataOut.writeLong((position - backwardLength) - (lastPosition + forwardLength));
+      for (int i = 0; i < forwardLength; i++) {
+        dataOut.write(target[lastScan + i] - source[lastPosition + i]);
+      }
+      dataOut.write(target, lastScan + forwardLength, extraLength);
+
+      lastScan = scan - backwardLength;
+      lastPosition = position - backwardLength;
+      lastOffset = position - scan;
+    }
+
+    dataOut.flush();
+  }
+
+  /**
+   * Find the longest match of {@code target} from {@code targetOffset} in 
+   * {@code source} by binary search on the suffix array.
+   * @param suffixArray the suffix array of {@code source}
+   * @param source the source
+   * @param target the target
+   * @param targetOffset the offset in the target to match
+   * @param match the array to store the result, the length of the match at 
+   * index 0 and the position of the match in the source at index 1
+   */
+  protected static void search(int[] suffixArray, byte[] source, byte[] target, int targetOffset, int[] match) {
+    int start = 0, end = source.length;
+    while (end - start >= 2) {
+      int middle = start + (end - start) / 2;
+      if (compare(source, suffixArray[middle], target, targetOffset) < 0) {
+        start = middle;
+      } else {
+        end = middle;
+      }
+    }
+
+    int startLength = matchLength(source, suffixArray[start], target, targetOffset);
+    int endLength = matchLength(source, suffixArray[end], target, targetOffset);
+    if (startLength > endLength) {
+      match[0] = startLength;
+      match[1] = suffixArray[start];
+    } else {
+      match[0] = endLength;
+      match[1] = suffixArray[end];
+    }
+  }
+
+  /**
+   * Get the number of bytes matched from the two offsets.
+   */
+  protected static int matchLength(byte[] source, int sourceOffset, byte[] target, int targetOffset) {
+    int length = Math.min(source.length - sourceOffset, target.length - targetOffset);
+    int i = 0;
+    while (i < length && source[sourceOffset + i] == target[targetOffset + i]) {
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * Compare the source from {@code sourceOffset} with the target from 
+   * {@code targetOffset} as unsigned bytes, up to the shorter of the two.
+   */
+  protected static int compare(byte[] source, int sourceOffset, byte[] target, int targetOffset) {
+    int length = Math.min(source.length - sourceOffset, target.length - targetOffset);
+    for (int i = 0; i < length; i++) {
+      int difference = (source[sourceOffset + i] & 0xff) - (target[targetOffset + i] & 0xff);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Sort the suffixes of {@code source} by the algorithm of Larsson and 
+   * Sadakane (qsufsort).
+   * @param source the source
+   * @return the suffix array, with length of {@code source} + 1, the empty 
+   * suffix at index 0
+   */
+  protected static int[] suffixSort(byte[] source) {
+    int length = source.length;
+    int[] group = new int[length + 1];
+    int[] suffixArray = new int[length + 1];
+
+    // bucket sort by the first byte
+    int[] buckets = new int[256];
+    for (int i = 0; i < length; i++) {
+      buckets[source[i] & 0xff]++;
+    }
+    for (int i = 1; i < 256; i++) {
+      buckets[i] += buckets[i - 1];
+    }
+    for (int i = 255; i > 0; i--) {
+      buckets[i] = buckets[i - 1];
+    }
+    buckets[0] = 0;
+    for (int i = 0; i < length; i++) {
+      suffixArray[++buckets[source[i] & 0xff]] = i;
+    }
+    suffixArray[0] = length;
+    for (int i = 0; i < length; i++) {
+      group[i] = buckets[source[i] & 0xff];
+    }
+    group[length] = 0;
+    for (int i = 1; i < 256; i++) {
+      if (buckets[i] == buckets[i - 1] + 1) {
+        suffixArray[buckets[i]] = -1;
+      }
+    }
+    suffixArray[0] = -1;
+
+    // sort the unsorted groups by doubling the compared length, sorted 
+    // groups are marked by the negative length in the suffix array
+    for (int h = 1; suffixArray[0] != -(length + 1); h += h) {
+      int sortedLength = 0;
+      int i = 0;
+      while (i < length + 1) {
+        if (suffixArray[i] < 0) {
+          sortedLength -= suffixArray[i];
+          i -= suffixArray[i];
+        } else {
+          if (sortedLength != 0) {
+            suffixArray[i - sortedLength] = -sortedLength;
+          }
+          int groupLength = group[suffixArray[i]] + 1 - i;
+          split(suffixArray, group, i, groupLength, h);
+          i += groupLength;
+          sortedLength = 0;
+        }
+      }
+      if (sortedLength != 0) {
+        suffixArray[i - sortedLength] = -sortedLength;
+      }
+    }
+
+    for (int i = 0; i < length + 1; i++) {
+      suffixArray[group[i]] = i;
+    }
+    return suffixArray;
+  }
+
+  /**
+   * Ternary split the group from {@code start} with {@code length} by the 
+   * group number of the suffixes {@code h} bytes after.
+   */
+  protected static void split(int[] suffixArray, int[] group, int start, int length, int h) {
+    while (true) {
+      if (length < 16) {
+        // selection sort for small group
+        for (int k = start, j; k < start + length; k += j) {
+          j = 1;
+          int x = group[suffixArray[k] + h];
+          for (int i = 1; k + i < start + length; i++) {
+            int value = group[suffixArray[k + i] + h];
+            if (value < x) {
+              x = value;
+              j = 0;
+            }
+            if (value == x) {
+              int temp = suffixArray[k + j];
+              suffixArray[k + j] = suffixArray[k + i];
+              suffixArray[k + i] = temp;
+              j++;
+            }
+          }
+          for (int i = 0; i < j; i++) {
+            group[suffixArray[k + i]] = k + j - 1;
+          }
+          if (j == 1) {
+            suffixArray[k] = -1;
+          }
+        }
+        return;
+      }
+
+      int x = group[suffixArray[start + length / 2] + h];
+      int lessCount = 0, equalCount = 0;
+      for (int i = start; i < start + length; i++) {
+        int value = group[suffixArray[i] + h];
+        if (value < x) {
+          lessCount++;
+        } else if (value == x) {
+          equalCount++;
+        }
+      }
+      int equalStart = start + lessCount, greaterStart = equalStart + equalCount;
+
+      int i = start, j = 0, k = 0;
+      while (i < equalStart) {
+        int value = group[suffixArray[i] + h];
+        if (value < x) {
+          i++;
+        } else if (value == x) {
+          int temp = suffixArray[i];
+          suffixArray[i] = suffixArray[equalStart + j];
+          suffixArray[equalStart + j] = temp;
+          j++;
+        } else {
+          int temp = suffixArray[i];
+          suffixArray[i] = suffixArray[greaterStart + k];
+          suffixArray[greaterStart + k] = temp;
+          k++;
+        }
+      }
+      while (equalStart + j < greaterStart) {
+        if (group[suffixArray[equalStart + j] + h] == x) {
+          j++;
+        } else {
+          int temp = suffixArray[equalStart + j];
+          suffixArray[equalStart + j] = suffixArray[greaterStart + k];
+          suffixArray[greaterStart + k] = temp;
+          k++;
+        }
+      }
+
+      if (equalStart > start) {
+        split(suffixArray, group, start, equalStart - start, h);
+      }
+      for (i = 0; i < greaterStart - equalStart; i++) {
+        group[suffixArray[equalStart + i]] = greaterStart - 1;
+      }
+      if (equalStart == greaterStart - 1) {
+        suffixArray[equalStart] = -1;
+      }
+
+      // loop on the greater part instead of recursion
+      if (start + length <= greaterStart) {
+        return;
+      }
+      length = start + length - greaterStart;
+      start = greaterStart;
+    }
+  }
+}
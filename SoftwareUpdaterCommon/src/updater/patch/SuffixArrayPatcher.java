@@ -0,0 +1,153 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.PatchException;
+import com.nothome.delta.SeekableSource;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Apply the patch created by {@link SuffixArrayDelta}.
+ * <p>
+ * The patch starts with the magic number and the length of the new file, 
+ * followed by the records until the new file is complete. Each record 
+ * contains:
+ * <ul>
+ * <li>diff length (int), the number of bytes to add to the source</li>
+ * <li>extra length (int), the number of bytes to write as is</li>
+ * <li>seek (long), the offset to move the source position by after the 
+ * diff bytes are added</li>
+ * <li>diff bytes, each is the difference of the new byte and the source 
+ * byte modulo 256</li>
+ * <li>extra bytes</li>
+ * </ul>
+ * The source position starts at 0 and is advanced by the diff length after 
+ * each record, plus the seek.</p>
+ * <p>
+ * The patch is read with exact reads, nothing after the patch is consumed.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class SuffixArrayPatcher {
+
+  /**
+   * The magic number of the patch, 'S' 'A' 'D' + the version number.
+   */
+  protected static final int MAGIC = 0x53414401;
+  /**
+   * The size of the patch buffer and the source buffer.
+   */
+  protected static final int BUFFER_SIZE = 65536;
+  /**
+   * The buffer of the patch.
+   */
+  protected final byte[] patchBuffer;
+  /**
+   * The buffer to read the source.
+   */
+  protected final ByteBuffer sourceBuffer;
+
+  /**
+   * Constructor.
+   */
+  public SuffixArrayPatcher() {
+    patchBuffer = new byte[BUFFER_SIZE];
+    sourceBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+  }
+
+  /**
+   * Apply the patch to {@code source} and write the result to {@code out}.
+   * @param source the source to patch
+   * @param patch the patch
+   * @param out the output stream to write the result to
+   * @throws IOException error occurred when reading or writing, or the 
+   * patch is invalid
+   */
+  public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+    if (source == null) {
+      throw new NullPointerException("argument 'source' cannot be null");
+    }
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    DataInputStream patchIn = new DataInputStream(patch);
+    if (patchIn.readInt() != MAGIC) {
+      throw new PatchException("magic number not found, aborting!");
+    }
+    long newLength = patchIn.readLong();
+    if (newLength < 0) {
+      throw new PatchException("length of the new file is negative");
+    }
+
+    long sourcePosition = 0, written = 0;
+    while (written < newLength) {
+      int diffLength = patchIn.readInt();
+      int extraLength = patchIn.readInt();
+      long seek = patchIn.readLong();
+      if (diffLength < 0 || extraLength < 0 || written + diffLength + extraLength > newLength) {
+        throw new PatchException("record out of range, diff: " + diffLength + ", extra: " + extraLength);
+      }
+      if (sourcePosition < 0) {
+        throw new PatchException("source position is negative: " + sourcePosition);
+      }
+
+      // add the source to the diff bytes
+      source.seek(sourcePosition);
+      int remaining = diffLength;
+      while (remaining > 0) {
+        sourceBuffer.clear().limit(Math.min(BUFFER_SIZE, remaining));
+        int byteRead = source.read(sourceBuffer);
+        if (byteRead == -1) {
+          throw new EOFException("in diff " + sourcePosition + " " + diffLength);
+        }
+        patchIn.readFully(patchBuffer, 0, byteRead);
+        byte[] sourceBytes = sourceBuffer.array();
+        for (int i = 0; i < byteRead; i++) {
+          patchBuffer[i] += sourceBytes[i];
+        }
+        out.write(patchBuffer, 0, byteRead);
+        remaining -= byteRead;
+      }
+
+      remaining = extraLength;
+      while (remaining > 0) {
+        int byteToRead = Math.min(BUFFER_SIZE, remaining);
+        patchIn.readFully(patchBuffer, 0, byteToRead);
+        out.write(patchBuffer, 0, byteToRead);
+        remaining -= byteToRead;
+      }
+
+      written += diffLength + extraLength;
+      sourcePosition += diffLength + seek;
+    }
+
+    out.flush();
+  }
+}
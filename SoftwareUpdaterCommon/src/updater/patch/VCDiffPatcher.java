@@ -0,0 +1,546 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.PatchException;
+import com.nothome.delta.SeekableSource;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * Apply VCDIFF (RFC 3284) patch, e.g. created by {@link VCDiffWriter}.
+ * <p>
+ * The windows that copy from a segment of the source (VCD_SOURCE) with the 
+ * default code table are supported, which is what VCDIFF encoders commonly 
+ * produce. Windows that copy from the previous target (VCD_TARGET), 
+ * secondary compression and application-defined code tables are not 
+ * supported and rejected. The Adler-32 checksum of target window 
+ * (VCD_ADLER32) written by some encoders is verified if present.</p>
+ * <p>
+ * The patch is read window by window until the end of the stream, so it 
+ * should be limited to the length of the patch, e.g. by 
+ * {@link updater.util.InterruptibleInputStream#InterruptibleInputStream(java.io.InputStream, long)}.
+ * Nothing after the last window is read.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class VCDiffPatcher {
+
+  /**
+   * The magic string, 'V' 'C' 'D' with the high bits set and the version.
+   */
+  protected static final byte[] MAGIC = new byte[]{(byte) 0xd6, (byte) 0xc3, (byte) 0xc4, 0x00};
+  /**
+   * The bits of Hdr_Indicator.
+   */
+  protected static final int VCD_DECOMPRESS = 0x01;
+  protected static final int VCD_CODETABLE = 0x02;
+  protected static final int VCD_APPHEADER = 0x04;
+  /**
+   * The bits of Win_Indicator.
+   */
+  protected static final int VCD_SOURCE = 0x01;
+  protected static final int VCD_TARGET = 0x02;
+  protected static final int VCD_ADLER32 = 0x04;
+  /**
+   * The instruction types.
+   */
+  protected static final int NOOP = 0;
+  protected static final int ADD = 1;
+  protected static final int RUN = 2;
+  protected static final int COPY = 3;
+  /**
+   * The size of the near cache and the same cache of the default code 
+   * table, the address modes are VCD_SELF (0), VCD_HERE (1), the near 
+   * modes then the same modes.
+   */
+  protected static final int NEAR_CACHE_SIZE = 4;
+  protected static final int SAME_CACHE_SIZE = 3;
+  protected static final int MODE_COUNT = 2 + NEAR_CACHE_SIZE + SAME_CACHE_SIZE;
+  /**
+   * The default code table, indexed by opcode, each instruction is in 
+   * type, size, mode, size 0 means the size is read from the instruction 
+   * section.
+   */
+  protected static final int[] CODE_TYPE1 = new int[256];
+  protected static final int[] CODE_SIZE1 = new int[256];
+  protected static final int[] CODE_MODE1 = new int[256];
+  protected static final int[] CODE_TYPE2 = new int[256];
+  protected static final int[] CODE_SIZE2 = new int[256];
+  protected static final int[] CODE_MODE2 = new int[256];
+  /**
+   * The maximum length of target window accepted, to limit the memory 
+   * used by invalid patch.
+   */
+  protected static final int MAX_TARGET_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  static {
+    // RFC 3284 section 5.6
+    int opcode = 0;
+    setCode(opcode++, RUN, 0, 0, NOOP, 0, 0);
+    for (int size = 0; size <= 17; size++) {
+      setCode(opcode++, ADD, size, 0, NOOP, 0, 0);
+    }
+    for (int mode = 0; mode < MODE_COUNT; mode++) {
+      setCode(opcode++, COPY, 0, mode, NOOP, 0, 0);
+      for (int size = 4; size <= 18; size++) {
+        setCode(opcode++, COPY, size, mode, NOOP, 0, 0);
+      }
+    }
+    for (int mode = 0; mode < 6; mode++) {
+      for (int addSize = 1; addSize <= 4; addSize++) {
+        for (int copySize = 4; copySize <= 6; copySize++) {
+          setCode(opcode++, ADD, addSize, 0, COPY, copySize, mode);
+        }
+      }
+    }
+    for (int mode = 6; mode < MODE_COUNT; mode++) {
+      for (int addSize = 1; addSize <= 4; addSize++) {
+        setCode(opcode++, ADD, addSize, 0, COPY, 4, mode);
+      }
+    }
+    for (int mode = 0; mode < MODE_COUNT; mode++) {
+      setCode(opcode++, COPY, 4, mode, ADD, 1, 0);
+    }
+  }
+
+  protected static void setCode(int opcode, int type1, int size1, int mode1, int type2, int size2, int mode2) {
+    CODE_TYPE1[opcode] = type1;
+    CODE_SIZE1[opcode] = size1;
+    CODE_MODE1[opcode] = mode1;
+    CODE_TYPE2[opcode] = type2;
+    CODE_SIZE2[opcode] = size2;
+    CODE_MODE2[opcode] = mode2;
+  }
+
+  /**
+   * The buffer to copy from the source.
+   */
+  protected final ByteBuffer copyBuffer;
+  /**
+   * The address cache, reset at the start of each window.
+   */
+  protected final AddressCache addressCache;
+  /**
+   * The buffer of the delta encoding of the current window.
+   */
+  protected byte[] window;
+  /**
+   * The data, instruction and address sections of the current window.
+   */
+  protected final Section dataSection;
+  protected final Section instructionSection;
+  protected final Section addressSection;
+  /**
+   * The target window being decoded.
+   */
+  protected byte[] target;
+  protected int targetPosition;
+
+  /**
+   * Constructor.
+   */
+  public VCDiffPatcher() {
+    copyBuffer = ByteBuffer.allocate(65536);
+    addressCache = new AddressCache();
+    dataSection = new Section();
+    instructionSection = new Section();
+    addressSection = new Section();
+    window = new byte[0];
+    target = new byte[0];
+  }
+
+  /**
+   * Apply the patch to {@code source} and write the result to {@code out}.
+   * @param source the source to patch
+   * @param patch the patch
+   * @param out the output stream to write the result to
+   * @throws IOException error occurred when reading or writing, or the 
+   * patch is invalid
+   */
+  public void patch(SeekableSource source, InputStream patch, OutputStream out) throws IOException {
+    if (source == null) {
+      throw new NullPointerException("argument 'source' cannot be null");
+    }
+    if (patch == null) {
+      throw new NullPointerException("argument 'patch' cannot be null");
+    }
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (readUnsignedByte(patch) != (MAGIC[i] & 0xff)) {
+        throw new PatchException("magic string not found, aborting!");
+      }
+    }
+    int headerIndicator = readUnsignedByte(patch);
+    if ((headerIndicator & (VCD_DECOMPRESS | VCD_CODETABLE)) != 0) {
+      throw new PatchException("secondary compression and application-defined code table are not supported");
+    }
+    if ((headerIndicator & VCD_APPHEADER) != 0) {
+      long length = readLong(patch);
+      if (patch.skip(length) != length) {
+        throw new EOFException();
+      }
+    }
+
+    int windowIndicator;
+    while ((windowIndicator = patch.read()) != -1) {
+      decodeWindow(windowIndicator, source, patch);
+      out.write(target, 0, targetPosition);
+    }
+  }
+
+  /**
+   * Decode a window to {@link #target}.
+   * @param windowIndicator the Win_Indicator of the window
+   * @param source the source to patch
+   * @param patch the patch positioned after the Win_Indicator
+   * @throws IOException error occurred when reading, or the patch is invalid
+   */
+  protected void decodeWindow(int windowIndicator, SeekableSource source, InputStream patch) throws IOException {
+    if ((windowIndicator & VCD_TARGET) != 0) {
+      throw new PatchException("window copying from the target (VCD_TARGET) is not supported");
+    }
+    if ((windowIndicator & ~(VCD_SOURCE | VCD_ADLER32)) != 0) {
+      throw new PatchException("invalid window indicator: " + windowIndicator);
+    }
+    long segmentLength = 0, segmentPosition = 0;
+    if ((windowIndicator & VCD_SOURCE) != 0) {
+      segmentLength = readLong(patch);
+      segmentPosition = readLong(patch);
+    }
+
+    long deltaLength = readLong(patch);
+    if (deltaLength > MAX_TARGET_WINDOW_SIZE * 2L) {
+      throw new PatchException("window too large: " + deltaLength);
+    }
+    if (window.length < deltaLength) {
+      window = new byte[(int) deltaLength];
+    }
+    readFully(patch, window, (int) deltaLength);
+
+    Section header = new Section();
+    header.set(window, 0, (int) deltaLength);
+    int targetLength = header.readInt();
+    if (targetLength > MAX_TARGET_WINDOW_SIZE) {
+      throw new PatchException("target window too large: " + targetLength);
+    }
+    if (header.readUnsignedByte() != 0) {
+      throw new PatchException("compressed sections are not supported");
+    }
+    int dataLength = header.readInt();
+    int instructionLength = header.readInt();
+    int addressLength = header.readInt();
+    long checksum = -1;
+    if ((windowIndicator & VCD_ADLER32) != 0) {
+      checksum = ((long) header.readUnsignedByte() << 24) | (header.readUnsignedByte() << 16) | (header.readUnsignedByte() << 8) | header.readUnsignedByte();
+    }
+    if ((long) header.position + dataLength + instructionLength + addressLength != deltaLength) {
+      throw new PatchException("the lengths of the sections not match with the window");
+    }
+    dataSection.set(window, header.position, dataLength);
+    instructionSection.set(window, dataSection.end, instructionLength);
+    addressSection.set(window, instructionSection.end, addressLength);
+
+    if (target.length < targetLength) {
+      target = new byte[targetLength];
+    }
+    targetPosition = 0;
+    addressCache.reset();
+    while (instructionSection.position < instructionSection.end) {
+      int opcode = instructionSection.readUnsignedByte();
+      execute(CODE_TYPE1[opcode], CODE_SIZE1[opcode], CODE_MODE1[opcode], source, segmentLength, segmentPosition, targetLength);
+      execute(CODE_TYPE2[opcode], CODE_SIZE2[opcode], CODE_MODE2[opcode], source, segmentLength, segmentPosition, targetLength);
+    }
+    if (targetPosition != targetLength || dataSection.position != dataSection.end || addressSection.position != addressSection.end) {
+      throw new PatchException("the instructions not match with the window");
+    }
+
+    if (checksum != -1) {
+      Adler32 adler32 = new Adler32();
+      adler32.update(target, 0, targetLength);
+      if (adler32.getValue() != checksum) {
+        throw new PatchException("Adler-32 checksum of the target window not match");
+      }
+    }
+  }
+
+  /**
+   * Execute an instruction of the code table.
+   * @param type the instruction type
+   * @param size the size, 0 means read from the instruction section
+   * @param mode the address mode if the instruction is COPY
+   */
+  protected void execute(int type, int size, int mode, SeekableSource source, long segmentLength, long segmentPosition, int targetLength) throws IOException {
+    if (type == NOOP) {
+      return;
+    }
+    if (size == 0) {
+      size = instructionSection.readInt();
+    }
+    if (size > targetLength - targetPosition) {
+      throw new PatchException("instruction exceeds the target window");
+    }
+
+    switch (type) {
+      case ADD:
+        dataSection.read(target, targetPosition, size);
+        targetPosition += size;
+        break;
+      case RUN:
+        byte b = (byte) dataSection.readUnsignedByte();
+        for (int i = 0; i < size; i++) {
+          target[targetPosition++] = b;
+        }
+        break;
+      case COPY:
+        long here = segmentLength + targetPosition;
+        long address = readAddress(mode, here);
+        if (address < 0 || address >= here) {
+          throw new PatchException("invalid copy address: " + address);
+        }
+        // the part in the source segment
+        int sourceSize = (int) Math.min(size, Math.max(0, segmentLength - address));
+        if (sourceSize > 0) {
+          readSource(source, segmentPosition + address, sourceSize);
+        }
+        // the part in the target window, may overlap with the bytes being copied
+        for (int i = sourceSize, offset = (int) (address + sourceSize - segmentLength); i < size; i++) {
+          target[targetPosition++] = target[offset++];
+        }
+        break;
+    }
+  }
+
+  /**
+   * Read the address of a COPY from the address section and update the 
+   * address cache.
+   * @param mode the address mode
+   * @param here the current position in the source segment and the target 
+   * window
+   * @return the address
+   */
+  protected long readAddress(int mode, long here) throws PatchException {
+    long address;
+    if (mode == 0) {
+      address = addressSection.readLong();
+    } else if (mode == 1) {
+      address = here - addressSection.readLong();
+    } else if (mode < 2 + NEAR_CACHE_SIZE) {
+      address = addressCache.near[mode - 2] + addressSection.readLong();
+    } else {
+      address = addressCache.same[(mode - 2 - NEAR_CACHE_SIZE) * 256 + addressSection.readUnsignedByte()];
+    }
+    addressCache.update(address);
+    return address;
+  }
+
+  /**
+   * Read {@code length} bytes from the source to the target window.
+   */
+  protected void readSource(SeekableSource source, long offset, int length) throws IOException {
+    source.seek(offset);
+    while (length > 0) {
+      copyBuffer.clear();
+      copyBuffer.limit(Math.min(length, copyBuffer.capacity()));
+      int byteRead = source.read(copyBuffer);
+      if (byteRead == -1) {
+        throw new PatchException("source too short to copy from");
+      }
+      System.arraycopy(copyBuffer.array(), 0, target, targetPosition, byteRead);
+      targetPosition += byteRead;
+      length -= byteRead;
+    }
+  }
+
+  protected static int readUnsignedByte(InputStream in) throws IOException {
+    int b = in.read();
+    if (b == -1) {
+      throw new EOFException();
+    }
+    return b;
+  }
+
+  protected static void readFully(InputStream in, byte[] b, int length) throws IOException {
+    int position = 0;
+    while (position < length) {
+      int byteRead = in.read(b, position, length - position);
+      if (byteRead == -1) {
+        throw new EOFException();
+      }
+      position += byteRead;
+    }
+  }
+
+  /**
+   * Read a VCDIFF integer, 7 bits per byte from the most significant, the 
+   * highest bit of the byte is set except the last byte.
+   */
+  protected static long readLong(InputStream in) throws IOException {
+    long value = 0;
+    int b;
+    do {
+      if ((value >>> 56) != 0) {
+        throw new PatchException("integer overflow");
+      }
+      b = readUnsignedByte(in);
+      value = (value << 7) | (b & 0x7f);
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * Write a VCDIFF integer.
+   * @see #readLong(java.io.InputStream)
+   */
+  protected static void writeLong(ByteArrayOutputStream out, long value) {
+    int shift = 0;
+    while (shift < 63 && (value >>> (shift + 7)) != 0) {
+      shift += 7;
+    }
+    for (; shift > 0; shift -= 7) {
+      out.write((int) ((value >>> shift) & 0x7f) | 0x80);
+    }
+    out.write((int) (value & 0x7f));
+  }
+
+  /**
+   * A section of the window being read.
+   */
+  protected static class Section {
+
+    protected byte[] buffer;
+    protected int position;
+    protected int end;
+
+    protected void set(byte[] buffer, int offset, int length) {
+      this.buffer = buffer;
+      position = offset;
+      end = offset + length;
+    }
+
+    protected int readUnsignedByte() throws PatchException {
+      if (position >= end) {
+        throw new PatchException("unexpected end of section");
+      }
+      return buffer[position++] & 0xff;
+    }
+
+    protected void read(byte[] b, int offset, int length) throws PatchException {
+      if (length > end - position) {
+        throw new PatchException("unexpected end of section");
+      }
+      System.arraycopy(buffer, position, b, offset, length);
+      position += length;
+    }
+
+    protected long readLong() throws PatchException {
+      long value = 0;
+      int b;
+      do {
+        if ((value >>> 56) != 0) {
+          throw new PatchException("integer overflow");
+        }
+        b = readUnsignedByte();
+        value = (value << 7) | (b & 0x7f);
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    protected int readInt() throws PatchException {
+      long value = readLong();
+      if (value > Integer.MAX_VALUE) {
+        throw new PatchException("integer overflow");
+      }
+      return (int) value;
+    }
+  }
+
+  /**
+   * The near and same address caches of RFC 3284 section 5.1.
+   */
+  protected static class AddressCache {
+
+    protected final long[] near;
+    protected int nextSlot;
+    protected final long[] same;
+
+    protected AddressCache() {
+      near = new long[NEAR_CACHE_SIZE];
+      same = new long[SAME_CACHE_SIZE * 256];
+    }
+
+    protected void reset() {
+      Arrays.fill(near, 0);
+      nextSlot = 0;
+      Arrays.fill(same, 0);
+    }
+
+    protected void update(long address) {
+      near[nextSlot] = address;
+      nextSlot = (nextSlot + 1) % near.length;
+      same[(int) (address % same.length)] = address;
+    }
+
+    /**
+     * Write the address of a COPY in the mode that gives the shortest 
+     * encoding, and update the cache.
+     * @param address the address
+     * @param here the current position in the source segment and the 
+     * target window
+     * @param out the address section to write to
+     * @return the mode
+     */
+    protected int encode(long address, long here, ByteArrayOutputStream out) {
+      int mode;
+      int sameSlot = (int) (address % same.length);
+      if (same[sameSlot] == address) {
+        // a single byte, no longer than any integer
+        mode = 2 + near.length + sameSlot / 256;
+        out.write(sameSlot % 256);
+      } else {
+        mode = 0;
+        long value = address;
+        if (here - address < value) {
+          mode = 1;
+          value = here - address;
+        }
+        for (int i = 0; i < near.length; i++) {
+          if (address >= near[i] && address - near[i] < value) {
+            mode = 2 + i;
+            value = address - near[i];
+          }
+        }
+        writeLong(out, value);
+      }
+      update(address);
+      return mode;
+    }
+  }
+}
@@ -0,0 +1,312 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.DiffWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Write the delta computed by {@link com.nothome.delta.Delta} in VCDIFF 
+ * (RFC 3284) format, as an alternative to 
+ * {@link com.nothome.delta.GDiffWriter}. The patch is applied by 
+ * {@link VCDiffPatcher}, or any VCDIFF decoder.
+ * <p>
+ * The target is split into windows of {@link #WINDOW_SIZE}, each window 
+ * copies from the segment of the source that covers its copies. The copy 
+ * addresses are encoded with the near and same address caches, and the 
+ * instructions with the default code table, which pairs a short ADD with 
+ * the following COPY into one byte. Repeating bytes in the data are written 
+ * as RUN.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class VCDiffWriter implements DiffWriter {
+
+  /**
+   * The maximum length of a target window.
+   */
+  public static final int WINDOW_SIZE = 1024 * 1024;
+  /**
+   * The minimum length of repeating bytes to be written as RUN.
+   */
+  protected static final int MIN_RUN_LENGTH = 8;
+  /**
+   * The opcode of single instruction indexed by type, mode and size (sizes 
+   * larger than 18 use size 0), -1 if not exist.
+   */
+  protected static final int[][][] SINGLE_OPCODES = new int[4][VCDiffPatcher.MODE_COUNT][19];
+  /**
+   * The opcode of ADD followed by COPY indexed by the size of ADD, the size 
+   * of COPY and the mode of COPY, -1 if not exist.
+   */
+  protected static final int[][][] ADD_COPY_OPCODES = new int[5][19][VCDiffPatcher.MODE_COUNT];
+  /**
+   * The opcode of COPY followed by ADD of size 1 indexed by the size and 
+   * mode of COPY, -1 if not exist.
+   */
+  protected static final int[][] COPY_ADD_OPCODES = new int[19][VCDiffPatcher.MODE_COUNT];
+
+  static {
+    for (int[][] opcodes : SINGLE_OPCODES) {
+      for (int[] _opcodes : opcodes) {
+        Arrays.fill(_opcodes, -1);
+      }
+    }
+    for (int[][] opcodes : ADD_COPY_OPCODES) {
+      for (int[] _opcodes : opcodes) {
+        Arrays.fill(_opcodes, -1);
+      }
+    }
+    for (int[] opcodes : COPY_ADD_OPCODES) {
+      Arrays.fill(opcodes, -1);
+    }
+    for (int opcode = 0; opcode < 256; opcode++) {
+      if (VCDiffPatcher.CODE_TYPE2[opcode] == VCDiffPatcher.NOOP) {
+        SINGLE_OPCODES[VCDiffPatcher.CODE_TYPE1[opcode]][VCDiffPatcher.CODE_MODE1[opcode]][VCDiffPatcher.CODE_SIZE1[opcode]] = opcode;
+      } else if (VCDiffPatcher.CODE_TYPE1[opcode] == VCDiffPatcher.ADD) {
+        ADD_COPY_OPCODES[VCDiffPatcher.CODE_SIZE1[opcode]][VCDiffPatcher.CODE_SIZE2[opcode]][VCDiffPatcher.CODE_MODE2[opcode]] = opcode;
+      } else if (VCDiffPatcher.CODE_SIZE2[opcode] == 1) {
+        COPY_ADD_OPCODES[VCDiffPatcher.CODE_SIZE1[opcode]][VCDiffPatcher.CODE_MODE1[opcode]] = opcode;
+      }
+    }
+  }
+  /**
+   * The stream to write the patch to.
+   */
+  protected final OutputStream out;
+  /**
+   * The instructions of the current window, the offset is the position in 
+   * the source for COPY and not used for ADD and RUN.
+   */
+  protected int instructionCount;
+  protected int[] types;
+  protected int[] sizes;
+  protected long[] offsets;
+  /**
+   * The data section of the current window.
+   */
+  protected final ByteArrayOutputStream data;
+  /**
+   * The data added since the last COPY.
+   */
+  protected final ByteArrayOutputStream pendingData;
+  /**
+   * The length of the current target window.
+   */
+  protected int targetLength;
+
+  /**
+   * Constructor, write the header of the patch.
+   * @param out the stream to write the patch to
+   * @throws IOException error occurred when writing
+   */
+  public VCDiffWriter(OutputStream out) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    this.out = out;
+
+    instructionCount = 0;
+    types = new int[256];
+    sizes = new int[256];
+    offsets = new long[256];
+    data = new ByteArrayOutputStream();
+    pendingData = new ByteArrayOutputStream();
+    targetLength = 0;
+
+    out.write(VCDiffPatcher.MAGIC);
+    // Hdr_Indicator, no secondary compression and default code table
+    out.write(0);
+  }
+
+  @Override
+  public void addCopy(long offset, int length) throws IOException {
+    while (length > 0) {
+      endData();
+      int copyLength = Math.min(length, WINDOW_SIZE - targetLength);
+      int last = instructionCount - 1;
+      if (last >= 0 && types[last] == VCDiffPatcher.COPY && offsets[last] + sizes[last] == offset) {
+        // continue the last copy
+        sizes[last] += copyLength;
+      } else {
+        addInstruction(VCDiffPatcher.COPY, copyLength, offset);
+      }
+      targetLength += copyLength;
+      offset += copyLength;
+      length -= copyLength;
+      if (targetLength == WINDOW_SIZE) {
+        writeWindow();
+      }
+    }
+  }
+
+  @Override
+  public void addData(byte b) throws IOException {
+    pendingData.write(b);
+    targetLength++;
+    if (targetLength == WINDOW_SIZE) {
+      writeWindow();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writeWindow();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    flush();
+    out.close();
+  }
+
+  protected void addInstruction(int type, int size, long offset) {
+    if (instructionCount == types.length) {
+      types = Arrays.copyOf(types, instructionCount * 2);
+      sizes = Arrays.copyOf(sizes, instructionCount * 2);
+      offsets = Arrays.copyOf(offsets, instructionCount * 2);
+    }
+    types[instructionCount] = type;
+    sizes[instructionCount] = size;
+    offsets[instructionCount] = offset;
+    instructionCount++;
+  }
+
+  /**
+   * Move {@link #pendingData} to the window as ADD and RUN instructions.
+   */
+  protected void endData() {
+    byte[] b = pendingData.toByteArray();
+    pendingData.reset();
+
+    int addStart = 0;
+    for (int i = 0, j; i < b.length; i = j) {
+      for (j = i + 1; j < b.length && b[j] == b[i]; j++) {
+      }
+      if (j - i >= MIN_RUN_LENGTH) {
+        if (i > addStart) {
+          addInstruction(VCDiffPatcher.ADD, i - addStart, 0);
+          data.write(b, addStart, i - addStart);
+        }
+        addInstruction(VCDiffPatcher.RUN, j - i, 0);
+        data.write(b[i]);
+        addStart = j;
+      }
+    }
+    if (b.length > addStart) {
+      addInstruction(VCDiffPatcher.ADD, b.length - addStart, 0);
+      data.write(b, addStart, b.length - addStart);
+    }
+  }
+
+  /**
+   * Write the current window, if not empty, and start a new one.
+   * @throws IOException error occurred when writing
+   */
+  protected void writeWindow() throws IOException {
+    endData();
+    if (instructionCount == 0) {
+      return;
+    }
+
+    // the source segment covers all copies
+    long segmentPosition = Long.MAX_VALUE, segmentEnd = 0;
+    for (int i = 0; i < instructionCount; i++) {
+      if (types[i] == VCDiffPatcher.COPY) {
+        segmentPosition = Math.min(segmentPosition, offsets[i]);
+        segmentEnd = Math.max(segmentEnd, offsets[i] + sizes[i]);
+      }
+    }
+    if (segmentPosition > segmentEnd) {
+      segmentPosition = segmentEnd;
+    }
+    long segmentLength = segmentEnd - segmentPosition;
+
+    // the addresses, in the order of the instructions
+    ByteArrayOutputStream addresses = new ByteArrayOutputStream();
+    VCDiffPatcher.AddressCache addressCache = new VCDiffPatcher.AddressCache();
+    int[] modes = new int[instructionCount];
+    long here = segmentLength;
+    for (int i = 0; i < instructionCount; i++) {
+      if (types[i] == VCDiffPatcher.COPY) {
+        modes[i] = addressCache.encode(offsets[i] - segmentPosition, here, addresses);
+      }
+      here += sizes[i];
+    }
+
+    ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+    for (int i = 0; i < instructionCount; i++) {
+      int type = types[i], size = sizes[i], mode = modes[i];
+      if (i + 1 < instructionCount) {
+        int nextType = types[i + 1], nextSize = sizes[i + 1], nextMode = modes[i + 1];
+        int opcode = -1;
+        if (type == VCDiffPatcher.ADD && size <= 4 && nextType == VCDiffPatcher.COPY && nextSize <= 18) {
+          opcode = ADD_COPY_OPCODES[size][nextSize][nextMode];
+        } else if (type == VCDiffPatcher.COPY && size <= 18 && nextType == VCDiffPatcher.ADD && nextSize == 1) {
+          opcode = COPY_ADD_OPCODES[size][mode];
+        }
+        if (opcode != -1) {
+          instructions.write(opcode);
+          i++;
+          continue;
+        }
+      }
+      int opcode = size <= 18 ? SINGLE_OPCODES[type][mode][size] : -1;
+      if (opcode != -1) {
+        instructions.write(opcode);
+      } else {
+        instructions.write(SINGLE_OPCODES[type][mode][0]);
+        VCDiffPatcher.writeLong(instructions, size);
+      }
+    }
+
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    VCDiffPatcher.writeLong(header, targetLength);
+    // Delta_Indicator, no compressed section
+    header.write(0);
+    VCDiffPatcher.writeLong(header, data.size());
+    VCDiffPatcher.writeLong(header, instructions.size());
+    VCDiffPatcher.writeLong(header, addresses.size());
+
+    ByteArrayOutputStream windowHeader = new ByteArrayOutputStream();
+    if (segmentLength > 0) {
+      windowHeader.write(VCDiffPatcher.VCD_SOURCE);
+      VCDiffPatcher.writeLong(windowHeader, segmentLength);
+      VCDiffPatcher.writeLong(windowHeader, segmentPosition);
+    } else {
+      windowHeader.write(0);
+    }
+    VCDiffPatcher.writeLong(windowHeader, header.size() + data.size() + instructions.size() + addresses.size());
+    windowHeader.writeTo(out);
+    header.writeTo(out);
+    data.writeTo(out);
+    instructions.writeTo(out);
+    addresses.writeTo(out);
+
+    instructionCount = 0;
+    data.reset();
+    targetLength = 0;
+  }
+}
@@ -0,0 +1,279 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.Delta;
+import com.nothome.delta.DiffWriter;
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SeekableSource;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import updater.util.CommonUtil;
+import updater.util.InterruptibleInputStream;
+
+/**
+ * Compute GDIFF delta of files of any size with bounded memory.
+ * <p>
+ * {@link Delta} indexes the checksums of the whole old file before scanning 
+ * the new file, so the memory used grows with the old file. This delta 
+ * splits the new file into segments of half the window size, and computes 
+ * each segment by {@link Delta} against a window of the old file only. The 
+ * window is placed around the position in the old file that corresponds to 
+ * the segment, i.e. the segment position plus the offset of the last copy, 
+ * so that content that shifts slightly between versions is still matched.</p>
+ * <p>
+ * The copies of all segments are written to one {@link DiffWriter} with 
+ * absolute offsets, offsets beyond {@link Integer#MAX_VALUE} are written as 
+ * COPY_LONG_INT by {@link GDiffWriter}. Content that moved farther than the 
+ * window is stored as data.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class WindowedDelta {
+
+  /**
+   * The default size of the window of the old file, the memory used is 
+   * about the window size.
+   */
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+  /**
+   * The size of the window of the old file.
+   */
+  protected final int windowSize;
+
+  /**
+   * Constructor, use {@link #DEFAULT_WINDOW_SIZE}.
+   */
+  public WindowedDelta() {
+    this(DEFAULT_WINDOW_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * @param windowSize the size of the window of the old file, should >= 2
+   */
+  public WindowedDelta(int windowSize) {
+    if (windowSize < 2) {
+      throw new IllegalArgumentException("argument 'windowSize' should >= 2");
+    }
+    this.windowSize = windowSize;
+  }
+
+  /**
+   * Compute the delta from the old file to the new file.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param out the stream to write the GDIFF delta to, will be closed
+   * @throws IOException error occurred when reading or writing
+   */
+  public void compute(File oldFile, File newFile, OutputStream out) throws IOException {
+    if (out == null) {
+      throw new NullPointerException("argument 'out' cannot be null");
+    }
+    compute(oldFile, newFile, new GDiffWriter(new BufferedOutputStream(out)));
+  }
+
+  /**
+   * Compute the delta from the old file to the new file.
+   * @param oldFile the old file
+   * @param newFile the new file
+   * @param diffOut the writer to write the delta to, will be closed
+   * @throws IOException error occurred when reading or writing
+   */
+  public void compute(File oldFile, File newFile, DiffWriter diffOut) throws IOException {
+    if (oldFile == null) {
+      throw new NullPointerException("argument 'oldFile' cannot be null");
+    }
+    if (newFile == null) {
+      throw new NullPointerException("argument 'newFile' cannot be null");
+    }
+    if (diffOut == null) {
+      throw new NullPointerException("argument 'diffOut' cannot be null");
+    }
+
+    RandomAccessFile oldFileIn = null;
+    InputStream newFileIn = null;
+    try {
+      oldFileIn = new RandomAccessFile(oldFile, "r");
+      newFileIn = new BufferedInputStream(new FileInputStream(newFile));
+      FileChannel oldChannel = oldFileIn.getChannel();
+      long oldLength = oldChannel.size(), newLength = newFile.length();
+
+      SegmentDiffWriter segmentOut = new SegmentDiffWriter(diffOut);
+      int segmentSize = windowSize / 2;
+      for (long segmentStart = 0; segmentStart < newLength; segmentStart += segmentSize) {
+        long windowStart = segmentStart + segmentOut.getDrift() - (windowSize - segmentSize) / 2;
+        windowStart = Math.max(0, Math.min(windowStart, oldLength - windowSize));
+        long windowLength = Math.min(windowSize, oldLength - windowStart);
+
+        segmentOut.startSegment(segmentStart, windowStart);
+        // Delta is not thread-safe, use one for each segment
+        new Delta().compute(new WindowSource(oldChannel, windowStart, windowLength),
+                new InterruptibleInputStream(newFileIn, Math.min(segmentSize, newLength - segmentStart)), segmentOut);
+      }
+      diffOut.close();
+    } finally {
+      CommonUtil.closeQuietly(oldFileIn);
+      CommonUtil.closeQuietly(newFileIn);
+    }
+  }
+
+  /**
+   * A window of the old file as a source starting from 0.
+   */
+  protected static class WindowSource implements SeekableSource {
+
+    protected final FileChannel channel;
+    /**
+     * The offset of the window in the file.
+     */
+    protected final long offset;
+    /**
+     * The length of the window.
+     */
+    protected final long length;
+    /**
+     * The position in the window.
+     */
+    protected long position;
+
+    protected WindowSource(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.offset = offset;
+      this.length = length;
+      position = 0;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+      position = pos;
+    }
+
+    @Override
+    public int read(ByteBuffer bb) throws IOException {
+      if (position >= length) {
+        return -1;
+      }
+
+      int limit = bb.limit();
+      if (bb.remaining() > length - position) {
+        bb.limit(bb.position() + (int) (length - position));
+      }
+      int byteRead;
+      try {
+        byteRead = channel.read(bb, offset + position);
+      } finally {
+        bb.limit(limit);
+      }
+      if (byteRead > 0) {
+        position += byteRead;
+      }
+      return byteRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+      // the channel is closed by WindowedDelta
+    }
+  }
+
+  /**
+   * Translate the copies of a segment to absolute offsets of the old file, 
+   * and record the offset of the last copy from the new file position.
+   */
+  protected static class SegmentDiffWriter implements DiffWriter {
+
+    protected final DiffWriter out;
+    /**
+     * The position in the new file of the current segment.
+     */
+    protected long segmentStart;
+    /**
+     * The position in the old file of the window of the current segment.
+     */
+    protected long windowStart;
+    /**
+     * The number of bytes of the current segment written.
+     */
+    protected long written;
+    /**
+     * The position in the old file minus the position in the new file of 
+     * the last copy.
+     */
+    protected long drift;
+
+    protected SegmentDiffWriter(DiffWriter out) {
+      this.out = out;
+      segmentStart = 0;
+      windowStart = 0;
+      written = 0;
+      drift = 0;
+    }
+
+    /**
+     * Start a segment.
+     * @param segmentStart the position of the segment in the new file
+     * @param windowStart the position of the window in the old file
+     */
+    public void startSegment(long segmentStart, long windowStart) {
+      this.segmentStart = segmentStart;
+      this.windowStart = windowStart;
+      written = 0;
+    }
+
+    public long getDrift() {
+      return drift;
+    }
+
+    @Override
+    public void addCopy(long offset, int length) throws IOException {
+      drift = (windowStart + offset) - (segmentStart + written);
+      out.addCopy(windowStart + offset, length);
+      written += length;
+    }
+
+    @Override
+    public void addData(byte b) throws IOException {
+      out.addData(b);
+      written++;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      // Delta closes the writer after each segment, the underlying writer 
+      // is closed by WindowedDelta after all segments
+      out.flush();
+    }
+  }
+}
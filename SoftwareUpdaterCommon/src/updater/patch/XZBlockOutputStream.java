@@ -0,0 +1,99 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.tukaani.xz.FilterOptions;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * XZ output stream that start a new XZ block at operation boundary once the 
+ * current block is large enough. The XZ index then tells which block 
+ * contains an operation, so the reader can seek to the operation and only 
+ * decompress from the start of that block.
+ * <p>
+ * The patch XML always ends a block, see 
+ * {@link PatchWriteUtil#writeXML(java.io.OutputStream, byte[])}.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class XZBlockOutputStream extends XZOutputStream {
+
+  /**
+   * The default minimum uncompressed size of a block.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 1048576;
+  /**
+   * The minimum uncompressed size of a block.
+   */
+  protected final int blockSize;
+  /**
+   * The uncompressed size of the current block.
+   */
+  protected long currentBlockSize;
+
+  /**
+   * Constructor.
+   * @param out the stream to output to
+   * @param filterOptions the filter options
+   * @param blockSize the minimum uncompressed size of a block, a block is 
+   * ended at the first operation boundary after reaching this size
+   * @throws IOException error occurred when writing the stream header
+   */
+  public XZBlockOutputStream(OutputStream out, FilterOptions filterOptions, int blockSize) throws IOException {
+    super(out, filterOptions);
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("argument 'blockSize' should be greater than 0");
+    }
+    this.blockSize = blockSize;
+    currentBlockSize = 0;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    super.write(b);
+    currentBlockSize++;
+  }
+
+  @Override
+  public void write(byte[] buf, int off, int len) throws IOException {
+    super.write(buf, off, len);
+    currentBlockSize += len;
+  }
+
+  @Override
+  public void endBlock() throws IOException {
+    super.endBlock();
+    currentBlockSize = 0;
+  }
+
+  /**
+   * Notify that the content of an operation ended. End the current block if 
+   * it reach the block size.
+   * @throws IOException error occurred when ending the block
+   */
+  public void endOperation() throws IOException {
+    if (currentBlockSize >= blockSize) {
+      endBlock();
+    }
+  }
+}
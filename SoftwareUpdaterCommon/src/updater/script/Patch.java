@@ -382,26 +382,46 @@ public class Patch {
     protected int id;
     protected String type;
     //
-    protected int patchPos;
-    protected int patchLength;
+    protected long patchPos;
+    protected long patchLength;
+    /**
+     * The id of the earlier operation that has the same new file content, -1 
+     * if not a duplicate. The content is not stored again in the patch, 
+     * {@link #patchPos} is the position of the content of that operation and 
+     * {@link #patchLength} is 0.
+     */
+    protected int duplicateOf;
+    /**
+     * The integer value of the compression of the content, only used by the 
+     * patch compressed with 'per operation' compression, -1 if not specified.
+     */
+    protected int compression;
     //
     protected String fileType;
     //
     protected String destFilePath;
     //
+    /**
+     * The path of the existing file to copy the content from, only used by 
+     * 'copy' operation, null if not specified.
+     */
+    protected String oldFilePath;
     protected String oldFileChecksum;
-    protected int oldFileLength;
+    protected long oldFileLength;
     //
     protected String newFileChecksum;
-    protected int newFileLength;
+    protected long newFileLength;
 
-    public Operation(int id, String type, int patchPos, int patchLength, String fileType, String destFilePath, String oldFileChecksum, int oldFileLength, String newFileChecksum, int newFileLength) {
+    public Operation(int id, String type, long patchPos, long patchLength, String fileType, String destFilePath, String oldFileChecksum, long oldFileLength, String newFileChecksum, long newFileLength) {
       this.id = id;
       this.type = type;
       this.patchPos = patchPos;
       this.patchLength = patchLength;
+      this.duplicateOf = -1;
+      this.compression = -1;
       this.fileType = fileType;
       this.destFilePath = destFilePath;
+      this.oldFilePath = null;
       this.oldFileChecksum = oldFileChecksum;
       this.oldFileLength = oldFileLength;
       this.newFileChecksum = newFileChecksum;
@@ -424,22 +444,38 @@ public class Patch {
       this.type = type;
     }
 
-    public int getPatchPos() {
+    public long getPatchPos() {
       return patchPos;
     }
 
-    public void setPatchPos(int patchPos) {
+    public void setPatchPos(long patchPos) {
       this.patchPos = patchPos;
     }
 
-    public int getPatchLength() {
+    public long getPatchLength() {
       return patchLength;
     }
 
-    public void setPatchLength(int patchLength) {
+    public void setPatchLength(long patchLength) {
       this.patchLength = patchLength;
     }
 
+    public int getDuplicateOf() {
+      return duplicateOf;
+    }
+
+    public void setDuplicateOf(int duplicateOf) {
+      this.duplicateOf = duplicateOf;
+    }
+
+    public int getCompression() {
+      return compression;
+    }
+
+    public void setCompression(int compression) {
+      this.compression = compression;
+    }
+
     public String getFileType() {
       return fileType;
     }
@@ -456,6 +492,14 @@ public class Patch {
       this.destFilePath = destFilePath;
     }
 
+    public String getOldFilePath() {
+      return oldFilePath;
+    }
+
+    public void setOldFilePath(String oldFilePath) {
+      this.oldFilePath = oldFilePath;
+    }
+
     public String getOldFileChecksum() {
       return oldFileChecksum;
     }
@@ -464,11 +508,11 @@ public class Patch {
       this.oldFileChecksum = oldFileChecksum;
     }
 
-    public int getOldFileLength() {
+    public long getOldFileLength() {
       return oldFileLength;
     }
 
-    public void setOldFileLength(int oldFileLength) {
+    public void setOldFileLength(long oldFileLength) {
       this.oldFileLength = oldFileLength;
     }
 
@@ -480,11 +524,11 @@ public class Patch {
       this.newFileChecksum = newFileChecksum;
     }
 
-    public int getNewFileLength() {
+    public long getNewFileLength() {
       return newFileLength;
     }
 
-    public void setNewFileLength(int newFileLength) {
+    public void setNewFileLength(long newFileLength) {
       this.newFileLength = newFileLength;
     }
 
@@ -506,46 +550,70 @@ public class Patch {
 
       String _type = XMLUtil.getTextContent(operationElement, "type", true);
 
-      int pos = 0;
-      int length = 0;
-      if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force")) {
+      long pos = 0;
+      long length = 0;
+      int _duplicateOf = -1;
+      int _compression = -1;
+      if (_type.equals("patch") || _type.equals("jar-patch") || _type.equals("suffix-array-patch") || _type.equals("vcdiff-patch") || _type.equals("lzma2-dict-patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force") || _type.equals("copy")) {
         Element _contentElement = XMLUtil.getElement(operationElement, "content", true);
         try {
-          pos = Integer.parseInt(XMLUtil.getTextContent(_contentElement, "pos", true));
-          length = Integer.parseInt(XMLUtil.getTextContent(_contentElement, "length", true));
+          pos = Long.parseLong(XMLUtil.getTextContent(_contentElement, "pos", true));
+          length = Long.parseLong(XMLUtil.getTextContent(_contentElement, "length", true));
         } catch (NumberFormatException ex) {
           throw new InvalidFormatException("pos or length of <content> is not a valid integer, found: pos: " + XMLUtil.getTextContent(_contentElement, "pos", true) + ", length: " + XMLUtil.getTextContent(_contentElement, "length", true));
         }
+        String duplicateOfString = XMLUtil.getTextContent(_contentElement, "duplicate-of", false);
+        if (duplicateOfString != null) {
+          try {
+            _duplicateOf = Integer.parseInt(duplicateOfString);
+          } catch (NumberFormatException ex) {
+            throw new InvalidFormatException("duplicate-of of <content> is not a valid integer, found: " + duplicateOfString);
+          }
+        }
+        String compressionString = XMLUtil.getTextContent(_contentElement, "compression", false);
+        if (compressionString != null) {
+          try {
+            _compression = Integer.parseInt(compressionString);
+          } catch (NumberFormatException ex) {
+            throw new InvalidFormatException("compression of <content> is not a valid integer, found: " + compressionString);
+          }
+        }
       }
 
       String _fileType = XMLUtil.getTextContent(operationElement, "file-type", true);
       String destPath = XMLUtil.getTextContent(operationElement, "destination", true);
 
+      String oldPath = null;
       String oldChecksum = null;
-      int oldLength = -1;
-      if (_type.equals("patch") || _type.equals("replace") || _type.equals("remove")) {
+      long oldLength = -1;
+      if (_type.equals("patch") || _type.equals("jar-patch") || _type.equals("suffix-array-patch") || _type.equals("vcdiff-patch") || _type.equals("lzma2-dict-patch") || _type.equals("replace") || _type.equals("remove") || _type.equals("copy")) {
         Element _oldFileElement = XMLUtil.getElement(operationElement, "old-file", true);
+        oldPath = XMLUtil.getTextContent(_oldFileElement, "path", _type.equals("copy"));
         oldChecksum = XMLUtil.getTextContent(_oldFileElement, "checksum", true);
         try {
-          oldLength = Integer.parseInt(XMLUtil.getTextContent(_oldFileElement, "length", true));
+          oldLength = Long.parseLong(XMLUtil.getTextContent(_oldFileElement, "length", true));
         } catch (NumberFormatException ex) {
           throw new InvalidFormatException("length of <old-file> is not a valid integer, found: " + XMLUtil.getTextContent(_oldFileElement, "length", true));
         }
       }
 
       String newChecksum = null;
-      int newLength = -1;
-      if (_type.equals("patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force")) {
+      long newLength = -1;
+      if (_type.equals("patch") || _type.equals("jar-patch") || _type.equals("suffix-array-patch") || _type.equals("vcdiff-patch") || _type.equals("lzma2-dict-patch") || _type.equals("replace") || _type.equals("new") || _type.equals("force") || _type.equals("copy")) {
         Element _newFileElement = XMLUtil.getElement(operationElement, "new-file", true);
         newChecksum = XMLUtil.getTextContent(_newFileElement, "checksum", true);
         try {
-          newLength = Integer.parseInt(XMLUtil.getTextContent(_newFileElement, "length", true));
+          newLength = Long.parseLong(XMLUtil.getTextContent(_newFileElement, "length", true));
         } catch (NumberFormatException ex) {
           throw new InvalidFormatException("length of <new-file> is not a valid integer, found: " + XMLUtil.getTextContent(_newFileElement, "length", true));
         }
       }
 
-      return new Operation(_id, _type, pos, length, _fileType, destPath, oldChecksum, oldLength, newChecksum, newLength);
+      Operation operation = new Operation(_id, _type, pos, length, _fileType, destPath, oldChecksum, oldLength, newChecksum, newLength);
+      operation.setDuplicateOf(_duplicateOf);
+      operation.setCompression(_compression);
+      operation.setOldFilePath(oldPath);
+      return operation;
     }
 
     protected Element getElement(Document doc) {
@@ -566,12 +634,24 @@ public class Patch {
         _operation.appendChild(_patch);
 
         Element _patchUrl = doc.createElement("pos");
-        _patchUrl.appendChild(doc.createTextNode(Integer.toString(patchPos)));
+        _patchUrl.appendChild(doc.createTextNode(Long.toString(patchPos)));
         _patch.appendChild(_patchUrl);
 
         Element _patchLength = doc.createElement("length");
-        _patchLength.appendChild(doc.createTextNode(Integer.toString(patchLength)));
+        _patchLength.appendChild(doc.createTextNode(Long.toString(patchLength)));
         _patch.appendChild(_patchLength);
+
+        if (duplicateOf != -1) {
+          Element _duplicateOf = doc.createElement("duplicate-of");
+          _duplicateOf.appendChild(doc.createTextNode(Integer.toString(duplicateOf)));
+          _patch.appendChild(_duplicateOf);
+        }
+
+        if (compression != -1) {
+          Element _compression = doc.createElement("compression");
+          _compression.appendChild(doc.createTextNode(Integer.toString(compression)));
+          _patch.appendChild(_compression);
+        }
       }
       //</editor-fold>
 
@@ -588,12 +668,18 @@ public class Patch {
         Element _old = doc.createElement("old-file");
         _operation.appendChild(_old);
 
+        if (oldFilePath != null) {
+          Element _oldFilePath = doc.createElement("path");
+          _oldFilePath.appendChild(doc.createTextNode(oldFilePath));
+          _old.appendChild(_oldFilePath);
+        }
+
         Element _oldFileChecksum = doc.createElement("checksum");
         _oldFileChecksum.appendChild(doc.createTextNode(oldFileChecksum));
         _old.appendChild(_oldFileChecksum);
 
         Element _oldFileLength = doc.createElement("length");
-        _oldFileLength.appendChild(doc.createTextNode(Integer.toString(oldFileLength)));
+        _oldFileLength.appendChild(doc.createTextNode(Long.toString(oldFileLength)));
         _old.appendChild(_oldFileLength);
       }
       //</editor-fold>
@@ -608,7 +694,7 @@ public class Patch {
         _new.appendChild(_newFileChecksum);
 
         Element _newFileLength = doc.createElement("length");
-        _newFileLength.appendChild(doc.createTextNode(Integer.toString(newFileLength)));
+        _newFileLength.appendChild(doc.createTextNode(Long.toString(newFileLength)));
         _new.appendChild(_newFileLength);
       }
       //</editor-fold>
@@ -621,9 +707,9 @@ public class Patch {
 
     protected String filePath;
     protected String fileChecksum;
-    protected int fileLength;
+    protected long fileLength;
 
-    public ValidationFile(String filePath, String fileChecksum, int fileLength) {
+    public ValidationFile(String filePath, String fileChecksum, long fileLength) {
       this.filePath = filePath;
       this.fileChecksum = fileChecksum;
       this.fileLength = fileLength;
@@ -645,11 +731,11 @@ public class Patch {
       this.fileChecksum = fileChecksum;
     }
 
-    public int getFileLength() {
+    public long getFileLength() {
       return fileLength;
     }
 
-    public void setFileLength(int fileLength) {
+    public void setFileLength(long fileLength) {
       this.fileLength = fileLength;
     }
 
@@ -660,7 +746,7 @@ public class Patch {
 
       String _path = XMLUtil.getTextContent(fileElement, "path", true);
       String _checksum = XMLUtil.getTextContent(fileElement, "checksum", true);
-      int _length = Integer.parseInt(XMLUtil.getTextContent(fileElement, "length", true));
+      long _length = Long.parseLong(XMLUtil.getTextContent(fileElement, "length", true));
 
       return new ValidationFile(_path, _checksum, _length);
     }
@@ -681,7 +767,7 @@ public class Patch {
       _file.appendChild(_checksum);
 
       Element _length = doc.createElement("length");
-      _length.appendChild(doc.createTextNode(Integer.toString(fileLength)));
+      _length.appendChild(doc.createTextNode(Long.toString(fileLength)));
       _file.appendChild(_length);
 
       return _file;
@@ -0,0 +1,93 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit the total bandwidth used by several downloads. It can be shared by 
+ * multiple threads, no lock is used.
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class BandwidthLimiter {
+
+  /**
+   * The bytes allowed to transfer at once after idle, in nano second of 
+   * transfer time.
+   */
+  protected static final long BURST_TIME = 100000000L;
+  /**
+   * The maximum bytes per second.
+   */
+  protected final long bytesPerSecond;
+  /**
+   * The time (from {@link System#nanoTime()}) when all bytes acquired so far 
+   * are considered transferred.
+   */
+  protected final AtomicLong transferredTime;
+
+  /**
+   * Constructor.
+   * @param bytesPerSecond the maximum bytes per second
+   */
+  public BandwidthLimiter(long bytesPerSecond) {
+    if (bytesPerSecond <= 0) {
+      throw new IllegalArgumentException("argument 'bytesPerSecond' should be greater than 0");
+    }
+    this.bytesPerSecond = bytesPerSecond;
+    transferredTime = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Get the maximum bytes per second.
+   * @return the bytes per second
+   */
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * Acquire the permission to transfer {@code numberOfBytes}, block until 
+   * the transfer is allowed. If the thread is interrupted when waiting, it 
+   * will return immediately with the interrupted status set.
+   * @param numberOfBytes the number of bytes
+   */
+  public void acquire(int numberOfBytes) {
+    long cost = numberOfBytes * 1000000000L / bytesPerSecond;
+
+    long now, current, next;
+    do {
+      now = System.nanoTime();
+      current = transferredTime.get();
+      next = Math.max(current, now) + cost;
+    } while (!transferredTime.compareAndSet(current, next));
+
+    long waitTime = next - now - BURST_TIME;
+    if (waitTime > 0) {
+      try {
+        Thread.sleep(waitTime / 1000000L, (int) (waitTime % 1000000L));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
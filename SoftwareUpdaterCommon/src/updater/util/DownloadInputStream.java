@@ -0,0 +1,400 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * The content of a download readable while it is still downloading. The 
+ * download is done by {@link HTTPDownloader} in a background thread, it writes 
+ * to the resume file and to this stream at the same time, so the download can 
+ * be resumed next time if the reading is not completed.
+ * <p>
+ * If the resume file contains part of the content already, that part is read 
+ * from the file first. The end of stream is reached only after the download 
+ * succeed, that is, after the checksum of the whole content is verified. If 
+ * the download failed, the reading will throw {@link IOException}.</p>
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DownloadInputStream extends InputStream implements Pausable {
+
+  /**
+   * The size of the buffer between the download and the reading.
+   */
+  protected static final int BUFFER_SIZE = 1048576;
+  /**
+   * The downloader.
+   */
+  protected final HTTPDownloader downloader;
+  /**
+   * The resume file.
+   */
+  protected final File resumeFile;
+  /**
+   * The buffer of the content downloaded but not read yet, it is a ring 
+   * buffer.
+   */
+  protected final byte[] buffer;
+  /**
+   * The index in {@link #buffer} of the next byte to read.
+   */
+  protected int bufferReadIndex;
+  /**
+   * The number of bytes in {@link #buffer}.
+   */
+  protected int bufferCount;
+  /**
+   * The position of the next byte to read.
+   */
+  protected long position;
+  /**
+   * The position of the end of the content received.
+   */
+  protected long received;
+  /**
+   * The content before this position is read from the resume file, it 
+   * exists before the download started.
+   */
+  protected long resumeFileEnd;
+  /**
+   * The resume file opened for reading, for the content before 
+   * {@link #resumeFileEnd}.
+   */
+  protected RandomAccessFile resumeFileIn;
+  /**
+   * The thread that do the download.
+   */
+  protected Thread downloadThread;
+  /**
+   * Indicate whether the download succeed.
+   */
+  protected boolean finished;
+  /**
+   * The cause if the download failed.
+   */
+  protected IOException failure;
+  /**
+   * Indicate whether the stream is closed.
+   */
+  protected boolean closed;
+
+  /**
+   * Constructor.
+   * @param downloader the downloader to use, its resume file and the output 
+   * stream will be set when start
+   * @param resumeFile the file to save the downloaded content to
+   */
+  public DownloadInputStream(HTTPDownloader downloader, File resumeFile) {
+    if (downloader == null) {
+      throw new NullPointerException("argument 'downloader' cannot be null");
+    }
+    if (resumeFile == null) {
+      throw new NullPointerException("argument 'resumeFile' cannot be null");
+    }
+    this.downloader = downloader;
+    this.resumeFile = resumeFile;
+    buffer = new byte[BUFFER_SIZE];
+    bufferReadIndex = 0;
+    bufferCount = 0;
+    position = 0;
+    received = 0;
+    resumeFileEnd = 0;
+    finished = false;
+    closed = false;
+  }
+
+  /**
+   * Start the download in a background thread.
+   * See {@link HTTPDownloader#download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)} 
+   * for the parameters.
+   * @param listener the download progress listener, can be null
+   * @param url the URL to download from
+   * @param fileSHA256 the expected SHA-256 checksum of the content, null 
+   * means not specified
+   * @param expectedLength the expected size of the content, -1 means not 
+   * specified
+   * @param retryTimes the maximum allowed retry times
+   * @param retryDelay the time to sleep between retries
+   */
+  public synchronized void start(final DownloadProgressListener listener, final URL url, final String fileSHA256, final int expectedLength, final int retryTimes, final int retryDelay) {
+    if (url == null) {
+      throw new NullPointerException("argument 'url' cannot be null");
+    }
+    if (downloadThread != null) {
+      throw new IllegalStateException("the download has been started already");
+    }
+
+    downloader.setResumeFile(resumeFile);
+    downloader.setOutputTo(new OutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        receive(b, off, len);
+      }
+    });
+
+    downloadThread = new Thread(new Runnable() {
+
+      @Override
+      public void run() {
+        DownloadResult result = null;
+        try {
+          result = downloader.download(new DownloadProgressListener() {
+
+            @Override
+            public void byteStart(long pos) {
+              start(pos);
+              if (listener != null) {
+                listener.byteStart(pos);
+              }
+            }
+
+            @Override
+            public void byteDownloaded(int numberOfBytes) {
+              if (listener != null) {
+                listener.byteDownloaded(numberOfBytes);
+              }
+            }
+
+            @Override
+            public void byteTotal(long total) {
+              if (listener != null) {
+                listener.byteTotal(total);
+              }
+            }
+
+            @Override
+            public void downloadRetry(DownloadResult result) {
+              if (listener != null) {
+                listener.downloadRetry(result);
+              }
+            }
+          }, url, fileSHA256, expectedLength, retryTimes, retryDelay);
+        } catch (MalformedURLException ex) {
+          finish(null, ex);
+          return;
+        }
+        finish(result, null);
+      }
+    }, "DownloadInputStream");
+    downloadThread.setDaemon(true);
+    downloadThread.start();
+  }
+
+  /**
+   * Notified by the download that the content to receive next start from 
+   * {@code pos}.
+   * @param pos the position
+   */
+  protected synchronized void start(long pos) {
+    if (pos == received || failure != null) {
+      return;
+    }
+    if (received == 0) {
+      // resume from the content in the resume file
+      resumeFileEnd = pos;
+      received = pos;
+      notifyAll();
+      return;
+    }
+    // the content received may not match the content downloaded from now on
+    failure = new IOException("The download restarted from position " + pos + " after " + received + " bytes received");
+    notifyAll();
+    // stop the download
+    Thread.currentThread().interrupt();
+  }
+
+  /**
+   * Receive the content downloaded, block if the buffer is full.
+   * @param b the content
+   * @param off the start offset in {@code b}
+   * @param len the number of bytes
+   * @throws IOException the stream is closed or the download failed
+   */
+  protected synchronized void receive(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      while (bufferCount == buffer.length && !closed && failure == null) {
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      if (failure != null) {
+        throw failure;
+      }
+
+      int writeIndex = (bufferReadIndex + bufferCount) % buffer.length;
+      int lengthToWrite = Math.min(len, Math.min(buffer.length - bufferCount, buffer.length - writeIndex));
+      System.arraycopy(b, off, buffer, writeIndex, lengthToWrite);
+      bufferCount += lengthToWrite;
+      received += lengthToWrite;
+      off += lengthToWrite;
+      len -= lengthToWrite;
+
+      notifyAll();
+    }
+  }
+
+  /**
+   * Notified by the download that it has finished.
+   * @param result the result of the download, null if failed with exception
+   * @param ex the exception if failed with exception
+   */
+  protected synchronized void finish(DownloadResult result, IOException ex) {
+    if (failure == null) {
+      if (ex != null) {
+        failure = ex;
+      } else if (result != DownloadResult.SUCCEED) {
+        failure = new IOException("Failed to download: " + result);
+      } else {
+        finished = true;
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * Pause or resume the download.
+   * @param pause true to pause, false to resume
+   */
+  @Override
+  public void pause(boolean pause) {
+    downloader.pause(pause);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int byteRead = read(b, 0, 1);
+    return byteRead == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    if (b == null) {
+      throw new NullPointerException("argument 'b' cannot be null");
+    }
+    if (off < 0 || len < 0 || off + len > b.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+
+    while (true) {
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+
+      if (position < resumeFileEnd) {
+        if (resumeFileIn == null) {
+          resumeFileIn = new RandomAccessFile(resumeFile, "r");
+        }
+        resumeFileIn.seek(position);
+        int byteRead = resumeFileIn.read(b, off, (int) Math.min(len, resumeFileEnd - position));
+        if (byteRead == -1) {
+          throw new IOException("Resume file truncated: " + resumeFile.getAbsolutePath());
+        }
+        position += byteRead;
+        if (position == resumeFileEnd) {
+          CommonUtil.closeQuietly(resumeFileIn);
+          resumeFileIn = null;
+        }
+        return byteRead;
+      }
+
+      if (bufferCount > 0) {
+        int lengthToRead = Math.min(len, Math.min(bufferCount, buffer.length - bufferReadIndex));
+        System.arraycopy(buffer, bufferReadIndex, b, off, lengthToRead);
+        bufferReadIndex = (bufferReadIndex + lengthToRead) % buffer.length;
+        bufferCount -= lengthToRead;
+        position += lengthToRead;
+        notifyAll();
+        return lengthToRead;
+      }
+
+      if (failure != null) {
+        throw failure;
+      }
+      if (finished) {
+        return -1;
+      }
+
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+  }
+
+  @Override
+  public synchronized int available() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    return (int) Math.min(Integer.MAX_VALUE, (resumeFileEnd - Math.min(position, resumeFileEnd)) + bufferCount);
+  }
+
+  /**
+   * Close the stream, stop the download if it is not finished. The content 
+   * downloaded is kept in the resume file.
+   * @throws IOException error occurred when closing the resume file
+   */
+  @Override
+  public void close() throws IOException {
+    Thread _downloadThread;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+      _downloadThread = downloadThread;
+      if (resumeFileIn != null) {
+        resumeFileIn.close();
+        resumeFileIn = null;
+      }
+    }
+    if (_downloadThread != null) {
+      _downloadThread.interrupt();
+    }
+  }
+}
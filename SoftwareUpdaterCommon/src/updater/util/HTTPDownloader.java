@@ -22,21 +22,34 @@ package updater.util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -47,6 +60,23 @@ import java.util.zip.GZIPInputStream;
  */
 public class HTTPDownloader implements Pausable, Interruptible {
 
+  /**
+   * The minimum size of a segment when downloading in multiple connections.
+   */
+  protected static final long MIN_SEGMENT_SIZE = 1048576;
+  /**
+   * The number of bytes downloaded by a segment before saving the segments 
+   * progress to the segment file again.
+   */
+  protected static final long SEGMENT_SAVE_INTERVAL = 1048576;
+  /**
+   * The read timeout of the connection of a segment (in milli seconds).
+   */
+  protected static final int SEGMENT_READ_TIMEOUT = 30000;
+  /**
+   * The pattern of the Content-Range header.
+   */
+  protected static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("^bytes\\s([0-9]+)-([0-9]+)/([0-9]+)$");
   /**
    * List of tasks to be executed after interrupted.
    */
@@ -73,6 +103,18 @@ public class HTTPDownloader implements Pausable, Interruptible {
    * Indicate if currently is downloading a file.
    */
   protected boolean downloading;
+  /**
+   * The number of connections to download the file with.
+   */
+  protected int segmentCount;
+  /**
+   * False if the server is found not supporting range request.
+   */
+  protected volatile boolean rangeSupported;
+  /**
+   * The bandwidth limiter, null means no limit.
+   */
+  protected BandwidthLimiter bandwidthLimiter;
 
   /**
    * Constructor.
@@ -82,6 +124,9 @@ public class HTTPDownloader implements Pausable, Interruptible {
     outputTo = null;
     ifModifiedSince = -1;
     downloading = false;
+    segmentCount = 1;
+    rangeSupported = true;
+    bandwidthLimiter = null;
 
     interruptedTasks = Collections.synchronizedList(new ArrayList<Runnable>());
     pause = false;
@@ -155,6 +200,47 @@ public class HTTPDownloader implements Pausable, Interruptible {
     this.outputTo = outputTo;
   }
 
+  /**
+   * Get the number of connections to download the file with.
+   * @return the number of connections
+   */
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /**
+   * Set the number of connections to download the file with. Downloading in 
+   * multiple connections is only used when {@link #resumeFile} is set, 
+   * {@link #outputTo} is not set and the expected length is known. The 
+   * progress of every segment is saved along with the {@link #resumeFile} so 
+   * that the download can be resumed.
+   * @param segmentCount the number of connections, 1 means download in 
+   * single connection
+   */
+  public void setSegmentCount(int segmentCount) {
+    if (segmentCount < 1) {
+      throw new IllegalArgumentException("argument 'segmentCount' should be greater than 0");
+    }
+    this.segmentCount = segmentCount;
+  }
+
+  /**
+   * Get the bandwidth limiter.
+   * @return the bandwidth limiter, null means no limit
+   */
+  public BandwidthLimiter getBandwidthLimiter() {
+    return bandwidthLimiter;
+  }
+
+  /**
+   * Set the bandwidth limiter, the limiter can be shared with other 
+   * downloaders to limit the total bandwidth.
+   * @param bandwidthLimiter the bandwidth limiter, null means no limit
+   */
+  public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+    this.bandwidthLimiter = bandwidthLimiter;
+  }
+
   /**
    * Set the If-Modified-Since header.
    * @param time the time in milli second
@@ -185,6 +271,10 @@ public class HTTPDownloader implements Pausable, Interruptible {
       throw new IllegalArgumentException("SHA format invalid, expected: ^[0-9a-f]{64}$, checksum: " + fileSHA256);
     }
 
+    if (segmentCount > 1 && rangeSupported && resumeFile != null && outputTo == null && expectedLength >= MIN_SEGMENT_SIZE * 2 && ifModifiedSince == -1) {
+      return downloadSegmented(listener, url, fileSHA256, expectedLength, retryTimes, retryDelay);
+    }
+
     DownloadResult retryResult = null;
     boolean truncateResumeFileOnRetry = true;
 
@@ -266,10 +356,9 @@ public class HTTPDownloader implements Pausable, Interruptible {
       }
       //</editor-fold>
       if (startRange != 0) {
-        Pattern pattern = Pattern.compile("^bytes\\s([0-9]+)-([0-9]+)/([0-9]+)$");
         String contentRangeString = httpConn.getHeaderField("Content-Range");
         if (contentRangeString != null) {
-          Matcher matcher = pattern.matcher(contentRangeString.trim());
+          Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRangeString.trim());
           if (matcher.matches()) {
             int rangeStart = Integer.parseInt(matcher.group(1));
             int rangeEnd = Integer.parseInt(matcher.group(2));
@@ -331,8 +420,11 @@ public class HTTPDownloader implements Pausable, Interruptible {
         outputToOut = outputTo;
       }
       int byteRead, cumulateByteRead = 0;
-      byte[] b = new byte[2048];
+      byte[] b = new byte[32768];
       while ((byteRead = in.read(b)) != -1) {
+        if (bandwidthLimiter != null) {
+          bandwidthLimiter.acquire(byteRead);
+        }
         try {
           check();
         } catch (RuntimeException ex) {
@@ -421,11 +513,274 @@ public class HTTPDownloader implements Pausable, Interruptible {
     if (truncateResumeFileOnRetry) {
       if (resumeFile != null) {
         CommonUtil.truncateFile(resumeFile);
+        getSegmentFile().delete();
       }
     }
     return download(listener, url, fileSHA256, expectedLength, retryTimes - 1, retryDelay);
   }
 
+  /**
+   * Download the file in multiple connections. Every segment is requested 
+   * with a Range request in its own connection and written to its position 
+   * in {@link #resumeFile} directly.
+   * @param listener see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param url see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param fileSHA256 see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param expectedLength see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param retryTimes see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @param retryDelay see {@link #download(updater.util.DownloadProgressListener, java.net.URL, java.lang.String, int, int, int)}
+   * @return the result
+   * @throws MalformedURLException URL is invalid
+   */
+  protected DownloadResult downloadSegmented(DownloadProgressListener listener, URL url, String fileSHA256, int expectedLength, int retryTimes, int retryDelay) throws MalformedURLException {
+    DownloadResult retryResult = null;
+    boolean truncateResumeFileOnRetry = true;
+
+    File segmentFile = getSegmentFile();
+    List<Segment> segments = null;
+    boolean completed = false;
+    RandomAccessFile randomAccessFile = null;
+    ExecutorService executor = null;
+    // tell the segment tasks to stop, the tasks are not interrupted because it will close the shared channel
+    AtomicBoolean aborted = new AtomicBoolean(false);
+    try {
+      downloading = true;
+
+      if (segmentFile.exists() && resumeFile.length() == expectedLength) {
+        segments = readSegments(segmentFile, expectedLength);
+      }
+      if (segments == null) {
+        long resumeFileLength = resumeFile.length();
+        if (resumeFileLength == expectedLength && (fileSHA256 == null || CommonUtil.getSHA256String(resumeFile).equals(fileSHA256))) {
+          // download finished
+          completed = true;
+          if (listener != null) {
+            listener.byteStart(resumeFileLength);
+          }
+          return DownloadResult.SUCCEED;
+        }
+        if (resumeFileLength >= expectedLength) {
+          CommonUtil.truncateFile(resumeFile);
+          resumeFileLength = 0;
+        }
+        // the content already in the file is kept as a finished segment
+        segments = createSegments(resumeFileLength, expectedLength);
+        // save before the file is extended, a file in full length without segment file is considered completed
+        writeSegments(segmentFile, segments, null);
+      }
+
+      randomAccessFile = new RandomAccessFile(resumeFile, "rw");
+      randomAccessFile.setLength(expectedLength);
+      FileChannel channel = randomAccessFile.getChannel();
+
+      long startRange = 0;
+      List<Segment> remainingSegments = new ArrayList<Segment>();
+      for (Segment segment : segments) {
+        startRange += segment.downloaded;
+        if (segment.start + segment.downloaded < segment.end) {
+          remainingSegments.add(segment);
+        }
+      }
+      if (listener != null) {
+        listener.byteTotal(expectedLength);
+        listener.byteStart(startRange);
+      }
+
+      if (!remainingSegments.isEmpty()) {
+        executor = Executors.newFixedThreadPool(remainingSegments.size());
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (Segment segment : remainingSegments) {
+          futures.add(executor.submit(new SegmentTask(listener, url, expectedLength, channel, segmentFile, segments, segment, aborted)));
+        }
+        // let the other segments continue when one failed, to keep as much progress as possible for resume
+        Throwable failure = null;
+        for (Future<Void> future : futures) {
+          try {
+            future.get();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            try {
+              check();
+            } catch (RuntimeException ex2) {
+            }
+            return DownloadResult.INTERRUPTED;
+          } catch (ExecutionException ex) {
+            if (failure == null) {
+              failure = ex.getCause();
+            }
+          }
+        }
+        if (failure instanceof IOException) {
+          throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+          throw (RuntimeException) failure;
+        } else if (failure != null) {
+          throw new IOException(failure);
+        }
+        writeSegments(segmentFile, segments, channel);
+      }
+      randomAccessFile.close();
+
+      // check the downloaded file
+      completed = true;
+      segmentFile.delete();
+      if (fileSHA256 != null && !CommonUtil.getSHA256String(resumeFile).equals(fileSHA256)) {
+        CommonUtil.truncateFile(resumeFile);
+        throw new RuntimeException(DownloadResult.CHECKSUM_FAILED.getValue());
+      }
+    } catch (IOException ex) {
+      truncateResumeFileOnRetry = false;
+      retryResult = DownloadResult.FAILED;
+    } catch (RuntimeException ex) {
+      truncateResumeFileOnRetry = true;
+      retryResult = DownloadResult.getDownloadResult(ex.getMessage());
+      if (retryResult == null) {
+        retryResult = DownloadResult.FAILED;
+      }
+    } finally {
+      downloading = false;
+      if (executor != null) {
+        aborted.set(true);
+        synchronized (this) {
+          notifyAll();
+        }
+        executor.shutdown();
+        try {
+          executor.awaitTermination(SEGMENT_READ_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (segments != null && !completed) {
+        try {
+          writeSegments(segmentFile, segments, randomAccessFile != null && randomAccessFile.getChannel().isOpen() ? randomAccessFile.getChannel() : null);
+        } catch (IOException ex) {
+          segmentFile.delete();
+        }
+      }
+      CommonUtil.closeQuietly(randomAccessFile);
+    }
+
+    if (!rangeSupported) {
+      // fall back to download in single connection
+      CommonUtil.truncateFile(resumeFile);
+      segmentFile.delete();
+      return download(listener, url, fileSHA256, expectedLength, retryTimes, retryDelay);
+    }
+    if (retryResult != null) {
+      return retry(retryResult, truncateResumeFileOnRetry, listener, url, fileSHA256, expectedLength, retryTimes, retryDelay);
+    }
+
+    return DownloadResult.SUCCEED;
+  }
+
+  /**
+   * Get the file to save the segments progress to.
+   * @return the file
+   */
+  protected File getSegmentFile() {
+    return new File(resumeFile.getAbsolutePath() + ".segments");
+  }
+
+  /**
+   * Split the remaining part of the file into segments.
+   * @param downloadedLength the length downloaded already from the beginning
+   * @param totalLength the total length of the file
+   * @return the segments
+   */
+  protected List<Segment> createSegments(long downloadedLength, long totalLength) {
+    List<Segment> segments = new ArrayList<Segment>();
+    if (downloadedLength > 0) {
+      segments.add(new Segment(0, downloadedLength, downloadedLength));
+    }
+
+    long remainingLength = totalLength - downloadedLength;
+    int count = (int) Math.max(1, Math.min(segmentCount, remainingLength / MIN_SEGMENT_SIZE));
+    long segmentSize = remainingLength / count;
+    for (int i = 0; i < count; i++) {
+      long start = downloadedLength + i * segmentSize;
+      long end = i == count - 1 ? totalLength : start + segmentSize;
+      segments.add(new Segment(start, end, 0));
+    }
+
+    return segments;
+  }
+
+  /**
+   * Read the segments progress from the {@code file}.
+   * @param file the file to read from
+   * @param totalLength the total length of the file to download
+   * @return the segments, null if the content is invalid or not match the 
+   * {@code totalLength}
+   */
+  protected static List<Segment> readSegments(File file, long totalLength) {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+      List<Segment> segments = new ArrayList<Segment>();
+      long expectedStart = 0;
+      for (int i = 0, iEnd = in.readInt(); i < iEnd; i++) {
+        Segment segment = new Segment(in.readLong(), in.readLong(), in.readLong());
+        if (segment.start != expectedStart || segment.end <= segment.start || segment.downloaded < 0 || segment.downloaded > segment.end - segment.start) {
+          return null;
+        }
+        expectedStart = segment.end;
+        segments.add(segment);
+      }
+
+      return expectedStart == totalLength ? segments : null;
+    } catch (IOException ex) {
+      return null;
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Save the segments progress to the {@code file}.
+   * <p>
+   * The downloaded data is forced to the storage device before the progress 
+   * is saved, otherwise after a crash the progress may cover data that never 
+   * reached the disk. The progress is taken before forcing, so it never 
+   * cover the data written by the other segments after the force.</p>
+   * @param file the file to save to
+   * @param segments the segments
+   * @param channel the channel of the downloading file, null if no data 
+   * written to it yet
+   * @throws IOException error occurred when forcing the channel or writing 
+   * to the file
+   */
+  protected static void writeSegments(File file, List<Segment> segments, FileChannel channel) throws IOException {
+    long[] progress;
+    synchronized (segments) {
+      progress = new long[segments.size() * 3];
+      int i = 0;
+      for (Segment segment : segments) {
+        progress[i++] = segment.start;
+        progress[i++] = segment.end;
+        progress[i++] = segment.downloaded;
+      }
+    }
+
+    if (channel != null) {
+      channel.force(false);
+    }
+
+    synchronized (segments) {
+      DataOutputStream out = null;
+      try {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(progress.length / 3);
+        for (long value : progress) {
+          out.writeLong(value);
+        }
+      } finally {
+        CommonUtil.closeQuietly(out);
+      }
+    }
+  }
+
   /**
    * Check if paused or interrupted.
    */
@@ -489,4 +844,171 @@ public class HTTPDownloader implements Pausable, Interruptible {
       CommonUtil.closeQuietly(fin);
     }
   }
+
+  /**
+   * A part of the file to download in its own connection.
+   */
+  protected static class Segment {
+
+    /**
+     * The start position (inclusive).
+     */
+    protected final long start;
+    /**
+     * The end position (exclusive).
+     */
+    protected final long end;
+    /**
+     * The number of bytes downloaded from {@link #start}.
+     */
+    protected long downloaded;
+
+    protected Segment(long start, long end, long downloaded) {
+      this.start = start;
+      this.end = end;
+      this.downloaded = downloaded;
+    }
+  }
+
+  /**
+   * Download the remaining part of a {@link Segment}.
+   */
+  protected class SegmentTask implements Callable<Void> {
+
+    protected final DownloadProgressListener listener;
+    protected final URL url;
+    protected final long totalLength;
+    protected final FileChannel channel;
+    protected final File segmentFile;
+    protected final List<Segment> segments;
+    protected final Segment segment;
+    protected final AtomicBoolean aborted;
+
+    protected SegmentTask(DownloadProgressListener listener, URL url, long totalLength, FileChannel channel, File segmentFile, List<Segment> segments, Segment segment, AtomicBoolean aborted) {
+      this.listener = listener;
+      this.url = url;
+      this.totalLength = totalLength;
+      this.channel = channel;
+      this.segmentFile = segmentFile;
+      this.segments = segments;
+      this.segment = segment;
+      this.aborted = aborted;
+    }
+
+    /**
+     * Wait if paused.
+     * @throws InterruptedIOException the download is aborted
+     */
+    protected void check() throws InterruptedIOException {
+      synchronized (HTTPDownloader.this) {
+        while (pause && !aborted.get()) {
+          try {
+            HTTPDownloader.this.wait();
+          } catch (InterruptedException ex) {
+            aborted.set(true);
+          }
+        }
+      }
+      if (aborted.get()) {
+        throw new InterruptedIOException();
+      }
+    }
+
+    @Override
+    public Void call() throws IOException {
+      HttpURLConnection httpConn = null;
+      InputStream in = null;
+      try {
+        long pos;
+        synchronized (segments) {
+          pos = segment.start + segment.downloaded;
+        }
+
+        URLConnection conn = url.openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(SEGMENT_READ_TIMEOUT);
+        if (!(conn instanceof HttpURLConnection)) {
+          throw new MalformedURLException("It is not a valid http URL: " + conn.toString());
+        }
+
+        httpConn = (HttpURLConnection) conn;
+
+        httpConn.setDoInput(true);
+
+        // set request header, ranges apply to the encoded content so no compression
+        httpConn.setRequestProperty("Accept-Encoding", "identity");
+        httpConn.setRequestProperty("User-Agent", "HTTP Downloader");
+        httpConn.setRequestProperty("Range", "bytes=" + pos + "-" + (segment.end - 1));
+        httpConn.setUseCaches(false);
+
+        // connect
+        httpConn.connect();
+
+        // get header
+        if (httpConn.getResponseCode() != 206) {
+          rangeSupported = false;
+          throw new RuntimeException(DownloadResult.RESUME_RANGE_RESPOND_INVALID.getValue());
+        }
+        String contentRangeString = httpConn.getHeaderField("Content-Range");
+        if (contentRangeString == null) {
+          rangeSupported = false;
+          throw new RuntimeException(DownloadResult.RESUME_RANGE_RESPOND_INVALID.getValue());
+        }
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRangeString.trim());
+        if (!matcher.matches()) {
+          throw new RuntimeException(DownloadResult.RESUME_RANGE_RESPOND_INVALID.getValue());
+        }
+        if (Long.parseLong(matcher.group(1)) != pos || Long.parseLong(matcher.group(2)) != segment.end - 1) {
+          throw new RuntimeException(DownloadResult.RESUME_RANGE_FAILED.getValue());
+        }
+        if (Long.parseLong(matcher.group(3)) != totalLength) {
+          throw new RuntimeException(DownloadResult.RANGE_LENGTH_NOT_MATCH_CONTENT_LENGTH.getValue());
+        }
+
+        // download
+        in = httpConn.getInputStream();
+        byte[] b = new byte[32768];
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        long byteSinceLastSave = 0;
+        int byteRead;
+        while (pos < segment.end && (byteRead = in.read(b, 0, (int) Math.min(b.length, segment.end - pos))) != -1) {
+          if (bandwidthLimiter != null) {
+            bandwidthLimiter.acquire(byteRead);
+          }
+          check();
+
+          buffer.clear();
+          buffer.limit(byteRead);
+          while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+          }
+          synchronized (segments) {
+            segment.downloaded = pos - segment.start;
+          }
+
+          if (listener != null) {
+            synchronized (listener) {
+              listener.byteDownloaded(byteRead);
+            }
+          }
+
+          byteSinceLastSave += byteRead;
+          if (byteSinceLastSave >= SEGMENT_SAVE_INTERVAL && !aborted.get()) {
+            writeSegments(segmentFile, segments, channel);
+            byteSinceLastSave = 0;
+          }
+        }
+
+        if (pos != segment.end) {
+          throw new IOException("Connection closed before the segment completed.");
+        }
+      } finally {
+        CommonUtil.closeQuietly(in);
+        if (httpConn != null) {
+          httpConn.disconnect();
+        }
+      }
+      return null;
+    }
+  }
 }
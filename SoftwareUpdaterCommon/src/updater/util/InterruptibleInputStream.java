@@ -40,12 +40,12 @@ public class InterruptibleInputStream extends FilterInputStream implements Pausa
   /**
    * Indicate currently is paused or not.
    */
-  protected boolean pause;
+  protected volatile boolean pause;
   /**
    * Current remaining size available for read, -1 means remaining size is not 
    * limited.
    */
-  protected int sizeAvailable;
+  protected long sizeAvailable;
 
   /**
    * Constructor.
@@ -61,7 +61,7 @@ public class InterruptibleInputStream extends FilterInputStream implements Pausa
    * @param sizeAvailable current remaining size available for read, -1 means 
    * remaining size is not limited
    */
-  public InterruptibleInputStream(InputStream in, int sizeAvailable) {
+  public InterruptibleInputStream(InputStream in, long sizeAvailable) {
     super(in);
 
     if (in == null) {
@@ -111,7 +111,7 @@ public class InterruptibleInputStream extends FilterInputStream implements Pausa
     }
   }
 
-  public int remaining() {
+  public long remaining() {
     return sizeAvailable;
   }
 
@@ -143,7 +143,7 @@ public class InterruptibleInputStream extends FilterInputStream implements Pausa
       return -1;
     }
 
-    int lengthToRead = sizeAvailable != -1 && len > sizeAvailable ? sizeAvailable : len;
+    int lengthToRead = sizeAvailable != -1 && len > sizeAvailable ? (int) sizeAvailable : len;
     int result = in.read(b, off, lengthToRead);
     if (sizeAvailable != -1 && result != -1) {
 //            sizeAvailable = Math.max(0, sizeAvailable - result);
@@ -181,7 +181,7 @@ public class InterruptibleInputStream extends FilterInputStream implements Pausa
 
     int result = in.available();
     if (sizeAvailable != -1 && result > sizeAvailable) {
-      result = sizeAvailable;
+      result = (int) sizeAvailable;
     }
     return result;
   }
@@ -213,12 +213,14 @@ public class InterruptibleInputStream extends FilterInputStream implements Pausa
    * Check if paused or interrupted.
    */
   protected void check() {
-    synchronized (this) {
-      if (pause) {
-        try {
-          wait();
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
+    if (pause) {
+      synchronized (this) {
+        if (pause) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
         }
       }
     }
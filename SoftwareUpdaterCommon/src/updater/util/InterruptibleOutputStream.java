@@ -40,7 +40,7 @@ public class InterruptibleOutputStream extends FilterOutputStream implements Pau
   /**
    * Indicate currently is paused or not.
    */
-  protected boolean pause;
+  protected volatile boolean pause;
 
   /**
    * Constructor.
@@ -126,12 +126,14 @@ public class InterruptibleOutputStream extends FilterOutputStream implements Pau
    * Check if paused or interrupted.
    */
   protected void check() {
-    synchronized (this) {
-      if (pause) {
-        try {
-          wait();
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
+    if (pause) {
+      synchronized (this) {
+        if (pause) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
         }
       }
     }
@@ -0,0 +1,183 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SeekableFile} that reads the file through memory mappings, so 
+ * seeking and reading do not make a system call each time. Files larger than 
+ * the maximum size of one mapping are mapped in chunks.
+ * 
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class MappedSeekableFile extends SeekableFile {
+
+  /**
+   * The default size of each mapping.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+  /**
+   * The size of each mapping except the last one.
+   */
+  protected final int chunkSize;
+  /**
+   * The length of the file.
+   */
+  protected final long length;
+  /**
+   * The mappings of the file, null after closed.
+   */
+  protected MappedByteBuffer[] chunks;
+  /**
+   * The current position.
+   */
+  protected long position;
+
+  /**
+   * Constructor.
+   * @param file the file for random seek
+   * @throws IOException error occurred when mapping the file
+   */
+  public MappedSeekableFile(RandomAccessFile file) throws IOException {
+    this(file, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor.
+   * @param file the file for random seek
+   * @param chunkSize the size of each mapping, should > 0
+   * @throws IOException error occurred when mapping the file
+   */
+  public MappedSeekableFile(RandomAccessFile file, int chunkSize) throws IOException {
+    super(file);
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("argument 'chunkSize' should > 0");
+    }
+
+    this.chunkSize = chunkSize;
+    length = file.length();
+    position = 0;
+
+    FileChannel channel = file.getChannel();
+    int chunkCount = (int) ((length + chunkSize - 1) / chunkSize);
+    chunks = new MappedByteBuffer[chunkCount];
+    try {
+      for (int i = 0; i < chunkCount; i++) {
+        long start = (long) i * chunkSize;
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkSize, length - start));
+      }
+    } catch (IOException ex) {
+      unmap();
+      throw ex;
+    }
+  }
+
+  @Override
+  public long length() throws IOException {
+    return length;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    check();
+    if (chunks == null) {
+      throw new IOException("Seekable file closed.");
+    }
+    if (pos < 0) {
+      throw new IOException("Negative seek offset.");
+    }
+    position = pos;
+  }
+
+  /**
+   * Read from the current position. Read at most to the end of the mapping 
+   * the current position is in.
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    return read(ByteBuffer.wrap(b, off, len));
+  }
+
+  /**
+   * Read from the current position. Read at most to the end of the mapping 
+   * the current position is in.
+   */
+  @Override
+  public int read(ByteBuffer bb) throws IOException {
+    check();
+    if (chunks == null) {
+      throw new IOException("Seekable file closed.");
+    }
+    if (position >= length) {
+      return -1;
+    }
+
+    MappedByteBuffer chunk = chunks[(int) (position / chunkSize)];
+    int offset = (int) (position % chunkSize);
+    int byteToRead = Math.min(bb.remaining(), chunk.capacity() - offset);
+
+    chunk.limit(offset + byteToRead).position(offset);
+    bb.put(chunk);
+    position += byteToRead;
+
+    return byteToRead;
+  }
+
+  @Override
+  public void close() throws IOException {
+    unmap();
+    super.close();
+  }
+
+  /**
+   * Release the mappings. The mapping is released only when the buffer is 
+   * garbage collected normally, which keeps the file locked on some platforms, 
+   * so try to release it immediately if the JVM supports.
+   */
+  protected void unmap() {
+    MappedByteBuffer[] _chunks = chunks;
+    chunks = null;
+    if (_chunks == null) {
+      return;
+    }
+    for (MappedByteBuffer _chunk : _chunks) {
+      if (_chunk == null) {
+        continue;
+      }
+      try {
+        Method cleanerMethod = _chunk.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(_chunk);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      } catch (Exception ex) {
+        // not supported, leave it to the garbage collector
+      }
+    }
+  }
+}
@@ -43,7 +43,7 @@ public class SeekableFile extends RandomAccessFileSeekableSource implements Paus
   /**
    * Indicate currently is paused or not.
    */
-  protected boolean pause;
+  protected volatile boolean pause;
 
   /**
    * Constructor.
@@ -111,12 +111,14 @@ public class SeekableFile extends RandomAccessFileSeekableSource implements Paus
    * Check if paused or interrupted.
    */
   protected void check() {
-    synchronized (this) {
-      if (pause) {
-        try {
-          wait();
-        } catch (InterruptedException ex) {
-          Thread.currentThread().interrupt();
+    if (pause) {
+      synchronized (this) {
+        if (pause) {
+          try {
+            wait();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
         }
       }
     }
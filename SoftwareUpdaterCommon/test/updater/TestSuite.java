@@ -9,15 +9,30 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
     updater.concurrent.LockUtilTest.class,
+    updater.crypto.AESCipherTest.class,
     updater.crypto.AESKeyTest.class,
     updater.crypto.KeyGeneratorTest.class,
     updater.crypto.RSAKeyTest.class,
+    updater.patch.BufferedGDiffPatcherTest.class,
+    updater.patch.DigestCacheTest.class,
+    updater.patch.JarExpanderTest.class,
+    updater.patch.LZMA2DictDeltaTest.class,
+    updater.patch.ParallelXZInputStreamTest.class,
+    updater.patch.ParallelXZOutputStreamTest.class,
     updater.patch.PatchLogTest.class,
+    updater.patch.PatchReadUtilTest.class,
     updater.patch.PatchTest.class,
+    updater.patch.PatcherTest.class,
+    updater.patch.SuffixArrayDeltaTest.class,
+    updater.patch.VCDiffTest.class,
+    updater.patch.WindowedDeltaTest.class,
     updater.script.ScriptTest.class,
+    updater.util.BandwidthLimiterTest.class,
     updater.util.CommonUtilTest.class,
+    updater.util.DownloadInputStreamTest.class,
     updater.util.DownloadProgressUtilTest.class,
-    updater.util.HTTPDownloaderTest.class
+    updater.util.HTTPDownloaderTest.class,
+    updater.util.MappedSeekableFileTest.class
 })
 public class TestSuite {
 }
@@ -0,0 +1,148 @@
+package updater.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import updater.util.CommonUtil;
+import watne.seis720.project.AESForFile;
+import watne.seis720.project.KeySize;
+import watne.seis720.project.Mode;
+import watne.seis720.project.Padding;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class AESCipherTest {
+
+    protected File tempDir;
+
+    public AESCipherTest() {
+    }
+
+    protected static String getClassName() {
+        return new Object() {
+        }.getClass().getEnclosingClass().getName();
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        System.out.println("***** " + getClassName() + " *****");
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        System.out.println("******************************\r\n");
+    }
+
+    @Before
+    public void setUp() {
+        tempDir = new File("AESCipherTest_tmp_dir_Ke7pq");
+        if (!tempDir.isDirectory()) {
+            tempDir.mkdirs();
+            assertTrue(tempDir.isDirectory());
+        }
+        assertTrue(CommonUtil.truncateFolder(tempDir));
+    }
+
+    @After
+    public void tearDown() {
+        CommonUtil.truncateFolder(tempDir);
+        tempDir.delete();
+    }
+
+    protected static void writeFile(File file, byte[] content) throws IOException {
+        FileOutputStream fout = null;
+        try {
+            fout = new FileOutputStream(file);
+            fout.write(content);
+        } finally {
+            CommonUtil.closeQuietly(fout);
+        }
+    }
+
+    @Test
+    public void test() throws Exception {
+        System.out.println("+++++ test +++++");
+
+        Random random = new Random(1);
+        File plainFile = new File(tempDir.getAbsolutePath() + File.separator + "plain");
+        File expectedFile = new File(tempDir.getAbsolutePath() + File.separator + "expected");
+        File encryptedFile = new File(tempDir.getAbsolutePath() + File.separator + "encrypted");
+        File decryptedFile = new File(tempDir.getAbsolutePath() + File.separator + "decrypted");
+
+        AESKey aesKey = new AESKey(KeyGenerator.generateRandom(32), KeyGenerator.generateRandom(16));
+        AESCipher aesCipher = new AESCipher(aesKey);
+
+        System.out.println("+ compatibility with AESForFile");
+        int[] lengths = new int[]{0, 1, 15, 16, 17, 65535, 65536, 65537, 200000};
+        byte[] content;
+        for (int length : lengths) {
+            content = new byte[length];
+            random.nextBytes(content);
+            writeFile(plainFile, content);
+
+            AESForFile aesForFile = new AESForFile();
+            aesForFile.setMode(Mode.CBC);
+            aesForFile.setPadding(Padding.PKCS5PADDING);
+            aesForFile.setKeySize(KeySize.BITS256);
+            aesForFile.setKey(aesKey.getKey());
+            aesForFile.setInitializationVector(aesKey.getIV());
+            aesForFile.encryptFile(plainFile, expectedFile);
+
+            aesCipher.encryptFile(plainFile, encryptedFile);
+            assertArrayEquals("! encrypted content not equal, length: " + length, CommonUtil.readFile(expectedFile), CommonUtil.readFile(encryptedFile));
+
+            aesCipher.decryptFile(expectedFile, decryptedFile);
+            assertArrayEquals("! decrypted content not equal, length: " + length, content, CommonUtil.readFile(decryptedFile));
+        }
+
+        System.out.println("+ stream");
+        for (int length : lengths) {
+            content = new byte[length];
+            random.nextBytes(content);
+            writeFile(plainFile, content);
+            aesCipher.encryptFile(plainFile, encryptedFile);
+
+            // read with irregular sizes to cross the chunk boundaries
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            InputStream in = null;
+            try {
+                in = new AESCipherInputStream(new FileInputStream(encryptedFile), aesCipher);
+                byte[] b = new byte[4099];
+                int byteRead, readLength = 1;
+                while ((byteRead = in.read(b, 0, readLength)) != -1) {
+                    decrypted.write(b, 0, byteRead);
+                    readLength = (readLength * 7) % b.length + 1;
+                }
+            } finally {
+                CommonUtil.closeQuietly(in);
+            }
+            assertArrayEquals("! streamed content not equal, length: " + length, content, decrypted.toByteArray());
+        }
+
+        System.out.println("+ wrong key");
+        content = new byte[1000];
+        random.nextBytes(content);
+        writeFile(plainFile, content);
+        aesCipher.encryptFile(plainFile, encryptedFile);
+        boolean exceptionCaught = false;
+        try {
+            new AESCipher(new AESKey(KeyGenerator.generateRandom(32), KeyGenerator.generateRandom(16))).decryptFile(encryptedFile, decryptedFile);
+            exceptionCaught = !Arrays.equals(content, CommonUtil.readFile(decryptedFile));
+        } catch (IOException ex) {
+            exceptionCaught = true;
+        }
+        assertTrue("! Failed to recognize the key is incorrect.", exceptionCaught);
+    }
+}
@@ -0,0 +1,170 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffPatcher;
+import com.nothome.delta.PatchException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.InterruptibleInputStream;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class BufferedGDiffPatcherTest {
+
+  public BufferedGDiffPatcherTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] patch(byte[] source, byte[] patch) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new BufferedGDiffPatcher().patch(new ByteBufferSeekableSource(source), new ByteArrayInputStream(patch), out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Test of patch method, compare with GDiffPatcher, of class 
+   * BufferedGDiffPatcher.
+   */
+  @Test
+  public void testPatch() throws IOException {
+    System.out.println("+++++ testPatch +++++");
+
+    Random random = new Random(0);
+    for (int i = 0; i < 5; i++) {
+      byte[] source = new byte[200000 + random.nextInt(200000)];
+      random.nextBytes(source);
+      byte[] target = new byte[source.length + random.nextInt(100000)];
+      System.arraycopy(source, random.nextInt(1000), target, 0, source.length - 1000);
+      for (int j = 0, jEnd = random.nextInt(500); j < jEnd; j++) {
+        target[random.nextInt(target.length)] = (byte) random.nextInt();
+      }
+
+      byte[] delta = new Delta().compute(source, target);
+      assertArrayEquals(target, patch(source, delta));
+      assertArrayEquals(new GDiffPatcher().patch(source, delta), patch(source, delta));
+    }
+  }
+
+  /**
+   * Test of the commands not generated by Delta commonly, of class 
+   * BufferedGDiffPatcher.
+   */
+  @Test
+  public void testCommands() throws IOException {
+    System.out.println("+++++ testCommands +++++");
+
+    byte[] source = new byte[100000];
+    new Random(1).nextBytes(source);
+
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream patchOut = new DataOutputStream(bout);
+    patchOut.write(new byte[]{(byte) 0xd1, (byte) 0xff, (byte) 0xd1, (byte) 0xff, 0x04});
+    // continuous copies, merged into one run
+    patchOut.write(BufferedGDiffPatcher.COPY_USHORT_UBYTE);
+    patchOut.writeShort(10);
+    patchOut.write(200);
+    patchOut.write(BufferedGDiffPatcher.COPY_INT_USHORT);
+    patchOut.writeInt(210);
+    patchOut.writeShort(60000);
+    patchOut.write(BufferedGDiffPatcher.COPY_LONG_INT);
+    patchOut.writeLong(60210);
+    patchOut.writeInt(30000);
+    // data larger than the buffer
+    byte[] data = new byte[BufferedGDiffPatcher.BUFFER_SIZE * 2 + 7];
+    new Random(2).nextBytes(data);
+    patchOut.write(BufferedGDiffPatcher.DATA_INT);
+    patchOut.writeInt(data.length);
+    patchOut.write(data);
+    patchOut.write(BufferedGDiffPatcher.DATA_USHORT);
+    patchOut.writeShort(3);
+    patchOut.write(new byte[]{1, 2, 3});
+    patchOut.write(2);
+    patchOut.write(new byte[]{4, 5});
+    patchOut.write(BufferedGDiffPatcher.COPY_USHORT_USHORT);
+    patchOut.writeShort(0);
+    patchOut.writeShort(5);
+    patchOut.write(BufferedGDiffPatcher.EOF);
+    patchOut.close();
+    byte[] delta = bout.toByteArray();
+
+    byte[] result = patch(source, delta);
+    assertArrayEquals(new GDiffPatcher().patch(source, delta), result);
+    assertEquals(90200 + data.length + 10, result.length);
+
+    // not read over the limit
+    byte[] deltaWithTrail = new byte[delta.length + 100];
+    System.arraycopy(delta, 0, deltaWithTrail, 0, delta.length);
+    InterruptibleInputStream deltaIn = new InterruptibleInputStream(new ByteArrayInputStream(deltaWithTrail), delta.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new BufferedGDiffPatcher().patch(new ByteBufferSeekableSource(source), deltaIn, out);
+    assertArrayEquals(result, out.toByteArray());
+    assertEquals(0, deltaIn.remaining());
+
+    // invalid magic and truncated patch
+    try {
+      patch(source, new byte[]{1, 2, 3, 4, 5, 0});
+      fail("magic not checked");
+    } catch (PatchException ex) {
+    }
+    try {
+      byte[] truncated = new byte[delta.length - 10];
+      System.arraycopy(delta, 0, truncated, 0, truncated.length);
+      patch(source, truncated);
+      fail("end of patch not checked");
+    } catch (IOException ex) {
+    }
+  }
+}
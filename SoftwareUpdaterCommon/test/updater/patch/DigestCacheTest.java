@@ -0,0 +1,153 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DigestCacheTest {
+
+  protected File cacheFile;
+  protected File file1;
+  protected File file2;
+  protected long lastModified;
+
+  public DigestCacheTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    cacheFile = new File("DigestCacheTest.cache");
+    file1 = new File("DigestCacheTest_1.txt");
+    file2 = new File("DigestCacheTest_2.txt");
+    cacheFile.delete();
+
+    // the files modified just now will not be cached
+    lastModified = (System.currentTimeMillis() - 60000) / 1000 * 1000;
+    write(file1, "content of file 1", lastModified);
+    write(file2, "content of file 2", lastModified);
+  }
+
+  @After
+  public void tearDown() {
+    cacheFile.delete();
+    file1.delete();
+    file2.delete();
+  }
+
+  protected static void write(File file, String content, long lastModified) throws Exception {
+    OutputStream fout = new FileOutputStream(file);
+    try {
+      fout.write(content.getBytes("UTF-8"));
+    } finally {
+      CommonUtil.closeQuietly(fout);
+    }
+    assertTrue(file.setLastModified(lastModified));
+  }
+
+  /**
+   * Test of getSHA256String and save method, of class DigestCache.
+   */
+  @Test
+  public void testGetSHA256String() throws Exception {
+    System.out.println("+++++ testGetSHA256String +++++");
+
+    String file1SHA256 = CommonUtil.getSHA256String(file1);
+    String file2SHA256 = CommonUtil.getSHA256String(file2);
+
+    DigestCache digestCache = new DigestCache(cacheFile);
+    assertEquals(file1SHA256, digestCache.getSHA256String(file1));
+    assertEquals(file2SHA256, digestCache.getSHA256String(file2));
+    digestCache.save();
+    assertTrue(cacheFile.exists());
+
+    // change the content without changing the length and last modified time, the cached digest is returned
+    write(file1, "CONTENT OF FILE 1", lastModified);
+    digestCache = new DigestCache(cacheFile);
+    assertEquals(file1SHA256, digestCache.getSHA256String(file1));
+
+    // the last modified time changed
+    assertTrue(file1.setLastModified(lastModified - 10000));
+    assertEquals(CommonUtil.getSHA256String(file1), digestCache.getSHA256String(file1));
+
+    // the length changed
+    write(file2, "content of file 2 changed", lastModified);
+    assertEquals(CommonUtil.getSHA256String(file2), digestCache.getSHA256String(file2));
+
+    // the entries of removed files are dropped when saving
+    file2.delete();
+    digestCache.save();
+    write(file2, "CONTENT OF FILE 2 CHANGED", lastModified);
+    digestCache = new DigestCache(cacheFile);
+    assertEquals(CommonUtil.getSHA256String(file2), digestCache.getSHA256String(file2));
+
+    // not cache the file modified just now
+    write(file1, "content of file 1 modified now", System.currentTimeMillis());
+    String modifiedSHA256 = digestCache.getSHA256String(file1);
+    assertEquals(CommonUtil.getSHA256String(file1), modifiedSHA256);
+    digestCache.save();
+    write(file1, "CONTENT OF FILE 1 MODIFIED NOW", file1.lastModified());
+    assertFalse(modifiedSHA256.equals(new DigestCache(cacheFile).getSHA256String(file1)));
+  }
+
+  /**
+   * Test of loading a corrupted cache file, of class DigestCache.
+   */
+  @Test
+  public void testCorruptedCache() throws Exception {
+    System.out.println("+++++ testCorruptedCache +++++");
+
+    write(cacheFile, "not a digest cache", lastModified);
+
+    DigestCache digestCache = new DigestCache(cacheFile);
+    assertEquals(CommonUtil.getSHA256String(file1), digestCache.getSHA256String(file1));
+    digestCache.save();
+
+    digestCache = new DigestCache(cacheFile);
+    assertEquals(CommonUtil.getSHA256String(file1), digestCache.getSHA256String(file1));
+  }
+}
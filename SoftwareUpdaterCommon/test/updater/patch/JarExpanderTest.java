@@ -0,0 +1,172 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.Delta;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class JarExpanderTest {
+
+  public JarExpanderTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] createJar(byte[][] entries, int level) throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ZipOutputStream zipOut = new ZipOutputStream(bout);
+    zipOut.setLevel(level);
+    for (int i = 0; i < entries.length; i++) {
+      ZipEntry entry = new ZipEntry("entry" + i);
+      if (i % 3 == 2) {
+        // stored entries are kept as is in the expanded form
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(entries[i].length);
+        CRC32 crc = new CRC32();
+        crc.update(entries[i]);
+        entry.setCrc(crc.getValue());
+      }
+      zipOut.putNextEntry(entry);
+      zipOut.write(entries[i]);
+      zipOut.closeEntry();
+    }
+    zipOut.close();
+    return bout.toByteArray();
+  }
+
+  protected static byte[][] createEntries(Random random) {
+    byte[][] entries = new byte[10][];
+    for (int i = 0; i < entries.length; i++) {
+      // compressible content
+      entries[i] = new byte[random.nextInt(100000)];
+      for (int j = 0; j < entries[i].length; j++) {
+        entries[i][j] = (byte) ('a' + random.nextInt(8));
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Test of expand and RecompressOutputStream, patch the expanded old jar 
+   * and recompress to the new jar, of class JarExpander.
+   */
+  @Test
+  public void testRecompress() throws IOException {
+    System.out.println("+++++ testRecompress +++++");
+
+    File oldJarFile = File.createTempFile("JarExpanderTest", ".jar");
+    File newJarFile = File.createTempFile("JarExpanderTest", ".jar");
+    File expandedOldFile = File.createTempFile("JarExpanderTest", ".expanded");
+    try {
+      Random random = new Random(0);
+      for (int level : new int[]{-1, 1, 9, 0}) {
+        byte[][] entries = createEntries(random);
+        byte[] oldJar = createJar(entries, level);
+        entries[random.nextInt(entries.length)][0] = 'z';
+        entries[random.nextInt(entries.length)] = new byte[0];
+        byte[] newJar = createJar(entries, level);
+        CommonUtil.writeFile(oldJarFile, oldJar);
+        CommonUtil.writeFile(newJarFile, newJar);
+
+        assertTrue(JarExpander.isZipFile(newJarFile));
+        JarExpander.expand(oldJarFile, expandedOldFile);
+        ByteArrayOutputStream expandedNew = new ByteArrayOutputStream();
+        List<JarExpander.ExpandedEntry> expandedEntries = JarExpander.expand(newJarFile, expandedNew, true);
+        // the stored entries are not expanded, nor the deflated entries of level 0
+        assertEquals(level == 0 ? 0 : 7, expandedEntries.size());
+
+        ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+        JarExpander.writeEntries(patchOut, expandedEntries);
+        new Delta().compute(CommonUtil.readFile(expandedOldFile), expandedNew.toByteArray(), patchOut);
+
+        ByteArrayInputStream patchIn = new ByteArrayInputStream(patchOut.toByteArray());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JarExpander.RecompressOutputStream recompressOut = new JarExpander.RecompressOutputStream(out, JarExpander.readEntries(patchIn));
+        new BufferedGDiffPatcher().patch(new ByteBufferSeekableSource(CommonUtil.readFile(expandedOldFile)), patchIn, recompressOut);
+        recompressOut.finish();
+        assertArrayEquals(newJar, out.toByteArray());
+      }
+    } finally {
+      oldJarFile.delete();
+      newJarFile.delete();
+      expandedOldFile.delete();
+    }
+  }
+
+  /**
+   * Test of expand with file that is not zip, of class JarExpander.
+   */
+  @Test
+  public void testNotZip() throws IOException {
+    System.out.println("+++++ testNotZip +++++");
+
+    File file = File.createTempFile("JarExpanderTest", ".jar");
+    try {
+      byte[] content = new byte[1000];
+      new Random(1).nextBytes(content);
+      CommonUtil.writeFile(file, content);
+      assertFalse(JarExpander.isZipFile(file));
+      assertNull(JarExpander.expand(file, new ByteArrayOutputStream(), true));
+    } finally {
+      file.delete();
+    }
+  }
+}
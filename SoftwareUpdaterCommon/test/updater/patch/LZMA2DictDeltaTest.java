@@ -0,0 +1,194 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.Delta;
+import com.nothome.delta.PatchException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class LZMA2DictDeltaTest {
+
+  public LZMA2DictDeltaTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] compute(byte[] source, byte[] target) throws IOException {
+    File sourceFile = File.createTempFile("LZMA2DictDeltaTest", null);
+    File targetFile = File.createTempFile("LZMA2DictDeltaTest", null);
+    try {
+      CommonUtil.writeFile(sourceFile, source);
+      CommonUtil.writeFile(targetFile, target);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new LZMA2DictDelta().compute(sourceFile, targetFile, out);
+      return out.toByteArray();
+    } finally {
+      sourceFile.delete();
+      targetFile.delete();
+    }
+  }
+
+  protected static byte[] patch(byte[] source, byte[] patch) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new LZMA2DictPatcher().patch(new ByteBufferSeekableSource(source), new ByteArrayInputStream(patch), out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Test of compute method of class LZMA2DictDelta and patch method of 
+   * class LZMA2DictPatcher.
+   */
+  @Test
+  public void testComputeAndPatch() throws IOException {
+    System.out.println("+++++ testComputeAndPatch +++++");
+
+    Random random = new Random(0);
+    for (int i = 0; i < 3; i++) {
+      // the old content with inserted, removed and changed bytes
+      byte[] source = new byte[100000 + random.nextInt(1000000)];
+      random.nextBytes(source);
+      ByteArrayOutputStream targetOut = new ByteArrayOutputStream();
+      for (int sourcePosition = 0; sourcePosition < source.length;) {
+        int length = Math.min(1 + random.nextInt(50000), source.length - sourcePosition);
+        targetOut.write(source, sourcePosition, length);
+        sourcePosition += length;
+        int choice = random.nextInt(3);
+        if (choice == 0) {
+          byte[] content = new byte[1 + random.nextInt(100)];
+          random.nextBytes(content);
+          targetOut.write(content);
+        } else if (choice == 1) {
+          sourcePosition += random.nextInt(100);
+        } else if (sourcePosition < source.length) {
+          targetOut.write(source[sourcePosition++] ^ 0xff);
+        }
+      }
+      byte[] target = targetOut.toByteArray();
+
+      byte[] delta = compute(source, target);
+      assertArrayEquals(target, patch(source, delta));
+
+      // smaller than the XZ compressed GDIFF
+      ByteArrayOutputStream gdiff = new ByteArrayOutputStream();
+      new Delta().compute(source, target, gdiff);
+      File gdiffFile = File.createTempFile("LZMA2DictDeltaTest", null);
+      try {
+        CommonUtil.writeFile(gdiffFile, gdiff.toByteArray());
+        assertTrue(delta.length < LZMA2DictDelta.getXZCompressedLength(gdiffFile));
+      } finally {
+        gdiffFile.delete();
+      }
+    }
+
+    // empty source and empty target
+    byte[] content = new byte[1000];
+    random.nextBytes(content);
+    assertArrayEquals(content, patch(new byte[0], compute(new byte[0], content)));
+    assertArrayEquals(new byte[0], patch(content, compute(content, new byte[0])));
+    assertArrayEquals(content, patch(content, compute(content, content)));
+  }
+
+  /**
+   * Test of patch method, with trailing data and invalid patch, of class 
+   * LZMA2DictPatcher.
+   */
+  @Test
+  public void testPatch() throws IOException {
+    System.out.println("+++++ testPatch +++++");
+
+    Random random = new Random(1);
+    byte[] source = new byte[10000];
+    random.nextBytes(source);
+    byte[] target = new byte[source.length];
+    System.arraycopy(source, 100, target, 0, source.length - 100);
+    byte[] patch = compute(source, target);
+
+    // not read over the end of the patch
+    byte[] patchWithTrail = new byte[patch.length + 100];
+    System.arraycopy(patch, 0, patchWithTrail, 0, patch.length);
+    ByteArrayInputStream patchIn = new ByteArrayInputStream(patchWithTrail);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new LZMA2DictPatcher().patch(new ByteBufferSeekableSource(source), patchIn, out);
+    assertArrayEquals(target, out.toByteArray());
+    assertEquals(100, patchIn.available());
+
+    // invalid dictionary size, source longer than the dictionary and 
+    // truncated patch
+    try {
+      patch(source, new byte[]{(byte) 0xff, 0, 0, 0, 0});
+      fail("dictionary size not checked");
+    } catch (PatchException ex) {
+    }
+    try {
+      byte[] small = patch.clone();
+      small[0] = 0;
+      small[1] = 0;
+      small[2] = 0x10;
+      small[3] = 0;
+      patch(source, small);
+      fail("source length not checked");
+    } catch (PatchException ex) {
+    }
+    try {
+      byte[] truncated = new byte[patch.length - 1];
+      System.arraycopy(patch, 0, truncated, 0, truncated.length);
+      patch(source, truncated);
+      fail("end of patch not checked");
+    } catch (IOException ex) {
+    }
+  }
+}
@@ -0,0 +1,180 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class ParallelXZInputStreamTest {
+
+  protected static final int BLOCK_SIZE = 65536;
+  protected static final int PREFIX_LENGTH = 6;
+  protected File xzFile;
+  protected byte[] content;
+
+  public ParallelXZInputStreamTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    content = new byte[BLOCK_SIZE * 7 + 321];
+    Random random = new Random(1);
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) ('a' + random.nextInt(8));
+    }
+
+    xzFile = new File("ParallelXZInputStreamTest.xz");
+    OutputStream fout = new FileOutputStream(xzFile);
+    try {
+      fout.write(new byte[PREFIX_LENGTH]);
+      ParallelXZOutputStream xzOut = new ParallelXZOutputStream(fout, new LZMA2Options(), 2, BLOCK_SIZE);
+      xzOut.write(content);
+      xzOut.finish();
+    } finally {
+      CommonUtil.closeQuietly(fout);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    xzFile.delete();
+  }
+
+  /**
+   * Test of read method, of class ParallelXZInputStream.
+   */
+  @Test
+  public void testRead() throws Exception {
+    System.out.println("+++++ testRead +++++");
+
+    // the second one can only keep one block in memory
+    long[] memoryBudgets = new long[]{ParallelXZInputStream.DEFAULT_MEMORY_BUDGET, BLOCK_SIZE};
+    for (long memoryBudget : memoryBudgets) {
+      ParallelXZInputStream in = ParallelXZInputStream.open(xzFile, PREFIX_LENGTH, 3, memoryBudget);
+      try {
+        assertNotNull(in);
+        assertEquals(8, in.getBlockCount());
+        assertEquals(content.length, in.length());
+
+        DataInputStream dataIn = new DataInputStream(in);
+        byte[] b = new byte[content.length];
+        dataIn.readFully(b, 0, 1000);
+        b[1000] = (byte) dataIn.read();
+        dataIn.readFully(b, 1001, b.length - 1001);
+        assertTrue(Arrays.equals(content, b));
+        assertEquals(-1, in.read());
+      } finally {
+        CommonUtil.closeQuietly(in);
+      }
+    }
+  }
+
+  /**
+   * Test of skip method, of class ParallelXZInputStream.
+   */
+  @Test
+  public void testSkip() throws Exception {
+    System.out.println("+++++ testSkip +++++");
+
+    ParallelXZInputStream in = ParallelXZInputStream.open(xzFile, PREFIX_LENGTH, 3, ParallelXZInputStream.DEFAULT_MEMORY_BUDGET);
+    try {
+      DataInputStream dataIn = new DataInputStream(in);
+      byte[] b = new byte[100];
+
+      // within the current block
+      dataIn.readFully(b);
+      assertEquals(100, in.skip(100));
+      dataIn.readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(content, 200, 300), b));
+
+      // to a pending block
+      long position = BLOCK_SIZE + 10;
+      assertEquals(position - 300, in.skip(position - 300));
+      dataIn.readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(content, (int) position, (int) position + 100), b));
+
+      // across the pending blocks, then across the block boundary
+      position = BLOCK_SIZE * 6 - 50;
+      assertEquals(position - (BLOCK_SIZE + 110), in.skip(position - (BLOCK_SIZE + 110)));
+      dataIn.readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(content, (int) position, (int) position + 100), b));
+
+      // to the end
+      assertEquals(content.length - (position + 100), in.skip(content.length));
+      assertEquals(0, in.skip(1));
+      assertEquals(-1, in.read());
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  /**
+   * Test of open method with a single block stream, of class 
+   * ParallelXZInputStream.
+   */
+  @Test
+  public void testOpenSingleBlock() throws Exception {
+    System.out.println("+++++ testOpenSingleBlock +++++");
+
+    OutputStream fout = new FileOutputStream(xzFile);
+    try {
+      fout.write(new byte[PREFIX_LENGTH]);
+      XZOutputStream xzOut = new XZOutputStream(fout, new LZMA2Options());
+      xzOut.write(content);
+      xzOut.finish();
+    } finally {
+      CommonUtil.closeQuietly(fout);
+    }
+
+    assertNull(ParallelXZInputStream.open(xzFile, PREFIX_LENGTH, 3, ParallelXZInputStream.DEFAULT_MEMORY_BUDGET));
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.XZInputStream;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class ParallelXZOutputStreamTest {
+
+  public ParallelXZOutputStreamTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Get some compressible content.
+   * @param length the length of the content
+   * @return the content
+   */
+  protected static byte[] getContent(int length) {
+    byte[] content = new byte[length];
+    Random random = new Random(1);
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) ('a' + random.nextInt(8));
+    }
+    return content;
+  }
+
+  /**
+   * Test of write method, of class ParallelXZOutputStream.
+   */
+  @Test
+  public void testWrite() throws Exception {
+    System.out.println("+++++ testWrite +++++");
+
+    int blockSize = 65536;
+    byte[] content = getContent(blockSize * 9 + 123);
+
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    ParallelXZOutputStream xzOut = new ParallelXZOutputStream(bout, new LZMA2Options(), 3, blockSize);
+    xzOut.write(content, 0, 1000);
+    xzOut.write(content[1000]);
+    xzOut.write(content, 1001, content.length - 1001);
+    xzOut.finish();
+    assertTrue(bout.size() < content.length);
+
+    DataInputStream in = new DataInputStream(new XZInputStream(new ByteArrayInputStream(bout.toByteArray())));
+    byte[] b = new byte[content.length];
+    in.readFully(b);
+    assertTrue(Arrays.equals(content, b));
+    assertEquals(-1, in.read());
+
+    // empty stream
+    bout = new ByteArrayOutputStream();
+    xzOut = new ParallelXZOutputStream(bout, new LZMA2Options(), 2, blockSize);
+    xzOut.finish();
+    assertEquals(-1, new XZInputStream(new ByteArrayInputStream(bout.toByteArray())).read());
+  }
+
+  /**
+   * Test of the block index written by ParallelXZOutputStream.
+   */
+  @Test
+  public void testBlockIndex() throws Exception {
+    System.out.println("+++++ testBlockIndex +++++");
+
+    int blockSize = 65536;
+    byte[] content = getContent(blockSize * 5 + 1);
+
+    File xzFile = new File("ParallelXZOutputStreamTest.xz");
+    SeekableXZInputStream in = null;
+    try {
+      FileOutputStream fout = new FileOutputStream(xzFile);
+      try {
+        ParallelXZOutputStream xzOut = new ParallelXZOutputStream(fout, new LZMA2Options(), 4, blockSize);
+        xzOut.write(content, 0, 100);
+        xzOut.endBlock();
+        xzOut.write(content, 100, content.length - 100);
+        xzOut.finish();
+      } finally {
+        CommonUtil.closeQuietly(fout);
+      }
+
+      in = new SeekableXZInputStream(new SeekableFileInputStream(xzFile));
+      assertEquals(content.length, in.length());
+
+      in.seek(blockSize * 3);
+      byte[] b = new byte[blockSize];
+      new DataInputStream(in).readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(content, blockSize * 3, blockSize * 4), b));
+    } finally {
+      CommonUtil.closeQuietly(in);
+      xzFile.delete();
+    }
+  }
+
+  /**
+   * Test of endOperation method, with the stream constructed to split at 
+   * operations, of class ParallelXZOutputStream.
+   */
+  @Test
+  public void testSplitAtOperations() throws Exception {
+    System.out.println("+++++ testSplitAtOperations +++++");
+
+    int blockSize = 65536;
+    int[] operationLengths = new int[]{40000, 40000, 200000, 1000};
+    int totalLength = 0;
+    for (int operationLength : operationLengths) {
+      totalLength += operationLength;
+    }
+    byte[] content = getContent(totalLength);
+
+    File xzFile = new File("ParallelXZOutputStreamTest.xz");
+    SeekableXZInputStream in = null;
+    try {
+      FileOutputStream fout = new FileOutputStream(xzFile);
+      try {
+        ParallelXZOutputStream xzOut = new ParallelXZOutputStream(fout, new LZMA2Options(), 4, blockSize, true);
+        int pos = 0;
+        for (int operationLength : operationLengths) {
+          xzOut.write(content, pos, operationLength);
+          xzOut.endOperation();
+          pos += operationLength;
+        }
+        xzOut.finish();
+      } finally {
+        CommonUtil.closeQuietly(fout);
+      }
+
+      // blocks of 80000, 131072 (split inside the third operation), 68928 and 1000
+      in = new SeekableXZInputStream(new SeekableFileInputStream(xzFile));
+      assertEquals(content.length, in.length());
+      assertEquals(blockSize * 2, in.getLargestBlockSize());
+
+      in.seek(80000);
+      byte[] b = new byte[200000];
+      new DataInputStream(in).readFully(b);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(content, 80000, 280000), b));
+    } finally {
+      CommonUtil.closeQuietly(in);
+      xzFile.delete();
+    }
+  }
+}
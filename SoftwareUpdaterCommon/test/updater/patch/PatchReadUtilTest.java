@@ -0,0 +1,215 @@
+package updater.patch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.XZInputStream;
+import updater.script.Patch.Operation;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class PatchReadUtilTest {
+
+  public PatchReadUtilTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  /**
+   * Test of readCompressionMethod method with LZMA2_BLOCKS, of class 
+   * PatchReadUtil.
+   */
+  @Test
+  public void testReadCompressionMethodBlocks() throws Exception {
+    System.out.println("+++++ testReadCompressionMethodBlocks +++++");
+
+    byte[] xml = "<patch/>".getBytes("UTF-8");
+    byte[][] contents = new byte[4][];
+    Random random = new Random(1);
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = new byte[XZBlockOutputStream.DEFAULT_BLOCK_SIZE / 2 + i];
+      random.nextBytes(contents[i]);
+    }
+
+    File patchFile = new File("PatchReadUtilTest_blocks.patch");
+    try {
+      OutputStream fout = new FileOutputStream(patchFile);
+      try {
+        PatchWriteUtil.writeHeader(fout);
+        XZBlockOutputStream xzOut = (XZBlockOutputStream) PatchWriteUtil.writeCompressionMethod(fout, Compression.LZMA2_BLOCKS);
+        PatchWriteUtil.writeXML(xzOut, xml);
+        PatchWriteUtil.writeOperationEnd(xzOut);
+        for (byte[] content : contents) {
+          xzOut.write(content);
+          PatchWriteUtil.writeOperationEnd(xzOut);
+        }
+        xzOut.finish();
+      } finally {
+        CommonUtil.closeQuietly(fout);
+      }
+
+      long skipLength = 3 + xml.length + contents[0].length + contents[1].length;
+
+      // seek to the third operation
+      InputStream in = new BufferedInputStream(new FileInputStream(patchFile));
+      InputStream decompressedIn = null;
+      try {
+        PatchReadUtil.readHeader(in);
+        decompressedIn = PatchReadUtil.readCompressionMethod(in, patchFile, 1);
+        assertTrue(decompressedIn instanceof SeekableXZInputStream);
+        // the XML ends a block, so the largest block is the last two operations
+        assertEquals(contents[2].length + contents[3].length, ((SeekableXZInputStream) decompressedIn).getLargestBlockSize());
+        assertEquals(skipLength, decompressedIn.skip(skipLength));
+        byte[] b = new byte[contents[2].length];
+        new DataInputStream(decompressedIn).readFully(b);
+        assertTrue(Arrays.equals(contents[2], b));
+      } finally {
+        CommonUtil.closeQuietly(decompressedIn);
+        CommonUtil.closeQuietly(in);
+      }
+
+      // read sequentially
+      in = new BufferedInputStream(new FileInputStream(patchFile));
+      try {
+        PatchReadUtil.readHeader(in);
+        decompressedIn = PatchReadUtil.readCompressionMethod(in);
+        assertTrue(decompressedIn instanceof XZInputStream);
+        DataInputStream dataIn = new DataInputStream(decompressedIn);
+        byte[] b = new byte[3 + xml.length];
+        dataIn.readFully(b);
+        for (byte[] content : contents) {
+          b = new byte[content.length];
+          dataIn.readFully(b);
+          assertTrue(Arrays.equals(content, b));
+        }
+        assertEquals(-1, dataIn.read());
+      } finally {
+        CommonUtil.closeQuietly(in);
+      }
+    } finally {
+      patchFile.delete();
+    }
+  }
+
+  /**
+   * Test of readCompressionMethod and readOperationContent of class 
+   * PatchReadUtil with the content of each operation compressed separately.
+   */
+  @Test
+  public void testReadOperationContent() throws Exception {
+    System.out.println("+++++ testReadOperationContent +++++");
+
+    byte[] xml = "<patch/>".getBytes("UTF-8");
+    Random random = new Random(1);
+    byte[] randomContent = new byte[100000];
+    random.nextBytes(randomContent);
+    StringBuilder sb = new StringBuilder();
+    while (sb.length() < 200000) {
+      sb.append("line ").append(random.nextInt(100)).append('\n');
+    }
+    byte[] textContent = sb.toString().getBytes("UTF-8");
+
+    byte[][] contents = new byte[][]{randomContent, textContent, new byte[0], textContent};
+    Compression[] compressions = new Compression[]{Compression.NONE, Compression.LZMA2, null, Compression.GZIP};
+    Operation[] operations = new Operation[contents.length];
+    for (int i = 0; i < contents.length; i++) {
+      operations[i] = new Operation(i + 1, "new", 0, contents[i].length, "file", "file" + i, null, -1, null, contents[i].length);
+      if (compressions[i] != null) {
+        operations[i].setCompression(compressions[i].getValue());
+      }
+    }
+
+    File patchFile = new File("PatchReadUtilTest_operation.patch");
+    try {
+      OutputStream fout = new FileOutputStream(patchFile);
+      try {
+        PatchWriteUtil.writeHeader(fout);
+        OutputStream compressedOut = PatchWriteUtil.writeCompressionMethod(fout, Compression.PER_OPERATION);
+        assertTrue(compressedOut instanceof OperationCompressionOutputStream);
+        PatchWriteUtil.writeXML(compressedOut, xml);
+        PatchWriteUtil.writeOperationEnd(compressedOut);
+        for (int i = 0; i < contents.length; i++) {
+          if (contents[i].length == 0) {
+            continue;
+          }
+          PatchWriteUtil.writeOperationStart(compressedOut, compressions[i]);
+          compressedOut.write(contents[i]);
+          PatchWriteUtil.writeOperationEnd(compressedOut);
+        }
+        ((OperationCompressionOutputStream) compressedOut).finish();
+      } finally {
+        CommonUtil.closeQuietly(fout);
+      }
+      assertTrue(patchFile.length() < randomContent.length + textContent.length);
+
+      InputStream in = new BufferedInputStream(new FileInputStream(patchFile));
+      InputStream decompressedIn = null;
+      try {
+        PatchReadUtil.readHeader(in);
+        decompressedIn = PatchReadUtil.readCompressionMethod(in);
+        assertTrue(decompressedIn instanceof OperationCompressionInputStream);
+        byte[] b = new byte[3 + xml.length];
+        new DataInputStream(decompressedIn).readFully(b);
+        assertTrue(Arrays.equals(xml, Arrays.copyOfRange(b, 3, b.length)));
+
+        for (int i = 0; i < contents.length; i++) {
+          InputStream contentIn = PatchReadUtil.readOperationContent(decompressedIn, operations[i]);
+          if (contents[i].length == 0) {
+            assertTrue(contentIn == decompressedIn);
+            continue;
+          }
+          if (i == 1) {
+            // skip the content by closing the stream
+            contentIn.close();
+            continue;
+          }
+          b = new byte[contents[i].length];
+          new DataInputStream(contentIn).readFully(b);
+          assertTrue(Arrays.equals(contents[i], b));
+          contentIn.close();
+        }
+      } finally {
+        CommonUtil.closeQuietly(decompressedIn);
+        CommonUtil.closeQuietly(in);
+      }
+    } finally {
+      patchFile.delete();
+    }
+  }
+}
@@ -3,8 +3,14 @@ package updater.patch;
 import updater.concurrent.ConcurrentLock;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Random;
 import updater.crypto.AESKey;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import updater.TestCommon;
 import org.junit.After;
 import org.junit.AfterClass;
@@ -13,7 +19,9 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import updater.concurrent.LockUtil;
 import updater.crypto.KeyGenerator;
+import updater.script.Patch.Operation;
 import updater.util.CommonUtil;
+import updater.util.InterruptibleOutputStream;
 import static org.junit.Assert.*;
 
 /**
@@ -709,6 +717,204 @@ public class PatchTest {
     }
   }
 
+  @Test
+  public void testDeduplicate() throws Exception {
+    System.out.println("+++++ testDeduplicate +++++");
+
+    File oldFolder = new File(tempDir.getAbsolutePath() + File.separator + "old");
+    File newFolder = new File(tempDir.getAbsolutePath() + File.separator + "new");
+    File patch = new File(tempDir.getAbsolutePath() + File.separator + "patch");
+    File tempDirForCreatePatch = new File(tempDir.getAbsolutePath() + File.separator + "create_patch");
+    tempDirForCreatePatch.mkdirs();
+    tempDirForApplyPatch.mkdirs();
+
+    byte[] content = getRandomContent(1, 65536);
+    writeTestFile(new File(oldFolder, "kept.txt"), "kept".getBytes("UTF-8"));
+    writeTestFile(new File(oldFolder, "replace.bin"), getRandomContent(2, 65536));
+    writeTestFile(new File(newFolder, "kept.txt"), "kept".getBytes("UTF-8"));
+    writeTestFile(new File(newFolder, "replace.bin"), content);
+    writeTestFile(new File(newFolder, "dup/a.bin"), content);
+    writeTestFile(new File(newFolder, "dup/b.bin"), content);
+    writeTestFile(new File(newFolder, "dup/sub/c.bin"), content);
+    writeTestFile(new File(newFolder, "unique.txt"), "unique".getBytes("UTF-8"));
+
+    PatchOptions options = new PatchOptions();
+    options.setDeduplicate(true);
+    PatchCreator.createPatch(oldFolder, newFolder, tempDirForCreatePatch, patch, -1, "1.0.0", "1.0.1", null, null, options);
+
+    // the content is stored once, the other operations refer to the operation that store it
+    List<Operation> operations = readOperations(patch);
+    Operation contentOperation = getOperation(operations, "dup/a.bin");
+    assertEquals(-1, contentOperation.getDuplicateOf());
+    assertEquals(content.length, contentOperation.getPatchLength());
+    for (String path : new String[]{"dup/b.bin", "dup/sub/c.bin", "replace.bin"}) {
+      Operation operation = getOperation(operations, path);
+      assertEquals(contentOperation.getId(), operation.getDuplicateOf());
+      assertEquals(0, operation.getPatchLength());
+    }
+    assertEquals(OperationType.REPLACE, OperationType.get(getOperation(operations, "replace.bin").getType()));
+    assertEquals(-1, getOperation(operations, "unique.txt").getDuplicateOf());
+
+    TestCommon.copyFolder(oldFolder, softwareFolder);
+    List<ReplacementRecord> replacementList = detailPatchingTestInit(patch, null);
+    assertTrue(replacementList.isEmpty());
+    assertTrue(TestCommon.compareFolder(softwareFolder, newFolder));
+
+    Patcher patcher = new Patcher(new File(tempDir.getAbsolutePath() + File.separator + "action_dedup.log"));
+    patcher.softwareDir = softwareFolder.getAbsolutePath() + File.separator;
+    patcher.tempDir = tempDirForApplyPatch;
+    patcher.operationsById = new HashMap<Integer, Operation>();
+    for (Operation operation : operations) {
+      patcher.operationsById.put(operation.getId(), operation);
+    }
+    Operation duplicateOperation = getOperation(operations, "dup/b.bin");
+
+    // copied from the destination file of the operation it duplicates
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    patcher.writeDuplicateContent(duplicateOperation, new InterruptibleOutputStream(out));
+    assertArrayEquals(content, out.toByteArray());
+
+    // the destination file is modified, copied from the new file in the temporary directory
+    File sourceFile = new File(softwareFolder.getAbsolutePath() + File.separator + "dup/a.bin");
+    File sourceNewFile = new File(tempDirForApplyPatch.getAbsolutePath() + File.separator + contentOperation.getId());
+    CommonUtil.copyFile(sourceFile, sourceNewFile);
+    CommonUtil.writeFile(sourceFile, "modified");
+    out.reset();
+    patcher.writeDuplicateContent(duplicateOperation, new InterruptibleOutputStream(out));
+    assertArrayEquals(content, out.toByteArray());
+
+    // the content not found anywhere
+    assertTrue(sourceNewFile.delete());
+    try {
+      patcher.writeDuplicateContent(duplicateOperation, new InterruptibleOutputStream(new ByteArrayOutputStream()));
+      fail();
+    } catch (IOException ex) {
+    }
+
+    assertTrue(CommonUtil.truncateFolder(tempDir));
+    tempDir.delete();
+  }
+
+  @Test
+  public void testDetectMoves() throws Exception {
+    System.out.println("+++++ testDetectMoves +++++");
+
+    File oldFolder = new File(tempDir.getAbsolutePath() + File.separator + "old");
+    File newFolder = new File(tempDir.getAbsolutePath() + File.separator + "new");
+    File patch = new File(tempDir.getAbsolutePath() + File.separator + "patch");
+    File tempDirForCreatePatch = new File(tempDir.getAbsolutePath() + File.separator + "create_patch");
+    tempDirForCreatePatch.mkdirs();
+    tempDirForApplyPatch.mkdirs();
+
+    byte[] movedContent = getRandomContent(1, 65536);
+    byte[] keptContent = getRandomContent(2, 32768);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      sb.append("line ").append(i).append(" of the text file\n");
+    }
+    String text = sb.toString();
+    String patchedText = text.replace("line 1000 ", "line 1000 changed ");
+
+    // moved
+    writeTestFile(new File(oldFolder, "from/moved.bin"), movedContent);
+    writeTestFile(new File(newFolder, "to/moved.bin"), movedContent);
+    // copied from a kept file
+    writeTestFile(new File(oldFolder, "kept.bin"), keptContent);
+    writeTestFile(new File(newFolder, "kept.bin"), keptContent);
+    writeTestFile(new File(newFolder, "copy/kept.bin"), keptContent);
+    // renamed and modified
+    writeTestFile(new File(oldFolder, "renamed/data.txt"), text.getBytes("UTF-8"));
+    writeTestFile(new File(newFolder, "renamed2/data.txt"), patchedText.getBytes("UTF-8"));
+    // copied from a file that is patched later
+    writeTestFile(new File(oldFolder, "patched.txt"), ("patched " + text).getBytes("UTF-8"));
+    writeTestFile(new File(newFolder, "patched.txt"), ("patched " + patchedText).getBytes("UTF-8"));
+    writeTestFile(new File(newFolder, "copy/patched.txt"), ("patched " + text).getBytes("UTF-8"));
+
+    PatchOptions options = new PatchOptions();
+    options.setDetectMoves(true);
+    PatchCreator.createPatch(oldFolder, newFolder, tempDirForCreatePatch, patch, -1, "1.0.0", "1.0.1", null, null, options);
+
+    List<Operation> operations = readOperations(patch);
+    Operation movedOperation = assertCopyOperation(operations, "to/moved.bin", "from/moved.bin", false);
+    assertCopyOperation(operations, "copy/kept.bin", "kept.bin", false);
+    Operation renamedOperation = assertCopyOperation(operations, "renamed2/data.txt", "renamed/data.txt", true);
+    Operation copyPatchedOperation = assertCopyOperation(operations, "copy/patched.txt", "patched.txt", false);
+    // the removed files are removed before the copy
+    Operation removeMovedOperation = getOperation(operations, "from/moved.bin");
+    assertEquals(OperationType.REMOVE, OperationType.get(removeMovedOperation.getType()));
+    assertTrue(removeMovedOperation.getId() < movedOperation.getId());
+    assertTrue(getOperation(operations, "renamed/data.txt").getId() < renamedOperation.getId());
+
+    TestCommon.copyFolder(oldFolder, softwareFolder);
+    List<ReplacementRecord> replacementList = detailPatchingTestInit(patch, null);
+    assertTrue(replacementList.isEmpty());
+    assertTrue(TestCommon.compareFolder(softwareFolder, newFolder));
+
+    Patcher patcher = new Patcher(new File(tempDir.getAbsolutePath() + File.separator + "action_moves.log"));
+    patcher.softwareDir = softwareFolder.getAbsolutePath() + File.separator;
+    patcher.tempDir = tempDirForApplyPatch;
+    patcher.operationsById = new HashMap<Integer, Operation>();
+    for (Operation operation : operations) {
+      patcher.operationsById.put(operation.getId(), operation);
+    }
+
+    // the old file is removed, copied from its backup
+    assertEquals(new File(tempDirForApplyPatch.getAbsolutePath() + File.separator + "old_" + removeMovedOperation.getId()).getAbsolutePath(), patcher.getCopySourceFile(movedOperation).getAbsolutePath());
+    // the old file is patched, copied from its backup
+    Operation patchOperation = getOperation(operations, "patched.txt");
+    assertEquals(new File(tempDirForApplyPatch.getAbsolutePath() + File.separator + "old_" + patchOperation.getId()).getAbsolutePath(), patcher.getCopySourceFile(copyPatchedOperation).getAbsolutePath());
+    // the old file is modified and has no backup
+    CommonUtil.writeFile(new File(softwareFolder.getAbsolutePath() + File.separator + "kept.bin"), "modified");
+    try {
+      patcher.getCopySourceFile(getOperation(operations, "copy/kept.bin"));
+      fail();
+    } catch (IOException ex) {
+    }
+
+    assertTrue(CommonUtil.truncateFolder(tempDir));
+    tempDir.delete();
+  }
+
+  protected static Operation assertCopyOperation(List<Operation> operations, String destFilePath, String oldFilePath, boolean hasDelta) {
+    Operation operation = getOperation(operations, destFilePath);
+    assertEquals(OperationType.COPY, OperationType.get(operation.getType()));
+    assertEquals(oldFilePath, operation.getOldFilePath());
+    assertEquals(hasDelta, operation.getPatchLength() > 0);
+    return operation;
+  }
+
+  protected static Operation getOperation(List<Operation> operations, String destFilePath) {
+    for (Operation operation : operations) {
+      if (operation.getDestFilePath().equals(destFilePath)) {
+        return operation;
+      }
+    }
+    fail(destFilePath);
+    return null;
+  }
+
+  protected static List<Operation> readOperations(File patch) throws Exception {
+    InputStream in = null;
+    try {
+      in = new BufferedInputStream(new FileInputStream(patch));
+      PatchReadUtil.readHeader(in);
+      return PatchReadUtil.readXML(PatchReadUtil.readCompressionMethod(in)).getOperations();
+    } finally {
+      CommonUtil.closeQuietly(in);
+    }
+  }
+
+  protected static byte[] getRandomContent(long seed, int length) {
+    byte[] b = new byte[length];
+    new Random(seed).nextBytes(b);
+    return b;
+  }
+
+  protected static void writeTestFile(File file, byte[] content) throws IOException {
+    file.getParentFile().mkdirs();
+    CommonUtil.writeFile(file, content);
+  }
+
 //  @Test
   public void patchingTest() throws Exception {
     System.out.println("+++++ patchingTest +++++");
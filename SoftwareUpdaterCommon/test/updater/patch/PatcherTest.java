@@ -0,0 +1,274 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.script.Patch.ValidationFile;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class PatcherTest {
+
+  protected File softwareDir;
+  protected File logFile;
+  protected List<ValidationFile> validations;
+
+  public PatcherTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    softwareDir = new File("PatcherTest_software");
+    logFile = new File("PatcherTest_action.log");
+    CommonUtil.truncateFolder(softwareDir);
+    softwareDir.mkdirs();
+
+    validations = new ArrayList<ValidationFile>();
+    new File(softwareDir, "folder").mkdirs();
+    validations.add(new ValidationFile("folder", "", -1));
+    for (int i = 0; i < 10; i++) {
+      String path = (i % 2 == 0 ? "folder/" : "") + "file" + i;
+      File file = new File(softwareDir, path);
+      write(file, i * 1000 + 1);
+      validations.add(new ValidationFile(path, CommonUtil.getSHA256String(file), (int) file.length()));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    CommonUtil.truncateFolder(softwareDir);
+    softwareDir.delete();
+    logFile.delete();
+  }
+
+  protected static void write(File file, int length) throws IOException {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) (i * 31 + length);
+    }
+    OutputStream fout = new FileOutputStream(file);
+    try {
+      fout.write(b);
+    } finally {
+      CommonUtil.closeQuietly(fout);
+    }
+  }
+
+  protected Patcher getPatcher(int validationThreadCount, final List<String> messages) throws IOException {
+    Patcher patcher = new Patcher(logFile);
+    patcher.setValidationThreadCount(validationThreadCount);
+    patcher.softwareDir = softwareDir.getAbsolutePath() + File.separator;
+    patcher.listener = new PatcherListener() {
+
+      @Override
+      public void patchProgress(int progress, String message) {
+        messages.add(message);
+      }
+
+      @Override
+      public void patchEnableCancel(boolean enable) {
+      }
+    };
+    return patcher;
+  }
+
+  /**
+   * Test of validateFiles method, of class Patcher.
+   */
+  @Test
+  public void testValidateFiles() throws Exception {
+    System.out.println("+++++ testValidateFiles +++++");
+
+    for (int threadCount = 1; threadCount <= 3; threadCount++) {
+      List<String> messages = new ArrayList<String>();
+      Patcher patcher = getPatcher(threadCount, messages);
+      patcher.validateFiles(validations, 30);
+      assertEquals(30, patcher.progress, 0.001F);
+      // one message for each file
+      assertEquals(10, messages.size());
+    }
+
+    // content changed, length not changed
+    File file = new File(softwareDir, "folder/file4");
+    byte[] content = CommonUtil.readFile(file);
+    content[100] ^= 1;
+    CommonUtil.writeFile(file, content);
+    try {
+      getPatcher(3, new ArrayList<String>()).validateFiles(validations, 30);
+      fail("checksum not checked");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().startsWith("File checksum incorrect"));
+    }
+
+    // file missed
+    new File(softwareDir, "file3").delete();
+    try {
+      getPatcher(3, new ArrayList<String>()).validateFiles(validations, 30);
+      fail("existence not checked");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().startsWith("File missed"));
+    }
+  }
+
+  /**
+   * Test of validateFiles method when the thread is interrupted, of class 
+   * Patcher.
+   */
+  @Test
+  public void testValidateFilesInterrupted() throws Exception {
+    System.out.println("+++++ testValidateFilesInterrupted +++++");
+
+    Patcher patcher = getPatcher(3, new ArrayList<String>());
+    Thread.currentThread().interrupt();
+    try {
+      patcher.validateFiles(validations, 30);
+      fail("interruption not thrown");
+    } catch (InterruptedIOException ex) {
+      // the interrupted status should be restored
+      assertTrue(Thread.interrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  /**
+   * Test of validateFiles method with the digests recorded when writing, of 
+   * class Patcher.
+   */
+  @Test
+  public void testValidateWrittenFiles() throws Exception {
+    System.out.println("+++++ testValidateWrittenFiles +++++");
+
+    File file = new File(softwareDir, "folder/file4");
+    String checksum = CommonUtil.getSHA256String(file);
+
+    // the recorded digest is trusted, the file is not read again
+    List<String> messages = new ArrayList<String>();
+    Patcher patcher = getPatcher(2, messages);
+    patcher.writtenFiles = new HashMap<String, Patcher.WrittenFile>();
+    patcher.recordWrittenFile(file, file, checksum);
+    patcher.validateFiles(validations, 30);
+    assertEquals(30, patcher.progress, 0.001F);
+    assertEquals(9, messages.size());
+
+    patcher = getPatcher(2, new ArrayList<String>());
+    patcher.writtenFiles = new HashMap<String, Patcher.WrittenFile>();
+    patcher.recordWrittenFile(file, file, checksum.replace(checksum.charAt(0), checksum.charAt(0) == '0' ? '1' : '0'));
+    try {
+      patcher.validateFiles(validations, 30);
+      fail("recorded checksum not used");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().startsWith("File checksum incorrect"));
+    }
+
+    // the file changed after written, the record is ignored
+    patcher = getPatcher(2, new ArrayList<String>());
+    patcher.writtenFiles = new HashMap<String, Patcher.WrittenFile>();
+    patcher.recordWrittenFile(file, file, checksum);
+    byte[] content = CommonUtil.readFile(file);
+    content[100] ^= 1;
+    CommonUtil.writeFile(file, content);
+    assertTrue(file.setLastModified(file.lastModified() - 10000));
+    try {
+      patcher.validateFiles(validations, 30);
+      fail("changed file not read again");
+    } catch (IOException ex) {
+      assertTrue(ex.getMessage().startsWith("File checksum incorrect"));
+    }
+  }
+
+  /**
+   * Test of validateFiles method with the installed state, of class Patcher.
+   */
+  @Test
+  public void testValidateInstalledState() throws Exception {
+    System.out.println("+++++ testValidateInstalledState +++++");
+
+    File stateFile = new File("PatcherTest_installed_state");
+    stateFile.delete();
+    try {
+      // all files are digested and put into the installed state
+      List<String> messages = new ArrayList<String>();
+      Patcher patcher = getPatcher(2, messages);
+      patcher.setInstalledState(new DigestCache(stateFile));
+      patcher.validateFiles(validations, 30);
+      assertEquals(10, messages.size());
+      patcher.getInstalledState().save();
+
+      // no file is read again
+      messages = new ArrayList<String>();
+      patcher = getPatcher(2, messages);
+      patcher.setInstalledState(new DigestCache(stateFile));
+      patcher.validateFiles(validations, 30);
+      assertEquals(30, patcher.progress, 0.001F);
+      assertEquals(0, messages.size());
+
+      // only the changed file is read again
+      File file = new File(softwareDir, "file5");
+      byte[] content = CommonUtil.readFile(file);
+      content[100] ^= 1;
+      CommonUtil.writeFile(file, content);
+      assertTrue(file.setLastModified(file.lastModified() - 10000));
+      messages = new ArrayList<String>();
+      patcher = getPatcher(1, messages);
+      patcher.setInstalledState(new DigestCache(stateFile));
+      try {
+        patcher.validateFiles(validations, 30);
+        fail("changed file not read again");
+      } catch (IOException ex) {
+        assertTrue(ex.getMessage().startsWith("File checksum incorrect"));
+      }
+      assertEquals(0, messages.size());
+    } finally {
+      stateFile.delete();
+    }
+  }
+}
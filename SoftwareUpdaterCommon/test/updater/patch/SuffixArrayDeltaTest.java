@@ -0,0 +1,190 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.PatchException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.InterruptibleInputStream;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class SuffixArrayDeltaTest {
+
+  public SuffixArrayDeltaTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] compute(byte[] source, byte[] target) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new SuffixArrayDelta().compute(source, target, out);
+    return out.toByteArray();
+  }
+
+  protected static byte[] patch(byte[] source, byte[] patch) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new SuffixArrayPatcher().patch(new ByteBufferSeekableSource(source), new ByteArrayInputStream(patch), out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Test of suffixSort method, of class SuffixArrayDelta.
+   */
+  @Test
+  public void testSuffixSort() {
+    System.out.println("+++++ testSuffixSort +++++");
+
+    Random random = new Random(0);
+    for (int i = 0; i < 20; i++) {
+      // small alphabet to have long repeats
+      byte[] source = new byte[random.nextInt(2000)];
+      for (int j = 0; j < source.length; j++) {
+        source[j] = (byte) random.nextInt(i % 2 == 0 ? 3 : 256);
+      }
+
+      int[] suffixArray = SuffixArrayDelta.suffixSort(source);
+      assertEquals(source.length + 1, suffixArray.length);
+      assertEquals(source.length, suffixArray[0]);
+      for (int j = 1; j < suffixArray.length - 1; j++) {
+        int a = suffixArray[j], b = suffixArray[j + 1];
+        int compare = SuffixArrayDelta.compare(source, a, source, b);
+        assertTrue(compare < 0 || (compare == 0 && a > b));
+      }
+    }
+  }
+
+  /**
+   * Test of compute method, with content shifted by small offsets, of class 
+   * SuffixArrayDelta.
+   */
+  @Test
+  public void testCompute() throws IOException {
+    System.out.println("+++++ testCompute +++++");
+
+    Random random = new Random(1);
+    for (int i = 0; i < 5; i++) {
+      byte[] source = new byte[100000 + random.nextInt(100000)];
+      random.nextBytes(source);
+      // insert and delete a few bytes, and change some bytes like addresses
+      byte[] target = new byte[source.length];
+      int sourcePosition = 0, targetPosition = 0;
+      while (targetPosition < target.length && sourcePosition < source.length) {
+        int length = Math.min(random.nextInt(5000), Math.min(target.length - targetPosition, source.length - sourcePosition));
+        System.arraycopy(source, sourcePosition, target, targetPosition, length);
+        for (int j = 0; j < length / 500; j++) {
+          target[targetPosition + random.nextInt(length)]++;
+        }
+        sourcePosition += length + random.nextInt(8);
+        targetPosition += length + random.nextInt(8);
+      }
+
+      byte[] delta = compute(source, target);
+      assertArrayEquals(target, patch(source, delta));
+      // the diff bytes are mostly zero and compress well
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzipOut = new GZIPOutputStream(compressed);
+      gzipOut.write(delta);
+      gzipOut.close();
+      assertTrue(compressed.size() < target.length / 10);
+    }
+
+    // empty source and empty target
+    byte[] content = new byte[1000];
+    random.nextBytes(content);
+    assertArrayEquals(content, patch(new byte[0], compute(new byte[0], content)));
+    assertArrayEquals(new byte[0], patch(content, compute(content, new byte[0])));
+  }
+
+  /**
+   * Test of patch method, with limited and invalid patch, of class 
+   * SuffixArrayPatcher.
+   */
+  @Test
+  public void testPatch() throws IOException {
+    System.out.println("+++++ testPatch +++++");
+
+    Random random = new Random(2);
+    byte[] source = new byte[50000];
+    random.nextBytes(source);
+    byte[] target = new byte[60000];
+    System.arraycopy(source, 100, target, 0, 40000);
+    byte[] extra = new byte[20000];
+    random.nextBytes(extra);
+    System.arraycopy(extra, 0, target, 40000, extra.length);
+    byte[] delta = compute(source, target);
+
+    // not read over the end of the patch
+    byte[] deltaWithTrail = new byte[delta.length + 100];
+    System.arraycopy(delta, 0, deltaWithTrail, 0, delta.length);
+    InterruptibleInputStream deltaIn = new InterruptibleInputStream(new ByteArrayInputStream(deltaWithTrail), deltaWithTrail.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new SuffixArrayPatcher().patch(new ByteBufferSeekableSource(source), deltaIn, out);
+    assertArrayEquals(target, out.toByteArray());
+    assertEquals(100, deltaIn.remaining());
+
+    // invalid magic and truncated patch
+    try {
+      patch(source, new byte[]{1, 2, 3, 4, 5, 0, 0, 0, 0, 0, 0, 0});
+      fail("magic not checked");
+    } catch (PatchException ex) {
+    }
+    try {
+      byte[] truncated = new byte[delta.length - 10];
+      System.arraycopy(delta, 0, truncated, 0, truncated.length);
+      patch(source, truncated);
+      fail("end of patch not checked");
+    } catch (IOException ex) {
+    }
+  }
+}
@@ -0,0 +1,190 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.Delta;
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.PatchException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Adler32;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.InterruptibleInputStream;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class VCDiffTest {
+
+  public VCDiffTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] compute(byte[] source, byte[] target) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new Delta().compute(new ByteBufferSeekableSource(source), new ByteArrayInputStream(target), new VCDiffWriter(out));
+    return out.toByteArray();
+  }
+
+  protected static byte[] patch(byte[] source, byte[] patch) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new VCDiffPatcher().patch(new ByteBufferSeekableSource(source), new ByteArrayInputStream(patch), out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Test of VCDiffWriter and VCDiffPatcher.
+   */
+  @Test
+  public void testWriteAndPatch() throws IOException {
+    System.out.println("+++++ testWriteAndPatch +++++");
+
+    Random random = new Random(0);
+    for (int i = 0; i < 5; i++) {
+      // larger than a window, with moved blocks, changed bytes and runs
+      byte[] source = new byte[VCDiffWriter.WINDOW_SIZE + random.nextInt(VCDiffWriter.WINDOW_SIZE)];
+      random.nextBytes(source);
+      byte[] target = new byte[source.length + random.nextInt(100000)];
+      for (int targetPosition = 0; targetPosition < target.length;) {
+        int length = Math.min(1 + random.nextInt(20000), target.length - targetPosition);
+        int choice = random.nextInt(10);
+        if (choice == 0) {
+          byte[] content = new byte[length];
+          random.nextBytes(content);
+          System.arraycopy(content, 0, target, targetPosition, length);
+        } else if (choice == 1) {
+          for (int j = 0; j < length; j++) {
+            target[targetPosition + j] = (byte) i;
+          }
+        } else {
+          int sourcePosition = random.nextInt(source.length - length + 1);
+          System.arraycopy(source, sourcePosition, target, targetPosition, length);
+        }
+        targetPosition += length;
+      }
+
+      byte[] delta = compute(source, target);
+      assertArrayEquals(target, patch(source, delta));
+
+      // smaller than GDIFF for the same matches
+      ByteArrayOutputStream gdiff = new ByteArrayOutputStream();
+      new Delta().compute(new ByteBufferSeekableSource(source), new ByteArrayInputStream(target), new GDiffWriter(gdiff));
+      assertTrue(delta.length < gdiff.size());
+    }
+
+    // empty source and empty target
+    byte[] content = new byte[1000];
+    random.nextBytes(content);
+    assertArrayEquals(content, patch(new byte[0], compute(new byte[0], content)));
+    assertArrayEquals(new byte[0], patch(content, compute(content, new byte[0])));
+  }
+
+  /**
+   * Test of patch method, with the example of RFC 3284 section 4.3, of class 
+   * VCDiffPatcher.
+   */
+  @Test
+  public void testPatch() throws IOException {
+    System.out.println("+++++ testPatch +++++");
+
+    byte[] source = "abcdefghijklmnop".getBytes("US-ASCII");
+    byte[] target = "abcdwxyzefghefghefghefghzzzz".getBytes("US-ASCII");
+    // COPY 4 from 0, ADD 'wxyz' paired with COPY 4 from 4, COPY 12 from 
+    // the target at 24 overlapping with itself, RUN 4 of 'z'
+    byte[] data = "wxyzz".getBytes("US-ASCII");
+    byte[] instructions = new byte[]{20, (byte) 172, 28, 0, 4};
+    byte[] addresses = new byte[]{0, 4, 24};
+    Adler32 adler32 = new Adler32();
+    adler32.update(target);
+    long checksum = adler32.getValue();
+
+    ByteArrayOutputStream patchOut = new ByteArrayOutputStream();
+    patchOut.write(new byte[]{(byte) 0xd6, (byte) 0xc3, (byte) 0xc4, 0x00, 0x00});
+    // VCD_SOURCE | VCD_ADLER32, source segment of 16 at 0
+    patchOut.write(new byte[]{0x05, 16, 0});
+    patchOut.write(new byte[]{(byte) (9 + data.length + instructions.length + addresses.length), (byte) target.length, 0, (byte) data.length, (byte) instructions.length, (byte) addresses.length});
+    patchOut.write(new byte[]{(byte) (checksum >>> 24), (byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum});
+    patchOut.write(data);
+    patchOut.write(instructions);
+    patchOut.write(addresses);
+    byte[] patch = patchOut.toByteArray();
+    assertArrayEquals(target, patch(source, patch));
+
+    // not read over the end of the patch
+    byte[] patchWithTrail = new byte[patch.length + 100];
+    System.arraycopy(patch, 0, patchWithTrail, 0, patch.length);
+    InterruptibleInputStream patchIn = new InterruptibleInputStream(new ByteArrayInputStream(patchWithTrail), patch.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new VCDiffPatcher().patch(new ByteBufferSeekableSource(source), patchIn, out);
+    assertArrayEquals(target, out.toByteArray());
+
+    // invalid checksum, magic and truncated patch
+    try {
+      byte[] corrupted = patch.clone();
+      corrupted[corrupted.length - 1] = 4;
+      patch(source, corrupted);
+      fail("checksum not checked");
+    } catch (PatchException ex) {
+    }
+    try {
+      patch(source, new byte[]{1, 2, 3, 4, 0});
+      fail("magic not checked");
+    } catch (PatchException ex) {
+    }
+    try {
+      byte[] truncated = new byte[patch.length - 1];
+      System.arraycopy(patch, 0, truncated, 0, truncated.length);
+      patch(source, truncated);
+      fail("end of patch not checked");
+    } catch (IOException ex) {
+    }
+  }
+}
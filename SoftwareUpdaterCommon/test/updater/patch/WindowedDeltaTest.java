@@ -0,0 +1,127 @@
+// Copyright (c) 2012 Chan Wai Shing
+//
+// Permission is hereby granted, free of charge, to any person obtaining
+// a copy of this software and associated documentation files (the
+// "Software"), to deal in the Software without restriction, including
+// without limitation the rights to use, copy, modify, merge, publish,
+// distribute, sublicense, and/or sell copies of the Software, and to
+// permit persons to whom the Software is furnished to do so, subject to
+// the following conditions:
+//
+// The above copyright notice and this permission notice shall be
+// included in all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+// EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+// MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+// NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+// LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+// OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+// WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+package updater.patch;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import updater.util.CommonUtil;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class WindowedDeltaTest {
+
+  public WindowedDeltaTest() {
+  }
+
+  protected static String getClassName() {
+    return new Object() {
+    }.getClass().getEnclosingClass().getName();
+  }
+
+  @BeforeClass
+  public static void setUpClass() throws Exception {
+    System.out.println("***** " + getClassName() + " *****");
+  }
+
+  @AfterClass
+  public static void tearDownClass() throws Exception {
+    System.out.println("******************************\r\n");
+  }
+
+  @Before
+  public void setUp() {
+  }
+
+  @After
+  public void tearDown() {
+  }
+
+  protected static byte[] compute(byte[] source, byte[] target, int windowSize) throws IOException {
+    File sourceFile = File.createTempFile("windowedDeltaTest", null);
+    File targetFile = File.createTempFile("windowedDeltaTest", null);
+    try {
+      CommonUtil.writeFile(sourceFile, source);
+      CommonUtil.writeFile(targetFile, target);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      new WindowedDelta(windowSize).compute(sourceFile, targetFile, out);
+      return out.toByteArray();
+    } finally {
+      sourceFile.delete();
+      targetFile.delete();
+    }
+  }
+
+  protected static byte[] patch(byte[] source, byte[] patch) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new BufferedGDiffPatcher().patch(new ByteBufferSeekableSource(source), new ByteArrayInputStream(patch), out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Test of compute method, of class WindowedDelta.
+   */
+  @Test
+  public void testCompute() throws IOException {
+    System.out.println("+++++ testCompute +++++");
+
+    Random random = new Random(0);
+    byte[] source = new byte[200000];
+    random.nextBytes(source);
+
+    // content shifted a little is matched across many windows
+    byte[] target = new byte[source.length];
+    System.arraycopy(source, 0, target, 0, 50000);
+    System.arraycopy(source, 50000, target, 50100, source.length - 50100);
+    byte[] delta = compute(source, target, 8192);
+    assertArrayEquals(target, patch(source, delta));
+    assertTrue(delta.length < target.length / 20);
+
+    // content moved farther than the window is stored as data but still 
+    // reproduced correctly
+    target = new byte[source.length];
+    System.arraycopy(source, 100000, target, 0, 100000);
+    System.arraycopy(source, 0, target, 100000, 100000);
+    assertArrayEquals(target, patch(source, compute(source, target, 8192)));
+    // the same with a window covering the whole source
+    delta = compute(source, target, source.length * 2);
+    assertArrayEquals(target, patch(source, delta));
+    assertTrue(delta.length < target.length / 20);
+
+    // target longer than source, empty source and empty target
+    target = new byte[300000];
+    random.nextBytes(target);
+    System.arraycopy(source, 0, target, 1000, source.length);
+    assertArrayEquals(target, patch(source, compute(source, target, 8192)));
+    assertArrayEquals(target, patch(new byte[0], compute(new byte[0], target, 8192)));
+    assertArrayEquals(new byte[0], patch(source, compute(source, new byte[0], 8192)));
+  }
+}
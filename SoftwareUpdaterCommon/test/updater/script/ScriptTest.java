@@ -101,10 +101,14 @@ public class ScriptTest {
         byte[] patch2Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_patch2.xml"));
         byte[] patch3Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_patch3.xml"));
         byte[] patch4Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_patch4.xml"));
+        byte[] patch5Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_patch5.xml"));
+        byte[] patch6Data = CommonUtil.readFile(new File(packagePath + "ScriptTest_patch6.xml"));
         assertNotNull(patch1Data);
         assertNotNull(patch2Data);
         assertNotNull(patch3Data);
         assertNotNull(patch4Data);
+        assertNotNull(patch5Data);
+        assertNotNull(patch6Data);
 
         Patch patchScript = Patch.read(patch1Data);
         assertNotNull(patchScript);
@@ -121,5 +125,18 @@ public class ScriptTest {
         patchScript = Patch.read(patch4Data);
         assertNotNull(patchScript);
         assertArrayEquals(new String(patchScript.output(), "UTF-8"), patch4Data, patchScript.output());
+
+        patchScript = Patch.read(patch5Data);
+        assertNotNull(patchScript);
+        assertEquals(-1, patchScript.getOperations().get(0).getDuplicateOf());
+        assertEquals(1, patchScript.getOperations().get(1).getDuplicateOf());
+        assertArrayEquals(new String(patchScript.output(), "UTF-8"), patch5Data, patchScript.output());
+
+        patchScript = Patch.read(patch6Data);
+        assertNotNull(patchScript);
+        assertNull(patchScript.getOperations().get(0).getOldFilePath());
+        assertEquals("oldPath", patchScript.getOperations().get(1).getOldFilePath());
+        assertEquals(20, patchScript.getOperations().get(2).getPatchLength());
+        assertArrayEquals(new String(patchScript.output(), "UTF-8"), patch6Data, patchScript.output());
     }
 }
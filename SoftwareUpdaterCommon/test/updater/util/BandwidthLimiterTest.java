@@ -0,0 +1,84 @@
+package updater.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class BandwidthLimiterTest {
+
+    public BandwidthLimiterTest() {
+    }
+
+    protected static String getClassName() {
+        return new Object() {
+        }.getClass().getEnclosingClass().getName();
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        System.out.println("***** " + getClassName() + " *****");
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        System.out.println("******************************\r\n");
+    }
+
+    @Before
+    public void setUp() {
+    }
+
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * This test needs about 1 second (Thread.sleep)
+     */
+    @Test
+    public void test() throws InterruptedException {
+        System.out.println("+++++ test +++++");
+
+        final BandwidthLimiter instance = new BandwidthLimiter(50000);
+        assertEquals(50000, instance.getBytesPerSecond());
+
+        // 4 threads share the limit, 60000 bytes in total
+        long startTime = System.currentTimeMillis();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < 15; j++) {
+                        instance.acquire(1000);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long timeElapsed = System.currentTimeMillis() - startTime;
+
+        // 60000 bytes at 50000 bytes/s, minus 100ms burst
+        System.out.println("- Time elapsed (1100): " + timeElapsed);
+        assertEquals((double) 1100, (double) timeElapsed, 150F);
+
+        try {
+            new BandwidthLimiter(0);
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+}
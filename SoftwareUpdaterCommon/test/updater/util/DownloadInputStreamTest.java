@@ -0,0 +1,102 @@
+package updater.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class DownloadInputStreamTest {
+
+    protected File resumeFile;
+    protected byte[] content;
+
+    public DownloadInputStreamTest() {
+    }
+
+    protected static String getClassName() {
+        return new Object() {
+        }.getClass().getEnclosingClass().getName();
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        System.out.println("***** " + getClassName() + " *****");
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        System.out.println("******************************\r\n");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        resumeFile = new File("DownloadInputStreamTest.resume");
+        content = new byte[10000];
+        new Random(1).nextBytes(content);
+        CommonUtil.writeFile(resumeFile, content);
+    }
+
+    @After
+    public void tearDown() {
+        resumeFile.delete();
+    }
+
+    /**
+     * Test of start method when the reader is blocked before the download
+     * resumed, of class DownloadInputStream.
+     */
+    @Test
+    public void testStartResume() throws Exception {
+        System.out.println("+++++ testStartResume +++++");
+
+        final DownloadInputStream in = new DownloadInputStream(new HTTPDownloader(), resumeFile);
+        final byte[] b = new byte[content.length];
+        final int[] byteRead = new int[]{-2};
+        final IOException[] failure = new IOException[1];
+        Thread reader = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    int readIndex = 0;
+                    while (readIndex < b.length) {
+                        readIndex += in.read(b, readIndex, b.length - readIndex);
+                    }
+                    byteRead[0] = readIndex;
+                } catch (IOException ex) {
+                    failure[0] = ex;
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+
+        // wait until the reader is blocked in read
+        long timeout = System.currentTimeMillis() + 5000;
+        while (reader.getState() != Thread.State.WAITING && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, reader.getState());
+
+        // the download resume after the whole content in the resume file, no more content received
+        in.start(content.length);
+        reader.join(5000);
+        assertFalse("the reader is not notified", reader.isAlive());
+        assertNull(failure[0]);
+        assertEquals(content.length, byteRead[0]);
+        assertTrue(Arrays.equals(content, b));
+
+        in.finish(DownloadResult.SUCCEED, null);
+        assertEquals(-1, in.read());
+        in.close();
+    }
+}
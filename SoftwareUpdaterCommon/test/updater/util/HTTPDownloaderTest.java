@@ -1,10 +1,17 @@
 package updater.util;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import org.junit.After;
@@ -468,4 +475,110 @@ public class HTTPDownloaderTest {
 
         tempFile.delete();
     }
+
+    @Test
+    public void testSegmented() throws Exception {
+        System.out.println("+++++ testSegmented +++++");
+
+        final byte[] content = new byte[5 * 1048576 + 12345];
+        new Random(1).nextBytes(content);
+        // the number of bytes to send in every response before closing the connection, -1 means no limit
+        final AtomicInteger responseLimit = new AtomicInteger(-1);
+        final AtomicInteger rangeRequestCount = new AtomicInteger(0);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+        server.createContext("/", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int start = 0, end = content.length - 1;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                if (range != null) {
+                    rangeRequestCount.incrementAndGet();
+                    String[] positions = range.substring("bytes=".length()).split("-");
+                    start = Integer.parseInt(positions[0]);
+                    end = Integer.parseInt(positions[1]);
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+                }
+                exchange.sendResponseHeaders(range != null ? 206 : 200, end - start + 1);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    int length = responseLimit.get() == -1 ? end - start + 1 : Math.min(end - start + 1, responseLimit.get());
+                    out.write(content, start, length);
+                } catch (IOException ex) {
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        File tempFile = new File("HTTPDownloaderTest_segmented.kh6am");
+        File segmentFile = new File(tempFile.getAbsolutePath() + ".segments");
+        tempFile.delete();
+        segmentFile.delete();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            String fileSHA256 = CommonUtil.byteArrayToHexString(MessageDigest.getInstance("SHA-256").digest(content));
+            final AtomicLong startingPosition = new AtomicLong(0L);
+            final AtomicLong cumulativeByteDownloaded = new AtomicLong(0L);
+            DownloadProgressListener listener = new DownloadProgressListener() {
+
+                @Override
+                public void byteStart(long pos) {
+                    startingPosition.set(pos);
+                }
+
+                @Override
+                public void byteDownloaded(int numberOfBytes) {
+                    cumulativeByteDownloaded.addAndGet(numberOfBytes);
+                }
+
+                @Override
+                public void byteTotal(long total) {
+                }
+
+                @Override
+                public void downloadRetry(DownloadResult result) {
+                }
+            };
+
+            System.out.println("+ test fresh download");
+            HTTPDownloader downloader = new HTTPDownloader();
+            downloader.setResumeFile(tempFile);
+            downloader.setSegmentCount(4);
+            DownloadResult result = downloader.download(listener, url, fileSHA256, content.length, 0, 0);
+            assertEquals(DownloadResult.SUCCEED, result);
+            assertEquals(4, rangeRequestCount.get());
+            assertEquals(content.length, cumulativeByteDownloaded.get());
+            assertArrayEquals(content, CommonUtil.readFile(tempFile));
+            assertFalse(segmentFile.exists());
+
+            System.out.println("+ test broken connections & resume");
+            tempFile.delete();
+            responseLimit.set(300000);
+            downloader = new HTTPDownloader();
+            downloader.setResumeFile(tempFile);
+            downloader.setSegmentCount(4);
+            result = downloader.download(listener, url, fileSHA256, content.length, 0, 0);
+            assertEquals(DownloadResult.FAILED, result);
+            assertTrue(segmentFile.exists());
+
+            responseLimit.set(-1);
+            cumulativeByteDownloaded.set(0);
+            downloader = new HTTPDownloader();
+            downloader.setResumeFile(tempFile);
+            downloader.setSegmentCount(4);
+            result = downloader.download(listener, url, fileSHA256, content.length, 0, 0);
+            assertEquals(DownloadResult.SUCCEED, result);
+            assertEquals(4 * 300000, startingPosition.get());
+            assertEquals(content.length - startingPosition.get(), cumulativeByteDownloaded.get());
+            assertArrayEquals(content, CommonUtil.readFile(tempFile));
+            assertFalse(segmentFile.exists());
+        } finally {
+            server.stop(0);
+            tempFile.delete();
+            segmentFile.delete();
+        }
+    }
 }
@@ -0,0 +1,131 @@
+package updater.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author Chan Wai Shing <cws1989@gmail.com>
+ */
+public class MappedSeekableFileTest {
+
+    protected File file;
+    protected byte[] content;
+
+    public MappedSeekableFileTest() {
+    }
+
+    protected static String getClassName() {
+        return new Object() {
+        }.getClass().getEnclosingClass().getName();
+    }
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        System.out.println("***** " + getClassName() + " *****");
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws Exception {
+        System.out.println("******************************\r\n");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File("MappedSeekableFileTest.bin");
+        content = new byte[10000];
+        new Random(1).nextBytes(content);
+        CommonUtil.writeFile(file, content);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Read {@code length} bytes from {@code pos}.
+     */
+    protected static byte[] read(SeekableFile seekableFile, long pos, int length) throws IOException {
+        seekableFile.seek(pos);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (seekableFile.read(buffer) == -1) {
+                break;
+            }
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        System.out.println("+++++ testRead +++++");
+
+        // the chunk sizes make reads across the mappings
+        for (int chunkSize : new int[]{1000, 4096, MappedSeekableFile.DEFAULT_CHUNK_SIZE}) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            MappedSeekableFile seekableFile = new MappedSeekableFile(randomAccessFile, chunkSize);
+            try {
+                assertEquals(content.length, seekableFile.length());
+
+                Random random = new Random(chunkSize);
+                for (int i = 0; i < 200; i++) {
+                    int pos = random.nextInt(content.length);
+                    int length = random.nextInt(3000);
+                    int expectedLength = Math.min(length, content.length - pos);
+                    assertArrayEquals(Arrays.copyOfRange(content, pos, pos + expectedLength), read(seekableFile, pos, length));
+                }
+
+                // not exceed the end of a mapping
+                seekableFile.seek(990);
+                ByteBuffer buffer = ByteBuffer.allocate(100);
+                assertEquals(Math.min(100, chunkSize - 990), seekableFile.read(buffer));
+
+                seekableFile.seek(content.length);
+                assertEquals(-1, seekableFile.read(ByteBuffer.allocate(10)));
+            } finally {
+                CommonUtil.closeQuietly(seekableFile);
+            }
+        }
+
+        // the file is not kept locked after closed
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testInterrupt() throws IOException {
+        System.out.println("+++++ testInterrupt +++++");
+
+        final boolean[] taskRun = new boolean[1];
+        MappedSeekableFile seekableFile = new MappedSeekableFile(new RandomAccessFile(file, "r"), 1000);
+        try {
+            seekableFile.addInterruptedTask(new Runnable() {
+
+                @Override
+                public void run() {
+                    taskRun[0] = true;
+                }
+            });
+            Thread.currentThread().interrupt();
+            try {
+                seekableFile.seek(100);
+                fail("interrupt not checked");
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause() instanceof InterruptedException);
+            }
+            assertTrue(taskRun[0]);
+            assertFalse(Thread.interrupted());
+        } finally {
+            CommonUtil.closeQuietly(seekableFile);
+        }
+    }
+}
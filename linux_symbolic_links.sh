@@ -25,6 +25,8 @@ linkFile src/updater/concurrent/ConcurrentLock.java
 linkFile src/updater/concurrent/LockType.java
 linkFile src/updater/concurrent/LockUtil.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/crypto"
+linkFile src/updater/crypto/AESCipher.java
+linkFile src/updater/crypto/AESCipherInputStream.java
 linkFile src/updater/crypto/AESKey.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/gui"
 linkFile src/updater/gui/JTitledPanel.java
@@ -34,8 +36,13 @@ linkFile src/updater/script/Client.java
 linkFile src/updater/script/InvalidFormatException.java
 linkFile src/updater/script/Patch.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/patch"
+linkFile src/updater/patch/BufferedGDiffPatcher.java
 linkFile src/updater/patch/Compression.java
+linkFile src/updater/patch/DigestCache.java
+linkFile src/updater/patch/JarExpander.java
 linkFile src/updater/patch/OperationType.java
+linkFile src/updater/patch/OperationCompressionInputStream.java
+linkFile src/updater/patch/ParallelXZInputStream.java
 linkFile src/updater/patch/PatchReadUtil.java
 linkFile src/updater/patch/PatchRecord.java
 linkFile src/updater/patch/LogAction.java
@@ -44,12 +51,21 @@ linkFile src/updater/patch/LogWriter.java
 linkFile src/updater/patch/Patcher.java
 linkFile src/updater/patch/PatcherListener.java
 linkFile src/updater/patch/ReplacementRecord.java
+linkFile src/updater/patch/SuffixArrayPatcher.java
+linkFile src/updater/patch/VCDiffPatcher.java
+linkFile src/updater/patch/LZMA2DictPatcher.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/util"
+linkFile src/updater/util/BandwidthLimiter.java
 linkFile src/updater/util/CommonUtil.java
+linkFile src/updater/util/DownloadInputStream.java
+linkFile src/updater/util/DownloadProgressListener.java
+linkFile src/updater/util/DownloadResult.java
 linkFile src/updater/util/GetClientScriptResult.java
+linkFile src/updater/util/HTTPDownloader.java
 linkFile src/updater/util/Interruptible.java
 linkFile src/updater/util/InterruptibleInputStream.java
 linkFile src/updater/util/InterruptibleOutputStream.java
+linkFile src/updater/util/MappedSeekableFile.java
 linkFile src/updater/util/Pausable.java
 linkFile src/updater/util/SeekableFile.java
 linkFile src/updater/util/StreamRedirect.java
@@ -67,6 +83,8 @@ linkDir src/watne
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/concurrent"
 linkFile src/updater/concurrent/ConcurrentLock.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/crypto"
+linkFile src/updater/crypto/AESCipher.java
+linkFile src/updater/crypto/AESCipherInputStream.java
 linkFile src/updater/crypto/AESKey.java
 linkFile src/updater/crypto/KeyGenerator.java
 linkFile src/updater/crypto/RSAKey.java
@@ -76,10 +94,17 @@ linkFile src/updater/script/Client.java
 linkFile src/updater/script/InvalidFormatException.java
 linkFile src/updater/script/Patch.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/patch"
+linkFile src/updater/patch/BufferedGDiffPatcher.java
 linkFile src/updater/patch/Compression.java
+linkFile src/updater/patch/DigestCache.java
+linkFile src/updater/patch/JarExpander.java
 linkFile src/updater/patch/OperationType.java
+linkFile src/updater/patch/OperationCompressionInputStream.java
+linkFile src/updater/patch/OperationCompressionOutputStream.java
 linkFile src/updater/patch/PatchCreator.java
+linkFile src/updater/patch/PatchOptions.java
 linkFile src/updater/patch/PatchExtractor.java
+linkFile src/updater/patch/ParallelXZInputStream.java
 linkFile src/updater/patch/PatchReadUtil.java
 linkFile src/updater/patch/PatchRecord.java
 linkFile src/updater/patch/PatchWriteUtil.java
@@ -90,12 +115,22 @@ linkFile src/updater/patch/PatchPacker.java
 linkFile src/updater/patch/Patcher.java
 linkFile src/updater/patch/PatcherListener.java
 linkFile src/updater/patch/ReplacementRecord.java
+linkFile src/updater/patch/LZMA2DictDelta.java
+linkFile src/updater/patch/LZMA2DictPatcher.java
+linkFile src/updater/patch/SuffixArrayDelta.java
+linkFile src/updater/patch/SuffixArrayPatcher.java
+linkFile src/updater/patch/VCDiffPatcher.java
+linkFile src/updater/patch/VCDiffWriter.java
+linkFile src/updater/patch/WindowedDelta.java
+linkFile src/updater/patch/ParallelXZOutputStream.java
+linkFile src/updater/patch/XZBlockOutputStream.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/util"
 linkFile src/updater/util/CommonUtil.java
 linkFile src/updater/util/GetClientScriptResult.java
 linkFile src/updater/util/Interruptible.java
 linkFile src/updater/util/InterruptibleInputStream.java
 linkFile src/updater/util/InterruptibleOutputStream.java
+linkFile src/updater/util/MappedSeekableFile.java
 linkFile src/updater/util/Pausable.java
 linkFile src/updater/util/SeekableFile.java
 linkFile src/updater/util/XMLUtil.java
@@ -118,6 +153,7 @@ linkFile src/updater/script/Client.java
 linkFile src/updater/script/InvalidFormatException.java
 linkFile src/updater/script/Patch.java
 mkdir -p "$SOFTWARE_DIRECTORY/src/updater/util"
+linkFile src/updater/util/BandwidthLimiter.java
 linkFile src/updater/util/CommonUtil.java
 linkFile src/updater/util/GetClientScriptResult.java
 linkFile src/updater/util/DownloadProgressListener.java
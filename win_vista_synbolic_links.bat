@@ -14,6 +14,8 @@ call:linkFile src\updater\concurrent\ConcurrentLock.java
 call:linkFile src\updater\concurrent\LockType.java
 call:linkFile src\updater\concurrent\LockUtil.java
 mkdir "%softwareDirectory%\src\updater\crypto"
+call:linkFile src\updater\crypto\AESCipher.java
+call:linkFile src\updater\crypto\AESCipherInputStream.java
 call:linkFile src\updater\crypto\AESKey.java
 mkdir "%softwareDirectory%\src\updater\gui"
 call:linkFile src\updater\gui\JTitledPanel.java
@@ -23,8 +25,13 @@ call:linkFile src\updater\script\Client.java
 call:linkFile src\updater\script\InvalidFormatException.java
 call:linkFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
+call:linkFile src\updater\patch\BufferedGDiffPatcher.java
 call:linkFile src\updater\patch\Compression.java
+call:linkFile src\updater\patch\DigestCache.java
+call:linkFile src\updater\patch\JarExpander.java
 call:linkFile src\updater\patch\OperationType.java
+call:linkFile src\updater\patch\OperationCompressionInputStream.java
+call:linkFile src\updater\patch\ParallelXZInputStream.java
 call:linkFile src\updater\patch\PatchReadUtil.java
 call:linkFile src\updater\patch\PatchRecord.java
 call:linkFile src\updater\patch\LogAction.java
@@ -33,12 +40,21 @@ call:linkFile src\updater\patch\LogWriter.java
 call:linkFile src\updater\patch\Patcher.java
 call:linkFile src\updater\patch\PatcherListener.java
 call:linkFile src\updater\patch\ReplacementRecord.java
+call:linkFile src\updater\patch\SuffixArrayPatcher.java
+call:linkFile src\updater\patch\VCDiffPatcher.java
+call:linkFile src\updater\patch\LZMA2DictPatcher.java
 mkdir "%softwareDirectory%\src\updater\util"
+call:linkFile src\updater\util\BandwidthLimiter.java
 call:linkFile src\updater\util\CommonUtil.java
+call:linkFile src\updater\util\DownloadInputStream.java
+call:linkFile src\updater\util\DownloadProgressListener.java
+call:linkFile src\updater\util\DownloadResult.java
 call:linkFile src\updater\util\GetClientScriptResult.java
+call:linkFile src\updater\util\HTTPDownloader.java
 call:linkFile src\updater\util\Interruptible.java
 call:linkFile src\updater\util\InterruptibleInputStream.java
 call:linkFile src\updater\util\InterruptibleOutputStream.java
+call:linkFile src\updater\util\MappedSeekableFile.java
 call:linkFile src\updater\util\Pausable.java
 call:linkFile src\updater\util\SeekableFile.java
 call:linkFile src\updater\util\StreamRedirect.java
@@ -56,6 +72,8 @@ call:linkDir src\watne
 mkdir "%softwareDirectory%\src\updater\concurrent"
 call:linkFile src\updater\concurrent\ConcurrentLock.java
 mkdir "%softwareDirectory%\src\updater\crypto"
+call:linkFile src\updater\crypto\AESCipher.java
+call:linkFile src\updater\crypto\AESCipherInputStream.java
 call:linkFile src\updater\crypto\AESKey.java
 call:linkFile src\updater\crypto\KeyGenerator.java
 call:linkFile src\updater\crypto\RSAKey.java
@@ -65,10 +83,17 @@ call:linkFile src\updater\script\Client.java
 call:linkFile src\updater\script\InvalidFormatException.java
 call:linkFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
+call:linkFile src\updater\patch\BufferedGDiffPatcher.java
 call:linkFile src\updater\patch\Compression.java
+call:linkFile src\updater\patch\DigestCache.java
+call:linkFile src\updater\patch\JarExpander.java
 call:linkFile src\updater\patch\OperationType.java
+call:linkFile src\updater\patch\OperationCompressionInputStream.java
+call:linkFile src\updater\patch\OperationCompressionOutputStream.java
 call:linkFile src\updater\patch\PatchCreator.java
+call:linkFile src\updater\patch\PatchOptions.java
 call:linkFile src\updater\patch\PatchExtractor.java
+call:linkFile src\updater\patch\ParallelXZInputStream.java
 call:linkFile src\updater\patch\PatchReadUtil.java
 call:linkFile src\updater\patch\PatchRecord.java
 call:linkFile src\updater\patch\PatchWriteUtil.java
@@ -79,12 +104,22 @@ call:linkFile src\updater\patch\PatchPacker.java
 call:linkFile src\updater\patch\Patcher.java
 call:linkFile src\updater\patch\PatcherListener.java
 call:linkFile src\updater\patch\ReplacementRecord.java
+call:linkFile src\updater\patch\LZMA2DictDelta.java
+call:linkFile src\updater\patch\LZMA2DictPatcher.java
+call:linkFile src\updater\patch\SuffixArrayDelta.java
+call:linkFile src\updater\patch\SuffixArrayPatcher.java
+call:linkFile src\updater\patch\VCDiffPatcher.java
+call:linkFile src\updater\patch\VCDiffWriter.java
+call:linkFile src\updater\patch\WindowedDelta.java
+call:linkFile src\updater\patch\ParallelXZOutputStream.java
+call:linkFile src\updater\patch\XZBlockOutputStream.java
 mkdir "%softwareDirectory%\src\updater\util"
 call:linkFile src\updater\util\CommonUtil.java
 call:linkFile src\updater\util\GetClientScriptResult.java
 call:linkFile src\updater\util\Interruptible.java
 call:linkFile src\updater\util\InterruptibleInputStream.java
 call:linkFile src\updater\util\InterruptibleOutputStream.java
+call:linkFile src\updater\util\MappedSeekableFile.java
 call:linkFile src\updater\util\Pausable.java
 call:linkFile src\updater\util\SeekableFile.java
 call:linkFile src\updater\util\XMLUtil.java
@@ -107,6 +142,7 @@ call:linkFile src\updater\script\Client.java
 call:linkFile src\updater\script\InvalidFormatException.java
 call:linkFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\util"
+call:linkFile src\updater\util\BandwidthLimiter.java
 call:linkFile src\updater\util\CommonUtil.java
 call:linkFile src\updater\util\GetClientScriptResult.java
 call:linkFile src\updater\util\DownloadProgressListener.java
@@ -14,6 +14,8 @@ call:copyFile src\updater\concurrent\ConcurrentLock.java
 call:copyFile src\updater\concurrent\LockType.java
 call:copyFile src\updater\concurrent\LockUtil.java
 mkdir "%softwareDirectory%\src\updater\crypto"
+call:copyFile src\updater\crypto\AESCipher.java
+call:copyFile src\updater\crypto\AESCipherInputStream.java
 call:copyFile src\updater\crypto\AESKey.java
 mkdir "%softwareDirectory%\src\updater\gui"
 call:copyFile src\updater\gui\JTitledPanel.java
@@ -23,8 +25,13 @@ call:copyFile src\updater\script\Client.java
 call:copyFile src\updater\script\InvalidFormatException.java
 call:copyFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
+call:copyFile src\updater\patch\BufferedGDiffPatcher.java
 call:copyFile src\updater\patch\Compression.java
+call:copyFile src\updater\patch\DigestCache.java
+call:copyFile src\updater\patch\JarExpander.java
 call:copyFile src\updater\patch\OperationType.java
+call:copyFile src\updater\patch\OperationCompressionInputStream.java
+call:copyFile src\updater\patch\ParallelXZInputStream.java
 call:copyFile src\updater\patch\PatchReadUtil.java
 call:copyFile src\updater\patch\PatchRecord.java
 call:copyFile src\updater\patch\LogAction.java
@@ -33,12 +40,21 @@ call:copyFile src\updater\patch\LogWriter.java
 call:copyFile src\updater\patch\Patcher.java
 call:copyFile src\updater\patch\PatcherListener.java
 call:copyFile src\updater\patch\ReplacementRecord.java
+call:copyFile src\updater\patch\SuffixArrayPatcher.java
+call:copyFile src\updater\patch\VCDiffPatcher.java
+call:copyFile src\updater\patch\LZMA2DictPatcher.java
 mkdir "%softwareDirectory%\src\updater\util"
+call:copyFile src\updater\util\BandwidthLimiter.java
 call:copyFile src\updater\util\CommonUtil.java
+call:copyFile src\updater\util\DownloadInputStream.java
+call:copyFile src\updater\util\DownloadProgressListener.java
+call:copyFile src\updater\util\DownloadResult.java
 call:copyFile src\updater\util\GetClientScriptResult.java
+call:copyFile src\updater\util\HTTPDownloader.java
 call:copyFile src\updater\util\Interruptible.java
 call:copyFile src\updater\util\InterruptibleInputStream.java
 call:copyFile src\updater\util\InterruptibleOutputStream.java
+call:copyFile src\updater\util\MappedSeekableFile.java
 call:copyFile src\updater\util\Pausable.java
 call:copyFile src\updater\util\SeekableFile.java
 call:copyFile src\updater\util\StreamRedirect.java
@@ -56,6 +72,8 @@ call:copyDir src\watne
 mkdir "%softwareDirectory%\src\updater\concurrent"
 call:copyFile src\updater\concurrent\ConcurrentLock.java
 mkdir "%softwareDirectory%\src\updater\crypto"
+call:copyFile src\updater\crypto\AESCipher.java
+call:copyFile src\updater\crypto\AESCipherInputStream.java
 call:copyFile src\updater\crypto\AESKey.java
 call:copyFile src\updater\crypto\KeyGenerator.java
 call:copyFile src\updater\crypto\RSAKey.java
@@ -65,10 +83,17 @@ call:copyFile src\updater\script\Client.java
 call:copyFile src\updater\script\InvalidFormatException.java
 call:copyFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\patch"
+call:copyFile src\updater\patch\BufferedGDiffPatcher.java
 call:copyFile src\updater\patch\Compression.java
+call:copyFile src\updater\patch\DigestCache.java
+call:copyFile src\updater\patch\JarExpander.java
 call:copyFile src\updater\patch\OperationType.java
+call:copyFile src\updater\patch\OperationCompressionInputStream.java
+call:copyFile src\updater\patch\OperationCompressionOutputStream.java
 call:copyFile src\updater\patch\PatchCreator.java
+call:copyFile src\updater\patch\PatchOptions.java
 call:copyFile src\updater\patch\PatchExtractor.java
+call:copyFile src\updater\patch\ParallelXZInputStream.java
 call:copyFile src\updater\patch\PatchReadUtil.java
 call:copyFile src\updater\patch\PatchRecord.java
 call:copyFile src\updater\patch\PatchWriteUtil.java
@@ -79,12 +104,22 @@ call:copyFile src\updater\patch\PatchPacker.java
 call:copyFile src\updater\patch\Patcher.java
 call:copyFile src\updater\patch\PatcherListener.java
 call:copyFile src\updater\patch\ReplacementRecord.java
+call:copyFile src\updater\patch\LZMA2DictDelta.java
+call:copyFile src\updater\patch\LZMA2DictPatcher.java
+call:copyFile src\updater\patch\SuffixArrayDelta.java
+call:copyFile src\updater\patch\SuffixArrayPatcher.java
+call:copyFile src\updater\patch\VCDiffPatcher.java
+call:copyFile src\updater\patch\VCDiffWriter.java
+call:copyFile src\updater\patch\WindowedDelta.java
+call:copyFile src\updater\patch\ParallelXZOutputStream.java
+call:copyFile src\updater\patch\XZBlockOutputStream.java
 mkdir "%softwareDirectory%\src\updater\util"
 call:copyFile src\updater\util\CommonUtil.java
 call:copyFile src\updater\util\GetClientScriptResult.java
 call:copyFile src\updater\util\Interruptible.java
 call:copyFile src\updater\util\InterruptibleInputStream.java
 call:copyFile src\updater\util\InterruptibleOutputStream.java
+call:copyFile src\updater\util\MappedSeekableFile.java
 call:copyFile src\updater\util\Pausable.java
 call:copyFile src\updater\util\SeekableFile.java
 call:copyFile src\updater\util\XMLUtil.java
@@ -107,6 +142,7 @@ call:copyFile src\updater\script\Client.java
 call:copyFile src\updater\script\InvalidFormatException.java
 call:copyFile src\updater\script\Patch.java
 mkdir "%softwareDirectory%\src\updater\util"
+call:copyFile src\updater\util\BandwidthLimiter.java
 call:copyFile src\updater\util\CommonUtil.java
 call:copyFile src\updater\util\GetClientScriptResult.java
 call:copyFile src\updater\util\DownloadProgressListener.java